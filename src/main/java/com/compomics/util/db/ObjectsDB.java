@@ -5,6 +5,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.Semaphore;
@@ -46,6 +47,10 @@ public class ObjectsDB implements Serializable {
      * The maximum key length before using the key correction for long keys.
      */
     public static final int MAX_KEY_LENGTH = 1000;
+    /**
+     * The maximal number of keys queried in a single "in" clause.
+     */
+    private static final int IN_CLAUSE_MAX_KEYS = 1000;
     /**
      * List of keys too long to create a table.
      */
@@ -1053,6 +1058,115 @@ public class ObjectsDB implements Serializable {
         return object;
     }
 
+    /**
+     * Retrieves the objects of the given keys from the desired table, querying
+     * the database for all keys at once rather than one key at a time. Keys
+     * not found are not in the returned map. The objects cache is neither
+     * used nor updated.
+     *
+     * @param tableName the name of the table
+     * @param objectKeys the keys of the objects to retrieve
+     *
+     * @return the objects found indexed by key
+     *
+     * @throws SQLException exception thrown whenever an error occurs while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a file from the database
+     * @throws InterruptedException exception thrown if a threading error occurs
+     * while interacting with the database
+     */
+    public HashMap<String, Object> retrieveObjects(String tableName, Collection<String> objectKeys) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        HashMap<String, Object> result = new HashMap<String, Object>(objectKeys.size());
+
+        if (objectKeys.isEmpty() || dbConnection == null || usedTables != null && !usedTables.contains(tableName)) {
+            return result;
+        }
+
+        if (debugInteractions) {
+            System.out.println(System.currentTimeMillis() + " Retrieving " + objectKeys.size() + " objects, table: " + tableName);
+        }
+
+        HashMap<String, String> originalKeys = new HashMap<String, String>(objectKeys.size());
+        for (String objectKey : objectKeys) {
+            originalKeys.put(correctKey(tableName, objectKey), objectKey);
+        }
+        ArrayList<String> correctedKeys = new ArrayList<String>(originalKeys.keySet());
+
+        dbMutex.acquire();
+
+        try {
+            // the keys are passed as parameters, the statement is prepared again only for the last chunk
+            PreparedStatement statement = null;
+            int statementSize = 0;
+            try {
+                for (int i = 0; i < correctedKeys.size(); i += IN_CLAUSE_MAX_KEYS) {
+
+                    int nKeys = Math.min(IN_CLAUSE_MAX_KEYS, correctedKeys.size() - i);
+                    if (statement == null || nKeys != statementSize) {
+                        if (statement != null) {
+                            statement.close();
+                        }
+                        StringBuilder query = new StringBuilder("select NAME, MATCH_BLOB from ").append(tableName).append(" where NAME in (");
+                        for (int j = 0; j < nKeys; j++) {
+                            if (j > 0) {
+                                query.append(',');
+                            }
+                            query.append('?');
+                        }
+                        query.append(')');
+                        statement = dbConnection.prepareStatement(query.toString());
+                        statementSize = nKeys;
+                    }
+                    for (int j = 0; j < nKeys; j++) {
+                        statement.setString(j + 1, correctedKeys.get(i + j));
+                    }
+
+                    ResultSet results = statement.executeQuery();
+                    try {
+                        while (results.next()) {
+
+                            String correctedKey = results.getString(1);
+                            Blob tempBlob;
+
+                            if (useSQLite) {
+                                byte[] bytes = results.getBytes(2);
+                                tempBlob = new SerialBlob(bytes);
+                            } else {
+                                tempBlob = results.getBlob(2);
+                            }
+
+                            BufferedInputStream bis = new BufferedInputStream(tempBlob.getBinaryStream());
+                            try {
+                                ObjectInputStream in = new ObjectInputStream(bis);
+                                try {
+                                    result.put(originalKeys.get(correctedKey), in.readObject());
+                                } finally {
+                                    in.close();
+                                }
+                            } finally {
+                                bis.close();
+                            }
+                        }
+                    } finally {
+                        results.close();
+                    }
+                }
+            } finally {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        } finally {
+            dbMutex.release();
+        }
+
+        return result;
+    }
+
     /**
      * Indicates whether an object is loaded in the given table.
      *
@@ -46,6 +46,11 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
      * acids.
      */
     private HashMap<Integer, ArrayList<ModificationMatch>> targetModifications = null;
+    /**
+     * The bit masks of the pattern compiled for every matching type, indexed
+     * by the ordinal of the matching type. Null if not compiled.
+     */
+    private transient volatile long[][] patternMasks = null;
 
     /**
      * Creates a blank pattern. All maps are null.
@@ -226,6 +231,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
 
         // TODO: if an error should occur, an index shifting should be added here
         aaAtTarget = null;
+        patternMasks = null;
     }
 
     /**
@@ -259,6 +265,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
         }
         residueTargeted = residueTargetedTmp;
         aaAtTarget = null;
+        patternMasks = null;
     }
 
     /**
@@ -300,6 +307,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
             length = index + 1;
         }
         aaAtTarget = null;
+        patternMasks = null;
     }
 
     /**
@@ -337,6 +345,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
             length = index + 1;
         }
         aaAtTarget = null;
+        patternMasks = null;
     }
 
     /**
@@ -406,6 +415,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
         }
 
         aaAtTarget = null;
+        patternMasks = null;
         length = -1;
     }
 
@@ -548,6 +558,20 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
      */
     public ArrayList<Integer> getIndexes(String input, SequenceMatchingPreferences sequenceMatchingPreferences) {
         ArrayList<Integer> result = new ArrayList<Integer>();
+        long[] masks = getPatternMasks(sequenceMatchingPreferences);
+        if (masks != null) {
+            // all occurrences are found in a single pass
+            int patternLength = length();
+            long matchBit = 1L << (patternLength - 1);
+            long state = 0L;
+            for (int i = 0; i < input.length(); i++) {
+                state = ((state << 1) | 1L) & getMask(masks, input.charAt(i), patternLength, sequenceMatchingPreferences);
+                if ((state & matchBit) != 0L) {
+                    result.add(i - patternLength + 2);
+                }
+            }
+            return result;
+        }
         int index = 0;
         while ((index = firstIndex(input, sequenceMatchingPreferences, index)) >= 0) {
             result.add(index + 1);
@@ -653,6 +677,20 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
 
         int patternLength = length();
         int aminoAcidPatternLength = aminoAcidSequence.length();
+
+        long[] masks = getPatternMasks(sequenceMatchingPreferences);
+        if (masks != null) {
+            long matchBit = 1L << (patternLength - 1);
+            long state = 0L;
+            for (int i = startIndex; i < aminoAcidPatternLength; i++) {
+                state = ((state << 1) | 1L) & getMask(masks, aminoAcidSequence.charAt(i), patternLength, sequenceMatchingPreferences);
+                if ((state & matchBit) != 0L) {
+                    return i - patternLength + 1;
+                }
+            }
+            return -1;
+        }
+
         int lastIndex = aminoAcidPatternLength - patternLength;
 
         for (int i = startIndex; i <= lastIndex; i++) {
@@ -772,6 +810,80 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
         return false;
     }
 
+    /**
+     * Returns the bit masks of the pattern for the given sequence matching
+     * preferences, compiled at the first call. The bit j of the mask of an
+     * ASCII character is set if the character is targeted at index j of the
+     * pattern, so that the pattern can be matched using the Shift-And
+     * algorithm. Null if the pattern is empty or longer than 64 amino acids.
+     *
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the bit masks of the pattern
+     */
+    private long[] getPatternMasks(SequenceMatchingPreferences sequenceMatchingPreferences) {
+
+        int patternLength = length();
+        if (patternLength == 0 || patternLength > 64) {
+            return null;
+        }
+
+        int type = sequenceMatchingPreferences.getSequenceMatchingType().ordinal();
+        long[][] compiledMasks = patternMasks;
+        if (compiledMasks != null && compiledMasks[type] != null) {
+            return compiledMasks[type];
+        }
+
+        long[] masks = new long[128];
+        for (char aa = 0; aa < masks.length; aa++) {
+            masks[aa] = getMask(aa, patternLength, sequenceMatchingPreferences);
+        }
+
+        // copied so that the masks are complete when published
+        long[][] newMasks = compiledMasks == null ? new long[MatchingType.values().length][] : compiledMasks.clone();
+        newMasks[type] = masks;
+        patternMasks = newMasks;
+
+        return masks;
+    }
+
+    /**
+     * Returns the bit mask of the given amino acid using the compiled masks.
+     *
+     * @param masks the compiled masks
+     * @param aa the amino acid as character
+     * @param patternLength the length of the pattern
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the bit mask of the amino acid
+     */
+    private long getMask(long[] masks, char aa, int patternLength, SequenceMatchingPreferences sequenceMatchingPreferences) {
+        if (aa < masks.length) {
+            return masks[aa];
+        }
+        return getMask(aa, patternLength, sequenceMatchingPreferences);
+    }
+
+    /**
+     * Computes the bit mask of the given amino acid: the bit j is set if the
+     * amino acid is targeted at index j of the pattern.
+     *
+     * @param aa the amino acid as character
+     * @param patternLength the length of the pattern
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the bit mask of the amino acid
+     */
+    private long getMask(char aa, int patternLength, SequenceMatchingPreferences sequenceMatchingPreferences) {
+        long mask = 0L;
+        for (int j = 0; j < patternLength; j++) {
+            if (isTargeted(aa, j, sequenceMatchingPreferences)) {
+                mask |= 1L << j;
+            }
+        }
+        return mask;
+    }
+
     /**
      * Indicates whether the pattern is found in the given amino acid sequence.
      *
@@ -819,6 +931,17 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
         if (endIndex >= aminoAcidSequence.length()) {
             return false;
         }
+        int patternLength = length();
+        long[] masks = getPatternMasks(sequenceMatchingPreferences);
+        if (masks != null && index + patternLength <= aminoAcidSequence.length()) {
+            for (int j = 0; j < patternLength; j++) {
+                long mask = getMask(masks, aminoAcidSequence.charAt(index + j), patternLength, sequenceMatchingPreferences);
+                if ((mask & (1L << j)) == 0L) {
+                    return false;
+                }
+            }
+            return true;
+        }
         String subSequence = aminoAcidSequence.substring(index, index + length());
         return matches(subSequence, sequenceMatchingPreferences);
     }
@@ -1114,6 +1237,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
                 }
             }
         }
+        patternMasks = null;
     }
 
     /**
@@ -1148,6 +1272,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
             }
         }
         length = patternLength + otherPattern.length();
+        patternMasks = null;
     }
 
     /**
@@ -1346,6 +1471,7 @@ public class AminoAcidPattern extends ExperimentObject implements TagComponent {
             residueTargeted = new HashMap<Integer, ArrayList<Character>>(1);
         }
         residueTargeted.put(localization, PTMSite);
+        patternMasks = null;
     }
 
     /**
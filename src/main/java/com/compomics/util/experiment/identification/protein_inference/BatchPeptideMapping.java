@@ -0,0 +1,397 @@
+package com.compomics.util.experiment.identification.protein_inference;
+
+import com.compomics.util.experiment.identification.amino_acid_tags.Tag;
+import com.compomics.util.experiment.identification.amino_acid_tags.matchers.TagMatcher;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Maps batches of peptides or tags on a pool of threads using a peptide
+ * mapper. The queries are read from an iterator in batches and the results
+ * are passed to a listener in the order of the queries as soon as available,
+ * so neither the queries nor the mappings need to be held in memory at once.
+ * The mapping of a single query is delegated to the peptide mapper, so any
+ * implementation of PeptideMapper can be used.
+ *
+ * @author agent
+ */
+public class BatchPeptideMapping {
+
+    /**
+     * The number of queries mapped by a thread at a time.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * Maps the given peptide sequences. If the peptide mapper is also a
+     * PeptidePrefetcher, it is used to prefetch the data of every batch.
+     *
+     * @param peptideMapper the peptide mapper, must be thread safe
+     * @param peptideSequences iterator over the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param listener the listener receiving the mappings
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to cancel the process,
+     * can be null
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping
+     * @throws SQLException exception thrown whenever a problem occurred while
+     * interacting with a database
+     */
+    public static void mapPeptides(final PeptideMapper peptideMapper, Iterator<String> peptideSequences, final SequenceMatchingPreferences sequenceMatchingPreferences,
+            PeptideMappingListener<String> listener, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        PeptidePrefetcher prefetcher = peptideMapper instanceof PeptidePrefetcher ? (PeptidePrefetcher) peptideMapper : null;
+        mapPeptides(peptideMapper, prefetcher, peptideSequences, sequenceMatchingPreferences, listener, nThreads, waitingHandler);
+    }
+
+    /**
+     * Maps the given peptide sequences, letting the prefetcher load the data
+     * needed by every batch before the peptides of the batch are mapped.
+     *
+     * @param peptideMapper the peptide mapper, must be thread safe
+     * @param prefetcher the prefetcher, can be null
+     * @param peptideSequences iterator over the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param listener the listener receiving the mappings
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to cancel the process,
+     * can be null
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping
+     * @throws SQLException exception thrown whenever a problem occurred while
+     * interacting with a database
+     */
+    public static void mapPeptides(final PeptideMapper peptideMapper, final PeptidePrefetcher prefetcher, Iterator<String> peptideSequences,
+            final SequenceMatchingPreferences sequenceMatchingPreferences, PeptideMappingListener<String> listener, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        map(peptideSequences, new QueryMapper<String>() {
+            @Override
+            public void prepare(ArrayList<String> peptideSequences) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+                if (prefetcher != null) {
+                    prefetcher.prefetch(peptideSequences, sequenceMatchingPreferences);
+                }
+            }
+
+            @Override
+            public ArrayList<PeptideProteinMapping> getProteinMapping(String peptideSequence) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+                return peptideMapper.getProteinMapping(peptideSequence, sequenceMatchingPreferences);
+            }
+        }, listener, nThreads, waitingHandler);
+    }
+
+    /**
+     * Maps the given tags. If more than one thread is used, the indexing of
+     * the tag matcher is synchronized.
+     *
+     * @param peptideMapper the peptide mapper, must be thread safe
+     * @param tags iterator over the tags
+     * @param tagMatcher the tag matcher to use
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param massTolerance the MS2 m/z tolerance
+     * @param listener the listener receiving the mappings
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to cancel the process,
+     * can be null
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping
+     * @throws SQLException exception thrown whenever a problem occurred while
+     * interacting with a database
+     */
+    public static void mapTags(final PeptideMapper peptideMapper, Iterator<Tag> tags, final TagMatcher tagMatcher, final SequenceMatchingPreferences sequenceMatchingPreferences,
+            final Double massTolerance, PeptideMappingListener<Tag> listener, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        if (nThreads > 1) {
+            tagMatcher.setSynchronizedIndexing(true);
+        }
+        map(tags, new QueryMapper<Tag>() {
+            @Override
+            public void prepare(ArrayList<Tag> tags) {
+            }
+
+            @Override
+            public ArrayList<PeptideProteinMapping> getProteinMapping(Tag tag) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+                return peptideMapper.getProteinMapping(tag, tagMatcher, sequenceMatchingPreferences, massTolerance);
+            }
+        }, listener, nThreads, waitingHandler);
+    }
+
+    /**
+     * Maps the queries on a pool of threads. The results are passed to the
+     * listener in the order of the queries: batches finished early wait in a
+     * reorder buffer until the preceding batches are passed. At most two
+     * batches per thread are pending or waiting at a time, so that the memory
+     * used does not depend on the number of queries. The first error
+     * encountered stops the mapping and is thrown once all running batches are
+     * finished.
+     *
+     * @param <K> the type of query
+     * @param queries iterator over the queries
+     * @param queryMapper the mapper of a single query
+     * @param listener the listener receiving the mappings
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to cancel the process,
+     * can be null
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping
+     * @throws SQLException exception thrown whenever a problem occurred while
+     * interacting with a database
+     */
+    private static <K> void map(Iterator<K> queries, final QueryMapper<K> queryMapper, final PeptideMappingListener<K> listener, int nThreads, final WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+
+        nThreads = Math.max(1, nThreads);
+        final int maxPendingBatches = 2 * nThreads;
+        final Semaphore pendingBatches = new Semaphore(maxPendingBatches);
+        final ArrayList<Exception> errors = new ArrayList<Exception>(1);
+        final ReorderBuffer<K> reorderBuffer = new ReorderBuffer<K>(listener, pendingBatches, errors);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+
+        try {
+            int batchNumber = 0;
+            while (queries.hasNext()) {
+                final Batch<K> batch = new Batch<K>(batchNumber++);
+                while (queries.hasNext() && batch.queries.size() < BATCH_SIZE) {
+                    batch.queries.add(queries.next());
+                }
+                pendingBatches.acquire();
+                synchronized (errors) {
+                    if (!errors.isEmpty() || (waitingHandler != null && waitingHandler.isRunCanceled())) {
+                        pendingBatches.release();
+                        break;
+                    }
+                }
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            queryMapper.prepare(batch.queries);
+                            for (K query : batch.queries) {
+                                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                                    return;
+                                }
+                                batch.mappings.add(queryMapper.getProteinMapping(query));
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        } finally {
+                            reorderBuffer.finished(batch);
+                        }
+                    }
+                });
+            }
+            pendingBatches.acquire(maxPendingBatches);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (!errors.isEmpty()) {
+            Exception e = errors.get(0);
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            } else if (e instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) e;
+            } else if (e instanceof SQLException) {
+                throw (SQLException) e;
+            } else {
+                throw (RuntimeException) e;
+            }
+        }
+    }
+
+    /**
+     * A batch of queries and the mappings found so far.
+     *
+     * @param <K> the type of query
+     */
+    private static class Batch<K> {
+
+        /**
+         * The number of the batch in the order of the queries.
+         */
+        private final int number;
+        /**
+         * The queries.
+         */
+        private final ArrayList<K> queries = new ArrayList<K>(BATCH_SIZE);
+        /**
+         * The mappings of the first queries, one list per query.
+         */
+        private final ArrayList<ArrayList<PeptideProteinMapping>> mappings = new ArrayList<ArrayList<PeptideProteinMapping>>(BATCH_SIZE);
+
+        /**
+         * Constructor.
+         *
+         * @param number the number of the batch
+         */
+        public Batch(int number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Passes the finished batches to the listener in the order of their
+     * numbers.
+     *
+     * @param <K> the type of query
+     */
+    private static class ReorderBuffer<K> {
+
+        /**
+         * The listener receiving the mappings.
+         */
+        private final PeptideMappingListener<K> listener;
+        /**
+         * The semaphore released for every batch passed to the listener.
+         */
+        private final Semaphore pendingBatches;
+        /**
+         * The list where errors thrown by the listener are added.
+         */
+        private final ArrayList<Exception> errors;
+        /**
+         * The finished batches waiting for their predecessors.
+         */
+        private final HashMap<Integer, Batch<K>> waitingBatches = new HashMap<Integer, Batch<K>>();
+        /**
+         * The number of the next batch to pass to the listener.
+         */
+        private int nextBatch = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param listener the listener receiving the mappings
+         * @param pendingBatches the semaphore released for every batch passed
+         * to the listener
+         * @param errors the list where errors thrown by the listener are
+         * added
+         */
+        public ReorderBuffer(PeptideMappingListener<K> listener, Semaphore pendingBatches, ArrayList<Exception> errors) {
+            this.listener = listener;
+            this.pendingBatches = pendingBatches;
+            this.errors = errors;
+        }
+
+        /**
+         * Adds a finished batch and passes all batches which are next in
+         * order to the listener. Errors thrown by the listener are recorded
+         * and do not stop the release of the batches.
+         *
+         * @param batch the finished batch
+         */
+        public synchronized void finished(Batch<K> batch) {
+            waitingBatches.put(batch.number, batch);
+            Batch<K> next;
+            while ((next = waitingBatches.remove(nextBatch)) != null) {
+                try {
+                    for (int i = 0; i < next.mappings.size(); ++i) {
+                        listener.mapped(next.queries.get(i), next.mappings.get(i));
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    ++nextBatch;
+                    pendingBatches.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a single query.
+     *
+     * @param <K> the type of query
+     */
+    private interface QueryMapper<K> {
+
+        /**
+         * Prepares the mapping of a batch of queries.
+         *
+         * @param queries the queries of the batch
+         *
+         * @throws IOException exception thrown whenever an error occurs while
+         * reading or writing a file
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurs while deserializing an object
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while mapping
+         * @throws SQLException exception thrown whenever a problem occurred
+         * while interacting with a database
+         */
+        public void prepare(ArrayList<K> queries) throws IOException, InterruptedException, ClassNotFoundException, SQLException;
+
+        /**
+         * Returns the protein mappings of the given query.
+         *
+         * @param query the query
+         * @return the protein mappings
+         *
+         * @throws IOException exception thrown whenever an error occurs while
+         * reading or writing a file
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurs while deserializing an object
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while mapping
+         * @throws SQLException exception thrown whenever a problem occurred
+         * while interacting with a database
+         */
+        public ArrayList<PeptideProteinMapping> getProteinMapping(K query) throws IOException, InterruptedException, ClassNotFoundException, SQLException;
+    }
+
+    /**
+     * Loads the data needed to map a batch of peptides, for instance to query
+     * a database once per batch rather than once per peptide.
+     */
+    public interface PeptidePrefetcher {
+
+        /**
+         * Loads the data needed to map the given peptides.
+         *
+         * @param peptideSequences the peptide sequences of the batch
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         *
+         * @throws IOException exception thrown whenever an error occurs while
+         * reading or writing a file
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurs while deserializing an object
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while loading
+         * @throws SQLException exception thrown whenever a problem occurred
+         * while interacting with a database
+         */
+        public void prefetch(ArrayList<String> peptideSequences, SequenceMatchingPreferences sequenceMatchingPreferences) throws IOException, InterruptedException, ClassNotFoundException, SQLException;
+    }
+}
@@ -0,0 +1,22 @@
+package com.compomics.util.experiment.identification.protein_inference;
+
+import java.util.ArrayList;
+
+/**
+ * Listener receiving the results of a batch peptide to protein mapping.
+ *
+ * @param <K> the type of query, peptide sequence or tag
+ *
+ * @author agent
+ */
+public interface PeptideMappingListener<K> {
+
+    /**
+     * Called once for every query after it was mapped. The calls come from
+     * the mapping threads in the order of the queries, never concurrently.
+     *
+     * @param query the peptide sequence or tag mapped
+     * @param peptideProteinMappings the protein mappings found, empty if none
+     */
+    public void mapped(K query, ArrayList<PeptideProteinMapping> peptideProteinMappings);
+}
@@ -9,8 +9,10 @@ import com.compomics.util.experiment.identification.amino_acid_tags.TagComponent
 import com.compomics.util.experiment.identification.amino_acid_tags.matchers.TagMatcher;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.protein_inference.BatchPeptideMapping;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapper;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMappingListener;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndex;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
@@ -22,9 +24,16 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Pattern;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 
 /**
  * Command line peptide mapping.
@@ -33,6 +42,11 @@ import java.io.FileReader;
  */
 public class PeptideMapping {
 
+    /**
+     * The size of the output buffer in characters.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
     /**
      * Main class.
      *
@@ -57,7 +71,8 @@ public class PeptideMapping {
 
         PeptideMapperType peptideMapperType = PeptideMapperType.fm_index;
         System.err.println("Start reading FASTA file");
-        WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        final WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
         File sequences = new File(args[1]);
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         try {
@@ -103,7 +118,7 @@ public class PeptideMapping {
         long startTimeIndex = System.nanoTime();
         PeptideMapper peptideMapper = null;
         if (peptideMapperType == PeptideMapperType.fm_index) {
-            peptideMapper = new FMIndex(waitingHandlerCLIImpl, true, peptideVariantsPreferences, searchParameters);
+            peptideMapper = new FMIndex(waitingHandlerCLIImpl, true, peptideVariantsPreferences, searchParameters, nThreads);
         } else {
             try {
                 peptideMapper = new ProteinTree(1000, 1000);
@@ -118,97 +133,53 @@ public class PeptideMapping {
         System.err.println();
         if (peptideMapperType == PeptideMapperType.fm_index) {
             System.err.println("Indexing took " + (diffTimeIndex / 1e9) + " seconds and consumes " + (((float) ((FMIndex) peptideMapper).getAllocatedBytes()) / 1e6) + " MB");
+            for (Map.Entry<String, Long> componentBytes : ((FMIndex) peptideMapper).getAllocatedBytesPerComponent().entrySet()) {
+                System.err.println("  " + componentBytes.getKey() + ": " + (((float) componentBytes.getValue()) / 1e6) + " MB");
+            }
         } else {
             System.err.println("Indexing took " + (diffTimeIndex / 1e9) + " seconds");
         }
 
-        if (args[0].equals("-p")) {
-            ArrayList<String> peptides = new ArrayList<String>();
-            try {
-                String line = "";
-                BufferedReader br = new BufferedReader(new FileReader(args[2]));
-                while ((line = br.readLine()) != null) {
-                    if (!Pattern.matches("[a-zA-Z]+", line)) {
-                        System.err.println("Error: invalid character in line '" + line + "'");
-                        System.exit(-1);
-                    }
-                    peptides.add(line.toUpperCase());
-                }
-                br.close();
-            } catch (Exception e) {
-                System.err.println("Error: cound not open input list");
-                System.exit(-1);
-            }
-            waitingHandlerCLIImpl.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandlerCLIImpl.setMaxSecondaryProgressCounter(peptides.size());
-            waitingHandlerCLIImpl.setSecondaryProgressCounter(0);
-            ArrayList<PeptideProteinMapping> allPeptideProteinMappings = new ArrayList<PeptideProteinMapping>();
+        BufferedReader inputReader = null;
+        try {
+            inputReader = new BufferedReader(new FileReader(args[2]));
+        } catch (Exception e) {
+            System.err.println("Error: cound not open input list");
+            System.exit(-1);
+        }
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[3]), "UTF-8"), OUTPUT_BUFFER_SIZE));
+        } catch (Exception e) {
+            System.err.println("Error: could not write into file '" + args[3] + "'");
+            System.exit(-1);
+        }
+        final PrintWriter mappingWriter = writer;
 
-            // starting the mapping
-            try {
-                long startTimeMapping = System.nanoTime();
-                for (int i = 0; i < peptides.size(); ++i) {
-                    String peptide = peptides.get(i);
-                    waitingHandlerCLIImpl.increaseSecondaryProgressCounter();
-                    ArrayList<PeptideProteinMapping> peptideProteinMappings = peptideMapper.getProteinMapping(peptide, sequenceMatchingPreferences);
-                    allPeptideProteinMappings.addAll(peptideProteinMappings);
-                }
-                long diffTimeMapping = System.nanoTime() - startTimeMapping;
-                System.err.println();
-                System.err.println("Mapping " + peptides.size() + " peptides took " + (diffTimeMapping / 1e9) + " seconds");
-            } catch (Exception e) {
-                System.err.println("Error: mapping went wrong for unknown reasons");
-                System.exit(-1);
-            }
+        if (args[0].equals("-p")) {
 
+            // the peptides are read, mapped and written in chunks, the mappings are written in the order of the input
             try {
-                PrintWriter writer = new PrintWriter(args[3], "UTF-8");
-                for (PeptideProteinMapping peptideProteinMapping : allPeptideProteinMappings) {
-                    String peptide = peptideProteinMapping.getPeptideSequence();
-                    String accession = peptideProteinMapping.getProteinAccession();
-                    int startIndex = peptideProteinMapping.getIndex();
-                    writer.println(peptide + "," + accession + "," + startIndex);
-                }
-                writer.close();
-            } catch (Exception e) {
-                System.err.println("Error: could not write into file '" + args[3] + "'");
-                System.exit(-1);
-            }
-        } else {
-            ArrayList<Tag> tags = new ArrayList<Tag>();
-            ArrayList<Integer> tagIndexes = new ArrayList<Integer>();
-            try {
-                String line = "";
-                BufferedReader br = new BufferedReader(new FileReader(args[2]));
-                while ((line = br.readLine()) != null) {
-                    Tag tag = new Tag();
-                    for (String part : line.split(",")) {
-
-                        if (Pattern.matches("[a-zA-Z]+", part)) {
-                            tag.addAminoAcidSequence(new AminoAcidSequence(part));
-                        } else {
-                            try {
-                                double mass = Double.parseDouble(part);
-                                tag.addMassGap(mass);
-                            } catch (NumberFormatException e) {
-                                System.err.println("Error: line contains no valid tag: '" + line + "'");
-                                System.exit(-1);
-                            }
+                final ThroughputReporter throughputReporter = new ThroughputReporter("peptides");
+                BatchPeptideMapping.mapPeptides(peptideMapper, new PeptideIterator(inputReader), sequenceMatchingPreferences, new PeptideMappingListener<String>() {
+                    @Override
+                    public void mapped(String peptide, ArrayList<PeptideProteinMapping> peptideProteinMappings) {
+                        for (PeptideProteinMapping peptideProteinMapping : peptideProteinMappings) {
+                            String accession = peptideProteinMapping.getProteinAccession();
+                            int startIndex = peptideProteinMapping.getIndex();
+                            mappingWriter.println(peptideProteinMapping.getPeptideSequence() + "," + accession + "," + startIndex);
                         }
+                        throughputReporter.increase();
                     }
-                    tags.add(tag);
-                }
+                }, nThreads, waitingHandlerCLIImpl);
+                throughputReporter.finished();
             } catch (Exception e) {
-                System.err.println("Error: cound not open input list");
+                System.err.println("Error: mapping went wrong for unknown reasons");
                 System.exit(-1);
             }
+        } else {
 
-            waitingHandlerCLIImpl.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandlerCLIImpl.setMaxSecondaryProgressCounter(tags.size());
-            waitingHandlerCLIImpl.setSecondaryProgressCounter(0);
-            ArrayList<PeptideProteinMapping> allPeptideProteinMappings = new ArrayList<PeptideProteinMapping>();
-
-            // starting the mapping
+            // the tags are read, mapped and written in chunks, the mappings are written in the order of the input
             try {
                 // setting up modifications lists, only relevant for protein tree
                 ArrayList<String> variableModifications = searchParameters.getPtmSettings().getVariableModifications();
@@ -216,47 +187,45 @@ public class PeptideMapping {
 
                 TagMatcher tagMatcher = new TagMatcher(fixedModifications, variableModifications, sequenceMatchingPreferences);
 
-                long startTimeMapping = System.nanoTime();
-                for (int i = 0; i < tags.size(); ++i) {
-                    waitingHandlerCLIImpl.increaseSecondaryProgressCounter();
-                    ArrayList<PeptideProteinMapping> peptideProteinMappings = peptideMapper.getProteinMapping(tags.get(i), tagMatcher, sequenceMatchingPreferences, searchParameters.getFragmentIonAccuracyInDaltons());
-                    allPeptideProteinMappings.addAll(peptideProteinMappings);
-                    for (int j = 0; j < peptideProteinMappings.size(); ++j) {
-                        tagIndexes.add(i);
+                final ThroughputReporter throughputReporter = new ThroughputReporter("tags");
+                BatchPeptideMapping.mapTags(peptideMapper, new TagIterator(inputReader), tagMatcher, sequenceMatchingPreferences, searchParameters.getFragmentIonAccuracyInDaltons(), new PeptideMappingListener<Tag>() {
+                    @Override
+                    public void mapped(Tag tag, ArrayList<PeptideProteinMapping> peptideProteinMappings) {
+                        for (PeptideProteinMapping peptideProteinMapping : peptideProteinMappings) {
+                            String peptide = peptideProteinMapping.getPeptideSequence();
+                            String accession = peptideProteinMapping.getProteinAccession();
+                            int startIndex = peptideProteinMapping.getIndex();
+                            for (TagComponent tagComponent : tag.getContent()) {
+                                if (tagComponent instanceof MassGap) {
+                                    mappingWriter.print(tagComponent.getMass());
+                                }
+                                if (tagComponent instanceof AminoAcidSequence) {
+                                    mappingWriter.print(tagComponent.asSequence());
+                                }
+                                mappingWriter.print(",");
+                            }
+                            mappingWriter.println(peptide + "," + accession + "," + startIndex);
+                        }
+                        throughputReporter.increase();
                     }
-                }
-                long diffTimeMapping = System.nanoTime() - startTimeMapping;
-                System.err.println();
-                System.err.println("Mapping " + tags.size() + " tags took " + (diffTimeMapping / 1e9) + " seconds");
+                }, nThreads, waitingHandlerCLIImpl);
+                throughputReporter.finished();
             } catch (Exception e) {
                 e.printStackTrace();
                 System.err.println("Error: an unexpected error happened.");
                 System.exit(-1);
             }
+        }
 
-            try {
-                PrintWriter writer = new PrintWriter(args[3], "UTF-8");
-                for (int i = 0; i < allPeptideProteinMappings.size(); ++i) {
-                    PeptideProteinMapping peptideProteinMapping = allPeptideProteinMappings.get(i);
-                    String peptide = peptideProteinMapping.getPeptideSequence();
-                    String accession = peptideProteinMapping.getProteinAccession();
-                    int startIndex = peptideProteinMapping.getIndex();
-                    for (TagComponent tagComponent : tags.get(tagIndexes.get(i)).getContent()) {
-                        if (tagComponent instanceof MassGap) {
-                            writer.print(tagComponent.getMass());
-                        }
-                        if (tagComponent instanceof AminoAcidSequence) {
-                            writer.print(tagComponent.asSequence());
-                        }
-                        writer.print(",");
-                    }
-                    writer.println(peptide + "," + accession + "," + startIndex);
-                }
-                writer.close();
-            } catch (Exception e) {
-                System.err.println("Error: could not write into file '" + args[3] + "'");
-                System.exit(-1);
-            }
+        try {
+            inputReader.close();
+        } catch (Exception e) {
+            System.err.println("Error: could not close input list");
+        }
+        mappingWriter.close();
+        if (mappingWriter.checkError()) {
+            System.err.println("Error: could not write into file '" + args[3] + "'");
+            System.exit(-1);
         }
 
         if (peptideMapperType == PeptideMapperType.tree) {
@@ -268,4 +237,191 @@ public class PeptideMapping {
             }
         }
     }
+
+    /**
+     * Iterator over the peptides of the input list, reading the lines on
+     * demand.
+     */
+    private static class PeptideIterator implements Iterator<String> {
+
+        /**
+         * The reader of the input list.
+         */
+        private final BufferedReader reader;
+        /**
+         * The next line, null if the end of the list is reached.
+         */
+        private String nextLine;
+
+        /**
+         * Constructor.
+         *
+         * @param reader the reader of the input list
+         */
+        public PeptideIterator(BufferedReader reader) {
+            this.reader = reader;
+            nextLine = readLine(reader);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public String next() {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = readLine(reader);
+            if (!Pattern.matches("[a-zA-Z]+", line)) {
+                System.err.println("Error: invalid character in line '" + line + "'");
+                System.exit(-1);
+            }
+            return line.toUpperCase();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Iterator over the tags of the input list, reading the lines on demand.
+     */
+    private static class TagIterator implements Iterator<Tag> {
+
+        /**
+         * The reader of the input list.
+         */
+        private final BufferedReader reader;
+        /**
+         * The next line, null if the end of the list is reached.
+         */
+        private String nextLine;
+
+        /**
+         * Constructor.
+         *
+         * @param reader the reader of the input list
+         */
+        public TagIterator(BufferedReader reader) {
+            this.reader = reader;
+            nextLine = readLine(reader);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public Tag next() {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
+            String line = nextLine;
+            nextLine = readLine(reader);
+            Tag tag = new Tag();
+            for (String part : line.split(",")) {
+                if (Pattern.matches("[a-zA-Z]+", part)) {
+                    tag.addAminoAcidSequence(new AminoAcidSequence(part));
+                } else {
+                    try {
+                        double mass = Double.parseDouble(part);
+                        tag.addMassGap(mass);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Error: line contains no valid tag: '" + line + "'");
+                        System.exit(-1);
+                    }
+                }
+            }
+            return tag;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads the next line of the input list, exits if the list cannot be
+     * read.
+     *
+     * @param reader the reader of the input list
+     * @return the next line, null if the end of the list is reached
+     */
+    private static String readLine(BufferedReader reader) {
+        try {
+            return reader.readLine();
+        } catch (IOException e) {
+            System.err.println("Error: cound not read input list");
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    /**
+     * Prints the number of queries mapped and the throughput about every
+     * second, and the total mapping time when finished.
+     */
+    private static class ThroughputReporter {
+
+        /**
+         * The type of queries, used in the messages.
+         */
+        private final String queryType;
+        /**
+         * The start time in nanoseconds.
+         */
+        private final long startTime = System.nanoTime();
+        /**
+         * The time of the last report in nanoseconds.
+         */
+        private long lastReportTime = startTime;
+        /**
+         * The number of queries mapped at the last report.
+         */
+        private long lastReportCount = 0;
+        /**
+         * The number of queries mapped.
+         */
+        private long count = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param queryType the type of queries, used in the messages
+         */
+        public ThroughputReporter(String queryType) {
+            this.queryType = queryType;
+        }
+
+        /**
+         * Counts a mapped query and reports if the last report is older than
+         * a second.
+         */
+        public void increase() {
+            ++count;
+            long time = System.nanoTime();
+            if (time - lastReportTime >= 1000000000L) {
+                double rate = (count - lastReportCount) / ((time - lastReportTime) / 1e9);
+                System.err.println(count + " " + queryType + " mapped (" + Math.round(rate) + " " + queryType + " per second)");
+                lastReportTime = time;
+                lastReportCount = count;
+            }
+        }
+
+        /**
+         * Prints the total mapping time.
+         */
+        public void finished() {
+            double diffTimeMapping = System.nanoTime() - startTime;
+            System.err.println();
+            System.err.println("Mapping " + count + " " + queryType + " took " + (diffTimeMapping / 1e9) + " seconds");
+        }
+    }
 }
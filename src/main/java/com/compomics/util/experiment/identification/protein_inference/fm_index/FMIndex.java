@@ -22,19 +22,27 @@ import com.compomics.util.experiment.identification.protein_inference.PeptidePro
 import com.compomics.util.preferences.PeptideVariantsPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.TreeSet;
 import org.jsuffixarrays.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -45,9 +53,22 @@ import java.util.concurrent.Semaphore;
  */
 public class FMIndex implements PeptideMapper {
     /**
-     * Semaphore for caching.
+     * Cache of intermediate tag to proteome mapping results.
      */
-    static Semaphore cacheMutex = new Semaphore(1);
+    private final TagCache tagCache = new TagCache(TagCache.DEFAULT_CAPACITY);
+    /**
+     * Search frontier of the tag mapping, reused by every thread.
+     */
+    private final ThreadLocal<MatrixContentArena> matrixContentArenas = new ThreadLocal<MatrixContentArena>() {
+        @Override
+        protected MatrixContentArena initialValue() {
+            return new MatrixContentArena();
+        }
+    };
+    /**
+     * The settings of the index data structures.
+     */
+    private FMIndexSettings fmIndexSettings;
     /**
     * Number of chunks of complete index.
     */
@@ -55,19 +76,23 @@ public class FMIndex implements PeptideMapper {
     /**
      * Byte size of index chuck.
      */
-    private final int indexChunkSize = 100 * 1024 * 1024;
+    private int indexChunkSize;
     /**
      * Sampled suffix array.
      */
-    private final ArrayList<int[]> suffixArraysPrimary = new ArrayList<int[]>();
+    private final ArrayList<PackedIntArray> suffixArraysPrimary = new ArrayList<PackedIntArray>();
+    /**
+     * Sampled inverse suffix array, the entries are null if not sampled.
+     */
+    private final ArrayList<PackedIntArray> inverseSuffixArraysPrimary = new ArrayList<PackedIntArray>();
     /**
      * Wavelet tree for storing the burrows wheeler transform.
      */
-    public ArrayList<WaveletTree> occurrenceTablesPrimary = new ArrayList<WaveletTree>();
+    public ArrayList<OccurrenceTable> occurrenceTablesPrimary = new ArrayList<OccurrenceTable>();
     /**
      * Wavelet tree for storing the burrows wheeler transform reversed.
      */
-    public ArrayList<WaveletTree> occurrenceTablesReversed = new ArrayList<WaveletTree>();
+    public ArrayList<OccurrenceTable> occurrenceTablesReversed = new ArrayList<OccurrenceTable>();
     /**
      * Less table for doing an update step according to the LF step.
      */
@@ -83,15 +108,21 @@ public class FMIndex implements PeptideMapper {
     /**
      * Every 2^samplingShift suffix array entry will be sampled.
      */
-    private final int samplingShift = 3;
+    private int samplingShift;
     /**
      * Mask of fast modulo operations.
      */
-    private final int samplingMask = (1 << samplingShift) - 1;
+    private int samplingMask;
     /**
      * Bit shifting for fast multiplying / dividing operations.
      */
-    private final int sampling = 1 << samplingShift;
+    private int sampling;
+    /**
+     * Upper bound of the number of bytes needed per character of an index
+     * part while it is built: the text, its integer copy, the suffix array
+     * and the Burrows-Wheeler transform.
+     */
+    private static final long BUILD_BYTES_PER_CHARACTER = 16;
     /**
      * Storing the starting positions of the protein sequences.
      */
@@ -100,6 +131,10 @@ public class FMIndex implements PeptideMapper {
      * List of all accession IDs in the FASTA file.
      */
     private final ArrayList<String[]> accessions = new ArrayList<String[]>();
+    /**
+     * Index part and protein index of every accession, built upon first use.
+     */
+    private volatile HashMap<String, int[]> accessionIndexes = null;
     /**
      * List of all amino acid masses.
      */
@@ -275,22 +310,10 @@ public class FMIndex implements PeptideMapper {
         {3, 1, 0, 2}, {3, 1, 2, 0}, {3, 2, 0, 1}, {3, 2, 1, 0}}};
 
     /**
-     * struct for building own data structure for mass to index mapping.
+     * Lookup of the amino acid combinations per mass, shared by the indexes
+     * with the same masses and tolerance.
      */
-    public class MassIndexMap {
-        public double mass;
-        public int[] indexes;
-        
-        public MassIndexMap(double mass, int[] indexes){
-            this.mass = mass;
-            this.indexes = indexes;
-        }
-    }
-    
-    /**
-     * Arraylist for sorted masses to index mappings.
-     */
-    ArrayList<MassIndexMap> massIndexMaps = null;
+    MassIntervalLookup massIntervalLookup = null;
 
     /**
      * Returns the position of a value in the array or if not found the position
@@ -418,43 +441,7 @@ public class FMIndex implements PeptideMapper {
      * @return the mapping ranges
      */
     public int[] computeMappingRanges(double mass){
-        int[] ranges = new int[]{0, -1};
-        
-        int low = 0;
-        int mid = 0;
-        int high = massIndexMaps.size() - 1;
-        while (low <= high) {
-            mid = (low + high) >> 1;
-            if (massIndexMaps.get(mid).mass <= mass - computeInverseMassValue(massTolerance, massIndexMaps.get(mid).mass)) {
-                low = mid + 1;
-            } else {
-                high = mid - 1;
-            }
-        }
-        ranges[0] = Math.max(mid, 0);
-        while (ranges[0] < massIndexMaps.size() - 1 && massIndexMaps.get(ranges[0]).mass < mass - computeInverseMassValue(massTolerance, massIndexMaps.get(ranges[0]).mass)){
-            ++ranges[0];
-        }
-        if (massAccuracyType == SearchParameters.MassAccuracyType.DA && Math.abs(massIndexMaps.get(ranges[0]).mass - mass) > massTolerance) return ranges;
-        if (massAccuracyType == SearchParameters.MassAccuracyType.PPM && computeMassValue(mass, massIndexMaps.get(ranges[0]).mass) > massTolerance) return ranges;
-        
-        low = ranges[0];
-        high = massIndexMaps.size() - 1;
-        while (low <= high) {
-            mid = (low + high) >> 1;
-            if (massIndexMaps.get(mid).mass < mass + computeInverseMassValue(massTolerance, massIndexMaps.get(mid).mass)) {
-                low = mid + 1;
-            } else {
-                high = mid - 1;
-            }
-        }
-        
-        ranges[1] = Math.min(mid, massIndexMaps.size());
-        while (0 < ranges[1] && massIndexMaps.get(ranges[1]).mass > mass + computeInverseMassValue(massTolerance, massIndexMaps.get(ranges[1]).mass)){
-            --ranges[1];
-        }
-        
-        return ranges;
+        return massIntervalLookup.getRange(mass);
     }
     
     /**
@@ -464,12 +451,44 @@ public class FMIndex implements PeptideMapper {
      */
     public long getAllocatedBytes() {
         long bytes = 0;
-        for (int indexPart = 0; indexPart < indexParts; ++indexPart){
-            bytes += occurrenceTablesPrimary.get(indexPart).getAllocatedBytes() + occurrenceTablesReversed.get(indexPart).getAllocatedBytes() + suffixArraysPrimary.get(indexPart).length * 4;
+        for (long componentBytes : getAllocatedBytesPerComponent().values()) {
+            bytes += componentBytes;
         }
         return bytes;
     }
 
+    /**
+     * Computes the number of allocated bytes of every component of the index:
+     * occurrence tables, sampled suffix arrays, sampled inverse suffix arrays,
+     * less tables and protein boundaries.
+     *
+     * @return allocated bytes indexed by component name
+     */
+    public LinkedHashMap<String, Long> getAllocatedBytesPerComponent() {
+        long occurrenceTableBytes = 0;
+        long suffixArrayBytes = 0;
+        long inverseSuffixArrayBytes = 0;
+        long lessTableBytes = 0;
+        long boundaryBytes = 0;
+        for (int indexPart = 0; indexPart < indexParts; ++indexPart) {
+            occurrenceTableBytes += occurrenceTablesPrimary.get(indexPart).getAllocatedBytes() + occurrenceTablesReversed.get(indexPart).getAllocatedBytes();
+            suffixArrayBytes += suffixArraysPrimary.get(indexPart).getAllocatedBytes();
+            PackedIntArray inverseSuffixArray = inverseSuffixArraysPrimary.get(indexPart);
+            if (inverseSuffixArray != null) {
+                inverseSuffixArrayBytes += inverseSuffixArray.getAllocatedBytes();
+            }
+            lessTableBytes += 4 * (lessTablesPrimary.get(indexPart).length + lessTablesReversed.get(indexPart).length);
+            boundaryBytes += 4 * boundaries.get(indexPart).length;
+        }
+        LinkedHashMap<String, Long> bytes = new LinkedHashMap<String, Long>();
+        bytes.put("occurrence tables", occurrenceTableBytes);
+        bytes.put("sampled suffix arrays", suffixArrayBytes);
+        bytes.put("sampled inverse suffix arrays", inverseSuffixArrayBytes);
+        bytes.put("less tables", lessTableBytes);
+        bytes.put("protein boundaries", boundaryBytes);
+        return bytes;
+    }
+
     
     /**
      * Constructor. If PTM settings are provided the index will contain
@@ -481,9 +500,38 @@ public class FMIndex implements PeptideMapper {
      * @param searchParameters the search parameters
      */
     public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters) {
+        this(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, 1);
+    }
+    
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param searchParameters the search parameters
+     * @param nThreads the number of threads to use when building the index
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters, int nThreads) {
+        this(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, nThreads, new FMIndexSettings());
+    }
+    
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param searchParameters the search parameters
+     * @param nThreads the number of threads to use when building the index
+     * @param fmIndexSettings the settings of the index data structures
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PeptideVariantsPreferences peptideVariantsPreferences, SearchParameters searchParameters, int nThreads, FMIndexSettings fmIndexSettings) {
         massTolerance = searchParameters.getFragmentIonAccuracy();
         massAccuracyType = searchParameters.getFragmentAccuracyType();
-        init(waitingHandler, displayProgress, searchParameters.getPtmSettings(), peptideVariantsPreferences);
+        init(waitingHandler, displayProgress, searchParameters.getPtmSettings(), peptideVariantsPreferences, nThreads, fmIndexSettings);
     }
     
     /**
@@ -496,7 +544,36 @@ public class FMIndex implements PeptideMapper {
      * @param peptideVariantsPreferences contains all parameters for variants
      */
     public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences) {
-        init(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences);
+        this(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, 1);
+    }
+    
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param ptmSettings contains modification parameters for identification
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param nThreads the number of threads to use when building the index
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, int nThreads) {
+        this(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, nThreads, new FMIndexSettings());
+    }
+    
+    /**
+     * Constructor. If PTM settings are provided the index will contain
+     * modification information, ignored if null.
+     *
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if true, the progress is displayed
+     * @param ptmSettings contains modification parameters for identification
+     * @param peptideVariantsPreferences contains all parameters for variants
+     * @param nThreads the number of threads to use when building the index
+     * @param fmIndexSettings the settings of the index data structures
+     */
+    public FMIndex(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, int nThreads, FMIndexSettings fmIndexSettings) {
+        init(waitingHandler, displayProgress, ptmSettings, peptideVariantsPreferences, nThreads, fmIndexSettings);
     }
         
     /**
@@ -507,9 +584,16 @@ public class FMIndex implements PeptideMapper {
      * @param displayProgress if true, the progress is displayed
      * @param ptmSettings contains modification parameters for identification
      * @param peptideVariantsPreferences contains all parameters for variants
-     * @param massTolerance the mass tolerance
+     * @param nThreads the number of threads to use when building the index
+     * @param fmIndexSettings the settings of the index data structures
      */
-    private void init(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences){
+    private void init(WaitingHandler waitingHandler, boolean displayProgress, PtmSettings ptmSettings, PeptideVariantsPreferences peptideVariantsPreferences, int nThreads, FMIndexSettings fmIndexSettings){
+
+        this.fmIndexSettings = fmIndexSettings;
+        samplingShift = fmIndexSettings.getSamplingShift();
+        indexChunkSize = fmIndexSettings.getIndexPartLength();
+        samplingMask = (1 << samplingShift) - 1;
+        sampling = 1 << samplingShift;
 
         // load all variant preferences
         maxNumberVariants = peptideVariantsPreferences.getnVariants();
@@ -950,7 +1034,58 @@ public class FMIndex implements PeptideMapper {
             alphabet[sortedAas[i] >> 6] |= 1L << (sortedAas[i] & 63);
         }
 
+        // load the index from the index file, build it otherwise
+        File fastaFile = sf.getCurrentFastaFile();
+        File indexFile = null;
+        String indexKey = null;
+        if (fastaFile != null && fmIndexSettings.isUseIndexFile()) {
+            File indexFolder = fmIndexSettings.getIndexFolder() != null ? new File(fmIndexSettings.getIndexFolder()) : fastaFile.getAbsoluteFile().getParentFile();
+            indexFile = new File(indexFolder, FMIndexFile.getIndexName(fastaFile.getName()));
+            indexKey = getIndexKey(fastaFile);
+        }
+        if (indexFile == null || !readIndexFile(indexFile, indexKey, waitingHandler)) {
+            boolean diskBacked = indexFile != null && fmIndexSettings.isDiskBacked();
+            boolean complete = buildIndex(sf, alphabet, waitingHandler, displayProgress, nThreads, diskBacked ? indexFile : null, indexKey);
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            if (diskBacked && !complete) {
+                // the index file could not be written or mapped, build the index in memory
+                indexFile.delete();
+                complete = buildIndex(sf, alphabet, waitingHandler, displayProgress, nThreads, null, null);
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return;
+                }
+            } else if (complete && indexFile != null && !diskBacked) {
+                writeIndexFile(indexFile, indexKey, waitingHandler);
+            }
+        }
+        
+        massIntervalLookup = MassIntervalLookup.getMassIntervalLookup(aaMasses, aaMassIndexes, massTolerance, massAccuracyType, lookupMaxMass, lookupMultiplier, maxXPerTag);
+        lookupMasses = massIntervalLookup.getLookupMasses();
+        Xlookup = massIntervalLookup.getXLookup();
+    }
+
+    /**
+     * Builds the index parts from the sequences of the FASTA file loaded in
+     * the sequence factory.
+     *
+     * @param sf the sequence factory
+     * @param alphabet the alphabet
+     * @param waitingHandler the waiting handler
+     * @param displayProgress if progress is to be displayed
+     * @param nThreads the number of threads to use
+     * @param indexFile if not null, every part is written to this index file
+     * as soon as it is built and released from the heap, the parts are then
+     * mapped from the file
+     * @param indexKey the key of the index file
+     * @return true if the index was completely built, false if an error
+     * occurred or the process was canceled
+     */
+    private boolean buildIndex(SequenceFactory sf, long[] alphabet, WaitingHandler waitingHandler, boolean displayProgress, int nThreads, File indexFile, String indexKey) {
+
         // reading all proteins in a first pass to get information about number and total length
+        boolean complete = true;
         ArrayList<Integer> tmpLengths = new ArrayList<Integer>();
         ArrayList<Integer> tmpProteins = new ArrayList<Integer>();
         long ticker = indexChunkSize;
@@ -960,7 +1095,7 @@ public class FMIndex implements PeptideMapper {
             ProteinIterator pi = sf.getProteinIterator(false);
             while (pi.hasNext()) {
                 if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
+                    return false;
                 }
                 Protein currentProtein = pi.getNextProtein();
                 int proteinLen = currentProtein.getLength();
@@ -978,8 +1113,9 @@ public class FMIndex implements PeptideMapper {
         } catch (Exception e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
+            complete = false;
         }
-        
+
         int maxProgressBar = 10 * tmpLengths.size();
 
         if (waitingHandler != null && displayProgress && !waitingHandler.isRunCanceled()) {
@@ -987,75 +1123,207 @@ public class FMIndex implements PeptideMapper {
             waitingHandler.setMaxSecondaryProgressCounter(maxProgressBar);
             waitingHandler.setSecondaryProgressCounter(0);
         }
-        
+
+        // the protein sequences are read sequentially, the data structures of the parts are built concurrently
+        int maxPartLength = 0;
+        for (int i = 0; i < tmpLengths.size(); ++i) {
+            maxPartLength = Math.max(maxPartLength, tmpLengths.get(i) + tmpProteins.get(i) + 1);
+        }
+        int partsInFlight = getMaxPartsInFlight(nThreads, maxPartLength);
+        Semaphore memoryGuard = new Semaphore(partsInFlight);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(partsInFlight, tmpLengths.size())));
+        ArrayList<IndexPartBuilder> partBuilders = new ArrayList<IndexPartBuilder>(tmpLengths.size());
+        ArrayList<Future<?>> partFutures = new ArrayList<Future<?>>(tmpLengths.size());
+        IndexFileOutput indexFileOutput = null;
+        int nextPart = 0;
+
         try {
+            if (indexFile != null) {
+                indexFileOutput = new IndexFileOutput(indexFile, indexKey, tmpLengths.size(), waitingHandler);
+            }
             ProteinIterator pi = sf.getProteinIterator(false);
             for (int i = 0; i < tmpLengths.size(); ++i){
-                addDataToIndex(pi, tmpLengths.get(i), tmpProteins.get(i), alphabet, waitingHandler, displayProgress);
+                memoryGuard.acquire();
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    memoryGuard.release();
+                    break;
+                }
+                IndexPartBuilder partBuilder = new IndexPartBuilder(alphabet, waitingHandler, displayProgress, memoryGuard);
+                try {
+                    partBuilder.readSequences(pi, tmpLengths.get(i), tmpProteins.get(i));
+                } catch (Exception e) {
+                    memoryGuard.release();
+                    throw e;
+                }
+                partBuilders.add(partBuilder);
+                partFutures.add(pool.submit(partBuilder));
+
+                // parts already built are written in order
+                while (indexFileOutput != null && nextPart < partFutures.size() && partFutures.get(nextPart).isDone()) {
+                    partFutures.get(nextPart).get();
+                    indexFileOutput.writePart(partBuilders.get(nextPart));
+                    partBuilders.set(nextPart++, null);
+                }
+            }
+            for (; nextPart < partFutures.size(); ++nextPart) {
+                partFutures.get(nextPart).get();
+                if (indexFileOutput != null) {
+                    indexFileOutput.writePart(partBuilders.get(nextPart));
+                    partBuilders.set(nextPart, null);
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
+            complete = false;
+        } finally {
+            pool.shutdownNow();
         }
-        
-        int lookupLength = ((int) ((lookupMaxMass + computeInverseMassValue(massTolerance, lookupMaxMass)) * lookupMultiplier));
-        lookupMasses = new long[(lookupLength >>> 6) + 3];
-        for (int i = 0; i < lookupMasses.length; ++i) {
-            lookupMasses[i] = 0L;
-        }
-        
-        Xlookup = new long[maxXPerTag + 1][];
-        for (int i = 1; i <= maxXPerTag; ++i){
-            Xlookup[i] = new long[(lookupLength >>> 6) + 3];
-            for (int j = 0; j < Xlookup[i].length; ++j) {
-                Xlookup[i][j] = 0L;
+
+        if (!complete || (waitingHandler != null && waitingHandler.isRunCanceled())) {
+            if (indexFileOutput != null) {
+                indexFileOutput.discard();
             }
+            return false;
         }
-        massIndexMaps = new ArrayList<MassIndexMap>(1000000);
-        
-        recursiveMassFilling(0., 0, 0, null);
-        
-        Collections.sort(massIndexMaps, new Comparator<MassIndexMap>(){
-           public int compare(MassIndexMap m1, MassIndexMap m2){
-               return (int)((m1.mass - m2.mass) * 1000000.);
-           } 
-        });
-        cache = (HashMap<String, CacheElement>[])new HashMap[indexParts];
-        for (int indexPart = 0; indexPart < indexParts; ++indexPart) cache[indexPart] = new HashMap<String, CacheElement>();
+        if (indexFileOutput != null) {
+            return indexFileOutput.finish() && readIndexFile(indexFile, indexKey, waitingHandler);
+        }
+        for (IndexPartBuilder partBuilder : partBuilders) {
+            indexParts += 1;
+            indexStringLengths.add(partBuilder.indexStringLength);
+            boundaries.add(partBuilder.boundaries);
+            accessions.add(partBuilder.accessions);
+            suffixArraysPrimary.add(partBuilder.sampledSuffixArray);
+            inverseSuffixArraysPrimary.add(partBuilder.sampledInverseSuffixArray);
+            occurrenceTablesPrimary.add(partBuilder.occurrenceTablePrimary);
+            occurrenceTablesReversed.add(partBuilder.occurrenceTableReversed);
+            lessTablesPrimary.add(partBuilder.lessTablePrimary);
+            lessTablesReversed.add(partBuilder.lessTableReversed);
+        }
+        return true;
     }
 
     /**
-     * Add data to index
-     * 
-     * @param pi the protein iterator
-     * @param indexStringLength the index string length
-     * @param numProteins the number of proteins
-     * @param alphabet the alphabet
-     * @param waitingHandler the waiting handler
-     * @param displayProgress if progress is to be displayed
+     * Returns the number of index parts which can be built at the same time
+     * without exceeding the free memory.
+     *
+     * @param nThreads the number of threads
+     * @param maxPartLength the length of the largest index part
+     * @return the number of index parts which can be built at the same time
      */
-    void addDataToIndex(ProteinIterator pi, int indexStringLength, int numProteins, long[] alphabet, WaitingHandler waitingHandler, boolean displayProgress){
-        indexParts += 1;
-        indexStringLength += numProteins + 1; // delimiters between protein sequences + sentinal
-        indexStringLengths.add(indexStringLength);
-        
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
+    private int getMaxPartsInFlight(int nThreads, int maxPartLength) {
+        Runtime runtime = Runtime.getRuntime();
+        long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long partMemory = BUILD_BYTES_PER_CHARACTER * (long) maxPartLength;
+        long partsInMemory = freeMemory / Math.max(1, partMemory);
+        return (int) Math.max(1, Math.min(nThreads, partsInMemory));
+    }
+
+    /**
+     * Builds the data structures of one index part. The sequences are read
+     * sequentially from the protein iterator, the suffix arrays, Burrows-Wheeler
+     * transforms and wavelet trees are then built in a separate thread.
+     */
+    private class IndexPartBuilder implements Runnable {
+
+        /**
+         * The alphabet.
+         */
+        private final long[] alphabet;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * If progress is to be displayed.
+         */
+        private final boolean displayProgress;
+        /**
+         * Semaphore released once the part is built.
+         */
+        private final Semaphore memoryGuard;
+        /**
+         * The text of the index part.
+         */
+        private byte[] T;
+        /**
+         * The length of the text including delimiters and sentinal.
+         */
+        private int indexStringLength;
+        /**
+         * The starting positions of the proteins in the text.
+         */
+        private int[] boundaries;
+        /**
+         * The accessions of the proteins.
+         */
+        private String[] accessions;
+        /**
+         * The sampled suffix array.
+         */
+        private PackedIntArray sampledSuffixArray;
+        /**
+         * The sampled inverse suffix array, null if not sampled.
+         */
+        private PackedIntArray sampledInverseSuffixArray;
+        /**
+         * The occurrence table for backward search over the forward text.
+         */
+        private OccurrenceTable occurrenceTablePrimary;
+        /**
+         * The occurrence table for backward search over the reversed text.
+         */
+        private OccurrenceTable occurrenceTableReversed;
+        /**
+         * The less table for backward search over the forward text.
+         */
+        private int[] lessTablePrimary;
+        /**
+         * The less table for backward search over the reversed text.
+         */
+        private int[] lessTableReversed;
+
+        /**
+         * Constructor.
+         *
+         * @param alphabet the alphabet
+         * @param waitingHandler the waiting handler
+         * @param displayProgress if progress is to be displayed
+         * @param memoryGuard semaphore released once the part is built
+         */
+        public IndexPartBuilder(long[] alphabet, WaitingHandler waitingHandler, boolean displayProgress, Semaphore memoryGuard) {
+            this.alphabet = alphabet;
+            this.waitingHandler = waitingHandler;
+            this.displayProgress = displayProgress;
+            this.memoryGuard = memoryGuard;
         }
-        byte[] T = new byte[indexStringLength];
-        T[0] = '/';                     // adding delimiter at beginning
-        T[indexStringLength - 2] = '/'; // adding delimiter at ending
-        T[indexStringLength - 1] = '$'; // adding the sentinal
-
-        int[] bndaries = new int[numProteins + 1];
-        boundaries.add(bndaries);
-        String[] accssions = new String[numProteins];
-        accessions.add(accssions);
-        boundaries.get(0)[0] = 1;
-
-        // reading proteins in a second pass to store their amino acid sequences and their accession numbers
-        int tmpN = 0;
-        int tmpNumProtein = 0;
-        try {
+
+        /**
+         * Reads the sequences of the index part.
+         *
+         * @param pi the protein iterator
+         * @param length the length of the protein sequences plus one
+         * @param numProteins the number of proteins
+         * @throws Exception thrown if the sequences cannot be read
+         */
+        public void readSequences(ProteinIterator pi, int length, int numProteins) throws Exception {
+            indexStringLength = length + numProteins + 1; // delimiters between protein sequences + sentinal
+
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+            T = new byte[indexStringLength];
+            T[0] = '/';                     // adding delimiter at beginning
+            T[indexStringLength - 2] = '/'; // adding delimiter at ending
+            T[indexStringLength - 1] = '$'; // adding the sentinal
+
+            boundaries = new int[numProteins + 1];
+            accessions = new String[numProteins];
+            boundaries[0] = 1;
+
+            // reading proteins in a second pass to store their amino acid sequences and their accession numbers
+            int tmpN = 0;
+            int tmpNumProtein = 0;
             for (int i = 0; i < numProteins; ++i){
                 if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return;
@@ -1066,143 +1334,463 @@ public class FMIndex implements PeptideMapper {
                 T[tmpN++] = '/'; // adding the delimiters
                 System.arraycopy(currentProtein.getSequence().toUpperCase().getBytes(), 0, T, tmpN, proteinLen);
                 tmpN += proteinLen;
-                accssions[tmpNumProtein++] = currentProtein.getAccession();
-                bndaries[tmpNumProtein] = tmpN + 1;
-
+                accessions[tmpNumProtein++] = currentProtein.getAccession();
+                boundaries[tmpNumProtein] = tmpN + 1;
+            }
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
         }
 
-        int[] T_int = new int[indexStringLength];
-        for (int i = 0; i < indexStringLength; ++i) {
-            T_int[i] = T[i];
+        @Override
+        public void run() {
+            try {
+                buildPart();
+            } finally {
+                T = null;
+                memoryGuard.release();
+            }
         }
-        int[] suffixArrayPrimary = (new DivSufSort()).buildSuffixArray(T_int, 0, indexStringLength);
 
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
+        /**
+         * Creates the occurrence table of a Burrows-Wheeler transform using the
+         * layout given in the settings.
+         *
+         * @param bwt the Burrows-Wheeler transform
+         * @return the occurrence table
+         */
+        private OccurrenceTable createOccurrenceTable(byte[] bwt) {
+            if (fmIndexSettings.isUseWaveletMatrix()) {
+                return new WaveletMatrix(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
+            }
+            return new WaveletTree(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
         }
-        T_int = null;
 
-        // create Burrows-Wheeler-Transform
-        byte[] bwt = new byte[indexStringLength];
-        for (int i = 0; i < indexStringLength; ++i) {
-            bwt[i] = (suffixArrayPrimary[i] != 0) ? T[suffixArrayPrimary[i] - 1] : T[indexStringLength - 1];
-        }
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
-        }
+        /**
+         * Builds the suffix arrays, Burrows-Wheeler transforms and occurrence
+         * tables of the index part.
+         */
+        private void buildPart() {
 
-        // sampling suffix array
-        int[] sampledSuffixArray = new int[((indexStringLength + 1) >> samplingShift) + 1];
-        int sampledIndex = 0;
-        for (int i = 0; i < indexStringLength; i += sampling) {
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+            int[] T_int = new int[indexStringLength];
+            for (int i = 0; i < indexStringLength; ++i) {
+                T_int[i] = T[i];
             }
-            sampledSuffixArray[sampledIndex++] = suffixArrayPrimary[i];
-        }
-        suffixArraysPrimary.add(sampledSuffixArray);
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
-        }
+            int[] suffixArrayPrimary = (new DivSufSort()).buildSuffixArray(T_int, 0, indexStringLength);
 
-        // creating the occurrence table and less table for backward search over forward text
-        WaveletTree occurrenceTablePrimary = new WaveletTree(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
-        int[] lessTablePrimary = occurrenceTablePrimary.createLessTable();
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
-        }
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+            T_int = null;
 
-        bwt = null;
-        // create inversed text for inversed index
-        byte[] TReversed = new byte[indexStringLength];
-        for (int i = 0; i < indexStringLength - 1; ++i) {
-            TReversed[indexStringLength - 2 - i] = T[i];
-        }
-        TReversed[indexStringLength - 1] = '$';
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
-        }
+            // create Burrows-Wheeler-Transform
+            byte[] bwt = new byte[indexStringLength];
+            for (int i = 0; i < indexStringLength; ++i) {
+                bwt[i] = (suffixArrayPrimary[i] != 0) ? T[suffixArrayPrimary[i] - 1] : T[indexStringLength - 1];
+            }
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
 
-        // create the inversed suffix array using at most 128 characters
-        T_int = new int[indexStringLength];
-        for (int i = 0; i < indexStringLength; ++i) {
-            T_int[i] = TReversed[i];
-        }
-        int[] suffixArrayReversed = (new DivSufSort()).buildSuffixArray(T_int, 0, indexStringLength);
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
+            // sampling suffix array
+            int[] sampledValues = new int[((indexStringLength + 1) >> samplingShift) + 1];
+            int sampledIndex = 0;
+            for (int i = 0; i < indexStringLength; i += sampling) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                sampledValues[sampledIndex++] = suffixArrayPrimary[i];
+            }
+            sampledSuffixArray = new PackedIntArray(sampledValues, sampledIndex, indexStringLength - 1);
+
+            // sampling inverse suffix array at every sampled text position
+            if (fmIndexSettings.isSampleInverseSuffixArray()) {
+                sampledIndex = ((indexStringLength - 1) >> samplingShift) + 1;
+                if (sampledValues.length < sampledIndex) {
+                    sampledValues = new int[sampledIndex];
+                }
+                for (int i = 0; i < indexStringLength; ++i) {
+                    int textPosition = suffixArrayPrimary[i];
+                    if ((textPosition & samplingMask) == 0) {
+                        sampledValues[textPosition >> samplingShift] = i;
+                    }
+                }
+                sampledInverseSuffixArray = new PackedIntArray(sampledValues, sampledIndex, indexStringLength - 1);
+            }
+            sampledValues = null;
+            suffixArrayPrimary = null;
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            // creating the occurrence table and less table for backward search over forward text
+            occurrenceTablePrimary = createOccurrenceTable(bwt);
+            lessTablePrimary = occurrenceTablePrimary.createLessTable();
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            bwt = null;
+            // create inversed text for inversed index
+            byte[] TReversed = new byte[indexStringLength];
+            for (int i = 0; i < indexStringLength - 1; ++i) {
+                TReversed[indexStringLength - 2 - i] = T[i];
+            }
+            TReversed[indexStringLength - 1] = '$';
+            T = null;
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            // create the inversed suffix array using at most 128 characters
+            T_int = new int[indexStringLength];
+            for (int i = 0; i < indexStringLength; ++i) {
+                T_int[i] = TReversed[i];
+            }
+            int[] suffixArrayReversed = (new DivSufSort()).buildSuffixArray(T_int, 0, indexStringLength);
+            T_int = null;
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            // create inversed Burrows-Wheeler-Transform
+            bwt = new byte[indexStringLength];
+            for (int i = 0; i < indexStringLength; ++i) {
+                bwt[i] = (suffixArrayReversed[i] != 0) ? TReversed[suffixArrayReversed[i] - 1] : TReversed[indexStringLength - 1];
+            }
+            suffixArrayReversed = null;
+            TReversed = null;
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            // create inversed less and occurrence table
+            occurrenceTableReversed = createOccurrenceTable(bwt);
+            lessTableReversed = occurrenceTableReversed.createLessTable();
+            if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
         }
+    }
 
-        // create inversed Burrows-Wheeler-Transform
-        bwt = new byte[indexStringLength];
-        for (int i = 0; i < indexStringLength; ++i) {
-            bwt[i] = (suffixArrayReversed[i] != 0) ? TReversed[suffixArrayReversed[i] - 1] : TReversed[indexStringLength - 1];
+    /**
+     * Returns the key identifying the content of the index file: the FASTA
+     * file and all settings changing the stored data structures.
+     *
+     * @param fastaFile the FASTA file
+     * @return the key of the index file
+     */
+    private String getIndexKey(File fastaFile) {
+        return fastaFile.getAbsolutePath() + "|" + fastaFile.length() + "|" + fastaFile.lastModified()
+                + "|" + indexChunkSize + "|" + samplingShift + "|" + numMasses + "|" + hasPTMatTerminus
+                + "|" + fmIndexSettings.isUseWaveletMatrix() + "|" + fmIndexSettings.isSampleInverseSuffixArray();
+    }
+
+    /**
+     * Loads the index parts from an index file. The rank bitfields and the
+     * sampled suffix arrays remain in the memory mapped file.
+     *
+     * @param indexFile the index file
+     * @param indexKey the expected key of the index file
+     * @param waitingHandler the waiting handler used to report why the index
+     * has to be built, can be null
+     * @return true if the index could be loaded, false if it has to be built
+     */
+    private boolean readIndexFile(File indexFile, String indexKey, WaitingHandler waitingHandler) {
+        if (!indexFile.exists()) {
+            return false;
         }
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                ByteBuffer preamble = ByteBuffer.allocate(FMIndexFile.PREAMBLE_LENGTH).order(ByteOrder.nativeOrder());
+                while (preamble.hasRemaining() && channel.read(preamble) >= 0) {
+                }
+                preamble.flip();
+                if (preamble.remaining() < FMIndexFile.PREAMBLE_LENGTH || preamble.getLong() != FMIndexFile.MAGIC
+                        || preamble.getInt() != FMIndexFile.VERSION || preamble.getInt() != FMIndexFile.BYTE_ORDER_MARK) {
+                    reportIndexFile("Reindexing: " + indexFile.getName() + ". (incompatible index file)", waitingHandler);
+                    return false;
+                }
+                long headerLength = preamble.getLong();
+                FMIndexFile.Reader header = new FMIndexFile.Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength));
+                header.readLong();
+                header.readLong();
+                header.readLong();
+                if (!header.readString().equals(indexKey)) {
+                    reportIndexFile("Reindexing: " + indexFile.getName() + ". (changes in the file or settings detected)", waitingHandler);
+                    return false;
+                }
+                int numParts = header.readInt();
+                for (int indexPart = 0; indexPart < numParts; ++indexPart) {
+                    long offset = header.readLong();
+                    long length = header.readLong();
+                    FMIndexFile.Reader reader = new FMIndexFile.Reader(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+                    indexStringLengths.add(reader.readInt());
+                    boundaries.add(reader.readIntArray());
+                    String[] accssions = new String[reader.readInt()];
+                    for (int i = 0; i < accssions.length; ++i) {
+                        accssions[i] = reader.readString();
+                    }
+                    accessions.add(accssions);
+                    suffixArraysPrimary.add(new PackedIntArray(reader));
+                    inverseSuffixArraysPrimary.add(reader.readBoolean() ? new PackedIntArray(reader) : null);
+                    lessTablesPrimary.add(reader.readIntArray());
+                    lessTablesReversed.add(reader.readIntArray());
+                    if (fmIndexSettings.isUseWaveletMatrix()) {
+                        occurrenceTablesPrimary.add(new WaveletMatrix(reader));
+                        occurrenceTablesReversed.add(new WaveletMatrix(reader));
+                    } else {
+                        occurrenceTablesPrimary.add(new WaveletTree(reader));
+                        occurrenceTablesReversed.add(new WaveletTree(reader));
+                    }
+                    ++indexParts;
+                }
+                return true;
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (Exception e) {
+            reportIndexFile("Reindexing: " + indexFile.getName() + ". (Reason: " + e.getLocalizedMessage() + ")", waitingHandler);
+            indexParts = 0;
+            indexStringLengths.clear();
+            boundaries.clear();
+            accessions.clear();
+            suffixArraysPrimary.clear();
+            inverseSuffixArraysPrimary.clear();
+            lessTablesPrimary.clear();
+            lessTablesReversed.clear();
+            occurrenceTablesPrimary.clear();
+            occurrenceTablesReversed.clear();
+            return false;
         }
+    }
 
-        // create inversed less and occurrence table
-        WaveletTree occurrenceTableReversed = new WaveletTree(bwt, alphabet, waitingHandler, numMasses, hasPTMatTerminus);
-        int[] lessTableReversed = occurrenceTableReversed.createLessTable();
-        if (displayProgress && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-            waitingHandler.increaseSecondaryProgressCounter();
+    /**
+     * Writes the index parts to an index file. The file is first written
+     * under a temporary name and then renamed so that other processes never
+     * see an incomplete index.
+     *
+     * @param indexFile the index file
+     * @param indexKey the key of the index file
+     * @param waitingHandler the waiting handler used to report write errors,
+     * can be null
+     */
+    private void writeIndexFile(File indexFile, String indexKey, WaitingHandler waitingHandler) {
+        IndexFileOutput indexFileOutput = null;
+        try {
+            indexFileOutput = new IndexFileOutput(indexFile, indexKey, indexParts, waitingHandler);
+            for (int indexPart = 0; indexPart < indexParts; ++indexPart) {
+                indexFileOutput.writePart(indexStringLengths.get(indexPart), boundaries.get(indexPart), accessions.get(indexPart),
+                        suffixArraysPrimary.get(indexPart), inverseSuffixArraysPrimary.get(indexPart), lessTablesPrimary.get(indexPart),
+                        lessTablesReversed.get(indexPart), occurrenceTablesPrimary.get(indexPart), occurrenceTablesReversed.get(indexPart));
+            }
+        } catch (Exception e) {
+            reportIndexFile("Could not write the index file " + indexFile.getName() + ". (Reason: " + e.getLocalizedMessage() + ")", waitingHandler);
+            if (indexFileOutput != null) {
+                indexFileOutput.discard();
+            }
+            return;
         }
-        
-        occurrenceTablesPrimary.add(occurrenceTablePrimary);
-        occurrenceTablesReversed.add(occurrenceTableReversed);
-        lessTablesPrimary.add(lessTablePrimary);
-        lessTablesReversed.add(lessTableReversed);
+        indexFileOutput.finish();
     }
 
     /**
-     * Recursive function to compute all possible mass combinations up to a
-     * given maximum limit
+     * Reports an issue with the index file to the waiting handler, to the
+     * error stream if no waiting handler is given.
      *
-     * @param mass current mass
-     * @param pos current index of amino acid mass array
+     * @param message the message to report
+     * @param waitingHandler the waiting handler, can be null
      */
-    void recursiveMassFilling(double mass, int pos, int loop, int[] massIndexes) {
-        if (mass >= lookupMaxMass) {
-            return;
+    private static void reportIndexFile(String message, WaitingHandler waitingHandler) {
+        if (waitingHandler != null) {
+            waitingHandler.appendReport(message, true, true);
+        } else {
+            System.err.println(message);
         }
-        double transformedMass = computeInverseMassValue(massTolerance, mass);
-        if (mass > transformedMass) {
-            int startMass = (int) ((mass - transformedMass) * lookupMultiplier);
-            int endMass = (int) ((mass + transformedMass) * lookupMultiplier + 1);
-            
-            lookupMasses[startMass >>> 6] |= (~(0L)) << (startMass & 63);
-            for (int p = (startMass >>> 6) + 1; p < (endMass >>> 6); ++p) {
-                lookupMasses[p] = ~0L;
+    }
+
+    /**
+     * Index file being written part by part. The file is first written under
+     * a temporary name and then renamed so that other processes never see an
+     * incomplete index.
+     */
+    private class IndexFileOutput {
+
+        /**
+         * The index file.
+         */
+        private final File indexFile;
+        /**
+         * The temporary file written.
+         */
+        private final File tempFile;
+        /**
+         * The random access file of the temporary file.
+         */
+        private final RandomAccessFile randomAccessFile;
+        /**
+         * The writer.
+         */
+        private final FMIndexFile.Writer writer;
+        /**
+         * Position of the table of the part positions.
+         */
+        private final long partsTablePosition;
+        /**
+         * The length of the header.
+         */
+        private final long headerLength;
+        /**
+         * The start and length of every part.
+         */
+        private final long[] partPositions;
+        /**
+         * The number of parts written.
+         */
+        private int partsWritten = 0;
+        /**
+         * The waiting handler used to report write errors, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+
+        /**
+         * Constructor, writes the header.
+         *
+         * @param indexFile the index file
+         * @param indexKey the key of the index file
+         * @param numParts the number of parts
+         * @param waitingHandler the waiting handler used to report write
+         * errors, can be null
+         * @throws IOException thrown if the file cannot be written
+         */
+        public IndexFileOutput(File indexFile, String indexKey, int numParts, WaitingHandler waitingHandler) throws IOException {
+            this.indexFile = indexFile;
+            this.waitingHandler = waitingHandler;
+            File indexFolder = indexFile.getParentFile();
+            if (!indexFolder.exists()) {
+                indexFolder.mkdirs();
             }
-            lookupMasses[endMass >>> 6] |= (~(0L)) >>> (64 - (endMass & 63));
-            
-            if (loop <= maxXPerTag){
-                Xlookup[loop][startMass >>> 6] |= (~(0L)) << (startMass & 63);
-                for (int p = (startMass >>> 6) + 1; p < (endMass >>> 6); ++p) {
-                    Xlookup[loop][p] = ~0L;
+            tempFile = new File(indexFolder, indexFile.getName() + "_" + System.nanoTime() + ".tmp");
+            randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                writer = new FMIndexFile.Writer(randomAccessFile.getChannel());
+                writer.writeLong(FMIndexFile.MAGIC);
+                writer.writeInt(FMIndexFile.VERSION);
+                writer.writeInt(FMIndexFile.BYTE_ORDER_MARK);
+                writer.writeLong(0); // header length, set once known
+                writer.writeString(indexKey);
+                writer.writeInt(numParts);
+                partsTablePosition = writer.position();
+                for (int indexPart = 0; indexPart < numParts; ++indexPart) {
+                    writer.writeLong(0);
+                    writer.writeLong(0);
                 }
-                Xlookup[loop][endMass >>> 6] |= (~(0L)) >>> (64 - (endMass & 63));
-                
-                massIndexMaps.add(new MassIndexMap(mass, massIndexes));
+                headerLength = writer.position();
+                partPositions = new long[2 * numParts];
+            } catch (IOException e) {
+                discard();
+                throw e;
             }
         }
-        
-        for (int i = pos; i < aaMassIndexes.length; ++i) {
-            int[] massIndexesNew = new int[massIndexes != null ? massIndexes.length + 1 : 1];
-            if (massIndexes != null){
-                for (int j = 0; j < massIndexes.length; ++j){
-                    massIndexesNew[j] = massIndexes[j];
+
+        /**
+         * Writes the next part from a part builder.
+         *
+         * @param partBuilder the part builder
+         * @throws IOException thrown if the file cannot be written
+         */
+        public void writePart(IndexPartBuilder partBuilder) throws IOException {
+            writePart(partBuilder.indexStringLength, partBuilder.boundaries, partBuilder.accessions, partBuilder.sampledSuffixArray, partBuilder.sampledInverseSuffixArray,
+                    partBuilder.lessTablePrimary, partBuilder.lessTableReversed, partBuilder.occurrenceTablePrimary, partBuilder.occurrenceTableReversed);
+        }
+
+        /**
+         * Writes the next part.
+         *
+         * @param indexStringLength the length of the indexed text
+         * @param partBoundaries the starting positions of the proteins
+         * @param partAccessions the accessions of the proteins
+         * @param suffixArray the sampled suffix array
+         * @param inverseSuffixArray the sampled inverse suffix array, can be
+         * null
+         * @param lessTablePrimary the less table for the forward text
+         * @param lessTableReversed the less table for the reversed text
+         * @param occurrenceTablePrimary the occurrence table for the forward
+         * text
+         * @param occurrenceTableReversed the occurrence table for the reversed
+         * text
+         * @throws IOException thrown if the file cannot be written
+         */
+        public void writePart(int indexStringLength, int[] partBoundaries, String[] partAccessions, PackedIntArray suffixArray, PackedIntArray inverseSuffixArray,
+                int[] lessTablePrimary, int[] lessTableReversed, OccurrenceTable occurrenceTablePrimary, OccurrenceTable occurrenceTableReversed) throws IOException {
+            writer.align(FMIndexFile.BLOCK_ALIGNMENT);
+            long start = writer.position();
+            writer.writeInt(indexStringLength);
+            writer.writeIntArray(partBoundaries);
+            writer.writeInt(partAccessions.length);
+            for (String accession : partAccessions) {
+                writer.writeString(accession);
+            }
+            suffixArray.write(writer);
+            writer.writeBoolean(inverseSuffixArray != null);
+            if (inverseSuffixArray != null) {
+                inverseSuffixArray.write(writer);
+            }
+            writer.writeIntArray(lessTablePrimary);
+            writer.writeIntArray(lessTableReversed);
+            occurrenceTablePrimary.write(writer);
+            occurrenceTableReversed.write(writer);
+            partPositions[2 * partsWritten] = start;
+            partPositions[2 * partsWritten + 1] = writer.position() - start;
+            ++partsWritten;
+        }
+
+        /**
+         * Completes the header and renames the file to the index file.
+         *
+         * @return true if the index file was written
+         */
+        public boolean finish() {
+            try {
+                try {
+                    writer.flush();
+                    FileChannel channel = randomAccessFile.getChannel();
+                    ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+                    buffer.putLong(0, headerLength);
+                    channel.write(buffer, 16);
+                    for (int i = 0; i < partPositions.length; ++i) {
+                        buffer.clear();
+                        buffer.putLong(0, partPositions[i]);
+                        channel.write(buffer, partsTablePosition + 8 * i);
+                    }
+                } finally {
+                    randomAccessFile.close();
+                }
+                if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+                    reportIndexFile("Could not write the index file " + indexFile.getName() + ". (Reason: the file could not be replaced)", waitingHandler);
+                    tempFile.delete();
+                    return false;
                 }
+                return true;
+            } catch (Exception e) {
+                reportIndexFile("Could not write the index file " + indexFile.getName() + ". (Reason: " + e.getLocalizedMessage() + ")", waitingHandler);
+                tempFile.delete();
+                return false;
             }
-            massIndexesNew[massIndexesNew.length - 1] = aaMassIndexes[i];
-            recursiveMassFilling(mass + aaMasses[aaMassIndexes[i]], i, loop + 1, massIndexesNew);
+        }
+
+        /**
+         * Closes and deletes the temporary file.
+         */
+        public void discard() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // ignore, the file is deleted anyway
+            }
+            tempFile.delete();
         }
     }
 
@@ -1335,9 +1923,9 @@ public class FMIndex implements PeptideMapper {
      * @return the text position
      */
     private int getTextPosition(int index, int indexPart) {
-        int[] suffixArrayPrimary = suffixArraysPrimary.get(indexPart);
+        PackedIntArray suffixArrayPrimary = suffixArraysPrimary.get(indexPart);
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         int indexStringLength = indexStringLengths.get(indexPart);
         int numIterations = 0;
         while (((index & samplingMask) != 0) && (index != 0)) {
@@ -1346,10 +1934,99 @@ public class FMIndex implements PeptideMapper {
 
             ++numIterations;
         }
-        int pos = suffixArrayPrimary[index >> samplingShift] + numIterations;
+        int pos = suffixArrayPrimary.get(index >> samplingShift) + numIterations;
         return (pos < indexStringLength) ? pos : pos - indexStringLength;
     }
 
+    /**
+     * Returns the sequence of a protein. If the inverse suffix array is
+     * sampled, see FMIndexSettings, the sequence is extracted from the index,
+     * it is read from the FASTA file loaded in the sequence factory
+     * otherwise.
+     *
+     * @param accession the accession of the protein
+     * @return the sequence of the protein in upper case, null if the protein
+     * is not in the index
+     *
+     * @throws IOException thrown if an error occurs while reading the FASTA
+     * file
+     * @throws InterruptedException thrown if a threading error occurs while
+     * reading the FASTA file
+     */
+    public String getProteinSequence(String accession) throws IOException, InterruptedException {
+        int[] accessionIndex = getAccessionIndexes().get(accession);
+        if (accessionIndex == null) {
+            return null;
+        }
+        int indexPart = accessionIndex[0];
+        if (inverseSuffixArraysPrimary.get(indexPart) == null) {
+            return SequenceFactory.getInstance().getProtein(accession).getSequence().toUpperCase();
+        }
+        int[] partBoundaries = boundaries.get(indexPart);
+        return extractSequence(indexPart, partBoundaries[accessionIndex[1]], partBoundaries[accessionIndex[1] + 1] - 1);
+    }
+
+    /**
+     * Returns the index part and protein index of every accession.
+     *
+     * @return the index part and protein index of every accession
+     */
+    private HashMap<String, int[]> getAccessionIndexes() {
+        HashMap<String, int[]> result = accessionIndexes;
+        if (result == null) {
+            synchronized (accessions) {
+                result = accessionIndexes;
+                if (result == null) {
+                    result = new HashMap<String, int[]>();
+                    for (int indexPart = 0; indexPart < indexParts; ++indexPart) {
+                        String[] partAccessions = accessions.get(indexPart);
+                        for (int i = 0; i < partAccessions.length; ++i) {
+                            result.put(partAccessions[i], new int[]{indexPart, i});
+                        }
+                    }
+                    accessionIndexes = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Extracts a part of the indexed text by walking backwards from the next
+     * sampled text position using the sampled inverse suffix array.
+     *
+     * @param indexPart the index part
+     * @param start the first text position, inclusive
+     * @param end the last text position, exclusive
+     * @return the text between start and end
+     */
+    private String extractSequence(int indexPart, int start, int end) {
+        PackedIntArray inverseSuffixArray = inverseSuffixArraysPrimary.get(indexPart);
+        int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        int indexStringLength = indexStringLengths.get(indexPart);
+
+        // the text is cyclic, the position after its end is the first one
+        int position = ((end + samplingMask) >> samplingShift) << samplingShift;
+        int index;
+        if (position >= indexStringLength) {
+            position = indexStringLength;
+            index = inverseSuffixArray.get(0);
+        } else {
+            index = inverseSuffixArray.get(position >> samplingShift);
+        }
+
+        char[] sequence = new char[end - start];
+        for (int i = position - 1; i >= start; --i) {
+            int[] aminoInfo = occurrenceTablePrimary.getCharacterInfo(index);
+            if (i < end) {
+                sequence[i - start] = (char) aminoInfo[0];
+            }
+            index = lessTablePrimary[aminoInfo[0]] + aminoInfo[1];
+        }
+        return new String(sequence);
+    }
+
     /**
      * Main method for mapping a peptide with all variants against all
      * registered proteins in the experiment. This method is implementing the
@@ -1392,7 +2069,7 @@ public class FMIndex implements PeptideMapper {
      */
     public ArrayList<PeptideProteinMapping> getProteinMappingWithoutVariants(String peptide, SequenceMatchingPreferences seqMatchPref, int indexPart) {
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         ArrayList<PeptideProteinMapping> allMatches = new ArrayList<PeptideProteinMapping>();
 
         String pep_rev = new StringBuilder(peptide).reverse().toString();
@@ -1480,7 +2157,7 @@ public class FMIndex implements PeptideMapper {
      */
     public ArrayList<PeptideProteinMapping> getProteinMappingWithVariantsGeneric(String peptide, SequenceMatchingPreferences seqMatchPref, int indexPart) {
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         ArrayList<PeptideProteinMapping> allMatches = new ArrayList<PeptideProteinMapping>();
         String pep_rev = new StringBuilder(peptide).reverse().toString();
         int lenPeptide = peptide.length();
@@ -1646,7 +2323,7 @@ public class FMIndex implements PeptideMapper {
      */
     public ArrayList<PeptideProteinMapping> getProteinMappingWithVariantsSpecific(String peptide, SequenceMatchingPreferences seqMatchPref, int indexPart) {
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         ArrayList<PeptideProteinMapping> allMatches = new ArrayList<PeptideProteinMapping>();
 
         String pep_rev = new StringBuilder(peptide).reverse().toString();
@@ -1811,7 +2488,16 @@ public class FMIndex implements PeptideMapper {
 
     @Override
     public void emptyCache() {
-        // No cache here
+        tagCache.clear();
+    }
+
+    /**
+     * Returns the cache of intermediate tag to proteome mapping results.
+     *
+     * @return the tag cache
+     */
+    public TagCache getTagCache() {
+        return tagCache;
     }
 
     @Override
@@ -1913,26 +2599,33 @@ public class FMIndex implements PeptideMapper {
      *
      * @param combinations the combinations
      * @param matrix the matrix
-     * @param matrixFinished the finished matrix
      * @param less the less array
      * @param occurrence the wavelet tree
      */
-    private void mappingSequenceAndMassesDA(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, WaveletTree occurrence) {
+    private void mappingSequenceAndMassesDA(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, OccurrenceTable occurrence) {
+        
+        MatrixContentArena arena = matrixContentArenas.get();
+        arena.reset(combinations.length + 1);
+        for (int j = 0; j <= combinations.length; ++j) {
+            for (MatrixContent matrixContent : matrix[j]) {
+                arena.addToRow(j, arena.add(matrixContent));
+            }
+            matrix[j].clear();
+        }
         
         for (int j = 0; j < combinations.length; ++j) {
-            LinkedList<MatrixContent> content = matrix[j];
             TagElement combination = combinations[j];
 
-            while (!content.isEmpty()) {
-                MatrixContent cell = content.removeFirst();
-                final int length = cell.length;
-                final int leftIndexOld = cell.left;
-                final int rightIndexOld = cell.right;
-                final int numX = cell.numX;
+            for (int p = 0; p < arena.getRowSize(j); ++p) {
+                final int cell = arena.getCell(j, p);
+                final int length = arena.length[cell];
+                final int leftIndexOld = arena.left[cell];
+                final int rightIndexOld = arena.right[cell];
+                final int numX = arena.numX[cell];
 
                 if (combination.isMass) {
                     final double combinationMass = combination.mass;
-                    final double oldMass = cell.mass;
+                    final double oldMass = arena.mass[cell];
                     int[][] setCharacter = occurrence.rangeQuery(leftIndexOld - 1, rightIndexOld);
                     addAmbiguous(setCharacter);
                     if (withVariableModifications) addModifications(setCharacter);
@@ -1952,7 +2645,6 @@ public class FMIndex implements PeptideMapper {
                             final int leftIndex = lessValue + borders[1];
                             final int rightIndex = lessValue + borders[2] - 1;
                             final double massDiff = Math.abs(combinationMass - newMass);
-                            //System.out.println(j + " " + length + " " + (char)borders[0] + " " +  leftIndex + " " + rightIndex + " " + offset + " " + newNumX + " " + massDiff + " / " + combination.xNumLimit);
                             
                             // make a lookup when mass difference is below 800Da if it is still possible to reach by a AA combination
                             if (massNotValid(massDiff)) continue;
@@ -1960,8 +2652,9 @@ public class FMIndex implements PeptideMapper {
                             int offset = ((massDiff <= massTolerance) ? 1 : 0) | (withinMass ? 1 : 0);
                             
                             if (offset > 0) newNumX = 0;
-                            matrix[j + offset].add(new MatrixContent(leftIndex, rightIndex, aminoAcid, cell, newMass, length + 1, newNumX, borders[3], borders[4], j));
-                            if (withinMass) matrix[j + offset].getLast().XMassDiff = massDiff;
+                            int newCell = arena.add(leftIndex, rightIndex, aminoAcid, cell, newMass, length + 1, newNumX, borders[3], borders[4], j);
+                            if (withinMass) arena.XMassDiff[newCell] = massDiff;
+                            arena.addToRow(j + offset, newCell);
                         }
                     }
                 } else {
@@ -1977,12 +2670,19 @@ public class FMIndex implements PeptideMapper {
                         int newNumX = numX + ((aminoAcidSearch == 'X') ? 1 : 0);
                         if (leftIndex <= rightIndex && newNumX <= xNumLimit) {
                             if (j < combinations.length - 1 && combinations[j].isMass != combinations[j + 1].isMass) newNumX = 0;
-                            matrix[j + 1].add(new MatrixContent(leftIndex, rightIndex, aminoAcid, cell, 0, length + 1, newNumX, -1, aminoAcidSearch, j));
+                            arena.addToRow(j + 1, arena.add(leftIndex, rightIndex, aminoAcid, cell, 0, length + 1, newNumX, -1, aminoAcidSearch, j));
                         }
                     }
                 }
             }
         }
+        
+        // only the cells of the last row and their predecessors become matrix contents
+        LinkedList<MatrixContent> lastRow = matrix[combinations.length];
+        for (int p = 0; p < arena.getRowSize(combinations.length); ++p) {
+            lastRow.add(arena.getMatrixContent(arena.getCell(combinations.length, p)));
+        }
+        arena.release();
     }
 
     /**
@@ -1990,26 +2690,33 @@ public class FMIndex implements PeptideMapper {
      *
      * @param combinations the combinations
      * @param matrix the matrix
-     * @param matrixFinished the finished matrix
      * @param less the less array
      * @param occurrence the wavelet tree
      */
-    private void mappingSequenceAndMassesPPM(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, WaveletTree occurrence) {
+    private void mappingSequenceAndMassesPPM(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, OccurrenceTable occurrence) {
+        
+        MatrixContentArena arena = matrixContentArenas.get();
+        arena.reset(combinations.length + 1);
+        for (int j = 0; j <= combinations.length; ++j) {
+            for (MatrixContent matrixContent : matrix[j]) {
+                arena.addToRow(j, arena.add(matrixContent));
+            }
+            matrix[j].clear();
+        }
         
         for (int j = 0; j < combinations.length; ++j) {
-            LinkedList<MatrixContent> content = matrix[j];
             TagElement combination = combinations[j];
 
-            while (!content.isEmpty()) {
-                MatrixContent cell = content.removeFirst();
-                final int length = cell.length;
-                final int leftIndexOld = cell.left;
-                final int rightIndexOld = cell.right;
-                final int numX = cell.numX;
+            for (int p = 0; p < arena.getRowSize(j); ++p) {
+                final int cell = arena.getCell(j, p);
+                final int length = arena.length[cell];
+                final int leftIndexOld = arena.left[cell];
+                final int rightIndexOld = arena.right[cell];
+                final int numX = arena.numX[cell];
 
                 if (combination.isMass) {
                     final double combinationMass = combination.mass;
-                    final double oldMass = cell.mass;
+                    final double oldMass = arena.mass[cell];
                     int[][] setCharacter = occurrence.rangeQuery(leftIndexOld - 1, rightIndexOld);
                     addAmbiguous(setCharacter);
                     if (withVariableModifications) addModifications(setCharacter);
@@ -2022,8 +2729,6 @@ public class FMIndex implements PeptideMapper {
                         if (newNumX > combination.xNumLimit) continue;
                         final double newMass = oldMass + (aminoAcid != 'X' ? aaMasses[borders[3]] : 0);
                         
-                        //System.out.println(j + " " + length + " " + (char)borders[0] + " " + newMass + " " + computeInverseMassValue(massTolerance, combinationMass) + " " + combinationMass);
-                        
                         // check if not exceeding tag mass
                         if (newMass - computeInverseMassValue(massTolerance, combinationMass) <= combinationMass) {
                             final int aminoAcidSearch = (borders[4] == -1) ? aminoAcid : borders[4];
@@ -2036,11 +2741,11 @@ public class FMIndex implements PeptideMapper {
                             if (massNotValid(massDiff)) continue;
                             boolean withinMass = withinMassTolerance(massDiff, newNumX);
                             int offset = ((computeMassValue(newMass, combinationMass) <= massTolerance) ? 1 : 0) | (withinMass ? 1 : 0);
-                            //System.out.println(j + " " + length + " " + (char)borders[0] + " " +  leftIndex + " " + rightIndex + " " + offset + " " + newNumX + " " + massDiff + " / " + combination.xNumLimit);
                             
                             if (offset > 0) newNumX = 0;
-                            matrix[j + offset].add(new MatrixContent(leftIndex, rightIndex, aminoAcid, cell, newMass, length + 1, newNumX, borders[3], borders[4], j));
-                            if (withinMass) matrix[j + offset].getLast().XMassDiff = massDiff;
+                            int newCell = arena.add(leftIndex, rightIndex, aminoAcid, cell, newMass, length + 1, newNumX, borders[3], borders[4], j);
+                            if (withinMass) arena.XMassDiff[newCell] = massDiff;
+                            arena.addToRow(j + offset, newCell);
                         }
                     }
                 } else {
@@ -2056,12 +2761,19 @@ public class FMIndex implements PeptideMapper {
                         int newNumX = numX + ((aminoAcidSearch == 'X') ? 1 : 0);
                         if (leftIndex <= rightIndex && newNumX <= xNumLimit) {
                             if (j < combinations.length - 1 && combinations[j].isMass != combinations[j + 1].isMass) newNumX = 0;
-                            matrix[j + 1].add(new MatrixContent(leftIndex, rightIndex, aminoAcid, cell, 0, length + 1, newNumX, -1, aminoAcidSearch, j));
+                            arena.addToRow(j + 1, arena.add(leftIndex, rightIndex, aminoAcid, cell, 0, length + 1, newNumX, -1, aminoAcidSearch, j));
                         }
                     }
                 }
             }
         }
+        
+        // only the cells of the last row and their predecessors become matrix contents
+        LinkedList<MatrixContent> lastRow = matrix[combinations.length];
+        for (int p = 0; p < arena.getRowSize(combinations.length); ++p) {
+            lastRow.add(arena.getMatrixContent(arena.getCell(combinations.length, p)));
+        }
+        arena.release();
     }
 
     /**
@@ -2076,7 +2788,7 @@ public class FMIndex implements PeptideMapper {
      * @param massTolerance the mass tolerance
      * @param numberEdits number of allowed edit operations
      */
-    private void mappingSequenceAndMassesWithVariantsGeneric(TagElement[] combinations, LinkedList<MatrixContent>[][] matrix, int[] less, WaveletTree occurrence) {
+    private void mappingSequenceAndMassesWithVariantsGeneric(TagElement[] combinations, LinkedList<MatrixContent>[][] matrix, int[] less, OccurrenceTable occurrence) {
         final int lenCombinations = combinations.length;
 
         for (int k = 0; k <= maxNumberVariants; ++k) {
@@ -2242,7 +2954,7 @@ public class FMIndex implements PeptideMapper {
      * @param occurrence the wavelet tree
      * @param numberEdits number of allowed edit operations
      */
-    private void mappingSequenceAndMassesWithVariantsSpecific(TagElement[] combinations, LinkedList<MatrixContent>[][] matrix, int[] less, WaveletTree occurrence) {
+    private void mappingSequenceAndMassesWithVariantsSpecific(TagElement[] combinations, LinkedList<MatrixContent>[][] matrix, int[] less, OccurrenceTable occurrence) {
         final int lenCombinations = combinations.length;
         int maxNumberSpecificVariants = maxNumberDeletions + maxNumberInsertions + maxNumberSubstitutions;
 
@@ -2443,7 +3155,7 @@ public class FMIndex implements PeptideMapper {
      * @param massTolerance the mass tolerance
      * @param CTermDirection the c term direction
      */
-    private void mappingSequenceAndMassesPPM(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, WaveletTree occurrence, boolean CTermDirection) {
+    private void mappingSequenceAndMassesPPM(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, OccurrenceTable occurrence, boolean CTermDirection) {
         final int lenCombinations = combinations.length;
         for (int k = 0; k < lenCombinations; ++k) {
             TagElement combination = combinations[k];
@@ -3118,7 +3830,7 @@ public class FMIndex implements PeptideMapper {
      * @param occurrence the occurrence
      * @param CTermDirection the c term direction
      */
-    private void mappingSequenceAndMassesDA(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, WaveletTree occurrence, boolean CTermDirection) {
+    private void mappingSequenceAndMassesDA(TagElement[] combinations, LinkedList<MatrixContent>[] matrix, int[] less, OccurrenceTable occurrence, boolean CTermDirection) {
         final int lenCombinations = combinations.length;
         for (int k = 0; k < lenCombinations; ++k) {
             TagElement combination = combinations[k];
@@ -3847,9 +4559,9 @@ public class FMIndex implements PeptideMapper {
     public ArrayList<PeptideProteinMapping> getProteinMappingWithoutVariants(Tag tag, TagMatcher tagMatcher, SequenceMatchingPreferences sequenceMatchingPreferences, int indexPart) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
 
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         int[] lessTableReversed = lessTablesReversed.get(indexPart);
-        WaveletTree occurrenceTableReversed = occurrenceTablesReversed.get(indexPart);
+        OccurrenceTable occurrenceTableReversed = occurrenceTablesReversed.get(indexPart);
         ArrayList<PeptideProteinMapping> allMatches = new ArrayList<PeptideProteinMapping>();
         double xLimit = ((sequenceMatchingPreferences.getLimitX() != null) ? sequenceMatchingPreferences.getLimitX() : 1);
 
@@ -3878,8 +4590,8 @@ public class FMIndex implements PeptideMapper {
         TagElement[] refTagContent = null;
         int[] lessPrimary = null;
         int[] lessReversed = null;
-        WaveletTree occurrencePrimary = null;
-        WaveletTree occurrenceReversed = null;
+        OccurrenceTable occurrencePrimary = null;
+        OccurrenceTable occurrenceReversed = null;
         boolean hasCTermDirection = hasCTermDirectionPTM;
         boolean hasNTermDirection = hasNTermDirectionPTM;
         boolean towardsC = true;
@@ -3965,8 +4677,8 @@ public class FMIndex implements PeptideMapper {
             // Traceback Reverse
             for (MatrixContent content : matrixReversed[combinationsReversed.length]) {
                 MatrixContent currentContent = content;
-                String currentPeptide = "";
-                String currentPeptideSearch = "";
+                StringBuilder currentPeptide = new StringBuilder(content.length);
+                StringBuilder currentPeptideSearch = new StringBuilder(content.length);
 
                 int leftIndexFront = 0;
                 int rightIndexFront = indexStringLengths.get(indexPart) - 1;
@@ -3977,14 +4689,14 @@ public class FMIndex implements PeptideMapper {
                 while (currentContent.previousContent != null) {
                     final int aminoAcid = currentContent.character;
                     if (aminoAcid > 0) {
-                        currentPeptide += (char) currentContent.character;
+                        currentPeptide.append((char) currentContent.character);
                         int c = currentContent.ambiguousChar == -1 ? aminoAcid : currentContent.ambiguousChar;
                         if (currentContent.character == 'X'){
                             Xcomponents.add(new int[]{0, currentContent.tagComponent, currentContent.length});
                             Xcomponents.get(Xcomponents.size() - 1)[2] = currentContent.length;
                         }
                         //System.out.println((char) currentContent.character);
-                        currentPeptideSearch += (char)c;
+                        currentPeptideSearch.append((char) c);
                         final int lessValue = lessPrimary[c];
                         final int[] range = occurrencePrimary.singleRangeQuery(leftIndexFront - 1, rightIndexFront, c);
                         leftIndexFront = lessValue + range[0];
@@ -4004,8 +4716,8 @@ public class FMIndex implements PeptideMapper {
                     }
                     currentContent = currentContent.previousContent;
                 }
-                String reversePeptide = (new StringBuilder(currentPeptide).reverse()).toString();
-                String reversePeptideSearch = (new StringBuilder(currentPeptideSearch).reverse()).toString();
+                String reversePeptide = currentPeptide.reverse().toString();
+                String reversePeptideSearch = currentPeptideSearch.reverse().toString();
                 MatrixContent cell = new MatrixContent(leftIndexFront, rightIndexFront, reversePeptide.charAt(0), null, 0, reversePeptide, reversePeptideSearch, content.length, 0, 0, null, modifications, -1);
                 cell.allXcomponents = Xcomponents;
                 cell.allXMassDiffs = XmassDiffs;
@@ -4039,17 +4751,17 @@ public class FMIndex implements PeptideMapper {
         // Traceback from NTerm
         for (MatrixContent content : matrix[combinations.length]) {
             MatrixContent currentContent = content;
-            String currentPeptide = "";
-            String currentPeptideSearch = "";
+            StringBuilder currentPeptide = new StringBuilder(content.length);
+            StringBuilder currentPeptideSearch = new StringBuilder(content.length);
             ArrayList<ModificationMatch> modifications = new ArrayList<ModificationMatch>();
             ArrayList<int[]> Xcomponents = new ArrayList<int[]>();
             HashMap<Integer, Double> XmassDiffs = new HashMap<Integer, Double>();
                 
             while (currentContent.previousContent != null) {
                 if (currentContent.character != '\0') {
-                    currentPeptide += (char) currentContent.character;
+                    currentPeptide.append((char) currentContent.character);
                     //System.out.println((char) currentContent.character);
-                    currentPeptideSearch += (char)(currentContent.ambiguousChar == -1 ? currentContent.character : currentContent.ambiguousChar);
+                    currentPeptideSearch.append((char) (currentContent.ambiguousChar == -1 ? currentContent.character : currentContent.ambiguousChar));
                     if (currentContent.character == 'X'){
                         Xcomponents.add(new int[]{1, currentContent.tagComponent, content.length - currentContent.length + 1});
                     }
@@ -4087,8 +4799,8 @@ public class FMIndex implements PeptideMapper {
                 modifications.add(new ModificationMatch(modificationMatch.getTheoreticPtm(), modificationMatch.isVariable(), modificationMatch.getModificationSite() + content.length - currentContent.length));
             }
 
-            String peptide = currentPeptide + currentContent.peptideSequence;
-            String peptideSearch = currentPeptideSearch + currentContent.peptideSequenceSearch;
+            String peptide = currentPeptide.append(currentContent.peptideSequence).toString();
+            String peptideSearch = currentPeptideSearch.append(currentContent.peptideSequenceSearch).toString();
 
             if (turned) {
                 leftIndex = 0;
@@ -4155,8 +4867,8 @@ public class FMIndex implements PeptideMapper {
                     int[] Xranges = computeMappingRanges(XmassDiffs.get(Xorigins.get(k)[0] * 1024 + Xorigins.get(k)[1]));
                     ArrayList< int[] > possibleAAs = new ArrayList< int[] >();
                     for (int i = Xranges[0]; i <= Xranges[1]; ++i){
-                        if (massIndexMaps.get(i).indexes.length == len){
-                            possibleAAs.add(massIndexMaps.get(i).indexes);
+                        if (massIntervalLookup.getLength(i) == len){
+                            possibleAAs.add(massIntervalLookup.getAminoAcids(i));
                         }
                     }
                     
@@ -4239,9 +4951,9 @@ public class FMIndex implements PeptideMapper {
     public ArrayList<PeptideProteinMapping> getProteinMappingWithVariants(Tag tag, TagMatcher tagMatcher, SequenceMatchingPreferences sequenceMatchingPreferences, int indexPart) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
 
         int[] lessTablePrimary = lessTablesPrimary.get(indexPart);
-        WaveletTree occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
+        OccurrenceTable occurrenceTablePrimary = occurrenceTablesPrimary.get(indexPart);
         int[] lessTableReversed = lessTablesReversed.get(indexPart);
-        WaveletTree occurrenceTableReversed = occurrenceTablesReversed.get(indexPart);
+        OccurrenceTable occurrenceTableReversed = occurrenceTablesReversed.get(indexPart);
         ArrayList<PeptideProteinMapping> allMatches = new ArrayList<PeptideProteinMapping>();
 
         double xLimit = ((sequenceMatchingPreferences.getLimitX() != null) ? sequenceMatchingPreferences.getLimitX() : 1);
@@ -4271,8 +4983,8 @@ public class FMIndex implements PeptideMapper {
         TagElement[] refTagContent = null;
         int[] lessPrimary = null;
         int[] lessReversed = null;
-        WaveletTree occurrencePrimary = null;
-        WaveletTree occurrenceReversed = null;
+        OccurrenceTable occurrencePrimary = null;
+        OccurrenceTable occurrenceReversed = null;
         //boolean hasCTermDirection = hasCTermDirectionPTM;
         //boolean hasNTermDirection = hasNTermDirectionPTM;
         //boolean towardsC = true;
@@ -4611,86 +5323,35 @@ public class FMIndex implements PeptideMapper {
     }
 
     /**
-     * Class for caching intermediate tag to proteome mapping results.
-     */
-    private class CacheElement {
-
-        Double massFirst;
-        String sequence;
-        Double massSecond;
-        ArrayList<MatrixContent> cachedPrimary;
-
-        /**
-         * Constructor
-         *
-         * @param massFirst
-         * @param sequence
-         * @param massSecond
-         * @param cachedPrimary
-         */
-        public CacheElement(Double massFirst, String sequence, Double massSecond, ArrayList<MatrixContent> cachedPrimary) {
-            this.sequence = sequence;
-            this.massFirst = massFirst;
-            this.massSecond = massSecond;
-            this.cachedPrimary = cachedPrimary;
-        }
-    }
-
-    /**
-     * List of cached intermediate tag to proteome mapping results.
-     */
-    private HashMap<String, CacheElement>[] cache = null;
-
-    /**
-     * Adding intermediate tag to proteome mapping results into the cache.
+     * Returns the cached intermediate tag to proteome mapping results.
      *
-     * @param tagComponents
-     * @return
+     * @param tagComponents the tag components
+     * @param indexPart the index part
+     * @return the cached results, null if not cached
      */
     private ArrayList<MatrixContent> isCached(TagElement[] tagComponents, int indexPart) {
         if (tagComponents.length != 3 || !tagComponents[0].isMass || tagComponents[1].isMass || !tagComponents[2].isMass) {
             return null;
         }
-        ArrayList<MatrixContent> cached = null;
-
-        try {
-            cacheMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        
-        
-        String key = tagComponents[1].sequence + String.format("%.5f", tagComponents[2].mass);
-        CacheElement cacheElement = cache[indexPart].get(key);
-        if (cacheElement != null) cached = cacheElement.cachedPrimary;
-        cacheMutex.release();
-        return cached;
+        return tagCache.get(indexPart, tagComponents[1].sequence, tagComponents[2].mass);
     }
 
     /**
      * Caching intermediate results of previous tag to proteome matches.
      *
-     * @param tagComponents
-     * @param cachedPrimary
+     * @param tagComponents the tag components
+     * @param cachedPrimary the results to cache
+     * @param indexPart the index part
      */
     private void cacheIt(TagElement[] tagComponents, ArrayList<MatrixContent> cachedPrimary, int indexPart) {
         if (tagComponents.length != 3 || !tagComponents[0].isMass || tagComponents[1].isMass || !tagComponents[2].isMass) {
             return;
         }
-        try {
-            cacheMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
 
-        ArrayList<MatrixContent> cacheContentPrimary = new ArrayList<MatrixContent>();
+        ArrayList<MatrixContent> cacheContentPrimary = new ArrayList<MatrixContent>(cachedPrimary.size());
         for (MatrixContent matrixContent : cachedPrimary) {
             cacheContentPrimary.add(new MatrixContent(matrixContent));
         }
-        
-        String key = tagComponents[1].sequence + String.format("%.5f", tagComponents[2].mass);
-        CacheElement cacheElement = new CacheElement(tagComponents[0].mass, tagComponents[1].sequence, tagComponents[2].mass, cacheContentPrimary);
-        if (!cache[indexPart].containsKey(key)) cache[indexPart].put(key, cacheElement);
-        cacheMutex.release();
+        tagCache.put(indexPart, tagComponents[1].sequence, tagComponents[2].mass, cacheContentPrimary);
     }
 }
@@ -0,0 +1,417 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Binary file storing the FM index, by default next to the FASTA file. Every
+ * array is aligned on eight bytes and written in the native byte order so
+ * that the rank bitfields and sampled suffix arrays can be used directly from
+ * the memory mapped file.
+ *
+ * @author agent
+ */
+public class FMIndexFile {
+
+    /**
+     * Magic number identifying an FM index file.
+     */
+    public static final long MAGIC = 0x43554D4649445846L;
+    /**
+     * Version of the file format, to be increased whenever the layout
+     * changes.
+     */
+    public static final int VERSION = 3;
+    /**
+     * Marker used to detect files written with another byte order.
+     */
+    public static final int BYTE_ORDER_MARK = 0x01020304;
+    /**
+     * Size of the preamble: magic, version, byte order mark and header length.
+     */
+    public static final int PREAMBLE_LENGTH = 24;
+    /**
+     * Alignment of the rank blocks and of the index parts, the size of a
+     * cache line.
+     */
+    public static final int BLOCK_ALIGNMENT = 64;
+    /**
+     * The extension of the FM index file.
+     */
+    public static final String EXTENSION = ".fmi";
+    /**
+     * The encoding used for strings.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns the name of the FM index file for the given FASTA file name.
+     *
+     * @param fastaName the name of the FASTA file
+     * @return the name of the FM index file
+     */
+    public static String getIndexName(String fastaName) {
+        return fastaName + EXTENSION;
+    }
+
+    /**
+     * Buffered writer of the index file.
+     */
+    public static class Writer {
+
+        /**
+         * The channel to write to.
+         */
+        private final FileChannel channel;
+        /**
+         * Buffer for the pending bytes.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+        /**
+         * Number of bytes written including the pending ones.
+         */
+        private long position;
+
+        /**
+         * Constructor.
+         *
+         * @param channel the channel to write to
+         * @throws IOException thrown if the channel position cannot be read
+         */
+        public Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.position = channel.position();
+        }
+
+        /**
+         * Returns the position in the file including the pending bytes.
+         *
+         * @return the position
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * Makes sure that the given number of bytes fits in the buffer.
+         *
+         * @param bytes the number of bytes
+         * @throws IOException thrown if flushing fails
+         */
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes all pending bytes to the channel.
+         *
+         * @throws IOException thrown if writing fails
+         */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Pads the file with zeros up to the next multiple of eight bytes.
+         *
+         * @throws IOException thrown if writing fails
+         */
+        public void align() throws IOException {
+            align(8);
+        }
+
+        /**
+         * Pads the file with zeros up to the next multiple of the given
+         * number of bytes.
+         *
+         * @param alignment the alignment in bytes, a power of two
+         * @throws IOException thrown if writing fails
+         */
+        public void align(int alignment) throws IOException {
+            ensure(alignment);
+            while ((position & (alignment - 1)) != 0) {
+                buffer.put((byte) 0);
+                ++position;
+            }
+        }
+
+        /**
+         * Writes a boolean.
+         *
+         * @param value the value
+         * @throws IOException thrown if writing fails
+         */
+        public void writeBoolean(boolean value) throws IOException {
+            writeInt(value ? 1 : 0);
+        }
+
+        /**
+         * Writes an integer.
+         *
+         * @param value the value
+         * @throws IOException thrown if writing fails
+         */
+        public void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        /**
+         * Writes a long.
+         *
+         * @param value the value
+         * @throws IOException thrown if writing fails
+         */
+        public void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        /**
+         * Writes a string in UTF-8.
+         *
+         * @param value the value
+         * @throws IOException thrown if writing fails
+         */
+        public void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF8);
+            writeInt(bytes.length);
+            for (byte b : bytes) {
+                ensure(1);
+                buffer.put(b);
+            }
+            position += bytes.length;
+        }
+
+        /**
+         * Writes an aligned integer array preceded by its length.
+         *
+         * @param array the array
+         * @throws IOException thrown if writing fails
+         */
+        public void writeIntArray(int[] array) throws IOException {
+            writeIntArray(IntBuffer.wrap(array));
+        }
+
+        /**
+         * Writes an aligned integer buffer preceded by its length.
+         *
+         * @param array the buffer, read from index 0 to its limit
+         * @throws IOException thrown if writing fails
+         */
+        public void writeIntArray(IntBuffer array) throws IOException {
+            int length = array.limit();
+            writeInt(length);
+            align();
+            for (int i = 0; i < length; ++i) {
+                ensure(4);
+                buffer.putInt(array.get(i));
+            }
+            position += ((long) length) << 2;
+        }
+
+        /**
+         * Writes an aligned long buffer preceded by its length.
+         *
+         * @param array the buffer, read from index 0 to its limit
+         * @throws IOException thrown if writing fails
+         */
+        public void writeLongArray(LongBuffer array) throws IOException {
+            writeLongArray(array, 8);
+        }
+
+        /**
+         * Writes a long buffer preceded by its length and aligned on the
+         * given number of bytes.
+         *
+         * @param array the buffer, read from index 0 to its limit
+         * @param alignment the alignment in bytes, a power of two
+         * @throws IOException thrown if writing fails
+         */
+        public void writeLongArray(LongBuffer array, int alignment) throws IOException {
+            int length = array.limit();
+            writeInt(length);
+            align(alignment);
+            for (int i = 0; i < length; ++i) {
+                ensure(8);
+                buffer.putLong(array.get(i));
+            }
+            position += ((long) length) << 3;
+        }
+
+        /**
+         * Writes an aligned byte buffer preceded by its length.
+         *
+         * @param array the buffer, read from index 0 to its limit
+         * @throws IOException thrown if writing fails
+         */
+        public void writeByteArray(ByteBuffer array) throws IOException {
+            int length = array.limit();
+            writeInt(length);
+            align();
+            for (int i = 0; i < length; ++i) {
+                ensure(1);
+                buffer.put(array.get(i));
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Reader of an index file region, typically memory mapped.
+     */
+    public static class Reader {
+
+        /**
+         * The buffer to read from.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param buffer the buffer to read from, its position zero must be
+         * aligned on BLOCK_ALIGNMENT bytes in the file
+         */
+        public Reader(ByteBuffer buffer) {
+            this.buffer = buffer.order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Moves to the next multiple of eight bytes.
+         */
+        private void align() {
+            align(8);
+        }
+
+        /**
+         * Moves to the next multiple of the given number of bytes.
+         *
+         * @param alignment the alignment in bytes, a power of two
+         */
+        private void align(int alignment) {
+            int position = buffer.position();
+            buffer.position((position + alignment - 1) & -alignment);
+        }
+
+        /**
+         * Returns a view on the next bytes and moves the position after them.
+         *
+         * @param length the number of bytes
+         * @return a view on the bytes
+         */
+        private ByteBuffer slice(int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(view.position() + length);
+            buffer.position(buffer.position() + length);
+            return view.slice().order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Reads a boolean.
+         *
+         * @return the value
+         */
+        public boolean readBoolean() {
+            return buffer.getInt() != 0;
+        }
+
+        /**
+         * Reads an integer.
+         *
+         * @return the value
+         */
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        /**
+         * Reads a long.
+         *
+         * @return the value
+         */
+        public long readLong() {
+            return buffer.getLong();
+        }
+
+        /**
+         * Reads a string.
+         *
+         * @return the value
+         */
+        public String readString() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        /**
+         * Reads an integer array into the heap.
+         *
+         * @return the array
+         */
+        public int[] readIntArray() {
+            int[] array = new int[readInt()];
+            align();
+            slice(array.length << 2).asIntBuffer().get(array);
+            return array;
+        }
+
+        /**
+         * Returns an integer buffer backed by the file.
+         *
+         * @return the buffer
+         */
+        public IntBuffer readIntBuffer() {
+            int length = readInt();
+            align();
+            return slice(length << 2).asIntBuffer();
+        }
+
+        /**
+         * Returns a long buffer backed by the file.
+         *
+         * @return the buffer
+         */
+        public LongBuffer readLongBuffer() {
+            return readLongBuffer(8);
+        }
+
+        /**
+         * Returns a long buffer backed by the file, aligned on the given
+         * number of bytes.
+         *
+         * @param alignment the alignment in bytes, a power of two
+         * @return the buffer
+         */
+        public LongBuffer readLongBuffer(int alignment) {
+            int length = readInt();
+            align(alignment);
+            return slice(length << 3).asLongBuffer();
+        }
+
+        /**
+         * Returns a byte buffer backed by the file.
+         *
+         * @return the buffer
+         */
+        public ByteBuffer readByteBuffer() {
+            int length = readInt();
+            align();
+            return slice(length);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.Serializable;
+
+/**
+ * Settings of the data structures of the FM index. Changing them changes the
+ * index file, which is then rebuilt.
+ *
+ * @author agent
+ */
+public class FMIndexSettings implements Serializable {
+
+    /**
+     * Serial number for backward compatibility.
+     */
+    static final long serialVersionUID = 4093129725413608412L;
+    /**
+     * If true, the occurrence tables are stored as wavelet matrices, as
+     * wavelet trees otherwise.
+     */
+    private boolean useWaveletMatrix = false;
+    /**
+     * Every 2^samplingShift suffix array entry is sampled.
+     */
+    private int samplingShift = 3;
+    /**
+     * If true, the inverse suffix array is sampled as well.
+     */
+    private boolean sampleInverseSuffixArray = false;
+    /**
+     * The maximal number of amino acids indexed per index part.
+     */
+    private int indexPartLength = 100 * 1024 * 1024;
+    /**
+     * If true, the index parts are written to the index file as soon as they
+     * are built and queried from the file.
+     */
+    private boolean diskBacked = false;
+    /**
+     * If true, the index is loaded from an index file when available and
+     * saved to it otherwise.
+     */
+    private boolean useIndexFile = true;
+    /**
+     * The path to the folder where the index file is stored, null to store it
+     * next to the FASTA file.
+     */
+    private String indexFolder = null;
+
+    /**
+     * Constructor.
+     */
+    public FMIndexSettings() {
+
+    }
+
+    /**
+     * Indicates whether the occurrence tables are stored as wavelet matrices
+     * instead of wavelet trees.
+     *
+     * @return true if wavelet matrices are used
+     */
+    public boolean isUseWaveletMatrix() {
+        return useWaveletMatrix;
+    }
+
+    /**
+     * Sets whether the occurrence tables are stored as wavelet matrices
+     * instead of wavelet trees. A wavelet matrix stores one bit field per
+     * level of a balanced code instead of one per node of the Huffman shaped
+     * tree.
+     *
+     * @param useWaveletMatrix true if wavelet matrices are used
+     */
+    public void setUseWaveletMatrix(boolean useWaveletMatrix) {
+        this.useWaveletMatrix = useWaveletMatrix;
+    }
+
+    /**
+     * Returns the sampling shift: every 2^samplingShift suffix array entry is
+     * kept in the index.
+     *
+     * @return the sampling shift
+     */
+    public int getSamplingShift() {
+        return samplingShift;
+    }
+
+    /**
+     * Sets the sampling shift: every 2^samplingShift suffix array entry is
+     * kept in the index. Every increment halves the memory used by the
+     * sampled suffix array and doubles the average number of steps needed to
+     * locate a match in the proteins.
+     *
+     * @param samplingShift the sampling shift, between 0 and 16
+     */
+    public void setSamplingShift(int samplingShift) {
+        if (samplingShift < 0 || samplingShift > 16) {
+            throw new IllegalArgumentException("The sampling shift must be between 0 and 16, found " + samplingShift + ".");
+        }
+        this.samplingShift = samplingShift;
+    }
+
+    /**
+     * Indicates whether the inverse suffix array is sampled, allowing to
+     * extract protein sequences from the index.
+     *
+     * @return true if the inverse suffix array is sampled
+     */
+    public boolean isSampleInverseSuffixArray() {
+        return sampleInverseSuffixArray;
+    }
+
+    /**
+     * Sets whether the inverse suffix array is sampled, allowing to extract
+     * protein sequences from the index instead of reading them from the FASTA
+     * file. The inverse suffix array is sampled with the same density as the
+     * suffix array.
+     *
+     * @param sampleInverseSuffixArray true if the inverse suffix array is
+     * sampled
+     */
+    public void setSampleInverseSuffixArray(boolean sampleInverseSuffixArray) {
+        this.sampleInverseSuffixArray = sampleInverseSuffixArray;
+    }
+
+    /**
+     * Returns the maximal number of amino acids indexed per index part.
+     *
+     * @return the maximal number of amino acids indexed per index part
+     */
+    public int getIndexPartLength() {
+        return indexPartLength;
+    }
+
+    /**
+     * Sets the maximal number of amino acids indexed per index part. Building
+     * a part needs about 16 bytes per amino acid, smaller parts lower the
+     * memory needed for the construction at the cost of one more search per
+     * part when mapping.
+     *
+     * @param indexPartLength the maximal number of amino acids indexed per
+     * index part
+     */
+    public void setIndexPartLength(int indexPartLength) {
+        if (indexPartLength <= 0) {
+            throw new IllegalArgumentException("The index part length must be positive, found " + indexPartLength + ".");
+        }
+        this.indexPartLength = indexPartLength;
+    }
+
+    /**
+     * Indicates whether the index is disk backed.
+     *
+     * @return true if the index is disk backed
+     */
+    public boolean isDiskBacked() {
+        return diskBacked;
+    }
+
+    /**
+     * Sets whether the index is disk backed. If true, every index part is
+     * written to the index file as soon as it is built and released from the
+     * heap. Once all parts are written, they are mapped from the file so that
+     * the operating system pages them in and out as needed, allowing to index
+     * proteomes larger than the heap. If no FASTA file is loaded, if no index
+     * file is used, or if the index file cannot be written or mapped, the
+     * incomplete file is deleted and the index is built in memory instead.
+     *
+     * @param diskBacked true if the index is disk backed
+     */
+    public void setDiskBacked(boolean diskBacked) {
+        this.diskBacked = diskBacked;
+    }
+
+    /**
+     * Indicates whether the index is loaded from an index file when available
+     * and saved to it otherwise.
+     *
+     * @return true if an index file is used
+     */
+    public boolean isUseIndexFile() {
+        return useIndexFile;
+    }
+
+    /**
+     * Sets whether the index is loaded from an index file when available and
+     * saved to it otherwise. If false, the index is built in memory every
+     * time and nothing is written to disk, the disk backed setting is then
+     * ignored.
+     *
+     * @param useIndexFile true if an index file is used
+     */
+    public void setUseIndexFile(boolean useIndexFile) {
+        this.useIndexFile = useIndexFile;
+    }
+
+    /**
+     * Returns the path to the folder where the index file is stored, null if
+     * it is stored next to the FASTA file.
+     *
+     * @return the path to the folder where the index file is stored
+     */
+    public String getIndexFolder() {
+        return indexFolder;
+    }
+
+    /**
+     * Sets the path to the folder where the index file is stored, null to
+     * store it next to the FASTA file. Use this when the folder of the FASTA
+     * file is not writable. The folder is created if needed, and can be
+     * shared by the indexes of several FASTA files as long as their names
+     * differ.
+     *
+     * @param indexFolder the path to the folder where the index file is
+     * stored
+     */
+    public void setIndexFolder(String indexFolder) {
+        this.indexFolder = indexFolder;
+    }
+}
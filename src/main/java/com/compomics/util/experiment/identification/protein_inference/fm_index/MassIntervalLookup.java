@@ -0,0 +1,393 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lookup of the amino acid combinations explaining a mass gap. The lookup
+ * holds bit fields of the masses reachable by amino acid combinations, used
+ * to discard impossible mass gaps, and the combinations of up to maxXPerTag
+ * amino acids sorted by mass, used to substitute X in tags. Lookups only
+ * depend on the amino acid masses and the mass tolerance, they are built once
+ * and shared by all indexes using the same settings.
+ *
+ * @author agent
+ */
+public class MassIntervalLookup {
+
+    /**
+     * The maximal number of lookups kept for reuse.
+     */
+    private static final int CACHE_SIZE = 8;
+    /**
+     * The lookups built so far indexed by their settings, in least recently
+     * used order.
+     */
+    private static final LinkedHashMap<String, MassIntervalLookup> lookups = new LinkedHashMap<String, MassIntervalLookup>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MassIntervalLookup> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    /**
+     * The mass tolerance.
+     */
+    private final double massTolerance;
+    /**
+     * The mass accuracy type.
+     */
+    private final SearchParameters.MassAccuracyType massAccuracyType;
+    /**
+     * Maximum mass for lookup table [Da].
+     */
+    private final double lookupMaxMass;
+    /**
+     * Precision for the masses in lookup table.
+     */
+    private final double lookupMultiplier;
+    /**
+     * Maximum supported number of Xs per tag.
+     */
+    private final int maxXPerTag;
+    /**
+     * The masses of the amino acids indexed by character.
+     */
+    private final double[] aaMasses;
+    /**
+     * The characters having a mass.
+     */
+    private final int[] aaMassIndexes;
+    /**
+     * Bit field of the masses reachable by any amino acid combination.
+     */
+    private final long[] lookupMasses;
+    /**
+     * Bit fields of the masses reachable by combinations of a given number of
+     * amino acids, up to maxXPerTag.
+     */
+    private final long[][] xLookup;
+    /**
+     * The number of combinations.
+     */
+    private int size = 0;
+    /**
+     * The masses of the combinations in ascending order.
+     */
+    private double[] masses = new double[1024];
+    /**
+     * The amino acids of the combinations, maxXPerTag entries per
+     * combination.
+     */
+    private int[] aminoAcids;
+    /**
+     * The number of amino acids of the combinations.
+     */
+    private byte[] lengths = new byte[1024];
+    /**
+     * The amino acids of the current combination while filling.
+     */
+    private final int[] combination;
+
+    /**
+     * Returns the lookup for the given settings, built only if no lookup was
+     * built for the same settings before.
+     *
+     * @param aaMasses the masses of the amino acids indexed by character
+     * @param aaMassIndexes the characters having a mass
+     * @param massTolerance the mass tolerance
+     * @param massAccuracyType the mass accuracy type
+     * @param lookupMaxMass the maximal mass of the lookup
+     * @param lookupMultiplier the precision of the masses of the lookup
+     * @param maxXPerTag the maximal number of X per tag
+     * @return the lookup
+     */
+    public static MassIntervalLookup getMassIntervalLookup(double[] aaMasses, int[] aaMassIndexes, double massTolerance,
+            SearchParameters.MassAccuracyType massAccuracyType, double lookupMaxMass, double lookupMultiplier, int maxXPerTag) {
+        StringBuilder keyBuilder = new StringBuilder();
+        keyBuilder.append(massTolerance).append('|').append(massAccuracyType).append('|').append(lookupMaxMass)
+                .append('|').append(lookupMultiplier).append('|').append(maxXPerTag);
+        for (int aaMassIndex : aaMassIndexes) {
+            keyBuilder.append('|').append(aaMassIndex).append(':').append(Double.doubleToLongBits(aaMasses[aaMassIndex]));
+        }
+        String key = keyBuilder.toString();
+        synchronized (lookups) {
+            MassIntervalLookup lookup = lookups.get(key);
+            if (lookup == null) {
+                lookup = new MassIntervalLookup(aaMasses, aaMassIndexes, massTolerance, massAccuracyType, lookupMaxMass, lookupMultiplier, maxXPerTag);
+                lookups.put(key, lookup);
+            }
+            return lookup;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param aaMasses the masses of the amino acids indexed by character
+     * @param aaMassIndexes the characters having a mass
+     * @param massTolerance the mass tolerance
+     * @param massAccuracyType the mass accuracy type
+     * @param lookupMaxMass the maximal mass of the lookup
+     * @param lookupMultiplier the precision of the masses of the lookup
+     * @param maxXPerTag the maximal number of X per tag
+     */
+    private MassIntervalLookup(double[] aaMasses, int[] aaMassIndexes, double massTolerance,
+            SearchParameters.MassAccuracyType massAccuracyType, double lookupMaxMass, double lookupMultiplier, int maxXPerTag) {
+        this.aaMasses = aaMasses;
+        this.aaMassIndexes = aaMassIndexes;
+        this.massTolerance = massTolerance;
+        this.massAccuracyType = massAccuracyType;
+        this.lookupMaxMass = lookupMaxMass;
+        this.lookupMultiplier = lookupMultiplier;
+        this.maxXPerTag = maxXPerTag;
+
+        int lookupLength = ((int) ((lookupMaxMass + computeInverseMassValue(massTolerance, lookupMaxMass)) * lookupMultiplier));
+        lookupMasses = new long[(lookupLength >>> 6) + 3];
+        xLookup = new long[maxXPerTag + 1][];
+        for (int i = 1; i <= maxXPerTag; ++i) {
+            xLookup[i] = new long[(lookupLength >>> 6) + 3];
+        }
+        aminoAcids = new int[masses.length * maxXPerTag];
+        combination = new int[maxXPerTag];
+
+        fill(0., 0, 0);
+        sortByMass();
+    }
+
+    /**
+     * Compute the inverse mass value.
+     *
+     * @param currentMass the current mass
+     * @param refMass the reference mass
+     * @return the inverse mass value
+     */
+    private double computeInverseMassValue(double currentMass, double refMass) {
+        if (massAccuracyType == SearchParameters.MassAccuracyType.DA) {
+            return currentMass;
+        }
+        return currentMass / 1e6 * refMass;
+    }
+
+    /**
+     * Recursive function to compute all possible mass combinations up to the
+     * maximal mass of the lookup.
+     *
+     * @param mass current mass
+     * @param pos current index of amino acid mass array
+     * @param loop the number of amino acids of the current combination
+     */
+    private void fill(double mass, int pos, int loop) {
+        if (mass >= lookupMaxMass) {
+            return;
+        }
+        double transformedMass = computeInverseMassValue(massTolerance, mass);
+        if (mass > transformedMass) {
+            int startMass = (int) ((mass - transformedMass) * lookupMultiplier);
+            int endMass = (int) ((mass + transformedMass) * lookupMultiplier + 1);
+            setRange(lookupMasses, startMass, endMass);
+            if (loop <= maxXPerTag) {
+                setRange(xLookup[loop], startMass, endMass);
+                add(mass, loop);
+            }
+        }
+
+        for (int i = pos; i < aaMassIndexes.length; ++i) {
+            if (loop < maxXPerTag) {
+                combination[loop] = aaMassIndexes[i];
+            }
+            fill(mass + aaMasses[aaMassIndexes[i]], i, loop + 1);
+        }
+    }
+
+    /**
+     * Sets the bits of the given mass range.
+     *
+     * @param bitField the bit field
+     * @param startMass the first bit
+     * @param endMass the end bit
+     */
+    private static void setRange(long[] bitField, int startMass, int endMass) {
+        bitField[startMass >>> 6] |= (~(0L)) << (startMass & 63);
+        for (int p = (startMass >>> 6) + 1; p < (endMass >>> 6); ++p) {
+            bitField[p] = ~0L;
+        }
+        bitField[endMass >>> 6] |= (~(0L)) >>> (64 - (endMass & 63));
+    }
+
+    /**
+     * Adds the current combination.
+     *
+     * @param mass the mass of the combination
+     * @param length the number of amino acids of the combination
+     */
+    private void add(double mass, int length) {
+        if (size == masses.length) {
+            int capacity = size << 1;
+            double[] newMasses = new double[capacity];
+            System.arraycopy(masses, 0, newMasses, 0, size);
+            masses = newMasses;
+            byte[] newLengths = new byte[capacity];
+            System.arraycopy(lengths, 0, newLengths, 0, size);
+            lengths = newLengths;
+            int[] newAminoAcids = new int[capacity * maxXPerTag];
+            System.arraycopy(aminoAcids, 0, newAminoAcids, 0, size * maxXPerTag);
+            aminoAcids = newAminoAcids;
+        }
+        masses[size] = mass;
+        lengths[size] = (byte) length;
+        System.arraycopy(combination, 0, aminoAcids, size * maxXPerTag, length);
+        ++size;
+    }
+
+    /**
+     * Sorts the combinations by mass, combinations with the same mass keep
+     * the order in which they were added.
+     */
+    private void sortByMass() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+
+        double[] sortedMasses = new double[size];
+        byte[] sortedLengths = new byte[size];
+        int[] sortedAminoAcids = new int[size * maxXPerTag];
+        for (int i = 0; i < size; ++i) {
+            int j = order[i];
+            sortedMasses[i] = masses[j];
+            sortedLengths[i] = lengths[j];
+            System.arraycopy(aminoAcids, j * maxXPerTag, sortedAminoAcids, i * maxXPerTag, maxXPerTag);
+        }
+        masses = sortedMasses;
+        lengths = sortedLengths;
+        aminoAcids = sortedAminoAcids;
+    }
+
+    /**
+     * Stable merge sort of the combination indexes by mass.
+     *
+     * @param order the combination indexes
+     * @param buffer buffer of the size of the indexes
+     * @param from first position, inclusive
+     * @param to last position, exclusive
+     */
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (masses[order[middle - 1]] <= masses[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from, right = middle, i = from;
+        while (left < middle && right < to) {
+            order[i++] = masses[buffer[right]] < masses[buffer[left]] ? buffer[right++] : buffer[left++];
+        }
+        while (left < middle) {
+            order[i++] = buffer[left++];
+        }
+        while (right < to) {
+            order[i++] = buffer[right++];
+        }
+    }
+
+    /**
+     * Returns the range of the combinations matching the given mass within
+     * the mass tolerance.
+     *
+     * @param mass the mass
+     * @return the indexes of the first and last matching combinations, the
+     * last is smaller than the first if none matches
+     */
+    public int[] getRange(double mass) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (masses[mid] < mass - computeInverseMassValue(massTolerance, masses[mid])) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (masses[mid] <= mass + computeInverseMassValue(massTolerance, masses[mid])) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new int[]{first, low - 1};
+    }
+
+    /**
+     * Returns the number of combinations.
+     *
+     * @return the number of combinations
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the mass of a combination.
+     *
+     * @param index the index of the combination
+     * @return the mass of the combination
+     */
+    public double getMass(int index) {
+        return masses[index];
+    }
+
+    /**
+     * Returns the number of amino acids of a combination.
+     *
+     * @param index the index of the combination
+     * @return the number of amino acids of the combination
+     */
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Returns the amino acids of a combination.
+     *
+     * @param index the index of the combination
+     * @return the amino acids of the combination
+     */
+    public int[] getAminoAcids(int index) {
+        int[] combinationAminoAcids = new int[lengths[index]];
+        System.arraycopy(aminoAcids, index * maxXPerTag, combinationAminoAcids, 0, combinationAminoAcids.length);
+        return combinationAminoAcids;
+    }
+
+    /**
+     * Returns the bit field of the masses reachable by any amino acid
+     * combination. The array is shared and must not be modified.
+     *
+     * @return the bit field of the reachable masses
+     */
+    public long[] getLookupMasses() {
+        return lookupMasses;
+    }
+
+    /**
+     * Returns the bit fields of the masses reachable by combinations of a
+     * given number of amino acids. The arrays are shared and must not be
+     * modified.
+     *
+     * @return the bit fields of the reachable masses per number of amino
+     * acids
+     */
+    public long[][] getXLookup() {
+        return xLookup;
+    }
+}
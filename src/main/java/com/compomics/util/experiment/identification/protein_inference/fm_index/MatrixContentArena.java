@@ -0,0 +1,230 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.util.Arrays;
+
+/**
+ * Reusable frontier of the tag search in the FM index. The cells are stored
+ * as arrays of primitives and refer to their previous cell by index.
+ * MatrixContent objects are only created for the cells reaching the last row
+ * of the matrix and their predecessors.
+ *
+ * @author agent
+ */
+class MatrixContentArena {
+
+    /**
+     * The initial number of cells.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * The number of cells in use.
+     */
+    private int size = 0;
+    /**
+     * Left index boundaries.
+     */
+    int[] left = new int[INITIAL_CAPACITY];
+    /**
+     * Right index boundaries.
+     */
+    int[] right = new int[INITIAL_CAPACITY];
+    /**
+     * Characters chosen.
+     */
+    private int[] character = new int[INITIAL_CAPACITY];
+    /**
+     * Indexes of the previous cells, -1 for cells given as matrix content.
+     */
+    private int[] previous = new int[INITIAL_CAPACITY];
+    /**
+     * Current masses.
+     */
+    double[] mass = new double[INITIAL_CAPACITY];
+    /**
+     * Current peptide lengths.
+     */
+    int[] length = new int[INITIAL_CAPACITY];
+    /**
+     * Current numbers of X.
+     */
+    int[] numX = new int[INITIAL_CAPACITY];
+    /**
+     * Indexes to the modification list.
+     */
+    private int[] modificationPos = new int[INITIAL_CAPACITY];
+    /**
+     * Ambiguous characters.
+     */
+    private int[] ambiguousChar = new int[INITIAL_CAPACITY];
+    /**
+     * Tag component indexes.
+     */
+    private int[] tagComponent = new int[INITIAL_CAPACITY];
+    /**
+     * X mass differences.
+     */
+    double[] XMassDiff = new double[INITIAL_CAPACITY];
+    /**
+     * The matrix contents of the cells, given or already created.
+     */
+    private MatrixContent[] contents = new MatrixContent[INITIAL_CAPACITY];
+    /**
+     * The cells of every row in insertion order.
+     */
+    private int[][] rows = new int[0][];
+    /**
+     * The number of cells of every row.
+     */
+    private int[] rowSizes = new int[0];
+
+    /**
+     * Empties the arena and prepares the given number of rows.
+     *
+     * @param numRows the number of rows
+     */
+    void reset(int numRows) {
+        size = 0;
+        if (rows.length < numRows) {
+            int[][] newRows = new int[numRows][];
+            System.arraycopy(rows, 0, newRows, 0, rows.length);
+            for (int i = rows.length; i < numRows; ++i) {
+                newRows[i] = new int[16];
+            }
+            rows = newRows;
+            rowSizes = new int[numRows];
+        }
+        for (int i = 0; i < numRows; ++i) {
+            rowSizes[i] = 0;
+        }
+    }
+
+    /**
+     * Releases the references to the matrix contents.
+     */
+    void release() {
+        for (int i = 0; i < size; ++i) {
+            contents[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Adds a cell for an existing matrix content.
+     *
+     * @param content the matrix content
+     * @return the index of the cell
+     */
+    int add(MatrixContent content) {
+        int cell = add(content.left, content.right, content.character, -1, content.mass, content.length, content.numX, content.modificationPos, content.ambiguousChar, content.tagComponent);
+        contents[cell] = content;
+        return cell;
+    }
+
+    /**
+     * Adds a cell.
+     *
+     * @param left left index boundary
+     * @param right right index boundary
+     * @param character current character stored
+     * @param previous index of the previous cell
+     * @param mass current mass
+     * @param length current peptide length
+     * @param numX number of current X amino acids
+     * @param modificationPos index to modification list for PTM
+     * @param ambiguousChar ambiguous character
+     * @param tagComponent the tag component index
+     * @return the index of the cell
+     */
+    int add(int left, int right, int character, int previous, double mass, int length, int numX, int modificationPos, int ambiguousChar, int tagComponent) {
+        if (size == this.left.length) {
+            grow();
+        }
+        this.left[size] = left;
+        this.right[size] = right;
+        this.character[size] = character;
+        this.previous[size] = previous;
+        this.mass[size] = mass;
+        this.length[size] = length;
+        this.numX[size] = numX;
+        this.modificationPos[size] = modificationPos;
+        this.ambiguousChar[size] = ambiguousChar;
+        this.tagComponent[size] = tagComponent;
+        this.XMassDiff[size] = -1;
+        this.contents[size] = null;
+        return size++;
+    }
+
+    /**
+     * Appends a cell to a row.
+     *
+     * @param row the row
+     * @param cell the index of the cell
+     */
+    void addToRow(int row, int cell) {
+        int[] rowCells = rows[row];
+        if (rowSizes[row] == rowCells.length) {
+            int[] newRowCells = new int[rowCells.length << 1];
+            System.arraycopy(rowCells, 0, newRowCells, 0, rowCells.length);
+            rows[row] = rowCells = newRowCells;
+        }
+        rowCells[rowSizes[row]++] = cell;
+    }
+
+    /**
+     * Returns the number of cells of a row.
+     *
+     * @param row the row
+     * @return the number of cells of the row
+     */
+    int getRowSize(int row) {
+        return rowSizes[row];
+    }
+
+    /**
+     * Returns a cell of a row.
+     *
+     * @param row the row
+     * @param i the position of the cell in the row
+     * @return the index of the cell
+     */
+    int getCell(int row, int i) {
+        return rows[row][i];
+    }
+
+    /**
+     * Returns the matrix content of a cell, creating it and the ones of its
+     * predecessors if needed.
+     *
+     * @param cell the index of the cell
+     * @return the matrix content of the cell
+     */
+    MatrixContent getMatrixContent(int cell) {
+        if (contents[cell] != null) {
+            return contents[cell];
+        }
+        MatrixContent previousContent = getMatrixContent(previous[cell]);
+        MatrixContent content = new MatrixContent(left[cell], right[cell], character[cell], previousContent, mass[cell], length[cell], numX[cell], modificationPos[cell], ambiguousChar[cell], tagComponent[cell]);
+        content.XMassDiff = XMassDiff[cell];
+        contents[cell] = content;
+        return content;
+    }
+
+    /**
+     * Doubles the capacity of the arena.
+     */
+    private void grow() {
+        int capacity = left.length << 1;
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        character = Arrays.copyOf(character, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        length = Arrays.copyOf(length, capacity);
+        numX = Arrays.copyOf(numX, capacity);
+        modificationPos = Arrays.copyOf(modificationPos, capacity);
+        ambiguousChar = Arrays.copyOf(ambiguousChar, capacity);
+        tagComponent = Arrays.copyOf(tagComponent, capacity);
+        XMassDiff = Arrays.copyOf(XMassDiff, capacity);
+        contents = Arrays.copyOf(contents, capacity);
+    }
+}
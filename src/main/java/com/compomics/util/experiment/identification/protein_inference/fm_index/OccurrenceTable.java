@@ -0,0 +1,89 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.IOException;
+
+/**
+ * Occurrence table of the FM index, giving the rank of every character at
+ * every position of the Burrows-Wheeler transform and the character at a
+ * given position.
+ *
+ * @author agent
+ */
+public abstract class OccurrenceTable {
+
+    /**
+     * Create the less table.
+     *
+     * @return the less table
+     */
+    public abstract int[] createLessTable();
+
+    /**
+     * Returns the number of occurrences of a given character until position
+     * index.
+     *
+     * @param index the index
+     * @param character the character
+     * @return the rank
+     */
+    public abstract int getRank(int index, int character);
+
+    /**
+     * Returns the character and rank at a given index.
+     *
+     * @param index the index
+     * @return the character and rank
+     */
+    public abstract int[] getCharacterInfo(int index);
+
+    /**
+     * Returns the number of bytes for the allocated arrays.
+     *
+     * @return number of allocated bytes
+     */
+    public abstract int getAllocatedBytes();
+
+    /**
+     * Returns a list of character and new left/right index for a given range.
+     *
+     * @param leftIndex left index boundary
+     * @param rightIndex right index boundary
+     * @return list of counted characters
+     */
+    public abstract int[][] rangeQuery(int leftIndex, int rightIndex);
+
+    /**
+     * Fills a list of character and new left/right index for a given range.
+     *
+     * @param leftIndex left index boundary
+     * @param rightIndex right index boundary
+     * @param setCharacter list of counted characters
+     */
+    public abstract void rangeQuery(int leftIndex, int rightIndex, int[][] setCharacter);
+
+    /**
+     * Fills a list of character and new left/right index for a given index.
+     *
+     * @param index index boundary
+     * @param setCharacter list of counted characters
+     */
+    public abstract void rangeQueryOneValue(int index, int[][] setCharacter);
+
+    /**
+     * Returns a new left/right index range for a given character.
+     *
+     * @param leftIndex left index boundary
+     * @param rightIndex right index boundary
+     * @param character character to check
+     * @return the new left/right index range
+     */
+    public abstract int[] singleRangeQuery(int leftIndex, int rightIndex, int character);
+
+    /**
+     * Writes the occurrence table to an index file.
+     *
+     * @param writer the index file writer
+     * @throws IOException thrown if writing fails
+     */
+    abstract void write(FMIndexFile.Writer writer) throws IOException;
+}
@@ -0,0 +1,127 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * Array of non negative integers stored with the number of bits needed for
+ * the largest value, as used for the sampled suffix arrays of the FM index.
+ *
+ * @author agent
+ */
+public class PackedIntArray {
+
+    /**
+     * The number of values.
+     */
+    private final int size;
+    /**
+     * The number of bits per value.
+     */
+    private final int bitsPerValue;
+    /**
+     * The mask of a value.
+     */
+    private final long valueMask;
+    /**
+     * The packed values, either on the heap or mapped from an index file.
+     */
+    private final LongBuffer words;
+
+    /**
+     * Constructor.
+     *
+     * @param values the values
+     * @param size the number of values to store from the beginning of the
+     * array
+     * @param maxValue the largest value which can be stored
+     */
+    public PackedIntArray(int[] values, int size, int maxValue) {
+        this.size = size;
+        bitsPerValue = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxValue));
+        valueMask = (1L << bitsPerValue) - 1;
+
+        // one more word so that reading a value never checks the array end
+        long[] wordArray = new long[(int) ((((long) size) * bitsPerValue) >>> 6) + 2];
+        for (int i = 0; i < size; ++i) {
+            long value = values[i] & valueMask;
+            long bitPosition = ((long) i) * bitsPerValue;
+            int word = (int) (bitPosition >>> 6);
+            int offset = (int) (bitPosition & 63);
+            wordArray[word] |= value << offset;
+            if (offset + bitsPerValue > 64) {
+                wordArray[word + 1] |= value >>> (64 - offset);
+            }
+        }
+        words = LongBuffer.wrap(wordArray);
+    }
+
+    /**
+     * Constructor reading the array from an index file. The values are not
+     * copied, i.e. they stay in the memory mapped file.
+     *
+     * @param reader the index file reader
+     */
+    PackedIntArray(FMIndexFile.Reader reader) {
+        size = reader.readInt();
+        bitsPerValue = reader.readInt();
+        valueMask = (1L << bitsPerValue) - 1;
+        words = reader.readLongBuffer();
+    }
+
+    /**
+     * Writes the array to an index file.
+     *
+     * @param writer the index file writer
+     * @throws IOException thrown if writing fails
+     */
+    void write(FMIndexFile.Writer writer) throws IOException {
+        writer.writeInt(size);
+        writer.writeInt(bitsPerValue);
+        writer.writeLongArray(words);
+    }
+
+    /**
+     * Returns the value at the given index.
+     *
+     * @param index the index
+     * @return the value
+     */
+    public int get(int index) {
+        long bitPosition = ((long) index) * bitsPerValue;
+        int word = (int) (bitPosition >>> 6);
+        int offset = (int) (bitPosition & 63);
+        long value = words.get(word) >>> offset;
+        if (offset + bitsPerValue > 64) {
+            value |= words.get(word + 1) << (64 - offset);
+        }
+        return (int) (value & valueMask);
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bits per value.
+     *
+     * @return the number of bits per value
+     */
+    public int getBitsPerValue() {
+        return bitsPerValue;
+    }
+
+    /**
+     * Returns the number of bytes for the allocated arrays.
+     *
+     * @return the number of bytes for the allocated arrays
+     */
+    public long getAllocatedBytes() {
+        return ((long) words.capacity()) << 3;
+    }
+}
@@ -1,7 +1,15 @@
 package com.compomics.util.experiment.identification.protein_inference.fm_index;
 
+import java.io.IOException;
+import java.nio.LongBuffer;
+
 /**
- * Rank as used in the FM index.
+ * Rank as used in the FM index. The bits are stored in blocks of 512 bits,
+ * i.e. one cache line, holding a header and seven words of 64 bits. The
+ * header contains the number of ones before the block in its lower 32 bits
+ * and the cumulative numbers of ones of the first four words in its upper 32
+ * bits (7, 8, 8 and 9 bits), so that a rank query reads a single block and
+ * needs at most three popcounts.
  *
  * @author Dominik Kopczynski
  */
@@ -12,17 +20,13 @@ public class Rank {
      */
     public final int length;
     /**
-     * The bit field.
-     */
-    private final long[] bitfield;
-    /**
-     * The sums.
+     * The blocks, either on the heap or mapped from an index file.
      */
-    private final int[] sums;
+    private final LongBuffer blocks;
     /**
-     * The sums.
+     * The number of ones.
      */
-    private final byte[] sumsSecondLevel;
+    private final int ones;
     /**
      * The shift.
      */
@@ -31,6 +35,22 @@ public class Rank {
      * The mask.
      */
     private final int mask = 63;
+    /**
+     * The number of words of a block holding bits.
+     */
+    private static final int WORDS_PER_BLOCK = 7;
+    /**
+     * The number of bits of a block.
+     */
+    private static final int BITS_PER_BLOCK = WORDS_PER_BLOCK << 6;
+    /**
+     * Position of the cumulative counts in the header, by word.
+     */
+    private static final int[] HEADER_SHIFTS = new int[]{0, 32, 39, 47, 55};
+    /**
+     * Masks of the cumulative counts in the header, by word.
+     */
+    private static final int[] HEADER_MASKS = new int[]{0, 0x7F, 0xFF, 0xFF, 0x1FF};
 
     /**
      * Constructor.
@@ -41,35 +61,16 @@ public class Rank {
     public Rank(byte[] text, long[] aAlphabet) {
         length = text.length;
 
-        int field_len = (length >>> 6) + 1;
-        bitfield = new long[field_len];
-        sums = new int[(length >>> 8) + 1];
-        sums[0] = 0;
-        sumsSecondLevel = new byte[field_len];
-        sumsSecondLevel[0] = 0;
-
+        long[] bitfield = new long[(length >>> 6) + 1];
         for (int i = 0; i < length; ++i) {
-            int cell = i >>> shift;
-            int pos = i & mask;
-            if (pos == 0) {
-                bitfield[cell] = 0;
-            }
             long bit = (aAlphabet[text[i] >>> shift] >>> (text[i] & mask)) & 1L;
-            bitfield[cell] |= (bit << pos);
-
-            if (pos == 0 && i != 0) {
-                if ((i & 255) == 0) {
-                    sumsSecondLevel[cell] = 0;
-                } else {
-                    sumsSecondLevel[cell] = (byte) (sumsSecondLevel[cell - 1] + (byte) (Long.bitCount(bitfield[cell - 1])));
-                }
-            }
-            if (((i & 255) == 0) && i != 0) {
-                sums[i >>> 8] = sums[(i >>> 8) - 1] + (sumsSecondLevel[cell - 1] & 0xFF) + Long.bitCount(bitfield[cell - 1]);
-            }
+            bitfield[i >>> shift] |= (bit << (i & mask));
         }
+        long[] blockArray = createBlocks(bitfield, length);
+        blocks = LongBuffer.wrap(blockArray);
+        ones = countOnes(blockArray);
     }
-    
+
     /**
      * Constructor.
      *
@@ -79,27 +80,106 @@ public class Rank {
     public Rank(long[] originalBitfield, int length) {
         this.length = length;
 
-        int field_len = (length >>> 6) + 1;
-        bitfield = originalBitfield;
-        sums = new int[(length >>> 8) + 1];
-        sums[0] = 0;
-        sumsSecondLevel = new byte[field_len];
-        sumsSecondLevel[0] = 0;
+        long[] blockArray = createBlocks(originalBitfield, length);
+        blocks = LongBuffer.wrap(blockArray);
+        ones = countOnes(blockArray);
+    }
 
-        for (int i = 0; i < length; ++i) {
-            int cell = i >>> shift;
-            int pos = i & mask;
-            if (pos == 0 && i != 0) {
-                if ((i & 255) == 0) {
-                    sumsSecondLevel[cell] = 0;
-                } else {
-                    sumsSecondLevel[cell] = (byte) (sumsSecondLevel[cell - 1] + (byte) (Long.bitCount(bitfield[cell - 1])));
+    /**
+     * Constructor reading the rank from an index file. The blocks are not
+     * copied, i.e. they stay in the memory mapped file.
+     *
+     * @param reader the index file reader
+     */
+    Rank(FMIndexFile.Reader reader) {
+        length = reader.readInt();
+        ones = reader.readInt();
+        blocks = reader.readLongBuffer(FMIndexFile.BLOCK_ALIGNMENT);
+    }
+
+    /**
+     * Writes the rank to an index file. The blocks are aligned on cache
+     * lines.
+     *
+     * @param writer the index file writer
+     * @throws IOException thrown if writing fails
+     */
+    void write(FMIndexFile.Writer writer) throws IOException {
+        writer.writeInt(length);
+        writer.writeInt(ones);
+        writer.writeLongArray(blocks, FMIndexFile.BLOCK_ALIGNMENT);
+    }
+
+    /**
+     * Interleaves the given bitfield with the block headers. Bits after the
+     * given length are cleared.
+     *
+     * @param bitfield the bitfield
+     * @param length the number of bits
+     * @return the blocks
+     */
+    private static long[] createBlocks(long[] bitfield, int length) {
+        int numBlocks = bitfield.length / WORDS_PER_BLOCK + 1;
+        long[] blockArray = new long[numBlocks << 3];
+        long sum = 0;
+        for (int block = 0; block < numBlocks; ++block) {
+            int base = block << 3;
+            long header = sum;
+            int cumulative = 0;
+            for (int word = 0; word < WORDS_PER_BLOCK; ++word) {
+                int wordIndex = block * WORDS_PER_BLOCK + word;
+                long bits = 0;
+                if (wordIndex < (length >>> 6)) {
+                    bits = bitfield[wordIndex];
+                } else if (wordIndex == (length >>> 6) && (length & 63) != 0) {
+                    bits = bitfield[wordIndex] & ((1L << (length & 63)) - 1);
+                }
+                blockArray[base + 1 + word] = bits;
+                cumulative += Long.bitCount(bits);
+                if (word < 4) {
+                    header |= ((long) cumulative) << HEADER_SHIFTS[word + 1];
                 }
             }
-            if (((i & 255) == 0) && i != 0) {
-                sums[i >>> 8] = sums[(i >>> 8) - 1] + (sumsSecondLevel[cell - 1] & 0xFF) + Long.bitCount(bitfield[cell - 1]);
+            blockArray[base] = header;
+            sum += cumulative;
+        }
+        return blockArray;
+    }
+
+    /**
+     * Returns the number of ones of the blocks.
+     *
+     * @param blockArray the blocks
+     * @return the number of ones
+     */
+    private static int countOnes(long[] blockArray) {
+        int base = blockArray.length - 8;
+        int count = (int) blockArray[base];
+        for (int word = 0; word < WORDS_PER_BLOCK; ++word) {
+            count += Long.bitCount(blockArray[base + 1 + word]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of ones before the given word of a block.
+     *
+     * @param base the position of the block header
+     * @param word the word in the block
+     * @return the number of ones before the word
+     */
+    private int getOnesBefore(int base, int word) {
+        long header = blocks.get(base);
+        int count = (int) header;
+        if (word <= 4) {
+            count += (int) (header >>> HEADER_SHIFTS[word]) & HEADER_MASKS[word];
+        } else {
+            count += (int) (header >>> HEADER_SHIFTS[4]) + Long.bitCount(blocks.get(base + 5));
+            if (word == 6) {
+                count += Long.bitCount(blocks.get(base + 6));
             }
         }
+        return count;
     }
 
     /**
@@ -110,10 +190,7 @@ public class Rank {
      * @return the rank
      */
     public int getRank(int index, boolean zeros) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        long active_ones = bitfield[cell] << (mask - pos);
-        int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
+        int count_ones = getRankOne(index);
         return zeros ? index + 1 - count_ones : count_ones;
     }
 
@@ -125,10 +202,11 @@ public class Rank {
      */
     public final int getRankOne(int index) {
         final int cell = index >>> shift;
-        final int pos = index & mask;
-        final long active_ones = bitfield[cell] << (mask - pos);
-        final int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
-        return count_ones;
+        final int block = cell / WORDS_PER_BLOCK;
+        final int word = cell - block * WORDS_PER_BLOCK;
+        final int base = block << 3;
+        final long active_ones = blocks.get(base + 1 + word) << (mask - (index & mask));
+        return getOnesBefore(base, word) + Long.bitCount(active_ones);
     }
 
     /**
@@ -138,11 +216,57 @@ public class Rank {
      * @return the rank
      */
     public int getRankZero(int index) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        long active_ones = bitfield[cell] << (mask - pos);
-        int count_ones = (sumsSecondLevel[cell] & 0xFF) + sums[index >>> 8] + Long.bitCount(active_ones);
-        return index + 1 - count_ones;
+        return index + 1 - getRankOne(index);
+    }
+
+    /**
+     * Returns the position of the n-th one or zero.
+     *
+     * @param n the number of the one or zero, starting at 1
+     * @param zeros if true zeros are selected, ones otherwise
+     * @return the position of the n-th one or zero, -1 if the bit field does
+     * not contain n ones or zeros
+     */
+    public int select(int n, boolean zeros) {
+        if (n <= 0 || n > (zeros ? length - ones : ones)) {
+            return -1;
+        }
+
+        // find the last block with less than n ones or zeros before it
+        int low = 0;
+        int high = (blocks.limit() >>> 3) - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            int before = (int) blocks.get(middle << 3);
+            if (zeros) {
+                before = middle * BITS_PER_BLOCK - before;
+            }
+            if (before < n) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int base = low << 3;
+        int before = (int) blocks.get(base);
+        int remaining = n - (zeros ? low * BITS_PER_BLOCK - before : before);
+
+        // find the word and the bit in the word
+        int word = 0;
+        long bits = blocks.get(base + 1);
+        int count = zeros ? 64 - Long.bitCount(bits) : Long.bitCount(bits);
+        while (count < remaining) {
+            remaining -= count;
+            bits = blocks.get(base + 2 + word++);
+            count = zeros ? 64 - Long.bitCount(bits) : Long.bitCount(bits);
+        }
+        if (zeros) {
+            bits = ~bits;
+        }
+        for (int i = 1; i < remaining; ++i) {
+            bits &= bits - 1;
+        }
+        return (low * WORDS_PER_BLOCK + word) * 64 + Long.numberOfTrailingZeros(bits);
     }
 
     /**
@@ -152,9 +276,7 @@ public class Rank {
      * @return true if the value is equal to one
      */
     public boolean isOne(int index) {
-        int cell = index >>> shift;
-        int pos = index & mask;
-        return (((bitfield[cell] >>> pos) & 1L) == 1);
+        return isOneInt(index) == 1;
     }
 
     /**
@@ -165,8 +287,17 @@ public class Rank {
      */
     public int isOneInt(int index) {
         int cell = index >>> shift;
-        int pos = index & mask;
-        return (int)((bitfield[cell] >>> pos) & 1L);
+        int block = cell / WORDS_PER_BLOCK;
+        return (int) ((blocks.get((block << 3) + 1 + cell - block * WORDS_PER_BLOCK) >>> (index & mask)) & 1L);
+    }
+
+    /**
+     * Returns the number of ones.
+     *
+     * @return the number of ones
+     */
+    public int getNumberOfOnes() {
+        return ones;
     }
 
     /**
@@ -175,6 +306,6 @@ public class Rank {
      * @return the number of bytes for the allocated arrays
      */
     public int getAllocatedBytes() {
-        return (bitfield.length << 3) + (sums.length << 2) + sumsSecondLevel.length;
+        return blocks.capacity() << 3;
     }
 }
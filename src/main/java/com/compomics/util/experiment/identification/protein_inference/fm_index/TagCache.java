@@ -0,0 +1,250 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache for the intermediate results of tag to proteome mappings.
+ * The entries are spread over segments, each holding its share of the
+ * capacity in least recently used order under its own lock, so that mapping
+ * threads only contend when they hit the same segment.
+ *
+ * @author agent
+ */
+public class TagCache {
+
+    /**
+     * The default maximal number of entries.
+     */
+    public static final int DEFAULT_CAPACITY = 50000;
+    /**
+     * The number of segments, must be a power of two.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * The factor applied to the masses before rounding, corresponding to five
+     * decimals.
+     */
+    private static final double MASS_FACTOR = 100000.;
+    /**
+     * The segments of the cache.
+     */
+    private final Segment[] segments = new Segment[N_SEGMENTS];
+    /**
+     * The number of lookups finding an entry.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of lookups finding no entry.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of entries evicted.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximal number of entries
+     */
+    public TagCache(int capacity) {
+        int segmentCapacity = Math.max(1, capacity / N_SEGMENTS);
+        for (int i = 0; i < N_SEGMENTS; ++i) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Returns the cached matrix contents for the given index part, sequence
+     * and mass, null if not cached.
+     *
+     * @param indexPart the index part
+     * @param sequence the amino acid sequence of the tag
+     * @param mass the mass following the sequence
+     * @return the cached matrix contents, null if not cached
+     */
+    public ArrayList<MatrixContent> get(int indexPart, String sequence, double mass) {
+        Key key = new Key(indexPart, sequence, mass);
+        Segment segment = getSegment(key);
+        ArrayList<MatrixContent> cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Adds matrix contents to the cache if no entry is present for the given
+     * index part, sequence and mass.
+     *
+     * @param indexPart the index part
+     * @param sequence the amino acid sequence of the tag
+     * @param mass the mass following the sequence
+     * @param matrixContents the matrix contents
+     */
+    public void put(int indexPart, String sequence, double mass, ArrayList<MatrixContent> matrixContents) {
+        Key key = new Key(indexPart, sequence, mass);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            if (!segment.containsKey(key)) {
+                segment.put(key, matrixContents);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache. The counters are kept.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of lookups finding an entry.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups finding no entry.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to respect the capacity.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the segment of the given key.
+     *
+     * @param key the key
+     * @return the segment of the key
+     */
+    private Segment getSegment(Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (N_SEGMENTS - 1)];
+    }
+
+    /**
+     * Segment of the cache, a map in access order removing its least recently
+     * used entry when full.
+     */
+    private class Segment extends LinkedHashMap<Key, ArrayList<MatrixContent>> {
+
+        /**
+         * The maximal number of entries of the segment.
+         */
+        private final int capacity;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity the maximal number of entries of the segment
+         */
+        public Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ArrayList<MatrixContent>> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Key of a cache entry: the index part, the sequence and the mass rounded
+     * to five decimals.
+     */
+    private static class Key {
+
+        /**
+         * The index part.
+         */
+        private final int indexPart;
+        /**
+         * The amino acid sequence.
+         */
+        private final String sequence;
+        /**
+         * The rounded mass.
+         */
+        private final long mass;
+        /**
+         * The hash code.
+         */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param indexPart the index part
+         * @param sequence the amino acid sequence
+         * @param mass the mass
+         */
+        public Key(int indexPart, String sequence, double mass) {
+            this.indexPart = indexPart;
+            this.sequence = sequence;
+            this.mass = Math.round(mass * MASS_FACTOR);
+            this.hash = 31 * (31 * indexPart + sequence.hashCode()) + (int) (this.mass ^ (this.mass >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+            return mass == key.mass && indexPart == key.indexPart && sequence.equals(key.sequence);
+        }
+    }
+}
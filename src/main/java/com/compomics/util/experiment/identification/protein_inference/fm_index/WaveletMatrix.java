@@ -0,0 +1,316 @@
+package com.compomics.util.experiment.identification.protein_inference.fm_index;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+
+/**
+ * Wavelet matrix, a pointer free alternative to the wavelet tree. The
+ * characters of the alphabet get balanced codes and the text is stored as one
+ * bit field per code bit. At every level, the positions with a zero bit are
+ * moved before the ones with a one bit, so that a query follows the levels
+ * with one rank per level instead of following child nodes.
+ *
+ * @author agent
+ */
+public class WaveletMatrix extends OccurrenceTable {
+
+    /**
+     * The ranks of the levels.
+     */
+    private final Rank[] levels;
+    /**
+     * The number of zeros of the levels.
+     */
+    private final int[] zeros;
+    /**
+     * The code of every character, -1 if not in the alphabet.
+     */
+    private final int[] codes = new int[128];
+    /**
+     * The character of every code.
+     */
+    private final int[] characters;
+    /**
+     * The position of the first occurrence of every character after the last
+     * level.
+     */
+    private final int[] starts = new int[128];
+    /**
+     * Characters excluded from range queries in a 128 bitfield.
+     */
+    private final long[] alphabetExcluded = new long[2];
+    /**
+     * Text length.
+     */
+    private final int lenText;
+    /**
+     * Number of masses.
+     */
+    private final int numMasses;
+    /**
+     * The less table.
+     */
+    private final int[] less;
+
+    /**
+     * Constructor.
+     *
+     * @param text the text
+     * @param aAlphabet the alphabet
+     * @param waitingHandler the waiting handler
+     * @param numMasses number of masses plus modifications
+     * @param hasPTMatTerminus indicates how to handle / sign
+     */
+    public WaveletMatrix(byte[] text, long[] aAlphabet, WaitingHandler waitingHandler, int numMasses, boolean hasPTMatTerminus) {
+        this.numMasses = numMasses;
+        lenText = text.length;
+
+        int numCharacters = Long.bitCount(aAlphabet[0]) + Long.bitCount(aAlphabet[1]);
+        characters = new int[numCharacters];
+        int code = 0;
+        for (int i = 0; i < 128; ++i) {
+            if (((aAlphabet[i >>> 6] >>> (i & 63)) & 1L) == 1) {
+                characters[code] = i;
+                codes[i] = code++;
+            } else {
+                codes[i] = -1;
+            }
+        }
+        int numLevels = Math.max(1, 32 - Integer.numberOfLeadingZeros(numCharacters - 1));
+        levels = new Rank[numLevels];
+        zeros = new int[numLevels];
+
+        alphabetExcluded[0] = 1L << '$';
+        if (!hasPTMatTerminus) {
+            alphabetExcluded[0] |= 1L << '/';
+        }
+
+        int[] counts = new int[128];
+        byte[] current = new byte[lenText];
+        for (int i = 0; i < lenText; ++i) {
+            ++counts[text[i]];
+            current[i] = (byte) codes[text[i]];
+        }
+        less = new int[128];
+        int cumulativeSum = 0;
+        for (int i = 0; i < 128; ++i) {
+            less[i] = cumulativeSum;
+            cumulativeSum += counts[i];
+        }
+
+        byte[] next = new byte[lenText];
+        for (int level = 0; level < numLevels; ++level) {
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            int bitShift = numLevels - 1 - level;
+            long[] bitfield = new long[(lenText >>> 6) + 1];
+            int numZeros = 0;
+            for (int i = 0; i < lenText; ++i) {
+                long bit = (current[i] >>> bitShift) & 1L;
+                bitfield[i >>> 6] |= bit << (i & 63);
+                numZeros += 1 - (int) bit;
+            }
+            levels[level] = new Rank(bitfield, lenText);
+            zeros[level] = numZeros;
+
+            int zeroIndex = 0;
+            int oneIndex = numZeros;
+            for (int i = 0; i < lenText; ++i) {
+                if (((current[i] >>> bitShift) & 1) == 0) {
+                    next[zeroIndex++] = current[i];
+                } else {
+                    next[oneIndex++] = current[i];
+                }
+            }
+            byte[] swap = current;
+            current = next;
+            next = swap;
+        }
+
+        for (int i = 0; i < numCharacters; ++i) {
+            starts[characters[i]] = mapPosition(0, i);
+        }
+    }
+
+    /**
+     * Constructor reading the wavelet matrix from an index file.
+     *
+     * @param reader the index file reader
+     */
+    WaveletMatrix(FMIndexFile.Reader reader) {
+        numMasses = reader.readInt();
+        lenText = reader.readInt();
+        alphabetExcluded[0] = reader.readLong();
+        alphabetExcluded[1] = reader.readLong();
+        characters = reader.readIntArray();
+        zeros = reader.readIntArray();
+        less = reader.readIntArray();
+        levels = new Rank[zeros.length];
+        for (int level = 0; level < levels.length; ++level) {
+            levels[level] = new Rank(reader);
+        }
+        for (int i = 0; i < 128; ++i) {
+            codes[i] = -1;
+        }
+        for (int i = 0; i < characters.length; ++i) {
+            codes[characters[i]] = i;
+            starts[characters[i]] = mapPosition(0, i);
+        }
+    }
+
+    @Override
+    void write(FMIndexFile.Writer writer) throws IOException {
+        writer.writeInt(numMasses);
+        writer.writeInt(lenText);
+        writer.writeLong(alphabetExcluded[0]);
+        writer.writeLong(alphabetExcluded[1]);
+        writer.writeIntArray(characters);
+        writer.writeIntArray(zeros);
+        writer.writeIntArray(less);
+        for (Rank level : levels) {
+            level.write(writer);
+        }
+    }
+
+    /**
+     * Returns the number of ones before the given position of a level.
+     *
+     * @param level the level
+     * @param position the position
+     * @return the number of ones before the position
+     */
+    private int getOnesBefore(int level, int position) {
+        return position > 0 ? levels[level].getRankOne(position - 1) : 0;
+    }
+
+    /**
+     * Follows a position through all levels for the given code.
+     *
+     * @param position the position in the text
+     * @param code the code of the character
+     * @return the position after the last level
+     */
+    private int mapPosition(int position, int code) {
+        int numLevels = levels.length;
+        for (int level = 0; level < numLevels; ++level) {
+            int ones = getOnesBefore(level, position);
+            if (((code >>> (numLevels - 1 - level)) & 1) == 0) {
+                position -= ones;
+            } else {
+                position = zeros[level] + ones;
+            }
+        }
+        return position;
+    }
+
+    @Override
+    public int[] createLessTable() {
+        return less;
+    }
+
+    @Override
+    public int getRank(int index, int character) {
+        if (index < lenText) {
+            int code = codes[character];
+            if (index >= 0 && code >= 0) {
+                return mapPosition(index + 1, code) - starts[character];
+            }
+            return 0;
+        }
+        throw new ArrayIndexOutOfBoundsException();
+    }
+
+    @Override
+    public int[] getCharacterInfo(int index) {
+        if (index < lenText) {
+            int numLevels = levels.length;
+            int code = 0;
+            for (int level = 0; level < numLevels; ++level) {
+                Rank rank = levels[level];
+                int bit = rank.isOneInt(index);
+                code = (code << 1) | bit;
+                int ones = getOnesBefore(level, index);
+                index = bit == 0 ? index - ones : zeros[level] + ones;
+            }
+            int character = characters[code];
+            return new int[]{character, index - starts[character]};
+        }
+        throw new ArrayIndexOutOfBoundsException();
+    }
+
+    @Override
+    public int getAllocatedBytes() {
+        int bytes = 0;
+        for (Rank level : levels) {
+            bytes += level.getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int[][] rangeQuery(int leftIndex, int rightIndex) {
+        int[][] query = new int[numMasses + 1][];
+        query[numMasses] = new int[]{0};
+
+        if (leftIndex + 1 < rightIndex) {
+            rangeQuery(leftIndex, rightIndex, query);
+        } else {
+            rangeQueryOneValue(rightIndex, query);
+        }
+
+        return query;
+    }
+
+    @Override
+    public void rangeQuery(int leftIndex, int rightIndex, int[][] setCharacter) {
+        rangeQuery(0, 0, leftIndex + 1, rightIndex + 1, setCharacter);
+    }
+
+    /**
+     * Fills a list of character and new left/right index for the positions
+     * of a level having the given code prefix. The one bits are visited
+     * before the zero bits like the right children of the wavelet tree.
+     *
+     * @param level the level
+     * @param prefix the code prefix of the positions
+     * @param leftPosition first position, inclusive
+     * @param rightPosition last position, exclusive
+     * @param setCharacter list of counted characters
+     */
+    private void rangeQuery(int level, int prefix, int leftPosition, int rightPosition, int[][] setCharacter) {
+        if (level == levels.length) {
+            int character = characters[prefix];
+            if (((alphabetExcluded[character >>> 6] >>> (character & 63)) & 1L) == 0) {
+                int start = starts[character];
+                setCharacter[setCharacter[numMasses][0]++] = new int[]{character, leftPosition - start, rightPosition - start, character, -1};
+            }
+            return;
+        }
+        int leftOnes = getOnesBefore(level, leftPosition);
+        int rightOnes = getOnesBefore(level, rightPosition);
+        if (rightOnes > leftOnes) {
+            rangeQuery(level + 1, (prefix << 1) | 1, zeros[level] + leftOnes, zeros[level] + rightOnes, setCharacter);
+        }
+        if (rightPosition - rightOnes > leftPosition - leftOnes) {
+            rangeQuery(level + 1, prefix << 1, leftPosition - leftOnes, rightPosition - rightOnes, setCharacter);
+        }
+    }
+
+    @Override
+    public void rangeQueryOneValue(int index, int[][] setCharacter) {
+        int[] characterInfo = getCharacterInfo(index);
+        int character = characterInfo[0];
+        setCharacter[setCharacter[numMasses][0]++] = new int[]{character, characterInfo[1], characterInfo[1] + 1, character, -1};
+    }
+
+    @Override
+    public int[] singleRangeQuery(int leftIndex, int rightIndex, int character) {
+        int code = codes[character];
+        if (code < 0) {
+            return new int[]{0, 0};
+        }
+        int start = starts[character];
+        return new int[]{mapPosition(leftIndex + 1, code) - start, mapPosition(rightIndex + 1, code) - start};
+    }
+}
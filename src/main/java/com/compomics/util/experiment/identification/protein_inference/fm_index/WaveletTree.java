@@ -1,6 +1,7 @@
 package com.compomics.util.experiment.identification.protein_inference.fm_index;
 
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -9,7 +10,7 @@ import java.util.Collections;
  *
  * @author Dominik Kopczynski
  */
-public class WaveletTree {
+public class WaveletTree extends OccurrenceTable {
 
     /**
      * Instance of a rank.
@@ -214,6 +215,63 @@ public class WaveletTree {
     
     
 
+    /**
+     * Constructor reading the wavelet tree from an index file.
+     *
+     * @param reader the index file reader
+     */
+    WaveletTree(FMIndexFile.Reader reader) {
+        numMasses = reader.readInt();
+        lenText = reader.readInt();
+        firstChar = reader.readInt();
+        lastChar = reader.readInt();
+        alphabetDirections[0] = reader.readLong();
+        alphabetDirections[1] = reader.readLong();
+        continueLeftRangeQuery = reader.readBoolean();
+        continueRightRangeQuery = reader.readBoolean();
+        leftRightMask = reader.readInt();
+        rank = new Rank(reader);
+        if (reader.readBoolean()) {
+            less = reader.readIntArray();
+        }
+        if ((leftRightMask & 4) != 0) {
+            leftChild = new WaveletTree(reader);
+        }
+        if ((leftRightMask & 2) != 0) {
+            rightChild = new WaveletTree(reader);
+        }
+    }
+
+    /**
+     * Writes the wavelet tree recursively to an index file.
+     *
+     * @param writer the index file writer
+     * @throws IOException thrown if writing fails
+     */
+    @Override
+    void write(FMIndexFile.Writer writer) throws IOException {
+        writer.writeInt(numMasses);
+        writer.writeInt(lenText);
+        writer.writeInt(firstChar);
+        writer.writeInt(lastChar);
+        writer.writeLong(alphabetDirections[0]);
+        writer.writeLong(alphabetDirections[1]);
+        writer.writeBoolean(continueLeftRangeQuery);
+        writer.writeBoolean(continueRightRangeQuery);
+        writer.writeInt(leftRightMask);
+        rank.write(writer);
+        writer.writeBoolean(less != null);
+        if (less != null) {
+            writer.writeIntArray(less);
+        }
+        if (leftChild != null) {
+            leftChild.write(writer);
+        }
+        if (rightChild != null) {
+            rightChild.write(writer);
+        }
+    }
+
     /**
      * Create wavelet tree huffman.
      *
@@ -321,6 +379,7 @@ public class WaveletTree {
      *
      * @return the less table
      */
+    @Override
     public int[] createLessTable() {
         return less;
     }
@@ -333,6 +392,7 @@ public class WaveletTree {
      * @param character the character
      * @return the rank
      */
+    @Override
     public int getRank(int index, int character) {
         if (index < lenText) {
             return getRankRecursive(index, character);
@@ -371,6 +431,7 @@ public class WaveletTree {
      * @param index the index
      * @return the character and rank
      */
+    @Override
     public int[] getCharacterInfo(int index) {
         if (index < lenText) {
             boolean left = !rank.isOne(index);
@@ -400,6 +461,7 @@ public class WaveletTree {
      *
      * @return number of allocated bytes
      */
+    @Override
     public int getAllocatedBytes() {
         int bytes = rank.getAllocatedBytes();
         if (leftChild != null) {
@@ -418,6 +480,7 @@ public class WaveletTree {
      * @param rightIndex right index boundary
      * @return list of counted characters
      */
+    @Override
     public int[][] rangeQuery(int leftIndex, int rightIndex) {
         int[][] query = new int[numMasses + 1][];
         query[numMasses] = new int[]{0};
@@ -435,6 +498,7 @@ public class WaveletTree {
      * @param rightIndex right index boundary
      * @param setCharacter list of counted characters
      */
+    @Override
     public void rangeQuery(int leftIndex, int rightIndex, int[][] setCharacter) {
         int newLeftIndex = (leftIndex >= 0) ? rank.getRankOne(leftIndex) : 0;
         int newRightIndex = (rightIndex >= 0) ? rank.getRankOne(rightIndex) : 0;
@@ -465,6 +529,7 @@ public class WaveletTree {
      * @param index index boundary
      * @param setCharacter list of counted characters
      */
+    @Override
     public void rangeQueryOneValue(int index, int[][] setCharacter) {
         int switchOption = rank.isOneInt(index);
         switchOption += leftRightMask & (4 >> switchOption);
@@ -505,6 +570,7 @@ public class WaveletTree {
      * @return a list of character and new left/right index for a given range
      * recursively
      */
+    @Override
     public int[] singleRangeQuery(int leftIndex, int rightIndex, int character) {
         boolean left = ((alphabetDirections[character >>> shift] >>> (character & mask)) & 1) == 1;
 
@@ -8,12 +8,14 @@ import com.compomics.util.experiment.biology.AminoAcidPattern;
 import com.compomics.util.experiment.biology.AminoAcidSequence;
 import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceCache;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory.ProteinIterator;
 import com.compomics.util.experiment.identification.TagFactory;
 import com.compomics.util.experiment.identification.amino_acid_tags.Tag;
 import com.compomics.util.experiment.identification.amino_acid_tags.TagComponent;
 import com.compomics.util.experiment.identification.amino_acid_tags.matchers.TagMatcher;
+import com.compomics.util.experiment.identification.protein_inference.BatchPeptideMapping;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapper;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.math.BasicMathFunctions;
@@ -26,8 +28,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -41,7 +43,7 @@ import java.util.concurrent.Executors;
  *
  * @author Marc Vaudel
  */
-public class ProteinTree implements PeptideMapper {
+public class ProteinTree implements PeptideMapper, BatchPeptideMapping.PeptidePrefetcher {
 
     /**
      * The memory allocation in MB.
@@ -57,17 +59,15 @@ public class ProteinTree implements PeptideMapper {
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
     /**
-     * The tree containing the accessions indexed by sequence tags.
+     * The tree containing the accessions indexed by sequence tags while
+     * creating the tree.
      */
     private HashMap<String, Node> tree = new HashMap<String, Node>();
     /**
-     * List of the nodes in tree.
+     * The nodes loaded from the database indexed by tag, bounded in
+     * accession*node by the memory allocation.
      */
-    private ArrayDeque<String> tagsInTree = new ArrayDeque<String>();
-    /**
-     * The size of the tree in memory in accession*node.
-     */
-    private long treeSize = 0;
+    private SequenceCache<Node> nodeCache;
     /**
      * Indicates whether a debug file with speed metrics shall be created.
      */
@@ -95,11 +95,7 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Cache of the last queried peptides.
      */
-    private HashMap<String, ArrayList<PeptideProteinMapping>> lastQueriedPeptidesCache;
-    /**
-     * Peptide sequences in cache.
-     */
-    private ArrayDeque<String> lastQueriedPeptidesCacheContent = new ArrayDeque<String>(cacheSize);
+    private SequenceCache<ArrayList<PeptideProteinMapping>> lastQueriedPeptidesCache;
     /**
      * Time in ms after which a query is considered as slow.
      */
@@ -107,11 +103,7 @@ public class ProteinTree implements PeptideMapper {
     /**
      * Cache of the last queried peptides where the query took long.
      */
-    private HashMap<String, ArrayList<PeptideProteinMapping>> lastSlowQueriedPeptidesCache;
-    /**
-     * Peptide sequences in slow cache.
-     */
-    private ArrayDeque<String> lastSlowQueriedPeptidesCacheContent = new ArrayDeque<String>(cacheSize);
+    private SequenceCache<ArrayList<PeptideProteinMapping>> lastSlowQueriedPeptidesCache;
     /**
      * The version of the protein tree.
      */
@@ -147,8 +139,9 @@ public class ProteinTree implements PeptideMapper {
 
         this.memoryAllocation = memoryAllocation;
         this.cacheSize = cacheSize;
-        lastSlowQueriedPeptidesCache = new HashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
-        lastQueriedPeptidesCache = new HashMap<String, ArrayList<PeptideProteinMapping>>(cacheSize);
+        nodeCache = new SequenceCache<Node>(Integer.MAX_VALUE, memoryAllocation * cacheScale);
+        lastSlowQueriedPeptidesCache = new SequenceCache<ArrayList<PeptideProteinMapping>>(cacheSize, 0);
+        lastQueriedPeptidesCache = new SequenceCache<ArrayList<PeptideProteinMapping>>(cacheSize, 0);
 
         if (debugSpeed) {
             try {
@@ -175,6 +168,7 @@ public class ProteinTree implements PeptideMapper {
      */
     public void setMemoryAllocation(int memoryAllocation) {
         this.memoryAllocation = memoryAllocation;
+        nodeCache.setBounds(Integer.MAX_VALUE, memoryAllocation * cacheScale);
     }
 
     /**
@@ -487,9 +481,9 @@ public class ProteinTree implements PeptideMapper {
             }
         }
 
-        tagsInTree.addAll(tree.keySet());
-        for (Node node : tree.values()) {
-            treeSize += node.getSize();
+        for (String tag : tree.keySet()) {
+            Node node = tree.get(tag);
+            nodeCache.put(tag, node, node.getSize());
         }
 
         if (waitingHandler != null && waitingHandler.isRunCanceled()) {
@@ -1072,22 +1066,12 @@ public class ProteinTree implements PeptideMapper {
      * @param mapping the protein mapping
      * @param queryTime the mapping time
      */
-    private synchronized void addToCache(String peptideSequence, ArrayList<PeptideProteinMapping> mapping, long queryTime) {
+    private void addToCache(String peptideSequence, ArrayList<PeptideProteinMapping> mapping, long queryTime) {
 
         if (queryTime <= queryTimeThreshold) {
-            lastQueriedPeptidesCache.put(peptideSequence, mapping);
-            lastQueriedPeptidesCacheContent.add(peptideSequence);
-            if (lastQueriedPeptidesCacheContent.size() > cacheSize) {
-                String key = lastQueriedPeptidesCacheContent.pollLast();
-                lastQueriedPeptidesCache.remove(key);
-            }
+            lastQueriedPeptidesCache.put(peptideSequence, mapping, 0);
         } else {
-            lastSlowQueriedPeptidesCache.put(peptideSequence, mapping);
-            lastSlowQueriedPeptidesCacheContent.add(peptideSequence);
-            if (lastSlowQueriedPeptidesCacheContent.size() > cacheSize) {
-                String key = lastSlowQueriedPeptidesCacheContent.pollLast();
-                lastSlowQueriedPeptidesCache.remove(key);
-            }
+            lastSlowQueriedPeptidesCache.put(peptideSequence, mapping, 0);
         }
     }
 
@@ -1314,21 +1298,25 @@ public class ProteinTree implements PeptideMapper {
      */
     private Node getNode(String tag) throws SQLException, ClassNotFoundException, IOException, InterruptedException {
 
-        Node result = tree.get(tag);
+        Node result = nodeCache.get(tag);
 
         if (result == null) {
-            result = getNodeSynchronized(tag);
+            // threads missing the same node concurrently load it concurrently, the last one loaded stays in cache
+            result = componentsFactory.getNode(tag);
+            if (result != null) {
+                nodeCache.put(tag, result, result.getSize());
+            }
         }
 
         return result;
     }
 
     /**
-     * Returns a node related to a tag and updates the cache. Null if not found.
+     * Loads in cache the nodes of all the initial tags needed to map the given
+     * peptides, querying the database once for all nodes not in cache.
      *
-     * @param tag the tag of interest
-     *
-     * @return the corresponding node
+     * @param peptideSequences the peptide sequences
+     * @param sequenceMatchingPreferences the sequence matching preferences
      *
      * @throws IOException exception thrown whenever an error occurs while
      * reading or writing a file.
@@ -1339,32 +1327,59 @@ public class ProteinTree implements PeptideMapper {
      * @throws SQLException if an SQLException exception thrown whenever a
      * problem occurred while interacting with the tree database.
      */
-    private synchronized Node getNodeSynchronized(String tag) throws SQLException, ClassNotFoundException, IOException, InterruptedException {
-
-        Node result = tree.get(tag);
-
-        if (result == null) {
+    public void prefetchNodes(Collection<String> peptideSequences, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws SQLException, ClassNotFoundException, IOException, InterruptedException {
 
-            result = componentsFactory.getNode(tag);
-
-            if (result != null) {
-
-                long capacity = memoryAllocation * cacheScale;
+        int initialTagSize = componentsFactory.getInitialSize();
+        HashSet<String> missingTags = new HashSet<String>();
 
-                while (treeSize > capacity && !tagsInTree.isEmpty()) {
-                    String tempTag = tagsInTree.pollLast();
-                    Node tempNode = tree.get(tempTag);
-                    treeSize -= tempNode.getSize();
-                    tree.remove(tempTag);
+        for (String peptideSequence : peptideSequences) {
+            if (peptideSequence.length() >= initialTagSize) {
+                addMissingInitialTags(peptideSequence, sequenceMatchingPreferences, missingTags);
+                if (sequenceFactory.isDefaultReversed()) {
+                    addMissingInitialTags(SequenceFactory.reverseSequence(peptideSequence), sequenceMatchingPreferences, missingTags);
                 }
+            }
+        }
 
-                tree.put(tag, result);
-                treeSize += result.getSize();
-                tagsInTree.addFirst(tag);
+        if (!missingTags.isEmpty()) {
+            HashMap<String, Node> nodes = componentsFactory.getNodes(missingTags);
+            for (String tag : nodes.keySet()) {
+                Node node = nodes.get(tag);
+                nodeCache.put(tag, node, node.getSize());
             }
         }
+    }
 
-        return result;
+    /**
+     * Adds the initial tags of the given peptide which are not in cache to the
+     * given set.
+     *
+     * @param peptideSequence the peptide sequence
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param missingTags the set of missing tags
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading or writing a file.
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing an object.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the tree.
+     * @throws SQLException if an SQLException exception thrown whenever a
+     * problem occurred while interacting with the tree database.
+     */
+    private void addMissingInitialTags(String peptideSequence, SequenceMatchingPreferences sequenceMatchingPreferences, HashSet<String> missingTags)
+            throws SQLException, ClassNotFoundException, IOException, InterruptedException {
+
+        Double limitX = null;
+        if (sequenceMatchingPreferences.hasLimitX()) {
+            limitX = sequenceMatchingPreferences.getLimitX() * peptideSequence.length() / componentsFactory.getInitialSize();
+        }
+        for (String tag : getInitialTags(new AminoAcidSequence(peptideSequence), sequenceMatchingPreferences, limitX)) {
+            if (!missingTags.contains(tag) && nodeCache.get(tag) == null) {
+                missingTags.add(tag);
+            }
+        }
     }
 
     @Override
@@ -1406,6 +1421,13 @@ public class ProteinTree implements PeptideMapper {
      */
     public void setCacheSize(int cacheSize) {
         this.cacheSize = cacheSize;
+        lastQueriedPeptidesCache.setBounds(cacheSize, 0);
+        lastSlowQueriedPeptidesCache.setBounds(cacheSize, 0);
+    }
+
+    @Override
+    public void prefetch(ArrayList<String> peptideSequences, SequenceMatchingPreferences sequenceMatchingPreferences) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+        prefetchNodes(peptideSequences, sequenceMatchingPreferences);
     }
 
     /**
@@ -1413,11 +1435,9 @@ public class ProteinTree implements PeptideMapper {
      */
     public void emptyCache() {
         tree.clear();
-        tagsInTree.clear();
+        nodeCache.clear();
         lastQueriedPeptidesCache.clear();
-        lastQueriedPeptidesCacheContent.clear();
         lastSlowQueriedPeptidesCache.clear();
-        lastSlowQueriedPeptidesCacheContent.clear();
         proteinLengthsCache.clear();
     }
 
@@ -1427,20 +1447,11 @@ public class ProteinTree implements PeptideMapper {
      *
      * @param share the share of the cache to remove. 0.5 means 50%
      */
-    public synchronized void reduceNodeCacheSize(double share) {
-        double limit = tree.size();
-        if (limit > 100) {
-            limit = share * limit;
-        }
-        for (int i = 0; i < limit; i++) {
-            String tempTag = tagsInTree.pollLast();
-            Node tempNode = tree.get(tempTag);
-            if (tempNode == null) {
-                // another thread already reduced the cache size
-                break;
-            }
-            treeSize -= tempNode.getSize();
-            tree.remove(tempTag);
+    public void reduceNodeCacheSize(double share) {
+        if (nodeCache.size() > 100) {
+            nodeCache.evict(share);
+        } else {
+            nodeCache.clear();
         }
     }
 
@@ -1450,7 +1461,7 @@ public class ProteinTree implements PeptideMapper {
      * @return the number of nodes currently loaded in cache
      */
     public int getNodesInCache() {
-        return tree.size();
+        return nodeCache.size();
     }
 
     /**
@@ -11,6 +11,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -255,6 +256,40 @@ public class ProteinTreeComponentsFactory {
         return result;
     }
 
+    /**
+     * Retrieves the nodes of the given tags in a single query. Tags without
+     * node are not in the returned map.
+     *
+     * @param tags the tags of interest
+     * @return the nodes indexed by tag
+     *
+     * @throws IOException if an IOException occurs
+     * @throws ClassNotFoundException if a ClassNotFoundException occurs
+     * @throws InterruptedException if an InterruptedException occurs
+     * @throws SQLException if an SQLException occurs
+     */
+    public HashMap<String, Node> getNodes(Collection<String> tags) throws SQLException, ClassNotFoundException, IOException, InterruptedException {
+        ArrayList<String> tagsToQuery = new ArrayList<String>(tags.size());
+        for (String tag : tags) {
+            if (tagsInTree == null || tagsInTree.contains(tag)) {
+                tagsToQuery.add(tag);
+            }
+        }
+        HashMap<String, Object> objects = objectsDB.retrieveObjects(nodeTable, tagsToQuery);
+        HashMap<String, Node> result = new HashMap<String, Node>(objects.size());
+        for (String tag : objects.keySet()) {
+            result.put(tag, (Node) objects.get(tag));
+        }
+        if (tagsInTree != null && result.size() < tagsToQuery.size()) {
+            for (String tag : tagsToQuery) {
+                if (!result.containsKey(tag)) {
+                    throw new IllegalArgumentException(tag + " not found in database.");
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Loads nodes in the cache.
      *
@@ -0,0 +1,565 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Table of the accessions of a FASTA file with the index of their header in
+ * the file and their decoy flag. The accessions are sorted and stored one byte
+ * per character in a single array, the indexes in a long array and the decoy
+ * flags in a bit set, so that an accession is found by binary search without
+ * any object per protein. The table can be written to a binary file and
+ * mapped from it, in which case it does not use the heap.
+ *
+ * @author agent
+ */
+public class AccessionTable {
+
+    /**
+     * The magic number at the start of an accession table file.
+     */
+    private static final int MAGIC = 0x43554941;
+    /**
+     * The version of the file format, to increment when changing it.
+     */
+    public static final int FORMAT_VERSION = 1;
+    /**
+     * The length of the header of an accession table file: magic number,
+     * version, last modification of the FASTA file, number of accessions and
+     * number of accession bytes.
+     */
+    private static final int HEADER_LENGTH = 24;
+    /**
+     * The number of accessions.
+     */
+    private final int size;
+    /**
+     * The index of the header of every accession in the FASTA file.
+     */
+    private final LongBuffer indexes;
+    /**
+     * The decoy flags as bit set.
+     */
+    private final LongBuffer decoys;
+    /**
+     * The start of every accession in the accession bytes, followed by the
+     * total number of bytes.
+     */
+    private final IntBuffer starts;
+    /**
+     * The accessions, one byte per character.
+     */
+    private final ByteBuffer accessions;
+
+    /**
+     * Constructor.
+     *
+     * @param size the number of accessions
+     * @param indexes the index of the header of every accession
+     * @param decoys the decoy flags as bit set
+     * @param starts the start of every accession in the accession bytes
+     * @param accessions the accession bytes
+     */
+    private AccessionTable(int size, LongBuffer indexes, LongBuffer decoys, IntBuffer starts, ByteBuffer accessions) {
+        this.size = size;
+        this.indexes = indexes;
+        this.decoys = decoys;
+        this.starts = starts;
+        this.accessions = accessions;
+    }
+
+    /**
+     * Returns the number of accessions.
+     *
+     * @return the number of accessions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the rank of the given accession in the table, -1 if not found.
+     *
+     * @param accession the accession
+     *
+     * @return the rank of the accession
+     */
+    public int getRank(String accession) {
+        byte[] key = encode(accession);
+        if (key == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(key, middle);
+            if (comparison > 0) {
+                low = middle + 1;
+            } else if (comparison < 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the header of the given accession in the FASTA
+     * file, -1 if not found.
+     *
+     * @param accession the accession
+     *
+     * @return the index of the accession
+     */
+    public long getIndex(String accession) {
+        int rank = getRank(accession);
+        return rank == -1 ? -1 : indexes.get(rank);
+    }
+
+    /**
+     * Indicates whether the given accession is a decoy, false if not found.
+     *
+     * @param accession the accession
+     *
+     * @return true if the accession is a decoy
+     */
+    public boolean isDecoy(String accession) {
+        int rank = getRank(accession);
+        return rank != -1 && isDecoy(rank);
+    }
+
+    /**
+     * Returns the accession at the given rank.
+     *
+     * @param rank the rank in the table
+     *
+     * @return the accession at the given rank
+     */
+    public String getAccession(int rank) {
+        int start = starts.get(rank);
+        char[] accession = new char[starts.get(rank + 1) - start];
+        for (int i = 0; i < accession.length; ++i) {
+            accession[i] = (char) (accessions.get(start + i) & 0xFF);
+        }
+        return new String(accession);
+    }
+
+    /**
+     * Returns the index of the header of the accession at the given rank.
+     *
+     * @param rank the rank in the table
+     *
+     * @return the index of the accession at the given rank
+     */
+    public long getIndex(int rank) {
+        return indexes.get(rank);
+    }
+
+    /**
+     * Indicates whether the accession at the given rank is a decoy.
+     *
+     * @param rank the rank in the table
+     *
+     * @return true if the accession at the given rank is a decoy
+     */
+    public boolean isDecoy(int rank) {
+        return (decoys.get(rank >>> 6) & (1L << (rank & 63))) != 0;
+    }
+
+    /**
+     * Returns a read only view of the accessions in the table, in table order.
+     *
+     * @return the accessions in the table
+     */
+    public Set<String> getAccessions() {
+        return new AbstractSet<String>() {
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && getRank((String) o) != -1;
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+
+                    private int rank = 0;
+
+                    public boolean hasNext() {
+                        return rank < size;
+                    }
+
+                    public String next() {
+                        if (rank >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        return getAccession(rank++);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException("The accession table is read only.");
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Compares the given key to the accession at the given rank in unsigned
+     * byte order.
+     *
+     * @param key the encoded key
+     * @param rank the rank in the table
+     *
+     * @return a negative value, zero or a positive value if the key is smaller,
+     * equal or greater than the accession
+     */
+    private int compare(byte[] key, int rank) {
+        int start = starts.get(rank);
+        int length = starts.get(rank + 1) - start;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; ++i) {
+            int difference = (key[i] & 0xFF) - (accessions.get(start + i) & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return key.length - length;
+    }
+
+    /**
+     * Encodes an accession one byte per character as read from the FASTA
+     * file.
+     *
+     * @param accession the accession
+     *
+     * @return the encoded accession, null if it contains characters which
+     * cannot be found in the table
+     */
+    private static byte[] encode(String accession) {
+        byte[] result = new byte[accession.length()];
+        for (int i = 0; i < result.length; ++i) {
+            char c = accession.charAt(i);
+            if (c > 0xFF) {
+                return null;
+            }
+            result[i] = (byte) c;
+        }
+        return result;
+    }
+
+    /**
+     * Compares two encoded accessions in unsigned byte order.
+     *
+     * @param a the first accession
+     * @param b the second accession
+     *
+     * @return a negative value, zero or a positive value if the first
+     * accession is smaller, equal or greater than the second
+     */
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Writes the table to the given file.
+     *
+     * @param file the destination file
+     * @param lastModified the last modification of the indexed FASTA file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void write(File file, long lastModified) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeLong(lastModified);
+            dos.writeInt(size);
+            dos.writeInt(starts.get(size));
+            for (int i = 0; i < indexes.capacity(); ++i) {
+                dos.writeLong(indexes.get(i));
+            }
+            for (int i = 0; i < decoys.capacity(); ++i) {
+                dos.writeLong(decoys.get(i));
+            }
+            for (int i = 0; i < starts.capacity(); ++i) {
+                dos.writeInt(starts.get(i));
+            }
+            for (int i = 0; i < accessions.capacity(); ++i) {
+                dos.write(accessions.get(i));
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Maps an accession table from the given file. The table is read from the
+     * file by the operating system when needed.
+     *
+     * @param file the accession table file
+     * @param lastModified the last modification of the indexed FASTA file
+     *
+     * @return the accession table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file, or if the file is of another version or does not
+     * match the FASTA file
+     */
+    public static AccessionTable map(File file, long lastModified) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not an accession table: " + file.getName() + ".");
+            }
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Accession table version " + version + " found where " + FORMAT_VERSION + " is expected.");
+            }
+            if (header.getLong() != lastModified) {
+                throw new IOException("The accession table does not match the FASTA file.");
+            }
+            int size = header.getInt();
+            int nBytes = header.getInt();
+            int nDecoyWords = (size + 63) >>> 6;
+            long position = HEADER_LENGTH;
+            LongBuffer indexes = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * size).asLongBuffer();
+            position += 8L * size;
+            LongBuffer decoys = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * nDecoyWords).asLongBuffer();
+            position += 8L * nDecoyWords;
+            IntBuffer starts = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (size + 1)).asIntBuffer();
+            position += 4L * (size + 1);
+            if (position + nBytes != channel.size()) {
+                throw new IOException("Accession table truncated: " + file.getName() + ".");
+            }
+            ByteBuffer accessions = channel.map(FileChannel.MapMode.READ_ONLY, position, nBytes);
+            // the mapping remains valid after closing the file
+            return new AccessionTable(size, indexes, decoys, starts, accessions);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Builder collecting the accessions of a FASTA file in file order. The
+     * accessions are encoded as soon as they are added.
+     */
+    public static class Builder {
+
+        /**
+         * The encoded accessions in file order.
+         */
+        private byte[][] accessions = new byte[1024][];
+        /**
+         * The indexes in file order.
+         */
+        private long[] indexes = new long[1024];
+        /**
+         * The decoy flags in file order.
+         */
+        private final BitSet decoys = new BitSet();
+        /**
+         * The number of accessions added.
+         */
+        private int size = 0;
+        /**
+         * The number of accession bytes added.
+         */
+        private long nBytes = 0;
+
+        /**
+         * Constructor.
+         */
+        public Builder() {
+
+        }
+
+        /**
+         * Adds an accession.
+         *
+         * @param accession the accession
+         * @param index the index of the header of the protein in the FASTA
+         * file
+         * @param decoy true if the accession is a decoy
+         *
+         * @throws IllegalArgumentException if the accession contains
+         * characters which cannot be stored on one byte
+         */
+        public void add(String accession, long index, boolean decoy) {
+            byte[] encoded = encode(accession);
+            if (encoded == null) {
+                throw new IllegalArgumentException("Accession number \'" + accession + "\' contains characters which cannot be indexed.\nPlease check your FASTA file.");
+            }
+            ensureCapacity(size + 1);
+            accessions[size] = encoded;
+            indexes[size] = index;
+            if (decoy) {
+                decoys.set(size);
+            }
+            nBytes += encoded.length;
+            ++size;
+        }
+
+        /**
+         * Appends the accessions of another builder, typically filled with a
+         * following part of the FASTA file.
+         *
+         * @param other the other builder
+         * @param indexShift the value to add to the indexes of the other
+         * builder
+         */
+        public void addAll(Builder other, long indexShift) {
+            ensureCapacity(size + other.size);
+            System.arraycopy(other.accessions, 0, accessions, size, other.size);
+            for (int i = 0; i < other.size; ++i) {
+                indexes[size + i] = other.indexes[i] + indexShift;
+            }
+            for (int i = other.decoys.nextSetBit(0); i >= 0; i = other.decoys.nextSetBit(i + 1)) {
+                decoys.set(size + i);
+            }
+            size += other.size;
+            nBytes += other.nBytes;
+        }
+
+        /**
+         * Flags the accession added at the given position as decoy.
+         *
+         * @param i the position of the accession in the order of addition
+         */
+        public void setDecoy(int i) {
+            decoys.set(i);
+        }
+
+        /**
+         * Makes sure that the given number of accessions can be stored.
+         *
+         * @param capacity the number of accessions to store
+         */
+        private void ensureCapacity(int capacity) {
+            if (capacity > accessions.length) {
+                int newCapacity = Math.max(2 * accessions.length, capacity);
+                accessions = Arrays.copyOf(accessions, newCapacity);
+                indexes = Arrays.copyOf(indexes, newCapacity);
+            }
+        }
+
+        /**
+         * Returns the number of accessions added.
+         *
+         * @return the number of accessions added
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sorts the accessions and builds the table on the heap.
+         *
+         * @return the accession table
+         *
+         * @throws IllegalArgumentException if an accession was added twice
+         */
+        public AccessionTable build() {
+            if (nBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many accession characters to index: " + nBytes + ".");
+            }
+            int[] order = new int[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            sort(order, new int[size], 0, size);
+            long[] sortedIndexes = new long[size];
+            long[] decoyBits = new long[(size + 63) >>> 6];
+            int[] accessionStarts = new int[size + 1];
+            byte[] accessionBytes = new byte[(int) nBytes];
+            int start = 0;
+            for (int rank = 0; rank < size; ++rank) {
+                int i = order[rank];
+                byte[] accession = accessions[i];
+                if (rank > 0 && compare(accessions[order[rank - 1]], accession) == 0) {
+                    throw new IllegalArgumentException("Non unique accession number found \'" + new String(accession, Charset.forName("ISO-8859-1")) + "\'!\nPlease check your FASTA file.");
+                }
+                sortedIndexes[rank] = indexes[i];
+                if (decoys.get(i)) {
+                    decoyBits[rank >>> 6] |= 1L << (rank & 63);
+                }
+                accessionStarts[rank] = start;
+                System.arraycopy(accession, 0, accessionBytes, start, accession.length);
+                start += accession.length;
+            }
+            accessionStarts[size] = start;
+            return new AccessionTable(size, LongBuffer.wrap(sortedIndexes), LongBuffer.wrap(decoyBits), IntBuffer.wrap(accessionStarts), ByteBuffer.wrap(accessionBytes));
+        }
+
+        /**
+         * Sorts the given range of the order by accession using a merge sort.
+         *
+         * @param order the order of the accessions
+         * @param buffer a buffer of the size of the order
+         * @param from the start of the range, inclusive
+         * @param to the end of the range, exclusive
+         */
+        private void sort(int[] order, int[] buffer, int from, int to) {
+            if (to - from < 16) {
+                for (int i = from + 1; i < to; ++i) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while (j >= from && compare(accessions[order[j]], accessions[value]) > 0) {
+                        order[j + 1] = order[j];
+                        --j;
+                    }
+                    order[j + 1] = value;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sort(order, buffer, from, middle);
+            sort(order, buffer, middle, to);
+            if (compare(accessions[order[middle - 1]], accessions[order[middle]]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int i = from, j = middle;
+            for (int k = from; k < to; ++k) {
+                if (j >= to || i < middle && compare(accessions[buffer[i]], accessions[buffer[j]]) <= 0) {
+                    order[k] = buffer[i++];
+                } else {
+                    order[k] = buffer[j++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
+import com.compomics.util.protein.Header;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the target proteins whose header is in a range of a FASTA file
+ * followed by their decoy to a block of bytes, and indexes the block as it
+ * would be indexed when read from the target/decoy file.
+ *
+ * @author agent
+ */
+class DecoyChunkGenerator implements Callable<DecoyChunkGenerator> {
+
+    /**
+     * The encoding of the target/decoy file.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    /**
+     * The FASTA file.
+     */
+    private final MappedFastaFile fastaFile;
+    /**
+     * The index of the FASTA file.
+     */
+    private final FastaIndex fastaIndex;
+    /**
+     * The start of the range, the position of a header or of the start of the
+     * file.
+     */
+    private final long start;
+    /**
+     * The end of the range, exclusive.
+     */
+    private final long end;
+    /**
+     * The type of decoy to generate.
+     */
+    private final DecoyType decoyType;
+    /**
+     * The enzyme used to pseudo-reverse sequences, can be null for other
+     * decoy types.
+     */
+    private final Enzyme enzyme;
+    /**
+     * The pattern matching an accession starting with the decoy flag.
+     */
+    private final Pattern startPattern;
+    /**
+     * The pattern matching an accession ending with the decoy flag.
+     */
+    private final Pattern endPattern;
+    /**
+     * The encoding used to write the file.
+     */
+    private final Charset charset;
+    /**
+     * The line break used to write the file.
+     */
+    private final String lineBreak;
+    /**
+     * The waiting handler, can be null.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The bytes written.
+     */
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    /**
+     * The accessions written with the index of their header in the block.
+     */
+    private final AccessionTable.Builder accessions = new AccessionTable.Builder();
+    /**
+     * The number of target proteins written.
+     */
+    private int nTarget = 0;
+    /**
+     * The occurrence of the database types of the target proteins.
+     */
+    private final HashMap<Header.DatabaseType, Integer> databaseTypes = new HashMap<Header.DatabaseType, Integer>();
+    /**
+     * The occurrence of the species of the target proteins.
+     */
+    private final HashMap<String, Integer> species = new HashMap<String, Integer>();
+    /**
+     * The number of amino acids per letter.
+     */
+    private final long[] aaCounts = new long[26];
+
+    /**
+     * Constructor.
+     *
+     * @param fastaFile the FASTA file
+     * @param fastaIndex the index of the FASTA file
+     * @param start the start of the range, the position of a header or of the
+     * start of the file
+     * @param end the end of the range, exclusive
+     * @param decoyType the type of decoy to generate
+     * @param enzyme the enzyme used to pseudo-reverse sequences, can be null
+     * for other decoy types
+     * @param charset the encoding used to write the file
+     * @param lineBreak the line break used to write the file
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public DecoyChunkGenerator(MappedFastaFile fastaFile, FastaIndex fastaIndex, long start, long end, DecoyType decoyType, Enzyme enzyme,
+            Charset charset, String lineBreak, WaitingHandler waitingHandler) {
+        this.fastaFile = fastaFile;
+        this.fastaIndex = fastaIndex;
+        this.start = start;
+        this.end = end;
+        this.decoyType = decoyType;
+        this.enzyme = enzyme;
+        this.charset = charset;
+        this.lineBreak = lineBreak;
+        this.waitingHandler = waitingHandler;
+        // the patterns of SequenceFactory.isDecoy, compiled once
+        startPattern = Pattern.compile(decoyType.flag + ".*");
+        endPattern = Pattern.compile(".*" + decoyType.flag);
+    }
+
+    @Override
+    public DecoyChunkGenerator call() {
+
+        long position = start;
+        String headerLine = null;
+        StringBuilder sequenceBuilder = new StringBuilder();
+
+        while (position < end) {
+
+            String line = fastaFile.readLine(position);
+
+            if (line.startsWith(">")) {
+                if (headerLine != null) {
+                    writeProtein(headerLine, sequenceBuilder);
+                }
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return this;
+                }
+                headerLine = line;
+                sequenceBuilder = new StringBuilder();
+            } else if (headerLine != null) {
+                sequenceBuilder.append(line.trim());
+            }
+
+            position += line.length() + 1;
+        }
+
+        if (headerLine != null) {
+            writeProtein(headerLine, sequenceBuilder);
+        }
+
+        return this;
+    }
+
+    /**
+     * Writes a target protein and its decoy if the protein is not a decoy.
+     *
+     * @param headerLine the header line of the protein
+     * @param sequenceBuilder the sequence as present in the FASTA file
+     */
+    private void writeProtein(String headerLine, StringBuilder sequenceBuilder) {
+
+        Header header = Header.parseFromFASTA(headerLine);
+        String accession = header.getAccessionOrRest();
+        if (fastaIndex.isDecoy(accession)) {
+            return;
+        }
+
+        String sequence = sequenceBuilder.length() == 0 ? "" : SequenceFactory.importSequenceFromFasta(sequenceBuilder);
+        String decoySequence;
+        switch (decoyType) {
+            case reversed:
+                decoySequence = SequenceFactory.reverseSequence(sequence);
+                break;
+            case shuffled:
+                decoySequence = SequenceFactory.shuffleSequence(sequence, accession.hashCode());
+                break;
+            case pseudo_reversed:
+                decoySequence = SequenceFactory.pseudoReverseSequence(sequence, enzyme);
+                break;
+            default:
+                throw new IllegalArgumentException("Decoy type " + decoyType + " not implemented.");
+        }
+
+        String decoyAccession = accession + "_" + decoyType.flag;
+        String rawHeader = header.getRawHeader();
+
+        // replace the accession number
+        String escapedString = Pattern.quote(accession);
+        String decoyRawHeader = rawHeader.replaceAll(escapedString, decoyAccession);
+
+        // add decoy to the description
+        if (header.getDescription() != null && !header.getDescription().isEmpty()) {
+            escapedString = Pattern.quote(header.getDescription());
+            decoyRawHeader = decoyRawHeader.replaceAll(escapedString, header.getDescription() + "-" + decoyType.flag);
+        }
+
+        writeEntry(rawHeader, header, sequence);
+        writeEntry(decoyRawHeader, null, decoySequence);
+    }
+
+    /**
+     * Writes an entry and indexes it.
+     *
+     * @param rawHeader the header line to write
+     * @param header the parsed header, null if it needs to be parsed
+     * @param sequence the sequence to write
+     */
+    private void writeEntry(String rawHeader, Header header, String sequence) {
+
+        long index = output.size();
+        byte[] headerBytes = (rawHeader + lineBreak).getBytes(charset);
+        output.write(headerBytes, 0, headerBytes.length);
+        byte[] sequenceBytes = (sequence + lineBreak).getBytes(charset);
+        output.write(sequenceBytes, 0, sequenceBytes.length);
+
+        // the header as it will be read from the file
+        String writtenHeader = new String(headerBytes, 0, headerBytes.length - lineBreak.getBytes(charset).length, ISO_8859_1);
+        if (header == null || !writtenHeader.equals(rawHeader)) {
+            header = Header.parseFromFASTA(writtenHeader);
+        }
+        String accession = header.getAccessionOrRest();
+        if (accession == null) {
+            throw new IllegalArgumentException("No accession found for header " + writtenHeader + ".");
+        }
+        if (accession.lastIndexOf("'") != -1 || accession.lastIndexOf("\"") != -1) {
+            throw new IllegalArgumentException("Accession numbers cannot contain quotation marks: \'" + accession + "\'!\nPlease check your FASTA file.");
+        }
+
+        boolean decoy = startPattern.matcher(accession).matches() || endPattern.matcher(accession).matches();
+        accessions.add(accession, index, decoy);
+
+        if (!decoy) {
+
+            nTarget++;
+
+            // get the database type
+            Header.DatabaseType databaseType = header.getDatabaseType();
+            Integer typeCounter = databaseTypes.get(databaseType);
+            if (typeCounter == null) {
+                databaseTypes.put(databaseType, 1);
+            } else {
+                databaseTypes.put(databaseType, typeCounter + 1);
+            }
+
+            // get the species
+            String taxonomy = header.getTaxonomy();
+            if (taxonomy == null || taxonomy.equals("")) {
+                taxonomy = SpeciesFactory.UNKNOWN;
+            }
+            Integer occurrence = species.get(taxonomy);
+            if (occurrence == null) {
+                species.put(taxonomy, 1);
+            } else {
+                species.put(taxonomy, occurrence + 1);
+            }
+        }
+
+        char[] aaSequence = sequence.toCharArray();
+        try {
+            SequenceFactory.validateSequence(aaSequence);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("An error occurred while parsing the sequence of " + accession + ": " + e.toString());
+        }
+        for (char aa : aaSequence) {
+            if (AminoAcid.isUniqueAa(aa)) {
+                aaCounts[aa - 65]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes to write.
+     *
+     * @return the bytes to write
+     */
+    public byte[] getOutput() {
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the end of the range processed in the FASTA file.
+     *
+     * @return the end of the range
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the accessions written with the index of their header in the
+     * block.
+     *
+     * @return the accessions written
+     */
+    public AccessionTable.Builder getAccessions() {
+        return accessions;
+    }
+
+    /**
+     * Returns the number of target proteins written.
+     *
+     * @return the number of target proteins written
+     */
+    public int getNTarget() {
+        return nTarget;
+    }
+
+    /**
+     * Returns the occurrence of the database types of the target proteins.
+     *
+     * @return the occurrence of the database types
+     */
+    public HashMap<Header.DatabaseType, Integer> getDatabaseTypes() {
+        return databaseTypes;
+    }
+
+    /**
+     * Returns the occurrence of the species of the target proteins.
+     *
+     * @return the occurrence of the species
+     */
+    public HashMap<String, Integer> getSpecies() {
+        return species;
+    }
+
+    /**
+     * Returns the number of amino acids per letter.
+     *
+     * @return the number of amino acids per letter
+     */
+    public long[] getAaCounts() {
+        return aaCounts;
+    }
+}
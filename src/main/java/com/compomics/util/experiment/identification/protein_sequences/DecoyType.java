@@ -0,0 +1,77 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+/**
+ * Enum of the ways to generate decoy sequences from target sequences.
+ *
+ * @author agent
+ */
+public enum DecoyType {
+
+    /**
+     * The target sequence reversed.
+     */
+    reversed(0, "Reversed", "REVERSED", "The target sequence reversed."),
+    /**
+     * The target sequence shuffled with a seed depending on the accession
+     * only.
+     */
+    shuffled(1, "Shuffled", "SHUFFLED", "The target sequence shuffled with a fixed seed."),
+    /**
+     * The target sequence reversed between cleavage sites.
+     */
+    pseudo_reversed(2, "Pseudo-reversed", "DECOY", "The target sequence reversed between the cleavage sites, keeping the residue before every site in place.");
+
+    /**
+     * The unique index of the decoy type.
+     */
+    public final int index;
+    /**
+     * The name of the decoy type.
+     */
+    public final String name;
+    /**
+     * The flag added to the accession and description of the decoy proteins,
+     * one of the decoy flags recognized by the sequence factory.
+     */
+    public final String flag;
+    /**
+     * The description of the decoy type.
+     */
+    public final String description;
+
+    /**
+     * Constructor.
+     *
+     * @param index a unique index
+     * @param name the name to assign
+     * @param flag the decoy flag
+     * @param description the description to use
+     */
+    private DecoyType(int index, String name, String flag, String description) {
+        this.index = index;
+        this.name = name;
+        this.flag = flag;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Returns the decoy type corresponding to the given index.
+     *
+     * @param index the index of the decoy type
+     *
+     * @return the decoy type
+     */
+    public static DecoyType getDecoyType(int index) {
+        for (DecoyType decoyType : values()) {
+            if (decoyType.index == index) {
+                return decoyType;
+            }
+        }
+        throw new IllegalArgumentException("No decoy type found for index " + index + ".");
+    }
+}
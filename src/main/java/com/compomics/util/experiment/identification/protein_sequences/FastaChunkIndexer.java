@@ -0,0 +1,346 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
+import com.compomics.util.protein.Header;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the proteins whose header is in a range of a FASTA file. The
+ * decoy tag of the database is not known when the range is processed, the
+ * accessions are therefore matched against all candidate decoy tags and the
+ * tallies of the database types and species are kept per combination of
+ * matched tags, to be merged once the tag is known.
+ *
+ * @author agent
+ */
+class FastaChunkIndexer implements Callable<FastaChunkIndexer> {
+
+    /**
+     * The FASTA file.
+     */
+    private final MappedFastaFile fastaFile;
+    /**
+     * The start of the range, the position of a header or of the start of the
+     * file.
+     */
+    private final long start;
+    /**
+     * The end of the range, exclusive.
+     */
+    private final long end;
+    /**
+     * The patterns matching an accession starting with a candidate decoy tag.
+     */
+    private final Pattern[] startPatterns;
+    /**
+     * The patterns matching an accession ending with a candidate decoy tag.
+     */
+    private final Pattern[] endPatterns;
+    /**
+     * The waiting handler, can be null.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The number of bytes processed by all indexers.
+     */
+    private final AtomicLong progress;
+    /**
+     * The number of bytes per percent of progress.
+     */
+    private final long progressUnit;
+    /**
+     * The accessions found with their index.
+     */
+    private final AccessionTable.Builder accessions = new AccessionTable.Builder();
+    /**
+     * The candidate decoy tags matched by every accession as bit mask.
+     */
+    private byte[] tagMasks = new byte[1024];
+    /**
+     * The number of accessions per tag mask.
+     */
+    private final int[] maskCounts;
+    /**
+     * The occurrence of the database types per tag mask.
+     */
+    private final HashMap<Integer, HashMap<Header.DatabaseType, Integer>> databaseTypes = new HashMap<Integer, HashMap<Header.DatabaseType, Integer>>();
+    /**
+     * The occurrence of the species per tag mask.
+     */
+    private final HashMap<Integer, HashMap<String, Integer>> species = new HashMap<Integer, HashMap<String, Integer>>();
+    /**
+     * The first accession of the range matching every candidate tag, null if
+     * none.
+     */
+    private final String[] firstTaggedAccessions;
+    /**
+     * The rank of the first accession of the range matching any candidate
+     * tag, -1 if none.
+     */
+    private int firstTaggedRank = -1;
+    /**
+     * The number of amino acids per letter.
+     */
+    private final long[] aaCounts = new long[26];
+
+    /**
+     * Constructor.
+     *
+     * @param fastaFile the FASTA file
+     * @param start the start of the range, the position of a header or of the
+     * start of the file
+     * @param end the end of the range, exclusive
+     * @param candidateTags the candidate decoy tags, at most eight
+     * @param waitingHandler the waiting handler, can be null
+     * @param progress the number of bytes processed by all indexers
+     * @param progressUnit the number of bytes per percent of progress
+     */
+    public FastaChunkIndexer(MappedFastaFile fastaFile, long start, long end, String[] candidateTags,
+            WaitingHandler waitingHandler, AtomicLong progress, long progressUnit) {
+        this.fastaFile = fastaFile;
+        this.start = start;
+        this.end = end;
+        this.waitingHandler = waitingHandler;
+        this.progress = progress;
+        this.progressUnit = progressUnit;
+        // the patterns of SequenceFactory.isDecoy, compiled once
+        startPatterns = new Pattern[candidateTags.length];
+        endPatterns = new Pattern[candidateTags.length];
+        for (int i = 0; i < candidateTags.length; i++) {
+            startPatterns[i] = Pattern.compile(candidateTags[i] + ".*");
+            endPatterns[i] = Pattern.compile(".*" + candidateTags[i]);
+        }
+        maskCounts = new int[1 << candidateTags.length];
+        firstTaggedAccessions = new String[candidateTags.length];
+    }
+
+    @Override
+    public FastaChunkIndexer call() {
+
+        long position = start;
+        long lastProgress = start;
+        String accession = null;
+        StringBuilder sequenceBuilder = new StringBuilder();
+
+        while (position < end) {
+
+            String line = fastaFile.readLine(position);
+
+            if (line.startsWith(">")) {
+
+                if (sequenceBuilder.length() != 0 && accession != null) {
+                    processSequence(accession, sequenceBuilder, position);
+                }
+
+                Header fastaHeader = Header.parseFromFASTA(line);
+                accession = fastaHeader.getAccessionOrRest();
+                if (accession == null) {
+                    throw new IllegalArgumentException("No accession found for header at line " + fastaFile.getLineNumber(position) + ".");
+                }
+
+                // check accessions for quotation marks
+                if (accession.lastIndexOf("'") != -1 || accession.lastIndexOf("\"") != -1) {
+                    throw new IllegalArgumentException("Accession numbers cannot contain quotation marks: \'" + accession + "\'!\nPlease check your FASTA file.");
+                }
+
+                addAccession(accession, position, fastaHeader);
+                sequenceBuilder = new StringBuilder();
+
+                if (waitingHandler != null) {
+                    if (progressUnit != 0 && position - lastProgress >= progressUnit) {
+                        long done = progress.addAndGet(position - lastProgress);
+                        lastProgress = position;
+                        waitingHandler.setSecondaryProgressCounter((int) (done / progressUnit));
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return this;
+                    }
+                }
+
+            } else if (accession != null) {
+                sequenceBuilder.append(line.trim());
+            }
+
+            position += line.length() + 1;
+        }
+
+        if (sequenceBuilder.length() != 0 && accession != null) {
+            processSequence(accession, sequenceBuilder, Math.min(position, fastaFile.length()));
+        }
+
+        progress.addAndGet(end - lastProgress);
+
+        return this;
+    }
+
+    /**
+     * Adds an accession to the results.
+     *
+     * @param accession the accession
+     * @param index the index of the header in the file
+     * @param fastaHeader the parsed header
+     */
+    private void addAccession(String accession, long index, Header fastaHeader) {
+
+        int rank = accessions.size();
+        int mask = 0;
+        for (int i = 0; i < startPatterns.length; i++) {
+            if (startPatterns[i].matcher(accession).matches() || endPatterns[i].matcher(accession).matches()) {
+                mask |= 1 << i;
+                if (firstTaggedAccessions[i] == null) {
+                    firstTaggedAccessions[i] = accession;
+                }
+            }
+        }
+        if (mask != 0 && firstTaggedRank == -1) {
+            firstTaggedRank = rank;
+        }
+
+        accessions.add(accession, index, false);
+        if (rank == tagMasks.length) {
+            tagMasks = Arrays.copyOf(tagMasks, 2 * rank);
+        }
+        tagMasks[rank] = (byte) mask;
+        maskCounts[mask]++;
+
+        // get the database type
+        HashMap<Header.DatabaseType, Integer> maskDatabaseTypes = databaseTypes.get(mask);
+        if (maskDatabaseTypes == null) {
+            maskDatabaseTypes = new HashMap<Header.DatabaseType, Integer>();
+            databaseTypes.put(mask, maskDatabaseTypes);
+        }
+        Header.DatabaseType databaseType = fastaHeader.getDatabaseType();
+        Integer typeCounter = maskDatabaseTypes.get(databaseType);
+        if (typeCounter == null) {
+            maskDatabaseTypes.put(databaseType, 1);
+        } else {
+            maskDatabaseTypes.put(databaseType, typeCounter + 1);
+        }
+
+        // get the species
+        HashMap<String, Integer> maskSpecies = species.get(mask);
+        if (maskSpecies == null) {
+            maskSpecies = new HashMap<String, Integer>();
+            species.put(mask, maskSpecies);
+        }
+        String taxonomy = fastaHeader.getTaxonomy();
+        if (taxonomy == null || taxonomy.equals("")) {
+            taxonomy = SpeciesFactory.UNKNOWN;
+        }
+        Integer occurrence = maskSpecies.get(taxonomy);
+        if (occurrence == null) {
+            maskSpecies.put(taxonomy, 1);
+        } else {
+            maskSpecies.put(taxonomy, occurrence + 1);
+        }
+    }
+
+    /**
+     * Validates the sequence of a protein and counts its amino acids.
+     *
+     * @param accession the accession of the protein
+     * @param sequenceBuilder the sequence as present in the file
+     * @param position the position in the file after the sequence
+     */
+    private void processSequence(String accession, StringBuilder sequenceBuilder, long position) {
+        String sequence = SequenceFactory.importSequenceFromFasta(sequenceBuilder);
+        char[] aaSequence = sequence.toCharArray();
+        try {
+            SequenceFactory.validateSequence(aaSequence);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("An error occurred while parsing the sequence of " + accession + " at line " + fastaFile.getLineNumber(position) + ": " + e.toString());
+        }
+        for (char aa : aaSequence) {
+            if (AminoAcid.isUniqueAa(aa)) {
+                aaCounts[aa - 65]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the accessions found, not flagged as decoy.
+     *
+     * @return the accessions found
+     */
+    public AccessionTable.Builder getAccessions() {
+        return accessions;
+    }
+
+    /**
+     * Returns the candidate decoy tags matched by the accession at the given
+     * rank as bit mask.
+     *
+     * @param rank the rank of the accession in the range
+     *
+     * @return the tags matched as bit mask
+     */
+    public int getTagMask(int rank) {
+        return tagMasks[rank];
+    }
+
+    /**
+     * Returns the number of accessions matching the given tag mask exactly.
+     *
+     * @param mask the tag mask
+     *
+     * @return the number of accessions matching the given tag mask
+     */
+    public int getMaskCount(int mask) {
+        return maskCounts[mask];
+    }
+
+    /**
+     * Returns the occurrence of the database types per tag mask.
+     *
+     * @return the occurrence of the database types per tag mask
+     */
+    public HashMap<Integer, HashMap<Header.DatabaseType, Integer>> getDatabaseTypes() {
+        return databaseTypes;
+    }
+
+    /**
+     * Returns the occurrence of the species per tag mask.
+     *
+     * @return the occurrence of the species per tag mask
+     */
+    public HashMap<Integer, HashMap<String, Integer>> getSpecies() {
+        return species;
+    }
+
+    /**
+     * Returns the first accession of the range matching the candidate tag of
+     * the given index, null if none.
+     *
+     * @param tagIndex the index of the candidate tag
+     *
+     * @return the first accession matching the tag
+     */
+    public String getFirstTaggedAccession(int tagIndex) {
+        return firstTaggedAccessions[tagIndex];
+    }
+
+    /**
+     * Returns the rank of the first accession of the range matching any
+     * candidate tag, -1 if none.
+     *
+     * @return the rank of the first tagged accession
+     */
+    public int getFirstTaggedRank() {
+        return firstTaggedRank;
+    }
+
+    /**
+     * Returns the number of amino acids per letter.
+     *
+     * @return the number of amino acids per letter
+     */
+    public long[] getAaCounts() {
+        return aaCounts;
+    }
+}
@@ -6,6 +6,7 @@ import com.compomics.util.protein.Header.DatabaseType;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class contains the index of a FASTA file.
@@ -15,13 +16,15 @@ import java.util.HashSet;
 public class FastaIndex extends ExperimentObject {
 
     /**
-     * The indexes of the inspected FASTA file.
+     * The accessions of the inspected FASTA file with their index and decoy
+     * flag. The table is not serialized with the index but written to its own
+     * binary file, see SequenceFactory.writeAccessionTable.
      */
-    private HashMap<String, Long> indexes;
+    private transient AccessionTable accessionTable;
     /**
-     * The decoy accessions.
+     * The number of sequences in the FASTA file.
      */
-    private HashSet<String> decoyAccessions;
+    private int nSequences;
     /**
      * The FASTA file name.
      */
@@ -83,8 +86,8 @@ public class FastaIndex extends ExperimentObject {
     /**
      * Constructor.
      *
-     * @param indexes The indexes of the inspected FASTA file
-     * @param decoyAccessions the decoy accession numbers
+     * @param accessionTable the accessions of the inspected FASTA file with
+     * their index and decoy flag
      * @param fileName The FASTA file name
      * @param name the name of the database
      * @param concatenatedTargetDecoy If the FASTA file is a concatenated
@@ -101,12 +104,12 @@ public class FastaIndex extends ExperimentObject {
      * @param speciesOccurrence the species occurrence in the database
      * @param aaOccurrence the occurrence of every amino acid in per mille
      */
-    public FastaIndex(HashMap<String, Long> indexes, HashSet<String> decoyAccessions, String fileName, String name,
+    public FastaIndex(AccessionTable accessionTable, String fileName, String name,
             boolean concatenatedTargetDecoy, boolean isDefaultReversed, int nTarget, long lastModified,
             DatabaseType mainDatabaseType, HashMap<Header.DatabaseType, Integer> databaseTypes, String decoyTag, 
             String version, HashMap<String, Integer> speciesOccurrence, int[] aaOccurrence) {
-        this.indexes = indexes;
-        this.decoyAccessions = decoyAccessions;
+        this.accessionTable = accessionTable;
+        this.nSequences = accessionTable.size();
         this.fileName = fileName;
         this.name = name;
         this.concatenatedTargetDecoy = concatenatedTargetDecoy;
@@ -121,15 +124,76 @@ public class FastaIndex extends ExperimentObject {
         this.aaOccurrence = aaOccurrence;
     }
 
+    /**
+     * Returns the table of the accessions of the FASTA file.
+     *
+     * @return the table of the accessions of the FASTA file, null if not
+     * loaded
+     */
+    public AccessionTable getAccessionTable() {
+        return accessionTable;
+    }
+
+    /**
+     * Returns the table of the accessions of the FASTA file and throws an
+     * exception if it was not loaded, which is the case when the index was
+     * deserialized directly instead of being obtained from
+     * SequenceFactory.getFastaIndex.
+     *
+     * @return the table of the accessions of the FASTA file
+     *
+     * @throws IllegalStateException if the accession table is not loaded
+     */
+    private AccessionTable getLoadedAccessionTable() {
+        if (accessionTable == null) {
+            throw new IllegalStateException("The accessions of " + fileName + " are not loaded. Use SequenceFactory.getFastaIndex to load the index of a FASTA file.");
+        }
+        return accessionTable;
+    }
+
+    /**
+     * Sets the table of the accessions of the FASTA file, typically after
+     * mapping it from its file.
+     *
+     * @param accessionTable the table of the accessions of the FASTA file
+     *
+     * @throws IllegalArgumentException if the number of accessions does not
+     * match the number of sequences
+     */
+    public void setAccessionTable(AccessionTable accessionTable) {
+        if (accessionTable.size() != nSequences) {
+            throw new IllegalArgumentException(accessionTable.size() + " accessions found where " + nSequences + " are expected.");
+        }
+        this.accessionTable = accessionTable;
+    }
+
     /**
      * Returns a map of all indexes of the FASTA file (accession &gt; index).
+     * The map is built from the accession table at every call.
+     *
+     * @deprecated use getAccessions and getIndex
      *
      * @return a map of all indexes of the FASTA file (accession &gt; index)
      */
+    @Deprecated
     public HashMap<String, Long> getIndexes() {
+        AccessionTable table = getLoadedAccessionTable();
+        HashMap<String, Long> indexes = new HashMap<String, Long>(nSequences);
+        for (int i = 0; i < nSequences; i++) {
+            indexes.put(table.getAccession(i), table.getIndex(i));
+        }
         return indexes;
     }
 
+    /**
+     * Returns the accessions of the FASTA file as a read only set.
+     *
+     * @return the accessions of the FASTA file
+     */
+    public Set<String> getAccessions() {
+        return getLoadedAccessionTable().getAccessions();
+    }
+
     /**
      * Returns true if the given accession number is a decoy.
      *
@@ -138,15 +202,26 @@ public class FastaIndex extends ExperimentObject {
      * @return true if the given accession number is a decoy
      */
     public boolean isDecoy(String accession) {
-        return decoyAccessions.contains(accession);
+        return getLoadedAccessionTable().isDecoy(accession);
     }
 
     /**
-     * Returns the list of decoy accessions.
+     * Returns the list of decoy accessions. The set is built from the
+     * accession table at every call.
+     *
+     * @deprecated use isDecoy
      *
      * @return the list of decoy accessions
      */
+    @Deprecated
     public HashSet<String> getDecoyAccesions() {
+        AccessionTable table = getLoadedAccessionTable();
+        HashSet<String> decoyAccessions = new HashSet<String>();
+        for (int i = 0; i < nSequences; i++) {
+            if (table.isDecoy(i)) {
+                decoyAccessions.add(table.getAccession(i));
+            }
+        }
         return decoyAccessions;
     }
 
@@ -154,10 +229,11 @@ public class FastaIndex extends ExperimentObject {
      * Returns the index of the accession of interest.
      *
      * @param accession the accession of interest
-     * @return the index of the accession of interest
+     * @return the index of the accession of interest, null if not found
      */
     public Long getIndex(String accession) {
-        return indexes.get(accession);
+        long index = getLoadedAccessionTable().getIndex(accession);
+        return index == -1 ? null : index;
     }
 
     /**
@@ -196,7 +272,7 @@ public class FastaIndex extends ExperimentObject {
      * @return the number of sequences in the databases.
      */
     public int getNSequences() {
-        return indexes.size();
+        return nSequences;
     }
 
     /**
@@ -0,0 +1,206 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only access to a FASTA file mapped in memory. Files larger than 2 GB
+ * are mapped in several regions. The buffers are only accessed at absolute
+ * positions, so any number of threads can read from the file at the same
+ * time.
+ *
+ * @author agent
+ */
+public class MappedFastaFile {
+
+    /**
+     * The binary logarithm of the size of a mapped region.
+     */
+    private static final int REGION_SHIFT = 30;
+    /**
+     * The mask of a position in a region.
+     */
+    private static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+    /**
+     * The mapped regions of the file.
+     */
+    private final MappedByteBuffer[] regions;
+    /**
+     * The length of the file.
+     */
+    private final long fileLength;
+
+    /**
+     * Constructor.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @throws IOException exception thrown if the file could not be mapped
+     */
+    public MappedFastaFile(File fastaFile) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(fastaFile, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLength = channel.size();
+            regions = new MappedByteBuffer[(int) (fileLength >>> REGION_SHIFT) + 1];
+            for (int i = 0; i < regions.length; ++i) {
+                long start = ((long) i) << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_MASK + 1, fileLength - start));
+            }
+        } finally {
+            // the mapping remains valid after closing the file
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the length of the file.
+     *
+     * @return the length of the file
+     */
+    public long length() {
+        return fileLength;
+    }
+
+    /**
+     * Returns the byte at the given position.
+     *
+     * @param position the position in the file
+     *
+     * @return the byte at the given position
+     */
+    private int get(long position) {
+        return regions[(int) (position >>> REGION_SHIFT)].get((int) (position & REGION_MASK)) & 0xFF;
+    }
+
+    /**
+     * Returns the position of the end of the line starting at the given
+     * position, i.e. the position of the next line break or the file length.
+     *
+     * @param position the position of the line
+     *
+     * @return the position of the end of the line
+     */
+    private long getLineEnd(long position) {
+        while (position < fileLength) {
+            int b = get(position);
+            if (b == '\n' || b == '\r') {
+                break;
+            }
+            ++position;
+        }
+        return position;
+    }
+
+    /**
+     * Returns the position of the first header at or after the given
+     * position, i.e. the position of a '&gt;' starting a line, or the file
+     * length if none is found.
+     *
+     * @param position the position where to start looking
+     *
+     * @return the position of the next header
+     */
+    public long getNextHeader(long position) {
+        while (position < fileLength) {
+            if (get(position) == '>') {
+                if (position == 0) {
+                    return position;
+                }
+                int previous = get(position - 1);
+                if (previous == '\n' || previous == '\r') {
+                    return position;
+                }
+            }
+            ++position;
+        }
+        return fileLength;
+    }
+
+    /**
+     * Returns the number of the line at the given position, starting from 1.
+     * This method reads the file from the start and should only be used to
+     * report errors.
+     *
+     * @param position the position in the file
+     *
+     * @return the number of the line at the given position
+     */
+    public int getLineNumber(long position) {
+        int lineNumber = 1;
+        for (long i = 0; i < position && i < fileLength; ++i) {
+            int b = get(i);
+            if (b == '\n' || b == '\r' && (i + 1 == fileLength || get(i + 1) != '\n')) {
+                ++lineNumber;
+            }
+        }
+        return lineNumber;
+    }
+
+    /**
+     * Returns the line starting at the given position without line break,
+     * null if the position is at the end of the file.
+     *
+     * @param position the position of the line
+     *
+     * @return the line starting at the given position
+     */
+    public String readLine(long position) {
+        if (position >= fileLength) {
+            return null;
+        }
+        long lineEnd = getLineEnd(position);
+        char[] line = new char[(int) (lineEnd - position)];
+        for (int i = 0; i < line.length; ++i) {
+            line[i] = (char) get(position + i);
+        }
+        return new String(line);
+    }
+
+    /**
+     * Returns the sequence of the protein whose header starts at the given
+     * position. The lines following the header are trimmed and concatenated
+     * until the next header, a stop codon at the end of the sequence is
+     * removed as done by SequenceFactory.importSequenceFromFasta.
+     *
+     * @param position the position of the header of the protein
+     *
+     * @return the sequence of the protein
+     */
+    public String readSequence(long position) {
+        char[] sequence = new char[1024];
+        int length = 0;
+        position = getLineEnd(position) + 1;
+        while (position < fileLength) {
+            long lineEnd = getLineEnd(position);
+            long start = position;
+            long end = lineEnd;
+            while (start < end && get(start) <= ' ') {
+                ++start;
+            }
+            while (end > start && get(end - 1) <= ' ') {
+                --end;
+            }
+            if (start < end && get(start) == '>') {
+                break;
+            }
+            int lineLength = (int) (end - start);
+            if (length + lineLength > sequence.length) {
+                char[] newSequence = new char[Math.max(sequence.length << 1, length + lineLength)];
+                System.arraycopy(sequence, 0, newSequence, 0, length);
+                sequence = newSequence;
+            }
+            for (long i = start; i < end; ++i) {
+                sequence[length++] = (char) get(i);
+            }
+            position = lineEnd + 1;
+        }
+        if (length > 0 && sequence[length - 1] == '*') {
+            --length;
+        }
+        return new String(sequence, 0, length);
+    }
+}
@@ -0,0 +1,398 @@
+package com.compomics.util.experiment.identification.protein_sequences;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded least recently used cache for the proteins and headers of the
+ * sequence factory and for the nodes and mappings of the protein tree. The
+ * entries are spread over segments, each holding its share of the capacity in
+ * access order under its own lock, so that eviction is done in constant time
+ * and threads only contend when they hit the same segment. The cache can be
+ * bounded in number of entries and in estimated bytes.
+ *
+ * @param <V> the type of the cached values
+ *
+ * @author agent
+ */
+public class SequenceCache<V> {
+
+    /**
+     * The number of segments for large caches, must be a power of two.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * The minimal number of entries per segment when the cache is split in
+     * segments. Smaller caches use a single segment to respect the capacity
+     * exactly.
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 1024;
+    /**
+     * The segments of the cache.
+     */
+    private volatile Segment<V>[] segments;
+    /**
+     * The maximal number of entries.
+     */
+    private int capacity;
+    /**
+     * The maximal number of bytes, no limit if zero or negative.
+     */
+    private long maxBytes;
+    /**
+     * The number of lookups finding an entry.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of lookups finding no entry.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of entries evicted.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximal number of entries
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     */
+    public SequenceCache(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        segments = createSegments(capacity, maxBytes);
+    }
+
+    /**
+     * Creates the segments for the given bounds.
+     *
+     * @param capacity the maximal number of entries
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     *
+     * @return the segments
+     */
+    @SuppressWarnings("unchecked")
+    private Segment<V>[] createSegments(int capacity, long maxBytes) {
+        int nSegments = capacity >= N_SEGMENTS * MIN_SEGMENT_CAPACITY ? N_SEGMENTS : 1;
+        Segment<V>[] newSegments = new Segment[nSegments];
+        for (int i = 0; i < nSegments; ++i) {
+            newSegments[i] = new Segment<V>(Math.max(1, capacity / nSegments), maxBytes > 0 ? Math.max(1, maxBytes / nSegments) : 0);
+        }
+        return newSegments;
+    }
+
+    /**
+     * Returns the cached value for the given key, null if not cached.
+     *
+     * @param key the key
+     *
+     * @return the cached value, null if not cached
+     */
+    public V get(String key) {
+        Segment<V> segment = getSegment(key);
+        Entry<V> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Adds a value to the cache, evicting the least recently used entries if
+     * needed.
+     *
+     * @param key the key
+     * @param value the value
+     * @param bytes the estimated size of the value in bytes
+     */
+    public void put(String key, V value, long bytes) {
+        Segment<V> segment = getSegment(key);
+        synchronized (segment) {
+            evictions.addAndGet(segment.add(key, new Entry<V>(value, bytes)));
+        }
+    }
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param key the key
+     */
+    public void remove(String key) {
+        Segment<V> segment = getSegment(key);
+        synchronized (segment) {
+            segment.delete(key);
+        }
+    }
+
+    /**
+     * Removes the given share of the least recently used entries of every
+     * segment.
+     *
+     * @param share the share of the entries to remove, 0.5 means 50%
+     */
+    public void evict(double share) {
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                evictions.addAndGet(segment.evict((int) Math.ceil(share * segment.size())));
+            }
+        }
+    }
+
+    /**
+     * Empties the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Changes the bounds of the cache. The cache is emptied.
+     *
+     * @param capacity the maximal number of entries
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     */
+    public synchronized void setBounds(int capacity, long maxBytes) {
+        if (capacity != this.capacity || maxBytes != this.maxBytes) {
+            this.capacity = capacity;
+            this.maxBytes = maxBytes;
+            segments = createSegments(capacity, maxBytes);
+        }
+    }
+
+    /**
+     * Returns the maximal number of entries.
+     *
+     * @return the maximal number of entries
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the maximal number of bytes, no limit if zero or negative.
+     *
+     * @return the maximal number of bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the cached values.
+     *
+     * @return the estimated number of bytes of the cached values
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of lookups finding an entry.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups finding no entry.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of lookups finding an entry, zero if no lookup was
+     * made.
+     *
+     * @return the hit rate
+     */
+    public double getHitRate() {
+        long nHits = hits.get();
+        long nLookups = nHits + misses.get();
+        return nLookups == 0 ? 0 : ((double) nHits) / nLookups;
+    }
+
+    /**
+     * Returns the number of entries evicted to respect the bounds.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the segment of the given key.
+     *
+     * @param key the key
+     *
+     * @return the segment of the key
+     */
+    private Segment<V> getSegment(String key) {
+        Segment<V>[] currentSegments = segments;
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return currentSegments[hash & (currentSegments.length - 1)];
+    }
+
+    /**
+     * A cached value and its estimated size.
+     *
+     * @param <V> the type of the value
+     */
+    private static class Entry<V> {
+
+        /**
+         * The value.
+         */
+        private final V value;
+        /**
+         * The estimated size in bytes.
+         */
+        private final long bytes;
+
+        /**
+         * Constructor.
+         *
+         * @param value the value
+         * @param bytes the estimated size in bytes
+         */
+        public Entry(V value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Segment of the cache, a map in access order removing its least recently
+     * used entries when full.
+     *
+     * @param <V> the type of the cached values
+     */
+    private static class Segment<V> extends LinkedHashMap<String, Entry<V>> {
+
+        /**
+         * The maximal number of entries of the segment.
+         */
+        private final int segmentCapacity;
+        /**
+         * The maximal number of bytes of the segment, no limit if zero.
+         */
+        private final long segmentMaxBytes;
+        /**
+         * The estimated number of bytes of the segment.
+         */
+        private long bytes = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param segmentCapacity the maximal number of entries of the segment
+         * @param segmentMaxBytes the maximal number of bytes of the segment,
+         * no limit if zero
+         */
+        public Segment(int segmentCapacity, long segmentMaxBytes) {
+            super(16, 0.75f, true);
+            this.segmentCapacity = segmentCapacity;
+            this.segmentMaxBytes = segmentMaxBytes;
+        }
+
+        /**
+         * Adds an entry and evicts the least recently used entries until the
+         * segment respects its bounds. The entry added is never evicted.
+         *
+         * @param key the key
+         * @param entry the entry
+         *
+         * @return the number of entries evicted
+         */
+        public int add(String key, Entry<V> entry) {
+            Entry<V> previous = put(key, entry);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += entry.bytes;
+            int nEvicted = 0;
+            Iterator<Map.Entry<String, Entry<V>>> iterator = entrySet().iterator();
+            while (size() > 1 && (size() > segmentCapacity || segmentMaxBytes > 0 && bytes > segmentMaxBytes)) {
+                Map.Entry<String, Entry<V>> eldest = iterator.next();
+                bytes -= eldest.getValue().bytes;
+                iterator.remove();
+                ++nEvicted;
+            }
+            return nEvicted;
+        }
+
+        /**
+         * Removes the given number of least recently used entries.
+         *
+         * @param nEntries the number of entries to remove
+         *
+         * @return the number of entries evicted
+         */
+        public int evict(int nEntries) {
+            int nEvicted = 0;
+            Iterator<Map.Entry<String, Entry<V>>> iterator = entrySet().iterator();
+            while (nEvicted < nEntries && iterator.hasNext()) {
+                Map.Entry<String, Entry<V>> eldest = iterator.next();
+                bytes -= eldest.getValue().bytes;
+                iterator.remove();
+                ++nEvicted;
+            }
+            return nEvicted;
+        }
+
+        /**
+         * Removes an entry.
+         *
+         * @param key the key
+         */
+        public void delete(String key) {
+            Entry<V> previous = remove(key);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.compomics.util.experiment.identification.protein_sequences;
 import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.biology.Protein;
 import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
@@ -18,16 +19,22 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.preferences.UtilitiesUserPreferences;
 import com.compomics.util.protein.Header;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JProgressBar;
-import uk.ac.ebi.pride.tools.braf.BufferedRandomAccessFile;
 
 /**
  * Factory retrieving the information of the loaded FASTA file.
@@ -45,19 +52,21 @@ public class SequenceFactory {
     /**
      * Map of the currently loaded Headers.
      */
-    private HashMap<String, Header> currentHeaderMap = new HashMap<String, Header>();
+    private final SequenceCache<Header> currentHeaderMap = new SequenceCache<Header>(1000000, 0);
     /**
      * Map of the currently loaded proteins.
      */
-    private HashMap<String, Protein> currentProteinMap = new HashMap<String, Protein>();
+    private final SequenceCache<Protein> currentProteinMap = new SequenceCache<Protein>(1000000, 0);
     /**
-     * Index of the FASTA file.
+     * Index of the FASTA file. Replaced under the lock of the factory when
+     * re-indexing and read without lock by the protein getters.
      */
-    private FastaIndex fastaIndex = null;
+    private volatile FastaIndex fastaIndex = null;
     /**
-     * Random access file of the current FASTA file.
+     * The current FASTA file mapped in memory, read without lock by the
+     * protein getters.
      */
-    private BufferedRandomAccessFile currentRandomAccessFile = null;
+    private volatile MappedFastaFile currentMappedFastaFile = null;
     /**
      * The FASTA file currently loaded.
      */
@@ -68,9 +77,10 @@ public class SequenceFactory {
      */
     private int nCache = 1000000;
     /**
-     * List of accessions of the loaded proteins.
+     * Maximal estimated size of the proteins in cache in bytes, no limit if
+     * zero or negative.
      */
-    private ArrayList<String> loadedProteins = new ArrayList<String>();
+    private long cacheMaxBytes = 0;
     /**
      * Recognized flags for a decoy protein.
      */
@@ -83,10 +93,6 @@ public class SequenceFactory {
      * The default peptide to protein mapper.
      */
     private PeptideMapper defaultPeptideMapper = null;
-    /**
-     * Boolean indicating that the factory is reading the file.
-     */
-    private boolean reading = false;
     /**
      * The time out in milliseconds when querying the file.
      */
@@ -104,6 +110,16 @@ public class SequenceFactory {
      * The reference number for amino acid occurrence calculation, e.g. 100 for percent, 1000 per mille, 1000000 ppm.
      */
     public final static int nAaOccurrence = 1000000;
+    /**
+     * The minimal length in bytes of the ranges of a FASTA file indexed in
+     * parallel.
+     */
+    private static final long MIN_INDEXING_CHUNK_LENGTH = 16 * 1024 * 1024;
+    /**
+     * The length in bytes of the blocks of a FASTA file processed in parallel
+     * when generating decoys.
+     */
+    private static final long DECOY_BLOCK_LENGTH = 4 * 1024 * 1024;
 
     /**
      * Constructor.
@@ -162,9 +178,8 @@ public class SequenceFactory {
         currentHeaderMap.clear();
         currentProteinMap.clear();
         fastaIndex = null;
-        currentRandomAccessFile = null;
+        currentMappedFastaFile = null;
         currentFastaFile = null;
-        loadedProteins.clear();
         molecularWeights.clear();
     }
 
@@ -174,7 +189,6 @@ public class SequenceFactory {
     public void emptyCache() {
         currentHeaderMap.clear();
         currentProteinMap.clear();
-        loadedProteins.clear();
         molecularWeights.clear();
         if (defaultPeptideMapper != null) {
             defaultPeptideMapper.emptyCache();
@@ -229,7 +243,7 @@ public class SequenceFactory {
         }
 
         if (currentProtein == null) {
-            currentProtein = getProteinSynchronized(accession, reindex);
+            currentProtein = getProteinFromFile(accession, reindex);
         }
         if (currentProtein == null) {
             throw new IllegalArgumentException("Protein not found: " + accession + ".");
@@ -283,7 +297,7 @@ public class SequenceFactory {
         try {
             Protein targetProtein = currentProteinMap.get(targetAccession);
             if (targetProtein == null && decoyInMemory) {
-                currentProtein = getProteinSynchronized(accession, reindex);
+                currentProtein = getProteinFromFile(accession, reindex);
             } else {
                 if (targetProtein == null) {
                     targetProtein = getProtein(targetAccession, reindex);
@@ -300,9 +314,9 @@ public class SequenceFactory {
     }
 
     /**
-     * Returns the desired protein. Eventually re-indexes the database if the
-     * protein is not found. Synchronized version serving as a queue for
-     * threads.
+     * Reads the desired protein from the FASTA file. Eventually re-indexes the
+     * database if the protein is not found. Only re-indexing is synchronized,
+     * proteins are read concurrently.
      *
      * @param accession accession of the desired protein
      * @param reindex a boolean indicating whether the database should be
@@ -314,96 +328,58 @@ public class SequenceFactory {
      * while reading the FASTA file
      * @throws InterruptedException
      */
-    private synchronized Protein getProteinSynchronized(String accession, boolean reindex) throws IOException, IllegalArgumentException, InterruptedException, FileNotFoundException {
+    private Protein getProteinFromFile(String accession, boolean reindex) throws IOException, IllegalArgumentException, InterruptedException, FileNotFoundException {
 
-        Protein currentProtein = currentProteinMap.get(accession);
+        Long index = fastaIndex.getIndex(accession);
 
-        if (currentProtein == null) {
-
-            Long index = fastaIndex.getIndex(accession);
-
-            if (index == null) {
-                if (reindex) {
-                    fastaIndex = getFastaIndex(true, null);
-                    return getProtein(accession, false);
-                }
-                throw new IllegalArgumentException("Protein not found: " + accession + ".");
+        if (index == null) {
+            if (reindex) {
+                reindex();
+                return getProtein(accession, false);
             }
-
-            return getProtein(accession, index, 1);
+            throw new IllegalArgumentException("Protein not found: " + accession + ".");
         }
 
-        return currentProtein;
+        return getProtein(accession, index);
     }
 
     /**
-     * Returns the protein indexed by the given index. It can be that the IO is
-     * busy (especially when working on distant servers) thus returning an
-     * error. The method will then retry after waiting waitingTime milliseconds.
-     * The waitingTime is doubled for the next try. The method throws an
-     * exception after timeout (see timeOut attribute).
+     * Re-indexes the FASTA file.
      *
-     * @param index the index where to look at
-     * @param waitingTime the waiting time before retry
-     * @return the header indexed by the given index
-     * @throws InterruptedException
-     * @throws IOException
-     * @throws IllegalArgumentException
+     * @throws IOException exception thrown if an error occurred while reading
+     * the FASTA file
      */
-    private synchronized Protein getProtein(String accession, long index, long waitingTime) throws IOException, IllegalArgumentException, InterruptedException, FileNotFoundException {
-
-        if (waitingTime <= 0) {
-            throw new IllegalArgumentException("Waiting time should be a positive number.");
-        }
-
-        try {
-            if (reading) {
-                throw new IllegalStateException("Attempting to read new line before current read operation is completed.");
-            }
-            reading = true;
-            currentRandomAccessFile.seek(index);
-            String line;
-            StringBuilder sequence = new StringBuilder();
-            Header currentHeader = currentHeaderMap.get(accession);
-            boolean headerFound = false;
+    private synchronized void reindex() throws IOException {
+        fastaIndex = getFastaIndex(true, null);
+    }
 
-            while ((line = currentRandomAccessFile.readLine()) != null) {
-                line = line.trim();
+    /**
+     * Returns the protein indexed by the given index. The protein is read
+     * from the memory mapped FASTA file, several threads can read proteins at
+     * the same time.
+     *
+     * @param accession the accession of the protein
+     * @param index the index where to look at
+     *
+     * @return the protein indexed by the given index
+     */
+    private Protein getProtein(String accession, long index) {
 
-                if (line.startsWith(">")) {
-                    if (sequence.length() != 0 || headerFound) {
-                        break;
-                    }
-                    if (currentHeader == null) {
-                        currentHeader = Header.parseFromFASTA(line);
-                        if (currentHeader == null) {
-                            throw new IllegalArgumentException("Could not parse FASTA header \"" + line + "\".");
-                        }
-                        currentHeaderMap.put(accession, currentHeader);
-                    }
-                    headerFound = true;
-                } else {
-                    sequence.append(line.trim());
-                }
+        Header currentHeader = currentHeaderMap.get(accession);
+        if (currentHeader == null) {
+            String line = currentMappedFastaFile.readLine(index);
+            currentHeader = line == null ? null : Header.parseFromFASTA(line.trim());
+            if (currentHeader == null) {
+                throw new IllegalArgumentException("Could not parse FASTA header \"" + line + "\".");
             }
-            Protein currentProtein = new Protein(accession, currentHeader.getDatabaseType(), importSequenceFromFasta(sequence), isDecoyAccession(accession));
-
-            addProteinToCache(accession, currentProtein);
-
-            reading = false;
+            currentHeaderMap.put(accession, currentHeader, 0);
+        }
+        String sequence = currentMappedFastaFile.readSequence(index);
+        Protein currentProtein = new Protein(accession, currentHeader.getDatabaseType(), sequence, isDecoyAccession(accession));
 
-            return currentProtein;
+        addProteinToCache(accession, currentProtein);
 
-        } catch (IOException e) {
-            reading = false;
-            if (waitingTime < TIME_OUT) {
-                wait(waitingTime);
-                e.printStackTrace();
-                return getProtein(accession, index, 2 * waitingTime);
-            } else {
-                throw e;
-            }
-        }
+        return currentProtein;
     }
 
     /**
@@ -437,21 +413,16 @@ public class SequenceFactory {
     }
 
     /**
-     * Adds a protein to the cache and keeps it under the desired size.
+     * Adds a protein to the cache, the least recently used proteins are
+     * removed to keep the cache under the desired size.
      *
      * @param accession the accession of the protein to add
      * @param protein the protein to add
      */
-    private synchronized void addProteinToCache(String accession, Protein protein) {
-        while (loadedProteins.size() >= nCache) {
-            String accessionToRemove = loadedProteins.get(0);
-            currentProteinMap.remove(accessionToRemove);
-            currentHeaderMap.remove(accessionToRemove);
-            loadedProteins.remove(0);
-        }
-
-        loadedProteins.add(accession);
-        currentProteinMap.put(accession, protein);
+    private void addProteinToCache(String accession, Protein protein) {
+        // two bytes per character and the object headers of the protein and its strings
+        long bytes = 2L * (accession.length() + protein.getLength()) + 128;
+        currentProteinMap.put(accession, protein, bytes);
     }
 
     /**
@@ -492,55 +463,31 @@ public class SequenceFactory {
 
             if (index == null) {
                 if (reindex) {
-                    fastaIndex = getFastaIndex(true, null);
+                    reindex();
                     result = getHeader(accession, false);
                 }
                 throw new IllegalArgumentException("Protein not found: " + accession + ".");
             }
 
-            result = getHeader(index, 0);
+            result = getHeader(index);
 
-            currentHeaderMap.put(accession, result);
+            if (result != null) {
+                currentHeaderMap.put(accession, result, 0);
+            }
         }
 
         return result;
     }
 
     /**
-     * Returns the header indexed by the given index. It can be that the IO is
-     * busy (especially when working on distant servers) thus returning an
-     * error. The method will then try 100 times at 0.01 second intervals.
+     * Returns the header indexed by the given index.
      *
      * @param index the index where to look at
-     * @param nTries the number of tries already made
      *
      * @return the header indexed by the given index
-     *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading the FASTA file
-     * @throws java.lang.InterruptedException exception thrown whenever an error
-     * occurred while waiting for the connection to the FASTA file to recover.
      */
-    private synchronized Header getHeader(long index, int nTries) throws InterruptedException, IOException {
-
-        if (reading) {
-            throw new IllegalStateException("Attempting to read new line before current read operation is completed.");
-        }
-        try {
-            reading = true;
-            currentRandomAccessFile.seek(index);
-            Header result = Header.parseFromFASTA(currentRandomAccessFile.readLine());
-            reading = false;
-            return result;
-        } catch (IOException e) {
-            reading = false;
-            if (nTries <= 100) {
-                wait(10);
-                return getHeader(index, nTries + 1);
-            } else {
-                throw e;
-            }
-        }
+    private Header getHeader(long index) {
+        return Header.parseFromFASTA(currentMappedFastaFile.readLine(index));
     }
 
     /**
@@ -578,7 +525,7 @@ public class SequenceFactory {
 
         defaultPeptideMapper = null;
         currentFastaFile = fastaFile;
-        currentRandomAccessFile = new BufferedRandomAccessFile(fastaFile, "r", 1024 * 100);
+        currentMappedFastaFile = new MappedFastaFile(fastaFile);
         fastaIndex = getFastaIndex(false, waitingHandler);
     }
 
@@ -594,13 +541,12 @@ public class SequenceFactory {
     }
 
     /**
-     * Resets the connection to the random access file.
+     * Resets the connection to the FASTA file, i.e. maps the file again.
      *
      * @throws IOException if an IOException occurs
      */
     public void resetConnection() throws IOException {
-        currentRandomAccessFile.close();
-        currentRandomAccessFile = new BufferedRandomAccessFile(currentFastaFile, "r", 1024 * 100);
+        currentMappedFastaFile = new MappedFastaFile(currentFastaFile);
     }
 
     /**
@@ -673,6 +619,8 @@ public class SequenceFactory {
                     if (indexLastModified != null) {
                         long fileLastModified = fastaFile.lastModified();
                         if (indexLastModified == fileLastModified) {
+                            File accessionTableFile = new File(fastaFile.getParent(), getAccessionTableName(fileName));
+                            tempFastaIndex.setAccessionTable(AccessionTable.map(accessionTableFile, fileLastModified));
                             return tempFastaIndex;
                         } else {
                             System.err.println("Reindexing: " + fileName + ". (changes in the file detected)");
@@ -715,6 +663,7 @@ public class SequenceFactory {
         if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
             try {
                 writeIndex(tempFastaIndex, fastaFile.getParentFile());
+                writeAccessionTable(tempFastaIndex, fastaFile.getParentFile());
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -743,144 +692,153 @@ public class SequenceFactory {
     private static FastaIndex createFastaIndex(File fastaFile, String name, String decoyTag, String version,
             WaitingHandler waitingHandler) throws IOException {
 
-        HashMap<String, Long> indexes = new HashMap<String, Long>();
-        HashSet<String> decoyAccessions = new HashSet<String>();
-        BufferedRandomAccessFile bufferedRandomAccessFile = new BufferedRandomAccessFile(fastaFile, "r", 1024 * 100);
+        MappedFastaFile mappedFastaFile = new MappedFastaFile(fastaFile);
+        long fileLength = mappedFastaFile.length();
 
         if (waitingHandler != null) {
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setMaxSecondaryProgressCounter(100);
         }
 
-        long progressUnit = bufferedRandomAccessFile.length() / 100;
+        long progressUnit = fileLength / 100;
+
+        // split the file in ranges starting at a header, processed in parallel
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        long chunkLength = Math.max(fileLength / (4 * nThreads) + 1, MIN_INDEXING_CHUNK_LENGTH);
+        ArrayList<Long> chunkStarts = new ArrayList<Long>();
+        chunkStarts.add(0l);
+        long chunkStart = mappedFastaFile.getNextHeader(chunkLength);
+        while (chunkStart < fileLength) {
+            chunkStarts.add(chunkStart);
+            chunkStart = mappedFastaFile.getNextHeader(chunkStart + chunkLength);
+        }
+
+        // the decoy tag is inferred from the first accession matching a default tag
+        String[] candidateTags;
+        if (decoyTag == null) {
+            candidateTags = DECOY_FLAGS;
+        } else if (decoyTag.isEmpty()) {
+            candidateTags = new String[0];
+        } else {
+            candidateTags = new String[]{decoyTag};
+        }
+
+        AtomicLong progress = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, chunkStarts.size()));
+        ArrayList<Future<FastaChunkIndexer>> futures = new ArrayList<Future<FastaChunkIndexer>>(chunkStarts.size());
+        for (int i = 0; i < chunkStarts.size(); i++) {
+            long chunkEnd = i + 1 < chunkStarts.size() ? chunkStarts.get(i + 1) : fileLength;
+            futures.add(pool.submit(new FastaChunkIndexer(mappedFastaFile, chunkStarts.get(i), chunkEnd, candidateTags, waitingHandler, progress, progressUnit)));
+        }
+        pool.shutdown();
+
+        ArrayList<FastaChunkIndexer> chunkIndexers = new ArrayList<FastaChunkIndexer>(futures.size());
+        try {
+            for (Future<FastaChunkIndexer> future : futures) {
+                chunkIndexers.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new IOException("Indexing of " + fastaFile.getName() + " interrupted.", e);
+        } catch (ExecutionException e) {
+            // report the first error of the file
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("An error occurred while indexing " + fastaFile.getName() + ".", cause);
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        // get the decoy tag
+        int tagIndex = -1;
+        for (FastaChunkIndexer chunkIndexer : chunkIndexers) {
+            int firstTaggedRank = chunkIndexer.getFirstTaggedRank();
+            if (firstTaggedRank != -1) {
+                tagIndex = Integer.numberOfTrailingZeros(chunkIndexer.getTagMask(firstTaggedRank));
+                decoyTag = candidateTags[tagIndex];
+                break;
+            }
+        }
+        int tagBit = tagIndex == -1 ? 0 : 1 << tagIndex;
 
-        String line;
         boolean decoy = false, defaultReversed = false;
         int nTarget = 0;
-        long index = bufferedRandomAccessFile.getFilePointer();
 
         // a map of the database header types
         HashMap<Header.DatabaseType, Integer> databaseTypes = new HashMap<Header.DatabaseType, Integer>();
 
         // a map of the species
         HashMap<String, Integer> species = new HashMap<String, Integer>();
-        
-        // Keep track of the number of amino acids
-        int[] aaOccurrence = new int[26];
-        LinkedList<int[]> aaOccurrenceList = new LinkedList<int[]>();
-        int nAAs = 0;
 
-        StringBuilder sequenceBuilder = new StringBuilder();
-        String accession = null;
-        int lineNumber = 0;
+        // keep track of the number of amino acids
+        long[] aaCounts = new long[26];
 
-        while ((line = bufferedRandomAccessFile.readLine()) != null) {
+        AccessionTable.Builder accessionTableBuilder = new AccessionTable.Builder();
 
-            lineNumber++;
+        for (int i = 0; i < chunkIndexers.size(); i++) {
 
-            if (line.startsWith(">")) {
+            FastaChunkIndexer chunkIndexer = chunkIndexers.get(i);
 
-                if (sequenceBuilder.length() != 0 && accession != null) {
-                    String sequence = importSequenceFromFasta(sequenceBuilder);
-                    char[] aaSequence = sequence.toCharArray();
-                    try {
-                        validateSequence(aaSequence);
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException("An error occurred while parsing the sequence of " + accession + " at line " + lineNumber + ": " + e.toString());
-                    }
-                    for (char aa : aaSequence) {
-                        if (AminoAcid.isUniqueAa(aa)) {
-                            int aaIndex = aa - 65;
-                            aaOccurrence[aaIndex]++;
-                            nAAs++;
-                            if (nAAs == nAaOccurrence) {
-                                aaOccurrenceList.add(aaOccurrence);
-                                aaOccurrence = new int[26];
-                                nAAs = 0;
-                            }
-                        }
+            if (tagIndex != -1 && !decoy) {
+                String firstDecoyAccession = chunkIndexer.getFirstTaggedAccession(tagIndex);
+                if (firstDecoyAccession != null) {
+                    decoy = true;
+                    if (firstDecoyAccession.endsWith(getDefaultDecoyAccessionSuffix())) {
+                        defaultReversed = true;
                     }
                 }
+            }
 
-                Header fastaHeader = Header.parseFromFASTA(line);
-                accession = fastaHeader.getAccessionOrRest();
-                if (accession == null) {
-                    throw new IllegalArgumentException("No accession found for header at line " + lineNumber + ".");
-                }
-
-//                if (fastaHeader.getStartLocation() != -1) {
-//                    accession += " (" + fastaHeader.getStartLocation() + "-" + fastaHeader.getEndLocation() + ")"; // special dbtoolkit pattern
-//                }
-
-                // check accessions for quotation marks
-                if (accession.lastIndexOf("'") != -1 || accession.lastIndexOf("\"") != -1) {
-                    throw new IllegalArgumentException("Accession numbers cannot contain quotation marks: \'" + accession + "\'!\nPlease check your FASTA file.");
-                }
-
-                // check if the accession number is unique
-                if (indexes.containsKey(accession)) {
-                    throw new IllegalArgumentException("Non unique accession number found \'" + accession + "\'!\nPlease check your FASTA file.");
-                }
-
-                indexes.put(accession, index);
-                if (decoyTag == null) {
-                    decoyTag = getDecoyFlag(accession);
-                }
-                if (decoyTag == null || !isDecoy(accession, decoyTag)) {
-                    nTarget++;
-
-                    // get the database type
-                    Header.DatabaseType tempDatabaseType = fastaHeader.getDatabaseType();
-                    Integer typeCounter = databaseTypes.get(tempDatabaseType);
-
-                    if (typeCounter == null) {
-                        databaseTypes.put(tempDatabaseType, 1);
-                    } else {
-                        databaseTypes.put(tempDatabaseType, typeCounter + 1);
+            AccessionTable.Builder chunkAccessions = chunkIndexer.getAccessions();
+            int offset = accessionTableBuilder.size();
+            accessionTableBuilder.addAll(chunkAccessions, 0);
+            if (tagBit != 0) {
+                for (int rank = 0; rank < chunkAccessions.size(); rank++) {
+                    if ((chunkIndexer.getTagMask(rank) & tagBit) != 0) {
+                        accessionTableBuilder.setDecoy(offset + rank);
                     }
+                }
+            }
 
-                    // get the species
-                    String taxonomy = fastaHeader.getTaxonomy();
-                    if (taxonomy == null || taxonomy.equals("")) {
-                        taxonomy = SpeciesFactory.UNKNOWN;
-                    }
-                    Integer occurrence = species.get(taxonomy);
-                    if (occurrence == null) {
-                        species.put(taxonomy, 1);
-                    } else {
-                        species.put(taxonomy, occurrence + 1);
+            // tally the target proteins
+            for (int mask = 0; mask < 1 << candidateTags.length; mask++) {
+                if ((mask & tagBit) == 0) {
+                    nTarget += chunkIndexer.getMaskCount(mask);
+                    HashMap<Header.DatabaseType, Integer> chunkDatabaseTypes = chunkIndexer.getDatabaseTypes().get(mask);
+                    if (chunkDatabaseTypes != null) {
+                        for (Header.DatabaseType tempDatabaseType : chunkDatabaseTypes.keySet()) {
+                            Integer typeCounter = databaseTypes.get(tempDatabaseType);
+                            int chunkCounter = chunkDatabaseTypes.get(tempDatabaseType);
+                            databaseTypes.put(tempDatabaseType, typeCounter == null ? chunkCounter : typeCounter + chunkCounter);
+                        }
                     }
-
-                } else {
-                    decoyAccessions.add(accession);
-                    if (!decoy) {
-                        decoy = true;
-                        if (accession.endsWith(getDefaultDecoyAccessionSuffix())) {
-                            defaultReversed = true;
+                    HashMap<String, Integer> chunkSpecies = chunkIndexer.getSpecies().get(mask);
+                    if (chunkSpecies != null) {
+                        for (String taxonomy : chunkSpecies.keySet()) {
+                            Integer occurrence = species.get(taxonomy);
+                            int chunkOccurrence = chunkSpecies.get(taxonomy);
+                            species.put(taxonomy, occurrence == null ? chunkOccurrence : occurrence + chunkOccurrence);
                         }
                     }
                 }
+            }
 
-                if (waitingHandler != null && progressUnit != 0) {
-                    waitingHandler.setSecondaryProgressCounter((int) (index / progressUnit));
-                    if (waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-                }
-                index = bufferedRandomAccessFile.getFilePointer();
-                sequenceBuilder = new StringBuilder();
-            } else {
-                index = bufferedRandomAccessFile.getFilePointer();
-                sequenceBuilder.append(line.trim());
+            long[] chunkAaCounts = chunkIndexer.getAaCounts();
+            for (int j = 0; j < aaCounts.length; j++) {
+                aaCounts[j] += chunkAaCounts[j];
             }
-        }
 
-        if (waitingHandler != null) {
-            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+            // release the chunk
+            chunkIndexers.set(i, null);
         }
 
-        bufferedRandomAccessFile.close();
-
         long lastModified = fastaFile.lastModified();
 
         if (version == null) {
@@ -892,7 +850,18 @@ public class SequenceFactory {
             name = Util.removeExtension(fileName);
         }
 
-        // find the main database type
+        return new FastaIndex(accessionTableBuilder.build(), fileName, name, decoy, defaultReversed, nTarget, lastModified,
+                getMainDatabaseType(databaseTypes), databaseTypes, decoyTag, version, species, getAaOccurrence(aaCounts));
+    }
+
+    /**
+     * Returns the most frequent database type.
+     *
+     * @param databaseTypes the occurrence of the database types
+     *
+     * @return the main database type, null if none
+     */
+    private static Header.DatabaseType getMainDatabaseType(HashMap<Header.DatabaseType, Integer> databaseTypes) {
         Header.DatabaseType mainDatabaseType = null;
         int maxCounter = 0;
         Iterator<Header.DatabaseType> iterator = databaseTypes.keySet().iterator();
@@ -903,21 +872,28 @@ public class SequenceFactory {
                 mainDatabaseType = tempDatabaseType;
             }
         }
-        
-        // Aggregate the amino acid occurrence lists
-        double scaling = ((double) nAAs)/nAaOccurrence;
-        scaling += aaOccurrenceList.size();
-        double[] aaOccurrenceSummary = new double[aaOccurrence.length];
-        for (int[] aaOccurrenceTemp : aaOccurrenceList) {
-            for (int i = 0 ; i < aaOccurrenceTemp.length ; i++) {
-                aaOccurrenceSummary[i] += ((double) aaOccurrenceTemp[i]) / scaling;
-            }
+        return mainDatabaseType;
+    }
+
+    /**
+     * Returns the occurrence of every amino acid scaled to nAaOccurrence
+     * amino acids.
+     *
+     * @param aaCounts the number of amino acids per letter
+     *
+     * @return the occurrence of every amino acid
+     */
+    private static int[] getAaOccurrence(long[] aaCounts) {
+        long nAAs = 0;
+        for (long aaCount : aaCounts) {
+            nAAs += aaCount;
         }
-        for (int i = 0 ; i < aaOccurrence.length ; i++) {
-            aaOccurrence[i] = (int) ((((double) aaOccurrence[i]) / scaling) + aaOccurrenceSummary[i]);
+        double scaling = ((double) nAAs) / nAaOccurrence;
+        int[] aaOccurrence = new int[aaCounts.length];
+        for (int i = 0; i < aaOccurrence.length; i++) {
+            aaOccurrence[i] = (int) (aaCounts[i] / scaling);
         }
-
-        return new FastaIndex(indexes, decoyAccessions, fileName, name, decoy, defaultReversed, nTarget, lastModified, mainDatabaseType, databaseTypes, decoyTag, version, species, aaOccurrence);
+        return aaOccurrence;
     }
 
     /**
@@ -935,6 +911,33 @@ public class SequenceFactory {
         SerializationUtils.writeObject(fastaIndex, destinationFile);
     }
 
+    /**
+     * Writes the accession table of the FASTA file index in a given directory
+     * and maps the index to the written file, releasing the table from the
+     * heap. The table is written to a temporary file renamed when complete. If
+     * the file cannot be replaced, the table is kept on the heap and the FASTA
+     * file will be reindexed at the next loading.
+     *
+     * @param fastaIndex the index of the FASTA file
+     * @param directory the directory where to write the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public static void writeAccessionTable(FastaIndex fastaIndex, File directory) throws IOException {
+        File destinationFile = new File(directory, getAccessionTableName(fastaIndex.getFileName()));
+        File tempFile = new File(directory, destinationFile.getName() + "_temp");
+        fastaIndex.getAccessionTable().write(tempFile, fastaIndex.getLastModified());
+        if (!tempFile.renameTo(destinationFile)) {
+            // some systems do not allow renaming over an existing file
+            if (!destinationFile.delete() || !tempFile.renameTo(destinationFile)) {
+                tempFile.delete();
+                throw new IOException("Impossible to write the accession table to " + destinationFile.getAbsolutePath() + ".");
+            }
+        }
+        fastaIndex.setAccessionTable(AccessionTable.map(destinationFile, fastaIndex.getLastModified()));
+    }
+
     /**
      * Returns the name of the FASTA index corresponding to the given FASTA file
      * name.
@@ -947,6 +950,18 @@ public class SequenceFactory {
         return fastaName + ".cui";
     }
 
+    /**
+     * Returns the name of the accession table of the FASTA index corresponding
+     * to the given FASTA file name.
+     *
+     * @param fastaName the name of the FASTA file
+     *
+     * @return the name of the accession table
+     */
+    public static String getAccessionTableName(String fastaName) {
+        return fastaName + ".cua";
+    }
+
     /**
      * Saves the index.
      *
@@ -965,8 +980,8 @@ public class SequenceFactory {
      * @throws InterruptedException exception thrown if a threading error occurs
      */
     public void closeFile() throws IOException, SQLException, InterruptedException {
-        if (currentRandomAccessFile != null) {
-            currentRandomAccessFile.close();
+        if (currentMappedFastaFile != null) {
+            currentMappedFastaFile = null;
             currentFastaFile = null;
         }
         if (defaultPeptideMapper != null) {
@@ -1090,94 +1105,195 @@ public class SequenceFactory {
      */
     public void appendDecoySequences(File destinationFile, WaitingHandler waitingHandler)
             throws IOException, InterruptedException, ClassNotFoundException {
+        appendDecoySequences(destinationFile, DecoyType.reversed, null, waitingHandler);
+    }
+
+    /**
+     * Writes the target proteins of the loaded FASTA file followed by their
+     * decoy to the desired file, and loads it. The loaded file is read in
+     * blocks processed in parallel and written in order. Unless the loaded
+     * file already contains decoys, the index of the new file is built from
+     * the blocks and the file is not read again.
+     *
+     * @param destinationFile the destination file
+     * @param decoyType the type of decoy to generate
+     * @param enzyme the enzyme used to pseudo-reverse the sequences, can be
+     * null for other decoy types
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException if an InterruptedException occurs
+     * @throws ClassNotFoundException if an ClassNotFoundException occurs
+     */
+    public void appendDecoySequences(File destinationFile, DecoyType decoyType, Enzyme enzyme, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException {
+
+        if (decoyType == DecoyType.pseudo_reversed && enzyme == null) {
+            throw new IllegalArgumentException("An enzyme is needed to pseudo-reverse the sequences.");
+        }
 
         if (waitingHandler != null) {
             waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(fastaIndex.getNTarget());
+            waitingHandler.setMaxSecondaryProgressCounter(100);
         }
 
-        // first create the new target-decoy file
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(destinationFile));
+        MappedFastaFile mappedFastaFile = currentMappedFastaFile;
+        FastaIndex targetIndex = fastaIndex;
+        long fileLength = mappedFastaFile.length();
+        Charset charset = Charset.defaultCharset();
         String lineBreak = System.getProperty("line.separator");
 
-        try {
-            ProteinIterator proteinIterator = getProteinIterator(true);
+        AccessionTable.Builder accessionTableBuilder = new AccessionTable.Builder();
+        int nTarget = 0;
+        HashMap<Header.DatabaseType, Integer> databaseTypes = new HashMap<Header.DatabaseType, Integer>();
+        HashMap<String, Integer> species = new HashMap<String, Integer>();
+        long[] aaCounts = new long[26];
 
-            while (proteinIterator.hasNext()) {
+        // the blocks are generated in parallel and written in order, keeping a bounded number of blocks in memory
+        int nThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        int maxPendingBlocks = 2 * nThreads;
+        ArrayDeque<Future<DecoyChunkGenerator>> pendingBlocks = new ArrayDeque<Future<DecoyChunkGenerator>>(maxPendingBlocks);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(destinationFile), 1024 * 1024);
+        long written = 0;
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
+        try {
+            long blockStart = 0;
+            while (blockStart < fileLength || !pendingBlocks.isEmpty()) {
 
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
+                while (blockStart < fileLength && pendingBlocks.size() < maxPendingBlocks) {
+                    long blockEnd = mappedFastaFile.getNextHeader(blockStart + DECOY_BLOCK_LENGTH);
+                    pendingBlocks.add(pool.submit(new DecoyChunkGenerator(mappedFastaFile, targetIndex, blockStart, blockEnd, decoyType, enzyme, charset, lineBreak, waitingHandler)));
+                    blockStart = blockEnd;
                 }
 
-                Protein currentProtein = proteinIterator.getNextProtein();
-                String accession = currentProtein.getAccession();
-                Header currentHeader = getHeader(accession);
+                DecoyChunkGenerator block;
+                try {
+                    block = pendingBlocks.removeFirst().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException("An error occurred while generating the decoy sequences.", cause);
+                }
 
-                String decoyAccession = getDefaultDecoyAccession(currentProtein.getAccession());
-//                String decoyAccession ="rev_" + currentProtein.getAccession(); Header for the TPP
-                String currentRawHeader = currentHeader.getRawHeader();
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
+                }
 
-                // replace the accession number
-                String escapedString = java.util.regex.Pattern.quote(accession);
-                currentRawHeader = currentRawHeader.replaceAll(escapedString, decoyAccession);
+                byte[] output = block.getOutput();
+                outputStream.write(output);
+                accessionTableBuilder.addAll(block.getAccessions(), written);
+                written += output.length;
 
-                // add decoy to the description
-                if (currentHeader.getDescription() != null && !currentHeader.getDescription().isEmpty()) {
-                    escapedString = java.util.regex.Pattern.quote(currentHeader.getDescription());
-                    currentRawHeader = currentRawHeader.replaceAll(escapedString, getDefaultDecoyDescription(currentHeader.getDescription()));
+                nTarget += block.getNTarget();
+                for (Header.DatabaseType tempDatabaseType : block.getDatabaseTypes().keySet()) {
+                    Integer typeCounter = databaseTypes.get(tempDatabaseType);
+                    int blockCounter = block.getDatabaseTypes().get(tempDatabaseType);
+                    databaseTypes.put(tempDatabaseType, typeCounter == null ? blockCounter : typeCounter + blockCounter);
+                }
+                for (String taxonomy : block.getSpecies().keySet()) {
+                    Integer occurrence = species.get(taxonomy);
+                    int blockOccurrence = block.getSpecies().get(taxonomy);
+                    species.put(taxonomy, occurrence == null ? blockOccurrence : occurrence + blockOccurrence);
+                }
+                long[] blockAaCounts = block.getAaCounts();
+                for (int i = 0; i < aaCounts.length; i++) {
+                    aaCounts[i] += blockAaCounts[i];
                 }
 
-                // write the target protein to the fasta file
-                bufferedWriter.write(currentHeader.getRawHeader() + lineBreak);
-                bufferedWriter.write(currentProtein.getSequence() + lineBreak);
-
-                // write the decoy protein to the fasta file
-                bufferedWriter.write(currentRawHeader + lineBreak);
-                bufferedWriter.write(reverseSequence(currentProtein.getSequence()) + lineBreak);
-
-                // possible fix for the dbtoolkit uniprot format
-//            Protein currentProtein = getProtein(accession);
-//            Header currentHeader = getHeader(accession);
-//            String reversedSequence = reverseSequence(currentProtein.getSequence());
-//
-//            bufferedWriter.write(currentHeader.toString() + System.getProperty("line.separator"));
-//            bufferedWriter.write(currentProtein.getSequence() + System.getProperty("line.separator"));
-//
-//            // @TODO: this might not be the best way of doing this, but was easier than trying to change the parsing in the Header class...
-//            if (currentHeader.toString("_" + decoyFlags[0]).equalsIgnoreCase(currentHeader.toString())) {
-//                currentHeader.setRest(currentProtein.getAccession() + "_" + decoyFlags[0]);
-//            }
-//
-//            bufferedWriter.write(currentHeader.toString("_" + decoyFlags[0]) + System.getProperty("line.separator"));
-//            bufferedWriter.write(reversedSequence + System.getProperty("line.separator"));
+                if (waitingHandler != null) {
+                    waitingHandler.setSecondaryProgressCounter((int) (100 * block.getEnd() / fileLength));
+                }
             }
-
         } finally {
-            bufferedWriter.close();
+            pool.shutdownNow();
+            outputStream.close();
         }
 
         if (waitingHandler != null) {
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+            if (waitingHandler.isRunCanceled()) {
+                destinationFile.delete();
+                return;
+            }
         }
 
-        boolean indexFile = true;
+        // when the loaded file has no decoy, the decoy flag is the first flag found in the new file
+        if (targetIndex.getDecoyTag() == null) {
+            try {
+                writeDecoyIndex(destinationFile, accessionTableBuilder.build(), decoyType, nTarget, databaseTypes, species, aaCounts);
+            } catch (Exception e) {
+                // the file will be indexed when loading
+                e.printStackTrace();
+            }
+        }
 
-        if (waitingHandler != null) {
-            if (waitingHandler.isRunCanceled()) {
-                indexFile = false;
+        loadFastaFile(destinationFile, waitingHandler);
+    }
+
+    /**
+     * Writes the index of a target/decoy file built while writing the file.
+     * The user settings of a previous index are kept, if the previous index
+     * used another decoy tag nothing is written.
+     *
+     * @param fastaFile the target/decoy file
+     * @param accessionTable the accessions of the file
+     * @param decoyType the type of decoys in the file
+     * @param nTarget the number of target proteins
+     * @param databaseTypes the occurrence of the database types of the target
+     * proteins
+     * @param species the occurrence of the species of the target proteins
+     * @param aaCounts the number of amino acids per letter
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the index
+     */
+    private static void writeDecoyIndex(File fastaFile, AccessionTable accessionTable, DecoyType decoyType, int nTarget,
+            HashMap<Header.DatabaseType, Integer> databaseTypes, HashMap<String, Integer> species, long[] aaCounts) throws IOException {
+
+        boolean decoy = accessionTable.size() > nTarget;
+        String decoyTag = decoy ? decoyType.flag : null;
+
+        // try to rescue user settings
+        String fileName = fastaFile.getName();
+        String name = Util.removeExtension(fileName);
+        String version = null;
+        String description = null;
+        String accessionParsingRule = null;
+        File indexFile = new File(fastaFile.getParentFile(), getIndexName(fileName));
+
+        if (indexFile.exists()) {
+            try {
+                FastaIndex previousIndex = (FastaIndex) SerializationUtils.readObject(indexFile);
+                if (previousIndex.getDecoyTag() != null && !previousIndex.getDecoyTag().equals(decoyTag)) {
+                    return;
+                }
+                version = previousIndex.getVersion();
+                name = previousIndex.getName();
+                description = previousIndex.getDescription();
+                accessionParsingRule = previousIndex.getAccessionParsingRule();
+            } catch (Exception e) {
+                // Fail silently
             }
         }
 
-        if (indexFile) {
-            // now (re-)index the new target-decoy file
-            loadFastaFile(destinationFile, waitingHandler);
-        } else {
-            destinationFile.delete();
+        long lastModified = fastaFile.lastModified();
+        if (version == null) {
+            version = FastaIndex.getDefaultVersion(lastModified);
         }
+
+        FastaIndex decoyIndex = new FastaIndex(accessionTable, fileName, name, decoy, decoy && decoyType == DecoyType.reversed, nTarget, lastModified,
+                getMainDatabaseType(databaseTypes), databaseTypes, decoyTag, version, species, getAaOccurrence(aaCounts));
+        decoyIndex.setDescription(description);
+        decoyIndex.setAccessionParsingRule(accessionParsingRule);
+
+        writeIndex(decoyIndex, fastaFile.getParentFile());
+        writeAccessionTable(decoyIndex, fastaFile.getParentFile());
     }
 
     /**
@@ -1190,6 +1306,54 @@ public class SequenceFactory {
         return new StringBuilder(sequence).reverse().toString();
     }
 
+    /**
+     * Shuffles a protein sequence. The same sequence and seed always give the
+     * same result.
+     *
+     * @param sequence the protein sequence
+     * @param seed the seed of the shuffling
+     *
+     * @return the shuffled protein sequence
+     */
+    public static String shuffleSequence(String sequence, long seed) {
+        char[] aas = sequence.toCharArray();
+        Random random = new Random(seed);
+        for (int i = aas.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            char aa = aas[i];
+            aas[i] = aas[j];
+            aas[j] = aa;
+        }
+        return new String(aas);
+    }
+
+    /**
+     * Reverses every peptide of a protein sequence between the cleavage sites
+     * of the given enzyme, keeping the residue before every cleavage site and
+     * the C-terminal residue in place. For trypsin, the decoy peptides have
+     * the mass and C-terminal residue of the target peptides.
+     *
+     * @param sequence the protein sequence
+     * @param enzyme the enzyme
+     *
+     * @return the pseudo-reversed protein sequence
+     */
+    public static String pseudoReverseSequence(String sequence, Enzyme enzyme) {
+        char[] aas = sequence.toCharArray();
+        int peptideStart = 0;
+        for (int i = 0; i < aas.length; i++) {
+            if (i == aas.length - 1 || enzyme.isCleavageSite(sequence.charAt(i), sequence.charAt(i + 1))) {
+                for (int j = peptideStart, k = i - 1; j < k; j++, k--) {
+                    char aa = aas[j];
+                    aas[j] = aas[k];
+                    aas[k] = aa;
+                }
+                peptideStart = i + 1;
+            }
+        }
+        return new String(aas);
+    }
+
     /**
      * Returns the sequences present in the database. An empty list if no file
      * is loaded.
@@ -1199,7 +1363,7 @@ public class SequenceFactory {
     public Set<String> getAccessions() {
         Set<String> setToFill = new HashSet<String>();
         if (fastaIndex != null) {
-            setToFill = fastaIndex.getIndexes().keySet();
+            setToFill = fastaIndex.getAccessions();
         }
         return setToFill;
     }
@@ -1214,12 +1378,57 @@ public class SequenceFactory {
     }
 
     /**
-     * Sets the size of the cache.
+     * Sets the size of the cache. Changing the size empties the cache.
      *
      * @param nCache the new size of the cache
      */
     public void setnCache(int nCache) {
         this.nCache = nCache;
+        currentProteinMap.setBounds(nCache, cacheMaxBytes);
+        currentHeaderMap.setBounds(nCache, 0);
+    }
+
+    /**
+     * Returns the maximal estimated size of the proteins in cache in bytes,
+     * no limit if zero or negative.
+     *
+     * @return the maximal estimated size of the proteins in cache in bytes
+     */
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the maximal estimated size of the proteins in cache in bytes, no
+     * limit if zero or negative. The cache is then bounded both by the number
+     * of proteins and their size. Changing the size empties the cache.
+     *
+     * @param cacheMaxBytes the maximal estimated size of the proteins in
+     * cache in bytes
+     */
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        currentProteinMap.setBounds(nCache, cacheMaxBytes);
+    }
+
+    /**
+     * Returns the cache of the proteins, giving access to its hit rate and
+     * evictions.
+     *
+     * @return the cache of the proteins
+     */
+    public SequenceCache<Protein> getProteinCache() {
+        return currentProteinMap;
+    }
+
+    /**
+     * Returns the cache of the headers, giving access to its hit rate and
+     * evictions.
+     *
+     * @return the cache of the headers
+     */
+    public SequenceCache<Header> getHeaderCache() {
+        return currentHeaderMap;
     }
 
     /**
@@ -1480,7 +1689,7 @@ public class SequenceFactory {
             PeptideMapperType peptideMapperType = sequenceMatchingPreferences.getPeptideMapperType();
             switch (peptideMapperType) {
                 case fm_index:
-                    defaultPeptideMapper = new FMIndex(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters);
+                    defaultPeptideMapper = new FMIndex(waitingHandler, displayProgress, peptideVariantsPreferences, searchParameters, nThreads);
                     break;
                 case tree:
 
@@ -0,0 +1,86 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.Peptide;
+import java.util.ArrayList;
+
+/**
+ * A unique peptide found when digesting a database and the proteins where it
+ * was found.
+ *
+ * @author agent
+ */
+public class DigestedPeptide {
+
+    /**
+     * The peptide.
+     */
+    private final Peptide peptide;
+    /**
+     * The mass of the peptide.
+     */
+    private final double mass;
+    /**
+     * The accessions of the proteins where the peptide was found.
+     */
+    private final ArrayList<String> accessions;
+    /**
+     * The indexes of the proteins where the peptide was found in the order of
+     * the database.
+     */
+    private final int[] proteinIndexes;
+
+    /**
+     * Constructor.
+     *
+     * @param peptide the peptide
+     * @param mass the mass of the peptide
+     * @param accessions the accessions of the proteins where the peptide was
+     * found
+     * @param proteinIndexes the indexes of the proteins where the peptide was
+     * found
+     */
+    public DigestedPeptide(Peptide peptide, double mass, ArrayList<String> accessions, int[] proteinIndexes) {
+        this.peptide = peptide;
+        this.mass = mass;
+        this.accessions = accessions;
+        this.proteinIndexes = proteinIndexes;
+    }
+
+    /**
+     * Returns the peptide with its fixed modifications.
+     *
+     * @return the peptide
+     */
+    public Peptide getPeptide() {
+        return peptide;
+    }
+
+    /**
+     * Returns the mass of the peptide.
+     *
+     * @return the mass of the peptide
+     */
+    public double getMass() {
+        return mass;
+    }
+
+    /**
+     * Returns the accessions of the proteins where the peptide was found, in
+     * the order of the database.
+     *
+     * @return the accessions of the proteins
+     */
+    public ArrayList<String> getAccessions() {
+        return accessions;
+    }
+
+    /**
+     * Returns the indexes of the proteins where the peptide was found in the
+     * order of the database, in ascending order.
+     *
+     * @return the indexes of the proteins
+     */
+    public int[] getProteinIndexes() {
+        return proteinIndexes;
+    }
+}
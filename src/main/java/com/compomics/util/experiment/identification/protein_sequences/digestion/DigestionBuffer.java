@@ -0,0 +1,183 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer of digested peptides encoded as primitives: the index of
+ * the protein, the start and end of the peptide on the protein, its mass, its
+ * number of missed cleavages and the fixed modifications it carries. The
+ * arrays grow as needed and are kept when the buffer is cleared, so that
+ * filling the buffer again does not allocate.
+ *
+ * @author agent
+ */
+public class DigestionBuffer {
+
+    /**
+     * The number of peptides in the buffer.
+     */
+    private int size = 0;
+    /**
+     * The index of the protein of every peptide.
+     */
+    private int[] proteinIndexes;
+    /**
+     * The start of every peptide on the protein, inclusive.
+     */
+    private int[] starts;
+    /**
+     * The end of every peptide on the protein, exclusive.
+     */
+    private int[] ends;
+    /**
+     * The mass of every peptide.
+     */
+    private double[] masses;
+    /**
+     * The number of missed cleavages of every peptide.
+     */
+    private int[] missedCleavages;
+    /**
+     * The fixed modifications of every peptide as bit mask of their index in
+     * the list of fixed modifications.
+     */
+    private long[] fixedModifications;
+
+    /**
+     * Constructor.
+     */
+    public DigestionBuffer() {
+        this(1024);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the initial number of peptides the buffer can hold
+     */
+    public DigestionBuffer(int capacity) {
+        capacity = Math.max(1, capacity);
+        proteinIndexes = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        masses = new double[capacity];
+        missedCleavages = new int[capacity];
+        fixedModifications = new long[capacity];
+    }
+
+    /**
+     * Adds a peptide to the buffer.
+     *
+     * @param proteinIndex the index of the protein
+     * @param start the start of the peptide on the protein, inclusive
+     * @param end the end of the peptide on the protein, exclusive
+     * @param mass the mass of the peptide
+     * @param nMissedCleavages the number of missed cleavages
+     * @param fixedModificationsMask the fixed modifications as bit mask
+     */
+    public void add(int proteinIndex, int start, int end, double mass, int nMissedCleavages, long fixedModificationsMask) {
+        if (size == starts.length) {
+            int capacity = 2 * size;
+            proteinIndexes = Arrays.copyOf(proteinIndexes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            masses = Arrays.copyOf(masses, capacity);
+            missedCleavages = Arrays.copyOf(missedCleavages, capacity);
+            fixedModifications = Arrays.copyOf(fixedModifications, capacity);
+        }
+        proteinIndexes[size] = proteinIndex;
+        starts[size] = start;
+        ends[size] = end;
+        masses[size] = mass;
+        missedCleavages[size] = nMissedCleavages;
+        fixedModifications[size] = fixedModificationsMask;
+        size++;
+    }
+
+    /**
+     * Empties the buffer, the memory is kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the number of peptides in the buffer.
+     *
+     * @return the number of peptides in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the protein of the peptide at the given index.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the index of the protein
+     */
+    public int getProteinIndex(int i) {
+        return proteinIndexes[i];
+    }
+
+    /**
+     * Returns the start of the peptide at the given index on its protein,
+     * inclusive.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the start of the peptide
+     */
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * Returns the end of the peptide at the given index on its protein,
+     * exclusive.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the end of the peptide
+     */
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Returns the mass of the peptide at the given index.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the mass of the peptide
+     */
+    public double getMass(int i) {
+        return masses[i];
+    }
+
+    /**
+     * Returns the number of missed cleavages of the peptide at the given
+     * index.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the number of missed cleavages
+     */
+    public int getMissedCleavages(int i) {
+        return missedCleavages[i];
+    }
+
+    /**
+     * Returns the fixed modifications of the peptide at the given index as
+     * bit mask: the bit of index k is set if the peptide carries the k-th
+     * fixed modification.
+     *
+     * @param i the index of the peptide in the buffer
+     *
+     * @return the fixed modifications as bit mask
+     */
+    public long getFixedModifications(int i) {
+        return fixedModifications[i];
+    }
+}
@@ -0,0 +1,22 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import java.util.ArrayList;
+
+/**
+ * Listener receiving the unique peptides of a database digestion by mass
+ * bucket.
+ *
+ * @author agent
+ */
+public interface DigestionListener {
+
+    /**
+     * Called once for every mass bucket containing peptides, in ascending
+     * order of mass and never concurrently.
+     *
+     * @param bucketMassMin the minimal mass of the bucket, inclusive
+     * @param bucketMassMax the maximal mass of the bucket, exclusive
+     * @param peptides the unique peptides of the bucket sorted by mass
+     */
+    public void bucketDigested(double bucketMassMin, double bucketMassMax, ArrayList<DigestedPeptide> peptides);
+}
@@ -46,6 +46,15 @@ public class IteratorFactory {
         this(fixedModifications, null);
     }
 
+    /**
+     * Returns the utils used to generate the peptides.
+     *
+     * @return the utils used to generate the peptides
+     */
+    public ProteinIteratorUtils getProteinIteratorUtils() {
+        return proteinIteratorUtils;
+    }
+
     /**
      * Returns a sequence iterator for the given protein sequence and digestion
      * preferences.
@@ -86,4 +95,19 @@ public class IteratorFactory {
                 throw new UnsupportedOperationException("Cleavage preference of type " + digestionPreferences.getCleavagePreference() + " not supported.");
         }
     }
+
+    /**
+     * Returns a digester filling buffers of primitives for the given digestion
+     * preferences. The digester can be reused for all proteins but is not
+     * thread safe.
+     *
+     * @param digestionPreferences the digestion preferences to use
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     *
+     * @return a primitive digester
+     */
+    public PrimitiveDigester getPrimitiveDigester(DigestionPreferences digestionPreferences, double massMin, double massMax) {
+        return new PrimitiveDigester(proteinIteratorUtils, digestionPreferences, massMin, massMax);
+    }
 }
@@ -0,0 +1,771 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Index of the peptides of a database sorted by mass. The peptides are stored
+ * in columns: masses, sequences one byte per residue, fixed modifications,
+ * and the indexes of the proteins where they were found, each column being
+ * mapped from a binary file. The peptides of a mass range are found by binary
+ * search on the masses in O(log n) and read in O(k) without digesting the
+ * database again.
+ *
+ * @author agent
+ */
+public class PeptideMassIndex {
+
+    /**
+     * The magic number at the start of a peptide mass index file.
+     */
+    private static final int MAGIC = 0x4355504D;
+    /**
+     * The version of the file format, to increment when changing it.
+     */
+    public static final int FORMAT_VERSION = 2;
+    /**
+     * The key identifying the database and the digestion settings of the
+     * index, see getIndexKey.
+     */
+    private final String indexKey;
+    /**
+     * The last modification of the indexed FASTA file.
+     */
+    private final long fastaLastModified;
+    /**
+     * The names of the fixed modifications in the order of their index.
+     */
+    private final ArrayList<String> modifications;
+    /**
+     * The number of peptides.
+     */
+    private final int size;
+    /**
+     * The mass of every peptide in ascending order.
+     */
+    private final DoubleBuffer masses;
+    /**
+     * The start of every sequence in the sequence bytes, followed by the total
+     * number of bytes.
+     */
+    private final IntBuffer sequenceStarts;
+    /**
+     * The sequences, one byte per residue.
+     */
+    private final ByteBuffer sequences;
+    /**
+     * The start of the modifications of every peptide, followed by the total
+     * number of modifications.
+     */
+    private final IntBuffer modificationStarts;
+    /**
+     * The modifications, the site shifted by eight bits and the index of the
+     * modification.
+     */
+    private final IntBuffer modificationSites;
+    /**
+     * The start of the proteins of every peptide, followed by the total number
+     * of protein references.
+     */
+    private final IntBuffer proteinStarts;
+    /**
+     * The indexes of the proteins of every peptide.
+     */
+    private final IntBuffer proteins;
+    /**
+     * The number of proteins.
+     */
+    private final int nProteins;
+    /**
+     * The start of every accession in the accession bytes, followed by the
+     * total number of bytes.
+     */
+    private final IntBuffer accessionStarts;
+    /**
+     * The accessions of the proteins in the order of the database, one byte
+     * per character.
+     */
+    private final ByteBuffer accessions;
+
+    /**
+     * Constructor.
+     *
+     * @param indexKey the key identifying the database and the digestion
+     * settings of the index
+     * @param fastaLastModified the last modification of the indexed FASTA file
+     * @param modifications the names of the fixed modifications
+     * @param size the number of peptides
+     * @param masses the masses
+     * @param sequenceStarts the start of every sequence
+     * @param sequences the sequence bytes
+     * @param modificationStarts the start of the modifications of every
+     * peptide
+     * @param modificationSites the modifications
+     * @param proteinStarts the start of the proteins of every peptide
+     * @param proteins the indexes of the proteins
+     * @param nProteins the number of proteins
+     * @param accessionStarts the start of every accession
+     * @param accessions the accession bytes
+     */
+    private PeptideMassIndex(String indexKey, long fastaLastModified, ArrayList<String> modifications, int size, DoubleBuffer masses, IntBuffer sequenceStarts, ByteBuffer sequences,
+            IntBuffer modificationStarts, IntBuffer modificationSites, IntBuffer proteinStarts, IntBuffer proteins, int nProteins, IntBuffer accessionStarts, ByteBuffer accessions) {
+        this.indexKey = indexKey;
+        this.fastaLastModified = fastaLastModified;
+        this.modifications = modifications;
+        this.size = size;
+        this.masses = masses;
+        this.sequenceStarts = sequenceStarts;
+        this.sequences = sequences;
+        this.modificationStarts = modificationStarts;
+        this.modificationSites = modificationSites;
+        this.proteinStarts = proteinStarts;
+        this.proteins = proteins;
+        this.nProteins = nProteins;
+        this.accessionStarts = accessionStarts;
+        this.accessions = accessions;
+    }
+
+    /**
+     * Returns the key identifying the database and the digestion settings of
+     * the index, see getIndexKey.
+     *
+     * @return the key of the index
+     */
+    public String getIndexKey() {
+        return indexKey;
+    }
+
+    /**
+     * Returns the key identifying the content of an index: the FASTA file and
+     * the settings of the digestion, the enzymes with their specificity and
+     * number of missed cleavages, and the mass range.
+     *
+     * @param fastaFile the FASTA file
+     * @param digestionPreferences the digestion preferences
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     *
+     * @return the key of the index
+     */
+    public static String getIndexKey(File fastaFile, DigestionPreferences digestionPreferences, double massMin, double massMax) {
+        StringBuilder key = new StringBuilder();
+        key.append(fastaFile.getAbsolutePath()).append('|').append(fastaFile.length()).append('|').append(fastaFile.lastModified());
+        key.append('|').append(digestionPreferences.getCleavagePreference());
+        if (digestionPreferences.getCleavagePreference() == DigestionPreferences.CleavagePreference.enzyme) {
+            for (Enzyme enzyme : digestionPreferences.getEnzymes()) {
+                String enzymeName = enzyme.getName();
+                key.append('|').append(enzymeName).append(',').append(digestionPreferences.getSpecificity(enzymeName))
+                        .append(',').append(digestionPreferences.getnMissedCleavages(enzymeName));
+            }
+        }
+        key.append('|').append(massMin).append('|').append(massMax);
+        return key.toString();
+    }
+
+    /**
+     * Returns the last modification of the indexed FASTA file.
+     *
+     * @return the last modification of the indexed FASTA file
+     */
+    public long getFastaLastModified() {
+        return fastaLastModified;
+    }
+
+    /**
+     * Returns the names of the fixed modifications used for the digestion.
+     *
+     * @return the names of the fixed modifications
+     */
+    public ArrayList<String> getFixedModifications() {
+        return new ArrayList<String>(modifications);
+    }
+
+    /**
+     * Returns the number of peptides.
+     *
+     * @return the number of peptides
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of proteins of the database.
+     *
+     * @return the number of proteins
+     */
+    public int getNProteins() {
+        return nProteins;
+    }
+
+    /**
+     * Returns the index of the first peptide with a mass greater than or equal
+     * to the given mass, the number of peptides if none.
+     *
+     * @param mass the mass
+     *
+     * @return the index of the first peptide of at least the given mass
+     */
+    public int getLowerBound(double mass) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (masses.get(middle) < mass) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first peptide with a mass strictly greater
+     * than the given mass, the number of peptides if none.
+     *
+     * @param mass the mass
+     *
+     * @return the index of the first peptide heavier than the given mass
+     */
+    public int getUpperBound(double mass) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (masses.get(middle) <= mass) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the peptides with a mass between the given bounds, inclusive, in
+     * ascending order of mass.
+     *
+     * @param massMin the minimal mass
+     * @param massMax the maximal mass
+     *
+     * @return the peptides in the mass range
+     */
+    public ArrayList<DigestedPeptide> getPeptides(double massMin, double massMax) {
+        int from = getLowerBound(massMin);
+        int to = getUpperBound(massMax);
+        ArrayList<DigestedPeptide> result = new ArrayList<DigestedPeptide>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            int[] proteinIndexes = getProteinIndexes(i);
+            ArrayList<String> peptideAccessions = new ArrayList<String>(proteinIndexes.length);
+            for (int proteinIndex : proteinIndexes) {
+                peptideAccessions.add(getAccession(proteinIndex));
+            }
+            result.add(new DigestedPeptide(getPeptide(i), getMass(i), peptideAccessions, proteinIndexes));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the peptides within the given tolerance of a mass.
+     *
+     * @param mass the mass
+     * @param tolerance the absolute tolerance
+     *
+     * @return the peptides within the tolerance of the mass
+     */
+    public ArrayList<DigestedPeptide> getPeptidesAround(double mass, double tolerance) {
+        return getPeptides(mass - tolerance, mass + tolerance);
+    }
+
+    /**
+     * Returns the mass of the peptide at the given index.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the mass of the peptide
+     */
+    public double getMass(int i) {
+        return masses.get(i);
+    }
+
+    /**
+     * Returns the sequence of the peptide at the given index.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the sequence of the peptide
+     */
+    public String getSequence(int i) {
+        int start = sequenceStarts.get(i);
+        char[] sequence = new char[sequenceStarts.get(i + 1) - start];
+        for (int j = 0; j < sequence.length; j++) {
+            sequence[j] = (char) sequences.get(start + j);
+        }
+        return new String(sequence);
+    }
+
+    /**
+     * Returns the peptide at the given index with its fixed modifications.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the peptide
+     */
+    public Peptide getPeptide(int i) {
+        int start = modificationStarts.get(i);
+        int end = modificationStarts.get(i + 1);
+        ArrayList<ModificationMatch> modificationMatches = null;
+        if (end > start) {
+            modificationMatches = new ArrayList<ModificationMatch>(end - start);
+            for (int j = start; j < end; j++) {
+                int modification = modificationSites.get(j);
+                modificationMatches.add(new ModificationMatch(modifications.get(modification & 0xFF), false, modification >>> 8));
+            }
+        }
+        return new Peptide(getSequence(i), modificationMatches, false, getMass(i));
+    }
+
+    /**
+     * Returns the indexes of the proteins of the peptide at the given index in
+     * ascending order.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the indexes of the proteins
+     */
+    public int[] getProteinIndexes(int i) {
+        int start = proteinStarts.get(i);
+        int[] result = new int[proteinStarts.get(i + 1) - start];
+        for (int j = 0; j < result.length; j++) {
+            result[j] = proteins.get(start + j);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the accession of the protein at the given index in the
+     * database.
+     *
+     * @param proteinIndex the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    public String getAccession(int proteinIndex) {
+        int start = accessionStarts.get(proteinIndex);
+        char[] accession = new char[accessionStarts.get(proteinIndex + 1) - start];
+        for (int j = 0; j < accession.length; j++) {
+            accession[j] = (char) (accessions.get(start + j) & 0xFF);
+        }
+        return new String(accession);
+    }
+
+    /**
+     * Digests the database loaded in the sequence factory and writes the
+     * index of its peptides to the given file. The peptides are streamed to
+     * temporary files next to the destination file by ascending mass so that
+     * only the peptides of a digestion pass are held in memory. The index is
+     * written under a temporary name and renamed once complete.
+     *
+     * @param file the destination file
+     * @param digestionPreferences the digestion preferences
+     * @param ptmSettings the modification settings providing the fixed
+     * modifications
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     * @param nPasses the number of passes over the database, see
+     * ProteomeDigestion
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to display progress and
+     * cancel the process, can be null
+     *
+     * @return the index mapped from the file, null if the process was
+     * canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the database or writing the index
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while digesting
+     */
+    public static PeptideMassIndex build(File file, DigestionPreferences digestionPreferences, PtmSettings ptmSettings, double massMin, double massMax, int nPasses,
+            int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        ArrayList<String> fixedModifications = ptmSettings.getFixedModifications();
+        if (fixedModifications.size() > 0xFF) {
+            throw new IllegalArgumentException("Too many fixed modifications to index: " + fixedModifications.size() + ".");
+        }
+        IteratorFactory iteratorFactory = new IteratorFactory(fixedModifications);
+        ProteomeDigestion proteomeDigestion = new ProteomeDigestion(iteratorFactory, digestionPreferences, massMin, massMax);
+        proteomeDigestion.setnPasses(nPasses);
+
+        IndexWriter writer = new IndexWriter(file, iteratorFactory.getProteinIteratorUtils());
+        try {
+            proteomeDigestion.digest(false, writer, nThreads, waitingHandler);
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return null;
+            }
+            File fastaFile = SequenceFactory.getInstance().getCurrentFastaFile();
+            String indexKey = getIndexKey(fastaFile, digestionPreferences, massMin, massMax);
+            writer.write(indexKey, fastaFile.lastModified(), fixedModifications, proteomeDigestion.getAccessions());
+        } finally {
+            writer.close();
+        }
+
+        return map(file);
+    }
+
+    /**
+     * Returns the peptide mass index of the database loaded in the sequence
+     * factory. The index is mapped from the given file if it was built from
+     * the current version of the database with the same digestion
+     * preferences, mass range and fixed modifications, see getIndexKey. It is
+     * built again otherwise, replacing the file.
+     *
+     * @param file the peptide mass index file
+     * @param digestionPreferences the digestion preferences
+     * @param ptmSettings the modification settings providing the fixed
+     * modifications
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     * @param nPasses the number of passes over the database, see
+     * ProteomeDigestion
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to display progress and
+     * cancel the process, can be null
+     *
+     * @return the index mapped from the file, null if the process was
+     * canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the database or writing the index
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while digesting
+     */
+    public static PeptideMassIndex getIndex(File file, DigestionPreferences digestionPreferences, PtmSettings ptmSettings, double massMin, double massMax, int nPasses,
+            int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+        if (file.exists()) {
+            try {
+                PeptideMassIndex peptideMassIndex = map(file);
+                String indexKey = getIndexKey(SequenceFactory.getInstance().getCurrentFastaFile(), digestionPreferences, massMin, massMax);
+                if (peptideMassIndex.getIndexKey().equals(indexKey)
+                        && peptideMassIndex.getFixedModifications().equals(ptmSettings.getFixedModifications())) {
+                    return peptideMassIndex;
+                }
+            } catch (IOException e) {
+                // outdated or corrupted index, built again below
+            }
+        }
+        return build(file, digestionPreferences, ptmSettings, massMin, massMax, nPasses, nThreads, waitingHandler);
+    }
+
+    /**
+     * Maps a peptide mass index from the given file. The index is read from
+     * the file by the operating system when needed. The index is not checked
+     * against the database, see getIndex.
+     *
+     * @param file the peptide mass index file
+     *
+     * @return the peptide mass index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file, or if the file is of another version
+     */
+    public static PeptideMassIndex map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.readInt() != MAGIC) {
+                throw new IOException("Not a peptide mass index: " + file.getName() + ".");
+            }
+            int version = randomAccessFile.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Peptide mass index version " + version + " found where " + FORMAT_VERSION + " is expected.");
+            }
+            String indexKey = randomAccessFile.readUTF();
+            long lastModified = randomAccessFile.readLong();
+            int size = randomAccessFile.readInt();
+            int nSequenceBytes = randomAccessFile.readInt();
+            int nModificationSites = randomAccessFile.readInt();
+            int nProteinReferences = randomAccessFile.readInt();
+            int nProteins = randomAccessFile.readInt();
+            int nAccessionBytes = randomAccessFile.readInt();
+            int nModifications = randomAccessFile.readInt();
+            ArrayList<String> modifications = new ArrayList<String>(nModifications);
+            for (int i = 0; i < nModifications; i++) {
+                modifications.add(randomAccessFile.readUTF());
+            }
+            long position = randomAccessFile.getFilePointer();
+            long length = 8L * size + 4L * (size + 1) + nSequenceBytes + 4L * (size + 1) + 4L * nModificationSites
+                    + 4L * (size + 1) + 4L * nProteinReferences + 4L * (nProteins + 1) + nAccessionBytes;
+            FileChannel channel = randomAccessFile.getChannel();
+            if (position + length != channel.size()) {
+                throw new IOException("Peptide mass index truncated: " + file.getName() + ".");
+            }
+            DoubleBuffer masses = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * size).asDoubleBuffer();
+            position += 8L * size;
+            IntBuffer sequenceStarts = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (size + 1)).asIntBuffer();
+            position += 4L * (size + 1);
+            ByteBuffer sequences = channel.map(FileChannel.MapMode.READ_ONLY, position, nSequenceBytes);
+            position += nSequenceBytes;
+            IntBuffer modificationStarts = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (size + 1)).asIntBuffer();
+            position += 4L * (size + 1);
+            IntBuffer modificationSites = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * nModificationSites).asIntBuffer();
+            position += 4L * nModificationSites;
+            IntBuffer proteinStarts = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (size + 1)).asIntBuffer();
+            position += 4L * (size + 1);
+            IntBuffer proteins = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * nProteinReferences).asIntBuffer();
+            position += 4L * nProteinReferences;
+            IntBuffer accessionStarts = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * (nProteins + 1)).asIntBuffer();
+            position += 4L * (nProteins + 1);
+            ByteBuffer accessions = channel.map(FileChannel.MapMode.READ_ONLY, position, nAccessionBytes);
+            // the mapping remains valid after closing the file
+            return new PeptideMassIndex(indexKey, lastModified, modifications, size, masses, sequenceStarts, sequences, modificationStarts, modificationSites,
+                    proteinStarts, proteins, nProteins, accessionStarts, accessions);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Listener writing the digested peptides to one temporary file per column
+     * and assembling them in the index file.
+     */
+    private static class IndexWriter implements DigestionListener {
+
+        /**
+         * The destination file.
+         */
+        private final File file;
+        /**
+         * The protein iterator utils providing the modification indexes.
+         */
+        private final ProteinIteratorUtils proteinIteratorUtils;
+        /**
+         * The temporary files of the columns.
+         */
+        private final File[] columnFiles = new File[7];
+        /**
+         * The streams writing the columns.
+         */
+        private final DataOutputStream[] columns = new DataOutputStream[7];
+        /**
+         * The number of peptides written.
+         */
+        private long size = 0;
+        /**
+         * The number of sequence bytes written.
+         */
+        private long nSequenceBytes = 0;
+        /**
+         * The number of modification sites written.
+         */
+        private long nModificationSites = 0;
+        /**
+         * The number of protein references written.
+         */
+        private long nProteinReferences = 0;
+        /**
+         * An exception encountered while writing the peptides, thrown when
+         * writing the index.
+         */
+        private IOException writingException = null;
+
+        /**
+         * Constructor.
+         *
+         * @param file the destination file
+         * @param proteinIteratorUtils the protein iterator utils providing the
+         * modification indexes
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while creating the temporary files
+         */
+        public IndexWriter(File file, ProteinIteratorUtils proteinIteratorUtils) throws IOException {
+            this.file = file;
+            this.proteinIteratorUtils = proteinIteratorUtils;
+            File folder = file.getAbsoluteFile().getParentFile();
+            for (int i = 0; i < columns.length; i++) {
+                columnFiles[i] = File.createTempFile(file.getName() + "_" + i, ".tmp", folder);
+                columns[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(columnFiles[i]), 1024 * 1024));
+            }
+            columns[1].writeInt(0);
+            columns[3].writeInt(0);
+            columns[5].writeInt(0);
+        }
+
+        @Override
+        public void bucketDigested(double bucketMassMin, double bucketMassMax, ArrayList<DigestedPeptide> peptides) {
+            if (writingException != null) {
+                return;
+            }
+            try {
+                for (DigestedPeptide digestedPeptide : peptides) {
+                    Peptide peptide = digestedPeptide.getPeptide();
+                    columns[0].writeDouble(digestedPeptide.getMass());
+                    String sequence = peptide.getSequence();
+                    for (int i = 0; i < sequence.length(); i++) {
+                        columns[2].writeByte(sequence.charAt(i));
+                    }
+                    nSequenceBytes += sequence.length();
+                    columns[1].writeInt(checkedInt(nSequenceBytes));
+                    if (peptide.getModificationMatches() != null) {
+                        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                            int index = proteinIteratorUtils.getFixedModificationIndex(modificationMatch.getTheoreticPtm());
+                            columns[4].writeInt(modificationMatch.getModificationSite() << 8 | index);
+                            nModificationSites++;
+                        }
+                    }
+                    columns[3].writeInt(checkedInt(nModificationSites));
+                    for (int proteinIndex : digestedPeptide.getProteinIndexes()) {
+                        columns[6].writeInt(proteinIndex);
+                    }
+                    nProteinReferences += digestedPeptide.getProteinIndexes().length;
+                    columns[5].writeInt(checkedInt(nProteinReferences));
+                    size++;
+                }
+            } catch (IOException e) {
+                writingException = e;
+            }
+        }
+
+        /**
+         * Writes the index file from the columns written.
+         *
+         * @param indexKey the key identifying the database and the digestion
+         * settings of the index
+         * @param lastModified the last modification of the indexed FASTA
+         * file
+         * @param modifications the names of the fixed modifications
+         * @param accessions the accessions of the proteins in the order of the
+         * database
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        public void write(String indexKey, long lastModified, ArrayList<String> modifications, ArrayList<String> accessions) throws IOException {
+
+            if (writingException != null) {
+                throw writingException;
+            }
+
+            for (DataOutputStream column : columns) {
+                column.close();
+            }
+
+            long nAccessionBytes = 0;
+            for (String accession : accessions) {
+                nAccessionBytes += accession.length();
+            }
+
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1024 * 1024));
+            boolean written = false;
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeUTF(indexKey);
+                dos.writeLong(lastModified);
+                dos.writeInt(checkedInt(size));
+                dos.writeInt(checkedInt(nSequenceBytes));
+                dos.writeInt(checkedInt(nModificationSites));
+                dos.writeInt(checkedInt(nProteinReferences));
+                dos.writeInt(accessions.size());
+                dos.writeInt(checkedInt(nAccessionBytes));
+                dos.writeInt(modifications.size());
+                for (String modification : modifications) {
+                    dos.writeUTF(modification);
+                }
+                for (File columnFile : columnFiles) {
+                    copy(columnFile, dos);
+                }
+                int start = 0;
+                dos.writeInt(start);
+                for (String accession : accessions) {
+                    start += accession.length();
+                    dos.writeInt(start);
+                }
+                for (String accession : accessions) {
+                    for (int i = 0; i < accession.length(); i++) {
+                        dos.writeByte(accession.charAt(i));
+                    }
+                }
+                dos.close();
+                if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+                    throw new IOException("Impossible to replace the peptide mass index " + file.getName() + ".");
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    dos.close();
+                    tempFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Closes the streams and deletes the temporary files.
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while closing the streams
+         */
+        public void close() throws IOException {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].close();
+                columnFiles[i].delete();
+            }
+        }
+
+        /**
+         * Copies the content of a file to a stream.
+         *
+         * @param source the file to copy
+         * @param destination the destination stream
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while copying the file
+         */
+        private static void copy(File source, DataOutputStream destination) throws IOException {
+            FileInputStream fis = new FileInputStream(source);
+            try {
+                byte[] buffer = new byte[1024 * 1024];
+                int n;
+                while ((n = fis.read(buffer)) != -1) {
+                    destination.write(buffer, 0, n);
+                }
+            } finally {
+                fis.close();
+            }
+        }
+
+        /**
+         * Returns the given count as integer, throwing an exception if it
+         * cannot be indexed.
+         *
+         * @param count the count
+         *
+         * @return the count as integer
+         */
+        private static int checkedInt(long count) {
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many elements to index: " + count + ".");
+            }
+            return (int) count;
+        }
+    }
+}
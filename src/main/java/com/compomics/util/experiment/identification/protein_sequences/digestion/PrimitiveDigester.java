@@ -0,0 +1,445 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.AminoAcidPattern;
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Digests protein sequences into a buffer of primitives without creating any
+ * object per peptide. The masses of the residues and their fixed
+ * modifications as well as the cleavage sites are summed along the protein
+ * once, so that the mass and the number of missed cleavages of every window
+ * are obtained in constant time as the window slides. Peptides are only
+ * created on demand. Sequences containing amino acid combinations are not
+ * supported, they must be iterated using a SequenceIterator.
+ *
+ * @author agent
+ */
+public class PrimitiveDigester {
+
+    /**
+     * Utilities classes for the digestion.
+     */
+    private final ProteinIteratorUtils proteinIteratorUtils;
+    /**
+     * The cleavage preference.
+     */
+    private final DigestionPreferences.CleavagePreference cleavagePreference;
+    /**
+     * The enzyme, null if not digesting with an enzyme.
+     */
+    private final Enzyme enzyme;
+    /**
+     * The specificity of the enzyme.
+     */
+    private final DigestionPreferences.Specificity specificity;
+    /**
+     * The maximum number of missed cleavages.
+     */
+    private final int nMissedCleavages;
+    /**
+     * The minimal mass to consider.
+     */
+    private final double massMin;
+    /**
+     * The maximal mass to consider.
+     */
+    private final double massMax;
+    /**
+     * The index of the fixed modification at every amino acid in the arrays
+     * of amino acid modifications, -1 if none.
+     */
+    private final int[] aaModificationIndexes = new int[128];
+    /**
+     * The mass of the fixed modifications at amino acids.
+     */
+    private final double[] aaModificationMasses;
+    /**
+     * The pattern of the fixed modifications at amino acids, null if the
+     * modification targets a single amino acid.
+     */
+    private final AminoAcidPattern[] aaModificationPatterns;
+    /**
+     * The bit of the fixed modifications at amino acids in the modification
+     * mask.
+     */
+    private final long[] aaModificationBits;
+    /**
+     * Indicates whether a fixed modification at amino acids targets a
+     * pattern.
+     */
+    private final boolean hasPatterns;
+    /**
+     * The cumulative mass of the residues and of their fixed modifications
+     * targeting a single amino acid along the protein.
+     */
+    private double[] cumulativeMasses = new double[1024];
+    /**
+     * The cumulative number of cleavage sites along the protein: the number
+     * of sites before the residue of index i is stored at i + 1.
+     */
+    private int[] cumulativeSites = new int[1024];
+    /**
+     * The cumulative number of fixed modifications targeting a single amino
+     * acid along the protein, per modification.
+     */
+    private int[][] cumulativeModifications;
+
+    /**
+     * Constructor.
+     *
+     * @param proteinIteratorUtils utils for the creation of the peptides
+     * @param digestionPreferences the digestion preferences to use
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     */
+    public PrimitiveDigester(ProteinIteratorUtils proteinIteratorUtils, DigestionPreferences digestionPreferences, double massMin, double massMax) {
+
+        if (proteinIteratorUtils.getNFixedModifications() > Long.SIZE) {
+            throw new IllegalArgumentException("At most " + Long.SIZE + " fixed modifications are supported.");
+        }
+
+        this.proteinIteratorUtils = proteinIteratorUtils;
+        this.massMin = massMin;
+        this.massMax = massMax;
+        cleavagePreference = digestionPreferences.getCleavagePreference();
+
+        switch (cleavagePreference) {
+            case enzyme:
+                ArrayList<Enzyme> enzymes = digestionPreferences.getEnzymes();
+                if (enzymes.size() != 1) {
+                    throw new UnsupportedOperationException("Digestion with " + enzymes.size() + " enzymes not supported.");
+                }
+                enzyme = enzymes.get(0);
+                DigestionPreferences.Specificity enzymeSpecificity = digestionPreferences.getSpecificity(enzyme.getName());
+                specificity = enzymeSpecificity == null ? DigestionPreferences.Specificity.specific : enzymeSpecificity;
+                Integer enzymeMissedCleavages = digestionPreferences.getnMissedCleavages(enzyme.getName());
+                nMissedCleavages = enzymeMissedCleavages == null ? 0 : enzymeMissedCleavages;
+                break;
+            case unSpecific:
+            case wholeProtein:
+                enzyme = null;
+                specificity = null;
+                nMissedCleavages = 0;
+                break;
+            default:
+                throw new UnsupportedOperationException("Cleavage preference of type " + cleavagePreference + " not supported.");
+        }
+
+        // index the fixed modifications at amino acids
+        Arrays.fill(aaModificationIndexes, -1);
+        ArrayList<String> aaModifications = new ArrayList<String>(1);
+        for (char aa = 'A'; aa <= 'Z'; aa++) {
+            String modification = proteinIteratorUtils.getFixedModificationAtAa(aa);
+            if (modification != null) {
+                int index = aaModifications.indexOf(modification);
+                if (index == -1) {
+                    index = aaModifications.size();
+                    aaModifications.add(modification);
+                }
+                aaModificationIndexes[aa] = index;
+            }
+        }
+        aaModificationMasses = new double[aaModifications.size()];
+        aaModificationPatterns = new AminoAcidPattern[aaModifications.size()];
+        aaModificationBits = new long[aaModifications.size()];
+        boolean patterns = false;
+        for (int i = 0; i < aaModifications.size(); i++) {
+            String modification = aaModifications.get(i);
+            aaModificationMasses[i] = proteinIteratorUtils.getModificationMass(modification);
+            aaModificationPatterns[i] = proteinIteratorUtils.getModificationPattern(modification);
+            aaModificationBits[i] = 1L << proteinIteratorUtils.getFixedModificationIndex(modification);
+            patterns = patterns || aaModificationPatterns[i] != null;
+        }
+        hasPatterns = patterns;
+        cumulativeModifications = new int[aaModifications.size()][1024];
+    }
+
+    /**
+     * Digests the given protein and adds the peptides passing the mass filters
+     * to the buffer.
+     *
+     * @param proteinIndex the index of the protein to report in the buffer
+     * @param proteinSequence the protein sequence
+     * @param buffer the buffer where to add the peptides
+     *
+     * @return true if the protein was digested, false if it contains amino
+     * acid combinations and must be iterated using a SequenceIterator
+     */
+    public boolean digest(int proteinIndex, String proteinSequence, DigestionBuffer buffer) {
+
+        int length = proteinSequence.length();
+
+        if (!indexProtein(proteinSequence)) {
+            return false;
+        }
+
+        switch (cleavagePreference) {
+            case wholeProtein:
+                if (length > 0) {
+                    addPeptide(proteinIndex, proteinSequence, 0, length, buffer);
+                }
+                break;
+            case unSpecific:
+                for (int start = 0; start < length; start++) {
+                    double nTermMass = getNtermModificationMass(proteinSequence, start);
+                    for (int end = start + 1; end <= length; end++) {
+                        if (isTooHeavy(nTermMass, proteinSequence, start, end)) {
+                            break;
+                        }
+                        addPeptide(proteinIndex, proteinSequence, start, end, buffer);
+                    }
+                }
+                break;
+            case enzyme:
+                boolean nTermSpecificOnly = specificity == DigestionPreferences.Specificity.specific || specificity == DigestionPreferences.Specificity.specificNTermOnly;
+                boolean cTermSpecificOnly = specificity == DigestionPreferences.Specificity.specific || specificity == DigestionPreferences.Specificity.specificCTermOnly;
+                for (int start = 0; start < length; start++) {
+                    boolean nTermSpecific = isCleavageSite(start, length);
+                    if (nTermSpecificOnly && !nTermSpecific) {
+                        continue;
+                    }
+                    double nTermMass = getNtermModificationMass(proteinSequence, start);
+                    for (int end = start + 1; end <= length; end++) {
+                        if (cumulativeSites[end] - cumulativeSites[start + 1] > nMissedCleavages) {
+                            break;
+                        }
+                        if (isTooHeavy(nTermMass, proteinSequence, start, end)) {
+                            break;
+                        }
+                        boolean cTermSpecific = isCleavageSite(end, length);
+                        if (cTermSpecificOnly && !cTermSpecific || !nTermSpecific && !cTermSpecific) {
+                            continue;
+                        }
+                        addPeptide(proteinIndex, proteinSequence, start, end, buffer);
+                    }
+                }
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Sums the masses, cleavage sites and modifications along the protein.
+     *
+     * @param proteinSequence the protein sequence
+     *
+     * @return false if the protein contains amino acid combinations
+     */
+    private boolean indexProtein(String proteinSequence) {
+
+        int length = proteinSequence.length();
+
+        if (cumulativeMasses.length <= length) {
+            int capacity = Math.max(length + 1, 2 * cumulativeMasses.length);
+            cumulativeMasses = new double[capacity];
+            cumulativeSites = new int[capacity];
+            for (int i = 0; i < cumulativeModifications.length; i++) {
+                cumulativeModifications[i] = new int[capacity];
+            }
+        }
+
+        char previousAa = 0;
+
+        for (int i = 0; i < length; i++) {
+
+            char aa = proteinSequence.charAt(i);
+            AminoAcid aminoAcid = AminoAcid.getAminoAcid(aa);
+            if (aminoAcid.iscombination()) {
+                return false;
+            }
+            double mass = aminoAcid.getMonoisotopicMass();
+
+            for (int j = 0; j < cumulativeModifications.length; j++) {
+                cumulativeModifications[j][i + 1] = cumulativeModifications[j][i];
+            }
+            int modificationIndex = aa < 128 ? aaModificationIndexes[aa] : -1;
+            if (modificationIndex != -1 && aaModificationPatterns[modificationIndex] == null) {
+                mass += aaModificationMasses[modificationIndex];
+                cumulativeModifications[modificationIndex][i + 1]++;
+            }
+            cumulativeMasses[i + 1] = cumulativeMasses[i] + mass;
+
+            boolean site = i > 0 && enzyme != null && enzyme.isCleavageSiteNoCombination(previousAa, aa);
+            cumulativeSites[i + 1] = site ? cumulativeSites[i] + 1 : cumulativeSites[i];
+
+            previousAa = aa;
+        }
+
+        return true;
+    }
+
+    /**
+     * Indicates whether the given position is a cleavage site or a terminus
+     * of the protein.
+     *
+     * @param position the position, the site being before the residue at
+     * this index
+     * @param length the length of the protein
+     *
+     * @return true if the position is a cleavage site or a terminus
+     */
+    private boolean isCleavageSite(int position, int length) {
+        return position == 0 || position == length || cumulativeSites[position + 1] != cumulativeSites[position];
+    }
+
+    /**
+     * Returns the mass of the fixed N-terminal modification of a peptide
+     * starting at the given index, 0 if none.
+     *
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide
+     *
+     * @return the mass of the fixed N-terminal modification
+     */
+    private double getNtermModificationMass(String proteinSequence, int start) {
+        String nTermModification = proteinIteratorUtils.getNtermModification(start == 0, proteinSequence.charAt(start), proteinSequence);
+        return proteinIteratorUtils.getModificationMass(nTermModification);
+    }
+
+    /**
+     * Indicates whether a peptide and all its extensions are too heavy, using
+     * the same criterion as the sequence iterators.
+     *
+     * @param nTermMass the mass of the fixed N-terminal modification
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide
+     * @param end the end of the peptide
+     *
+     * @return true if the peptide is too heavy
+     */
+    private boolean isTooHeavy(double nTermMass, String proteinSequence, int start, int end) {
+        double mass = nTermMass + cumulativeMasses[end] - cumulativeMasses[start];
+        if (hasPatterns) {
+            mass += getPatternModificationsMass(proteinSequence, start, end);
+        }
+        return mass + proteinIteratorUtils.getMinCtermMass() > massMax;
+    }
+
+    /**
+     * Returns the mass of the fixed modifications targeting a pattern on the
+     * given peptide.
+     *
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide
+     * @param end the end of the peptide
+     *
+     * @return the mass of the fixed modifications targeting a pattern
+     */
+    private double getPatternModificationsMass(String proteinSequence, int start, int end) {
+        double mass = 0.0;
+        for (int i = start; i < end; i++) {
+            int modificationIndex = getPatternModificationIndex(proteinSequence, start, i);
+            if (modificationIndex != -1) {
+                mass += aaModificationMasses[modificationIndex];
+            }
+        }
+        return mass;
+    }
+
+    /**
+     * Returns the index of the fixed modification targeting a pattern found
+     * at the given residue, -1 if none. Like in the sequence iterators, the
+     * pattern is matched at the index of the residue on the peptide.
+     *
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide
+     * @param i the index of the residue on the protein
+     *
+     * @return the index of the modification
+     */
+    private int getPatternModificationIndex(String proteinSequence, int start, int i) {
+        char aa = proteinSequence.charAt(i);
+        int modificationIndex = aa < 128 ? aaModificationIndexes[aa] : -1;
+        if (modificationIndex != -1) {
+            AminoAcidPattern pattern = aaModificationPatterns[modificationIndex];
+            if (pattern != null && pattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, i - start)) {
+                return modificationIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Completes the mass of a peptide with its terminal modifications and adds
+     * it to the buffer if it passes the mass filters.
+     *
+     * @param proteinIndex the index of the protein
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide
+     * @param end the end of the peptide
+     * @param buffer the buffer where to add the peptide
+     */
+    private void addPeptide(int proteinIndex, String proteinSequence, int start, int end, DigestionBuffer buffer) {
+
+        long modifications = 0L;
+
+        String nTermModification = proteinIteratorUtils.getNtermModification(start == 0, proteinSequence.charAt(start), proteinSequence);
+        double mass = proteinIteratorUtils.getModificationMass(nTermModification);
+        if (nTermModification != null) {
+            modifications |= 1L << proteinIteratorUtils.getFixedModificationIndex(nTermModification);
+        }
+
+        mass += cumulativeMasses[end] - cumulativeMasses[start];
+        for (int j = 0; j < cumulativeModifications.length; j++) {
+            if (cumulativeModifications[j][end] != cumulativeModifications[j][start]) {
+                modifications |= aaModificationBits[j];
+            }
+        }
+        if (hasPatterns) {
+            for (int i = start; i < end; i++) {
+                int modificationIndex = getPatternModificationIndex(proteinSequence, start, i);
+                if (modificationIndex != -1) {
+                    mass += aaModificationMasses[modificationIndex];
+                    modifications |= aaModificationBits[modificationIndex];
+                }
+            }
+        }
+
+        String cTermModification = proteinIteratorUtils.getCtermModification(proteinSequence.charAt(end - 1), end - start, proteinSequence, start);
+        if (cTermModification != null) {
+            mass += proteinIteratorUtils.getModificationMass(cTermModification);
+            modifications |= 1L << proteinIteratorUtils.getFixedModificationIndex(cTermModification);
+        }
+
+        mass += ProteinIteratorUtils.WATER_MASS;
+
+        if (mass >= massMin && mass <= massMax) {
+            int missedCleavages = enzyme == null ? 0 : cumulativeSites[end] - cumulativeSites[start + 1];
+            buffer.add(proteinIndex, start, end, mass, missedCleavages, modifications);
+        }
+    }
+
+    /**
+     * Creates the peptide found between the given indexes of the protein.
+     *
+     * @param proteinSequence the protein sequence
+     * @param start the start of the peptide, inclusive
+     * @param end the end of the peptide, exclusive
+     *
+     * @return the peptide
+     */
+    public Peptide getPeptide(String proteinSequence, int start, int end) {
+        char[] peptideSequence = proteinSequence.substring(start, end).toCharArray();
+        return proteinIteratorUtils.getPeptideFromProtein(peptideSequence, proteinSequence, start, 0.0, Double.MAX_VALUE);
+    }
+
+    /**
+     * Creates the peptide at the given index of the buffer.
+     *
+     * @param buffer the buffer
+     * @param i the index of the peptide in the buffer
+     * @param proteinSequence the sequence of the protein of the peptide
+     *
+     * @return the peptide
+     */
+    public Peptide getPeptide(DigestionBuffer buffer, int i, String proteinSequence) {
+        return getPeptide(proteinSequence, buffer.getStart(i), buffer.getEnd(i));
+    }
+}
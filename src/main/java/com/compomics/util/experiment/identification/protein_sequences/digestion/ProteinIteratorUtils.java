@@ -73,6 +73,10 @@ public class ProteinIteratorUtils {
      * no modification.
      */
     private double minCtermMass = 0.0;
+    /**
+     * The index of the fixed modifications in the list given at construction.
+     */
+    private HashMap<String, Integer> fixedModificationIndexes;
     /**
      * The mass of water (H2O).
      */
@@ -102,8 +106,10 @@ public class ProteinIteratorUtils {
     private void fillPtmMaps(ArrayList<String> fixedModifications) {
         modificationsMasses = new HashMap<String, Double>(fixedModifications.size());
         modificationsMasses.put(null, 0.0);
+        fixedModificationIndexes = new HashMap<String, Integer>(fixedModifications.size());
         PTMFactory ptmFactory = PTMFactory.getInstance();
         for (String ptmName : fixedModifications) {
+            fixedModificationIndexes.put(ptmName, fixedModificationIndexes.size());
             PTM ptm = ptmFactory.getPTM(ptmName);
             switch (ptm.getType()) {
                 case PTM.MODN:
@@ -286,11 +292,23 @@ public class ProteinIteratorUtils {
      * @return the c-terminal modification for the given peptide draft
      */
     public String getCtermModification(PeptideDraft peptideDraft, String proteinSequence, int indexOnProtein) {
-
         char[] peptideSequence = peptideDraft.getSequence();
-        char aaChar = peptideSequence[peptideSequence.length - 1];
+        return getCtermModification(peptideSequence[peptideSequence.length - 1], peptideDraft.length(), proteinSequence, indexOnProtein);
+    }
 
-        if (indexOnProtein == proteinSequence.length() - peptideDraft.length()) {
+    /**
+     * Returns the c-terminal modification for the given peptide.
+     *
+     * @param aaChar the c-terminal amino acid of the peptide
+     * @param peptideLength the length of the peptide
+     * @param proteinSequence the protein sequence
+     * @param indexOnProtein the index of the peptide on the protein
+     *
+     * @return the c-terminal modification for the given peptide
+     */
+    public String getCtermModification(char aaChar, int peptideLength, String proteinSequence, int indexOnProtein) {
+
+        if (indexOnProtein == proteinSequence.length() - peptideLength) {
 
             if (fixedProteinCtermModification != null) {
                 return fixedProteinCtermModification;
@@ -314,7 +332,7 @@ public class ProteinIteratorUtils {
 
             AminoAcidPattern aminoAcidPattern = modificationPatternMap.get(fixedPeptideCtermModificationAtAa);
 
-            if (aminoAcidPattern == null || aminoAcidPattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, indexOnProtein + peptideDraft.length())) {
+            if (aminoAcidPattern == null || aminoAcidPattern.matchesAt(proteinSequence, SequenceMatchingPreferences.defaultStringMatching, indexOnProtein + peptideLength)) {
                 return fixedPeptideCtermModificationAtAa;
             }
         }
@@ -357,6 +375,29 @@ public class ProteinIteratorUtils {
         return modificationPatternMap.get(modificationName);
     }
 
+    /**
+     * Returns the index of the given fixed modification in the list of fixed
+     * modifications given at construction. -1 if the modification is null or
+     * not a fixed modification.
+     *
+     * @param modificationName the name of the modification
+     *
+     * @return the index of the fixed modification
+     */
+    public int getFixedModificationIndex(String modificationName) {
+        Integer index = fixedModificationIndexes.get(modificationName);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the number of fixed modifications.
+     *
+     * @return the number of fixed modifications
+     */
+    public int getNFixedModifications() {
+        return fixedModificationIndexes.size();
+    }
+
     /**
      * Returns the maximal number of Xs to account for in a sequence.
      *
@@ -0,0 +1,591 @@
+package com.compomics.util.experiment.identification.protein_sequences.digestion;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory.ProteinIterator;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Digests all proteins of the database loaded in the sequence factory on a
+ * pool of threads. The proteins are read in shards digested concurrently,
+ * and the peptides are deduplicated across proteins in a concurrent map keyed
+ * by their sequence packed in five bits per residue. The unique peptides are
+ * passed to a listener with the accessions of their proteins by mass bucket.
+ * The mass range can be processed in several passes over the database, only
+ * the peptides of the current pass being kept in memory.
+ *
+ * @author agent
+ */
+public class ProteomeDigestion {
+
+    /**
+     * The number of proteins digested by a thread at a time.
+     */
+    public static final int SHARD_SIZE = 500;
+    /**
+     * The instance of the sequence factory.
+     */
+    private final SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The iterator factory.
+     */
+    private final IteratorFactory iteratorFactory;
+    /**
+     * The digestion preferences.
+     */
+    private final DigestionPreferences digestionPreferences;
+    /**
+     * The minimal mass of a peptide.
+     */
+    private final double massMin;
+    /**
+     * The maximal mass of a peptide.
+     */
+    private final double massMax;
+    /**
+     * The width of the mass buckets.
+     */
+    private double bucketWidth = 1.0;
+    /**
+     * The number of passes over the database.
+     */
+    private int nPasses = 1;
+    /**
+     * The accessions of the proteins digested in the order of the database.
+     */
+    private ArrayList<String> accessions = null;
+
+    /**
+     * Constructor.
+     *
+     * @param iteratorFactory the iterator factory, holding the fixed
+     * modifications
+     * @param digestionPreferences the digestion preferences
+     * @param massMin the minimal mass of a peptide
+     * @param massMax the maximal mass of a peptide
+     */
+    public ProteomeDigestion(IteratorFactory iteratorFactory, DigestionPreferences digestionPreferences, double massMin, double massMax) {
+        this.iteratorFactory = iteratorFactory;
+        this.digestionPreferences = digestionPreferences;
+        this.massMin = massMin;
+        this.massMax = massMax;
+    }
+
+    /**
+     * Returns the width of the mass buckets, 1 Da by default.
+     *
+     * @return the width of the mass buckets
+     */
+    public double getBucketWidth() {
+        return bucketWidth;
+    }
+
+    /**
+     * Sets the width of the mass buckets.
+     *
+     * @param bucketWidth the width of the mass buckets
+     */
+    public void setBucketWidth(double bucketWidth) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException("The bucket width must be positive.");
+        }
+        this.bucketWidth = bucketWidth;
+    }
+
+    /**
+     * Returns the number of passes over the database, one by default.
+     *
+     * @return the number of passes over the database
+     */
+    public int getnPasses() {
+        return nPasses;
+    }
+
+    /**
+     * Sets the number of passes over the database. Every pass digests the
+     * whole database and keeps only the peptides of its share of the mass
+     * range, the maximal mass must then be finite.
+     *
+     * @param nPasses the number of passes over the database
+     */
+    public void setnPasses(int nPasses) {
+        if (nPasses < 1) {
+            throw new IllegalArgumentException("At least one pass is needed.");
+        }
+        this.nPasses = nPasses;
+    }
+
+    /**
+     * Returns the accessions of the proteins digested during the last
+     * digestion in the order of the database, null if the database was not
+     * digested.
+     *
+     * @return the accessions of the proteins digested
+     */
+    public ArrayList<String> getAccessions() {
+        return accessions;
+    }
+
+    /**
+     * Digests the database and passes the unique peptides to the listener.
+     *
+     * @param targetOnly if true only the target proteins are digested
+     * @param listener the listener receiving the peptides
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler used to display progress and
+     * cancel the process, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the database
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while digesting
+     */
+    public void digest(boolean targetOnly, DigestionListener listener, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        double passWidth = massMax - massMin;
+        if (nPasses > 1) {
+            if (Double.isInfinite(passWidth) || massMax == Double.MAX_VALUE) {
+                throw new IllegalArgumentException("A maximal mass is needed to digest in several passes.");
+            }
+            passWidth = Math.ceil(passWidth / nPasses / bucketWidth) * bucketWidth;
+        }
+
+        if (waitingHandler != null) {
+            int nProteins = targetOnly && sequenceFactory.concatenatedTargetDecoy() ? sequenceFactory.getNTargetSequences() : sequenceFactory.getNSequences();
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nPasses * nProteins);
+        }
+
+        accessions = new ArrayList<String>();
+
+        for (int pass = 0; pass < nPasses; pass++) {
+
+            double passMin = massMin + pass * passWidth;
+            boolean lastPass = pass == nPasses - 1;
+            double passMax = lastPass ? massMax : Math.min(passMin + passWidth, massMax);
+
+            ConcurrentHashMap<PackedSequence, PeptideEntry> peptides = digestPass(passMin, passMax, lastPass, targetOnly, pass == 0 ? accessions : null, nThreads, waitingHandler);
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            emit(peptides, listener);
+
+            if (passMax >= massMax) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Digests the database keeping the peptides of the given mass range.
+     *
+     * @param passMin the minimal mass, inclusive
+     * @param passMax the maximal mass, exclusive unless last is true
+     * @param last indicates whether the maximal mass is inclusive
+     * @param targetOnly if true only the target proteins are digested
+     * @param accessions the list where to store the accessions of the
+     * proteins in the order of the database, null if already filled
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return the unique peptides found
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the database
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while digesting
+     */
+    private ConcurrentHashMap<PackedSequence, PeptideEntry> digestPass(final double passMin, final double passMax, final boolean last, boolean targetOnly,
+            ArrayList<String> accessions, int nThreads, final WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        nThreads = Math.max(1, nThreads);
+        final ConcurrentHashMap<PackedSequence, PeptideEntry> peptides = new ConcurrentHashMap<PackedSequence, PeptideEntry>(1024, 0.75f, nThreads);
+        final int maxPendingShards = 2 * nThreads;
+        final Semaphore pendingShards = new Semaphore(maxPendingShards);
+        final ArrayList<Exception> errors = new ArrayList<Exception>(1);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(targetOnly);
+
+        try {
+            int proteinIndex = 0;
+            boolean hasNext = proteinIterator.hasNext();
+            while (hasNext) {
+
+                // every call to hasNext must be followed by getNextProtein
+                final int firstIndex = proteinIndex;
+                final ArrayList<String> sequences = new ArrayList<String>(SHARD_SIZE);
+                while (hasNext && sequences.size() < SHARD_SIZE) {
+                    Protein protein = proteinIterator.getNextProtein();
+                    sequences.add(protein.getSequence());
+                    if (accessions != null) {
+                        accessions.add(protein.getAccession());
+                    }
+                    proteinIndex++;
+                    hasNext = proteinIterator.hasNext();
+                }
+
+                pendingShards.acquire();
+                synchronized (errors) {
+                    if (!errors.isEmpty() || waitingHandler != null && waitingHandler.isRunCanceled()) {
+                        pendingShards.release();
+                        break;
+                    }
+                }
+
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            digestShard(sequences, firstIndex, passMin, passMax, last, peptides, waitingHandler);
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        } finally {
+                            pendingShards.release();
+                        }
+                    }
+                });
+            }
+            pendingShards.acquire(maxPendingShards);
+        } finally {
+            pool.shutdownNow();
+            proteinIterator.close();
+        }
+
+        if (!errors.isEmpty()) {
+            Exception e = errors.get(0);
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            } else {
+                throw (RuntimeException) e;
+            }
+        }
+
+        return peptides;
+    }
+
+    /**
+     * Digests a shard of proteins and adds the peptides of the given mass
+     * range to the map.
+     *
+     * @param sequences the sequences of the proteins
+     * @param firstIndex the index of the first protein in the database
+     * @param passMin the minimal mass, inclusive
+     * @param passMax the maximal mass, exclusive unless last is true
+     * @param last indicates whether the maximal mass is inclusive
+     * @param peptides the map of the unique peptides
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while digesting
+     */
+    private void digestShard(ArrayList<String> sequences, int firstIndex, double passMin, double passMax, boolean last,
+            ConcurrentHashMap<PackedSequence, PeptideEntry> peptides, WaitingHandler waitingHandler) throws InterruptedException {
+
+        PrimitiveDigester primitiveDigester = iteratorFactory.getPrimitiveDigester(digestionPreferences, passMin, passMax);
+        ProteinIteratorUtils proteinIteratorUtils = iteratorFactory.getProteinIteratorUtils();
+        DigestionBuffer buffer = new DigestionBuffer();
+        PackedSequence key = new PackedSequence();
+
+        for (int i = 0; i < sequences.size(); i++) {
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            int proteinIndex = firstIndex + i;
+            String sequence = sequences.get(i);
+            buffer.clear();
+
+            if (primitiveDigester.digest(proteinIndex, sequence, buffer)) {
+
+                for (int j = 0; j < buffer.size(); j++) {
+                    double mass = buffer.getMass(j);
+                    if (last || mass < passMax) {
+                        int start = buffer.getStart(j);
+                        int end = buffer.getEnd(j);
+                        key.set(sequence, start, end, buffer.getFixedModifications(j));
+                        PeptideEntry entry = peptides.get(key);
+                        if (entry == null) {
+                            // the mass of the peptide does not depend on its position on the protein
+                            Peptide peptide = primitiveDigester.getPeptide(sequence, start, end);
+                            entry = new PeptideEntry(peptide, peptide.getMass());
+                            PeptideEntry previous = peptides.putIfAbsent(key.copy(), entry);
+                            if (previous != null) {
+                                entry = previous;
+                            }
+                        }
+                        entry.addProtein(proteinIndex);
+                    }
+                }
+
+            } else {
+
+                // amino acid combinations are expanded by the sequence iterators
+                SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, passMin, passMax);
+                PeptideWithPosition peptideWithPosition;
+                while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                    Peptide peptide = peptideWithPosition.getPeptide();
+                    double mass = peptide.getMass();
+                    if (last || mass < passMax) {
+                        long modifications = 0L;
+                        if (peptide.getModificationMatches() != null) {
+                            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                                modifications |= 1L << proteinIteratorUtils.getFixedModificationIndex(modificationMatch.getTheoreticPtm());
+                            }
+                        }
+                        String peptideSequence = peptide.getSequence();
+                        key.set(peptideSequence, 0, peptideSequence.length(), modifications);
+                        PeptideEntry entry = peptides.get(key);
+                        if (entry == null) {
+                            entry = new PeptideEntry(peptide, mass);
+                            PeptideEntry previous = peptides.putIfAbsent(key.copy(), entry);
+                            if (previous != null) {
+                                entry = previous;
+                            }
+                        }
+                        entry.addProtein(proteinIndex);
+                    }
+                }
+            }
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.increaseSecondaryProgressCounter(sequences.size());
+        }
+    }
+
+    /**
+     * Passes the peptides found to the listener by mass bucket.
+     *
+     * @param peptides the unique peptides
+     * @param listener the listener
+     */
+    private void emit(ConcurrentHashMap<PackedSequence, PeptideEntry> peptides, DigestionListener listener) {
+
+        ArrayList<PeptideEntry> entries = new ArrayList<PeptideEntry>(peptides.values());
+        peptides.clear();
+        Collections.sort(entries, new Comparator<PeptideEntry>() {
+            @Override
+            public int compare(PeptideEntry o1, PeptideEntry o2) {
+                int comparison = Double.compare(o1.mass, o2.mass);
+                if (comparison == 0) {
+                    // makes the order independent of the threads
+                    comparison = o1.peptide.getSequence().compareTo(o2.peptide.getSequence());
+                }
+                if (comparison == 0) {
+                    comparison = o1.getFirstProtein() - o2.getFirstProtein();
+                }
+                return comparison;
+            }
+        });
+
+        ArrayList<DigestedPeptide> bucket = new ArrayList<DigestedPeptide>();
+        long bucketIndex = -1;
+
+        for (PeptideEntry entry : entries) {
+
+            long entryBucket = (long) Math.floor((entry.mass - massMin) / bucketWidth);
+            if (entryBucket != bucketIndex && !bucket.isEmpty()) {
+                listener.bucketDigested(massMin + bucketIndex * bucketWidth, massMin + (bucketIndex + 1) * bucketWidth, bucket);
+                bucket = new ArrayList<DigestedPeptide>();
+            }
+            bucketIndex = entryBucket;
+
+            int[] proteins = entry.getProteins();
+            ArrayList<String> peptideAccessions = new ArrayList<String>(proteins.length);
+            for (int proteinIndex : proteins) {
+                peptideAccessions.add(accessions.get(proteinIndex));
+            }
+            bucket.add(new DigestedPeptide(entry.peptide, entry.mass, peptideAccessions, proteins));
+        }
+
+        if (!bucket.isEmpty()) {
+            listener.bucketDigested(massMin + bucketIndex * bucketWidth, massMin + (bucketIndex + 1) * bucketWidth, bucket);
+        }
+    }
+
+    /**
+     * A unique peptide and the indexes of its proteins.
+     */
+    private static class PeptideEntry {
+
+        /**
+         * The peptide.
+         */
+        private final Peptide peptide;
+        /**
+         * The mass of the peptide.
+         */
+        private final double mass;
+        /**
+         * The indexes of the proteins.
+         */
+        private int[] proteins = new int[1];
+        /**
+         * The number of proteins.
+         */
+        private int nProteins = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param peptide the peptide
+         * @param mass the mass of the peptide
+         */
+        public PeptideEntry(Peptide peptide, double mass) {
+            this.peptide = peptide;
+            this.mass = mass;
+        }
+
+        /**
+         * Adds a protein if not already added.
+         *
+         * @param proteinIndex the index of the protein
+         */
+        public synchronized void addProtein(int proteinIndex) {
+            for (int i = nProteins - 1; i >= 0; i--) {
+                if (proteins[i] == proteinIndex) {
+                    return;
+                }
+            }
+            if (nProteins == proteins.length) {
+                proteins = Arrays.copyOf(proteins, 2 * nProteins);
+            }
+            proteins[nProteins++] = proteinIndex;
+        }
+
+        /**
+         * Returns the smallest index of the proteins.
+         *
+         * @return the smallest index of the proteins
+         */
+        public synchronized int getFirstProtein() {
+            int result = Integer.MAX_VALUE;
+            for (int i = 0; i < nProteins; i++) {
+                result = Math.min(result, proteins[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the indexes of the proteins sorted in ascending order.
+         *
+         * @return the indexes of the proteins
+         */
+        public synchronized int[] getProteins() {
+            int[] result = Arrays.copyOf(proteins, nProteins);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * An amino acid sequence packed in five bits per residue with the fixed
+     * modifications it carries. Instances are mutable so that a thread can
+     * look up peptides without allocating, copies are stored in the map.
+     */
+    private static class PackedSequence {
+
+        /**
+         * The number of residues per word.
+         */
+        private static final int RESIDUES_PER_WORD = Long.SIZE / 5;
+        /**
+         * The packed residues.
+         */
+        private long[] words = new long[4];
+        /**
+         * The length of the sequence.
+         */
+        private int length;
+        /**
+         * The fixed modifications as bit mask.
+         */
+        private long modifications;
+        /**
+         * The hash code.
+         */
+        private int hash;
+
+        /**
+         * Sets the sequence.
+         *
+         * @param sequence the sequence containing the peptide
+         * @param start the start of the peptide
+         * @param end the end of the peptide
+         * @param modifications the fixed modifications as bit mask
+         */
+        public void set(String sequence, int start, int end, long modifications) {
+            length = end - start;
+            this.modifications = modifications;
+            int nWords = (length + RESIDUES_PER_WORD - 1) / RESIDUES_PER_WORD;
+            if (words.length < nWords) {
+                words = new long[nWords];
+            }
+            int h = length * 31 + (int) (modifications ^ (modifications >>> 32));
+            for (int w = 0; w < nWords; w++) {
+                long word = 0L;
+                int wordEnd = Math.min(end, start + (w + 1) * RESIDUES_PER_WORD);
+                for (int i = start + w * RESIDUES_PER_WORD; i < wordEnd; i++) {
+                    word = (word << 5) | ((sequence.charAt(i) - 'A' + 1) & 0x1F);
+                }
+                words[w] = word;
+                h = h * 31 + (int) (word ^ (word >>> 32));
+            }
+            hash = h;
+        }
+
+        /**
+         * Returns an immutable copy of the sequence.
+         *
+         * @return a copy of the sequence
+         */
+        public PackedSequence copy() {
+            PackedSequence copy = new PackedSequence();
+            copy.words = Arrays.copyOf(words, (length + RESIDUES_PER_WORD - 1) / RESIDUES_PER_WORD);
+            copy.length = length;
+            copy.modifications = modifications;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PackedSequence)) {
+                return false;
+            }
+            PackedSequence other = (PackedSequence) obj;
+            if (other.hash != hash || other.length != length || other.modifications != modifications) {
+                return false;
+            }
+            int nWords = (length + RESIDUES_PER_WORD - 1) / RESIDUES_PER_WORD;
+            for (int w = 0; w < nWords; w++) {
+                if (words[w] != other.words[w]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Vector;
@@ -238,8 +239,11 @@ public abstract class SpectrumAnnotator {
      *
      * @param spectrum the spectrum to inspect
      * @param intensityLimit the minimal intensity to account for
+     *
+     * @throws java.lang.InterruptedException exception thrown if the thread is
+     * interrupted
      */
-    protected void setSpectrum(MSnSpectrum spectrum, double intensityLimit) {
+    protected void setSpectrum(MSnSpectrum spectrum, double intensityLimit) throws InterruptedException {
         if (spectrumIndex == null || !spectrumKey.equals(spectrum.getSpectrumKey()) || this.intensityLimit != intensityLimit) {
 
             // Save spectrum number and intensity limit
@@ -252,7 +256,7 @@ public abstract class SpectrumAnnotator {
 
             // Create new index
             //if (spectrumIndex == null || spectrumIndex.intensityLimit != intensityLimit) { // @TODO: see if this if can/should be readded? results in the accuracy slider not updating the plot though
-                spectrumIndex = new SpectrumIndex(spectrum.getPeakMap(), intensityLimit, mzTolerance, isPpm);
+                spectrumIndex = new SpectrumIndex(spectrum.getOrderedMzValues(), spectrum.getIntensityValuesAsArray(), intensityLimit, mzTolerance, isPpm);
                 spectrum.addUrParam(spectrumIndex);
             //}
         }
@@ -728,13 +732,14 @@ public abstract class SpectrumAnnotator {
     public static ArrayList<IonMatch> matchReporterIon(Ion theoreticIon, int charge, Spectrum spectrum, double massTolerance) throws InterruptedException {
         ArrayList<IonMatch> result = new ArrayList<IonMatch>(1);
         double targetMass = theoreticIon.getTheoreticMz(charge);
-        for (double mz : spectrum.getOrderedMzValues()) {
-            if (Math.abs(mz - targetMass) <= massTolerance) {
-                result.add(new IonMatch(spectrum.getPeakMap().get(mz), theoreticIon, charge));
-            }
-            if (mz > targetMass + massTolerance) {
-                break;
-            }
+        double[] mzValues = spectrum.getOrderedMzValues();
+        double[] intensityValues = spectrum.getIntensityValuesAsArray();
+        int index = Arrays.binarySearch(mzValues, targetMass - massTolerance);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = index; i < mzValues.length && mzValues[i] <= targetMass + massTolerance; i++) {
+            result.add(new IonMatch(new Peak(mzValues[i], intensityValues[i]), theoreticIon, charge));
         }
         return result;
     }
@@ -0,0 +1,1058 @@
+package com.compomics.util.experiment.io.massspectrometry;
+
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte level parser for mgf files. The file is read in blocks using
+ * positional reads on its channel and the lines are found by scanning the
+ * bytes. The peaks are parsed from the bytes directly into primitive arrays,
+ * strings are only created for the other lines.
+ *
+ * @author agent
+ */
+public class MgfByteParser {
+
+    /**
+     * The size of the blocks read when indexing a file.
+     */
+    static final int INDEX_BLOCK_SIZE = 8 * 1024 * 1024;
+    /**
+     * The minimal length of the ranges of a file indexed in parallel.
+     */
+    private static final long MIN_INDEXING_CHUNK_LENGTH = 16 * 1024 * 1024;
+    /**
+     * The initial size of the buffers used to load spectra.
+     */
+    private static final int SPECTRUM_BLOCK_SIZE = 64 * 1024;
+    /**
+     * The number of bytes read first when loading a spectrum.
+     */
+    private static final int SPECTRUM_READ_SIZE = 4 * 1024;
+    /**
+     * The buffers used to load spectra, one per thread.
+     */
+    private static final ThreadLocal<byte[]> spectrumBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SPECTRUM_BLOCK_SIZE];
+        }
+    };
+    /**
+     * The encoding used for the lines, one char per byte like the lines of
+     * the BufferedRandomAccessFile.
+     */
+    private static final Charset LINE_ENCODING = Charset.forName("ISO-8859-1");
+    /**
+     * The powers of ten which can be represented exactly as double.
+     */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /**
+     * The maximal number of digits which can be accumulated in a long without
+     * overflow.
+     */
+    private static final int MAX_DIGITS = 18;
+    /**
+     * The largest mantissa which can be represented exactly as double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    /**
+     * The tags of the mgf files as bytes.
+     */
+    static final byte[] BEGIN_IONS = getBytes("BEGIN IONS"),
+            END_IONS = getBytes("END IONS"),
+            TITLE = getBytes("TITLE"),
+            CHARGE = getBytes("CHARGE"),
+            PEPMASS = getBytes("PEPMASS"),
+            RTINSECONDS = getBytes("RTINSECONDS");
+
+    /**
+     * Empty default constructor.
+     */
+    private MgfByteParser() {
+    }
+
+    /**
+     * Returns the spectrum starting at the given index. The file is read
+     * using positional reads and the channel can be shared between threads.
+     *
+     * @param channel the channel of the mgf file
+     * @param index the index where to start looking for the spectrum
+     * @param fileName the name of the mgf file
+     *
+     * @return the next spectrum encountered
+     *
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    public static MSnSpectrum getSpectrum(FileChannel channel, long index, String fileName) throws IOException, IllegalArgumentException {
+
+        LineReader reader = new LineReader(channel, index, Long.MAX_VALUE, spectrumBuffers.get(), SPECTRUM_READ_SIZE);
+
+        double precursorMz = 0, precursorIntensity = 0, rt = -1.0, rt1 = -1, rt2 = -1;
+        ArrayList<Charge> precursorCharges = new ArrayList<Charge>();
+        String scanNumber = "", spectrumTitle = "";
+        double[] mzArray = new double[256];
+        double[] intensityArray = new double[256];
+        int nPeaks = 0;
+        boolean insideSpectrum = false;
+
+        while (reader.nextLine()) {
+
+            byte[] bytes = reader.buffer;
+            int start = reader.lineStart;
+            int end = reader.lineEnd;
+
+            if (insideSpectrum && start < end && isNumberStart(bytes[start])) {
+                int separator = nextWhiteSpace(bytes, start, end);
+                int intensityStart = skipWhiteSpace(bytes, separator, end);
+                if (intensityStart < end) {
+                    try {
+                        double mz = parseDouble(bytes, start, separator);
+                        double intensity = parseDouble(bytes, intensityStart, nextWhiteSpace(bytes, intensityStart, end));
+                        if (nPeaks == mzArray.length) {
+                            mzArray = Arrays.copyOf(mzArray, 2 * nPeaks);
+                            intensityArray = Arrays.copyOf(intensityArray, 2 * nPeaks);
+                        }
+                        mzArray[nPeaks] = mz;
+                        intensityArray[nPeaks] = intensity;
+                        nPeaks++;
+                    } catch (NumberFormatException e) {
+                        // ignore comments and all other lines
+                    }
+                }
+                continue;
+            }
+
+            if (startsWith(bytes, start, end, TITLE)) {
+                insideSpectrum = true;
+                spectrumTitle = decodeTitle(reader.getValue());
+                continue;
+            } else if (startsWith(bytes, start, end, CHARGE)) {
+                precursorCharges = parseCharges(reader);
+                continue;
+            } else if (startsWith(bytes, start, end, PEPMASS)) {
+                int mzStart = getValueStart(bytes, start, end);
+                int mzEnd = nextWhiteSpace(bytes, mzStart, end);
+                precursorMz = parseDouble(bytes, mzStart, mzEnd);
+                if (skipWhiteSpace(bytes, mzEnd, end) < end) {
+                    precursorIntensity = parseDouble(bytes, mzEnd + 1, nextWhiteSpace(bytes, mzEnd + 1, end));
+                } else {
+                    precursorIntensity = 0.0;
+                }
+                continue;
+            } else if (startsWith(bytes, start, end, RTINSECONDS)) {
+                int rtStart = getValueStart(bytes, start, end);
+                if (isDecimal(bytes, rtStart, end)) {
+                    rt = parseDouble(bytes, rtStart, end);
+                    continue;
+                }
+            }
+
+            String line = reader.getLine();
+
+            if (line.startsWith("BEGIN IONS")) {
+                insideSpectrum = true;
+                nPeaks = 0;
+            } else if (line.startsWith("RTINSECONDS")) {
+                try {
+                    String rtInput = line.substring(line.indexOf('=') + 1);
+                    String[] rtWindow = rtInput.split("-");
+                    if (rtWindow.length == 1) {
+                        String tempRt = rtWindow[0];
+                        // possible fix for values like RTINSECONDS=PT121.250000S
+                        if (tempRt.startsWith("PT") && tempRt.endsWith("S")) {
+                            tempRt = tempRt.substring(2, tempRt.length() - 1);
+                        }
+                        rt = new Double(tempRt);
+                    } else if (rtWindow.length == 2) {
+                        rt1 = new Double(rtWindow[0]);
+                        rt2 = new Double(rtWindow[1]);
+                    }
+                } catch (Exception e) {
+                    System.out.println("An exception was thrown when trying to decode the retention time: " + spectrumTitle);
+                    e.printStackTrace();
+                    // ignore exception, RT will not be parsed
+                }
+            } else if (line.startsWith("TOLU")) {
+                // peptide tolerance unit not implemented
+            } else if (line.startsWith("TOL")) {
+                // peptide tolerance not implemented
+            } else if (line.startsWith("SEQ")) {
+                // sequence qualifier not implemented
+            } else if (line.startsWith("COMP")) {
+                // composition qualifier not implemented
+            } else if (line.startsWith("ETAG")) {
+                // error tolerant search sequence tag not implemented
+            } else if (line.startsWith("TAG")) {
+                // sequence tag not implemented
+            } else if (line.startsWith("SCANS")) {
+                scanNumber = line.substring(line.indexOf('=') + 1);
+            } else if (line.startsWith("INSTRUMENT")) {
+                // ion series not implemented
+            } else if (line.startsWith("END IONS")) {
+                Precursor precursor;
+                if (rt1 != -1 && rt2 != -1) {
+                    precursor = new Precursor(precursorMz, precursorIntensity, precursorCharges, rt1, rt2);
+                } else {
+                    precursor = new Precursor(rt, precursorMz, precursorIntensity, precursorCharges);
+                }
+                MSnSpectrum msnSpectrum = new MSnSpectrum(2, precursor, spectrumTitle, Arrays.copyOf(mzArray, nPeaks), Arrays.copyOf(intensityArray, nPeaks), fileName);
+                msnSpectrum.setScanNumber(scanNumber);
+                return msnSpectrum;
+            } else if (insideSpectrum && !line.equals("")) {
+                try {
+                    String values[] = line.split("\\s+");
+                    double mz = Double.parseDouble(values[0]);
+                    double intensity = Double.parseDouble(values[1]);
+                    if (nPeaks == mzArray.length) {
+                        mzArray = Arrays.copyOf(mzArray, 2 * nPeaks);
+                        intensityArray = Arrays.copyOf(intensityArray, 2 * nPeaks);
+                    }
+                    mzArray[nPeaks] = mz;
+                    intensityArray[nPeaks] = intensity;
+                    nPeaks++;
+                } catch (Exception e1) {
+                    // ignore comments and all other lines
+                }
+            }
+        }
+
+        throw new IllegalArgumentException("End of the file reached before encountering the tag \"END IONS\".");
+    }
+
+    /**
+     * Returns the precursor of the spectrum starting at the given index. Only
+     * the header of the spectrum is read. The file is read using positional
+     * reads and the channel can be shared between threads.
+     *
+     * @param channel the channel of the mgf file
+     * @param index the index where to start looking for the spectrum
+     * @param fileName the name of the mgf file
+     *
+     * @return the precursor of the next spectrum encountered
+     *
+     * @throws IOException exception thrown whenever an error is encountered
+     * while reading the spectrum
+     * @throws IllegalArgumentException exception thrown whenever the file is
+     * not of a compatible format
+     */
+    public static Precursor getPrecursor(FileChannel channel, long index, String fileName) throws IOException, IllegalArgumentException {
+
+        LineReader reader = new LineReader(channel, index, Long.MAX_VALUE, spectrumBuffers.get(), SPECTRUM_READ_SIZE);
+
+        String title = null;
+        double precursorMz = 0, precursorIntensity = 0, rt = -1.0, rt1 = -1, rt2 = -1;
+        ArrayList<Charge> precursorCharges = new ArrayList<Charge>(1);
+
+        while (reader.nextLine()) {
+
+            byte[] bytes = reader.buffer;
+            int start = reader.lineStart;
+            int end = reader.lineEnd;
+
+            if (startsWith(bytes, start, end, TITLE)) {
+                title = decodeTitle(reader.getValue());
+            } else if (startsWith(bytes, start, end, CHARGE)) {
+                precursorCharges = parseCharges(reader);
+            } else if (startsWith(bytes, start, end, PEPMASS)) {
+                int mzStart = getValueStart(bytes, start, end);
+                int mzEnd = nextWhiteSpace(bytes, mzStart, end);
+                precursorMz = parseDouble(bytes, mzStart, mzEnd);
+                if (skipWhiteSpace(bytes, mzEnd, end) < end) {
+                    precursorIntensity = parseDouble(bytes, mzEnd + 1, nextWhiteSpace(bytes, mzEnd + 1, end));
+                } else {
+                    precursorIntensity = 0.0;
+                }
+            } else if (startsWith(bytes, start, end, RTINSECONDS)) {
+                int rtStart = getValueStart(bytes, start, end);
+                if (isDecimal(bytes, rtStart, end)) {
+                    rt = parseDouble(bytes, rtStart, end);
+                    continue;
+                }
+                try {
+                    String[] rtWindow = reader.getValue().split("-");
+                    if (rtWindow.length == 1) {
+                        String tempRt = rtWindow[0];
+                        // possible fix for values like RTINSECONDS=PT121.250000S
+                        if (tempRt.startsWith("PT") && tempRt.endsWith("S")) {
+                            tempRt = tempRt.substring(2, tempRt.length() - 1);
+                        }
+                        rt = new Double(tempRt);
+                    } else if (rtWindow.length == 2) {
+                        rt1 = new Double(rtWindow[0]);
+                        rt2 = new Double(rtWindow[1]);
+                    }
+                } catch (Exception e) {
+                    System.out.println("An exception was thrown when trying to decode the retention time: " + title);
+                    e.printStackTrace();
+                    // ignore exception, RT will not be parsed
+                }
+            } else if (start < end && (startsWith(bytes, start, end, END_IONS) || isPeakLine(bytes, start, end))) {
+                if (rt1 != -1 && rt2 != -1) {
+                    return new Precursor(precursorMz, precursorIntensity, precursorCharges, rt1, rt2);
+                }
+                return new Precursor(rt, precursorMz, precursorIntensity, precursorCharges);
+            }
+        }
+
+        throw new IllegalArgumentException("End of the file reached before encountering the tag \"END IONS\". File: " + fileName + ", title: " + title);
+    }
+
+    /**
+     * Indicates whether the given line can be the first peak of a spectrum,
+     * i.e. contains neither '#' nor '='.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
+     *
+     * @return a boolean indicating whether the line can be a peak
+     */
+    private static boolean isPeakLine(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '#' || bytes[i] == '=') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of all spectra in the given mgf file. The file is
+     * split in ranges starting at a BEGIN IONS line which are indexed in
+     * parallel and merged in the order of the file.
+     *
+     * @param mgfFile the mgf file
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waitingHandler showing the progress, can be null
+     *
+     * @return the index of all spectra
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the file
+     */
+    public static MgfIndex getIndexMap(File mgfFile, int nThreads, WaitingHandler waitingHandler) throws IOException {
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(100);
+            waitingHandler.setSecondaryProgressCounter(0);
+        }
+
+        ArrayList<MgfChunkIndexer> chunkIndexers;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mgfFile, "r");
+
+        try {
+
+            FileChannel channel = randomAccessFile.getChannel();
+            long fileLength = channel.size();
+            long progressUnit = fileLength / 100;
+
+            // split the file in ranges starting at a BEGIN IONS line
+            nThreads = Math.max(nThreads, 1);
+            long chunkLength = Math.max(fileLength / (4 * nThreads) + 1, MIN_INDEXING_CHUNK_LENGTH);
+            ArrayList<Long> chunkStarts = new ArrayList<Long>();
+            chunkStarts.add(0l);
+            long chunkStart = getNextSpectrumStart(channel, chunkLength);
+            while (chunkStart < fileLength) {
+                chunkStarts.add(chunkStart);
+                chunkStart = getNextSpectrumStart(channel, chunkStart + chunkLength);
+            }
+
+            AtomicLong progress = new AtomicLong();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, chunkStarts.size()));
+            ArrayList<Future<MgfChunkIndexer>> futures = new ArrayList<Future<MgfChunkIndexer>>(chunkStarts.size());
+            for (int i = 0; i < chunkStarts.size(); i++) {
+                long chunkEnd = i + 1 < chunkStarts.size() ? chunkStarts.get(i + 1) : fileLength;
+                futures.add(pool.submit(new MgfChunkIndexer(channel, chunkStarts.get(i), chunkEnd, waitingHandler, progress, progressUnit)));
+            }
+            pool.shutdown();
+
+            chunkIndexers = new ArrayList<MgfChunkIndexer>(futures.size());
+            try {
+                for (Future<MgfChunkIndexer> future : futures) {
+                    chunkIndexers.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                throw new IOException("Indexing of " + mgfFile.getName() + " interrupted.", e);
+            } catch (ExecutionException e) {
+                // report the first error of the file
+                pool.shutdownNow();
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("An error occurred while indexing " + mgfFile.getName() + ".", cause);
+            }
+
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        int nTitles = 0, nPrecursors = 0;
+        for (MgfChunkIndexer chunkIndexer : chunkIndexers) {
+            nTitles += chunkIndexer.getTitles().size();
+            nPrecursors += chunkIndexer.getnPrecursors();
+        }
+
+        HashMap<String, Long> indexes = new HashMap<String, Long>(2 * nTitles);
+        HashMap<String, Integer> spectrumIndexes = new HashMap<String, Integer>(2 * nTitles);
+        HashMap<Integer, Double> precursorMzMap = new HashMap<Integer, Double>(2 * nPrecursors);
+        LinkedHashSet<String> spectrumTitles = new LinkedHashSet<String>(2 * nTitles);
+        HashMap<String, Integer> duplicateTitles = new HashMap<String, Integer>();
+        int spectrumCounter = 0;
+        double maxRT = -1, minRT = Double.MAX_VALUE, maxMz = -1, maxIntensity = 0;
+        int maxCharge = 0, maxPeakCount = 0;
+        boolean peakPicked = true;
+        boolean precursorChargesMissing = false;
+        boolean titleSet = false;
+
+        // merge the ranges in the order of the file
+        for (MgfChunkIndexer chunkIndexer : chunkIndexers) {
+
+            ArrayList<String> chunkTitles = chunkIndexer.getTitles();
+            for (int i = 0; i < chunkTitles.size(); i++) {
+                String title = chunkTitles.get(i);
+                Integer nDuplicates = duplicateTitles.get(title);
+                if (nDuplicates != null || !spectrumTitles.add(title)) {
+                    if (nDuplicates == null) {
+                        nDuplicates = 0;
+                        System.err.println("Warning: Spectrum title " + title + " is not unique in " + mgfFile.getName() + "!");
+                    }
+                    duplicateTitles.put(title, ++nDuplicates);
+                    title += "_" + nDuplicates;
+                    spectrumTitles.add(title);
+                }
+                indexes.put(title, chunkIndexer.getTitleIndex(i));
+                spectrumIndexes.put(title, spectrumCounter + chunkIndexer.getTitleSpectrum(i));
+            }
+            for (int i = 0; i < chunkIndexer.getnPrecursors(); i++) {
+                precursorMzMap.put(spectrumCounter + chunkIndexer.getPrecursorSpectrum(i), chunkIndexer.getPrecursorMz(i));
+            }
+
+            spectrumCounter += chunkIndexer.getnSpectra();
+            minRT = Math.min(minRT, chunkIndexer.getMinRT());
+            maxRT = Math.max(maxRT, chunkIndexer.getMaxRT());
+            maxMz = Math.max(maxMz, chunkIndexer.getMaxMz());
+            maxIntensity = Math.max(maxIntensity, chunkIndexer.getMaxIntensity());
+            maxCharge = Math.max(maxCharge, chunkIndexer.getMaxCharge());
+            maxPeakCount = Math.max(maxPeakCount, chunkIndexer.getMaxPeakCount());
+            peakPicked = peakPicked && chunkIndexer.isPeakPicked();
+            precursorChargesMissing = precursorChargesMissing || chunkIndexer.isPrecursorChargesMissing();
+
+            // a spectrum closed before any title of the range counts if a title was set before
+            if (titleSet) {
+                maxPeakCount = Math.max(maxPeakCount, chunkIndexer.getFirstUntitledPeakCount());
+            }
+            if (chunkIndexer.isTitleChanged()) {
+                titleSet = chunkIndexer.isTitleAtEnd();
+            }
+        }
+
+        if (minRT == Double.MAX_VALUE) {
+            minRT = 0;
+        }
+
+        ArrayList<String> spectrumTitlesAsArrayList = new ArrayList<String>(spectrumTitles);
+
+        return new MgfIndex(spectrumTitlesAsArrayList, duplicateTitles, indexes, spectrumIndexes, precursorMzMap, mgfFile.getName(), minRT, maxRT,
+                maxMz, maxIntensity, maxCharge, maxPeakCount, peakPicked, precursorChargesMissing, mgfFile.lastModified(), spectrumCounter);
+    }
+
+    /**
+     * Returns the position of the first BEGIN IONS line starting at or after
+     * the given position, the length of the file if none.
+     *
+     * @param channel the channel of the mgf file
+     * @param position the position where to start looking
+     *
+     * @return the position of the first BEGIN IONS line found
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the file
+     */
+    static long getNextSpectrumStart(FileChannel channel, long position) throws IOException {
+
+        long fileLength = channel.size();
+        if (position <= 0) {
+            return 0;
+        } else if (position >= fileLength) {
+            return fileLength;
+        }
+
+        // skip the line containing the previous byte, i.e. start at a line beginning
+        LineReader reader = new LineReader(channel, position - 1, fileLength, new byte[SPECTRUM_BLOCK_SIZE], SPECTRUM_READ_SIZE);
+        reader.nextLine();
+
+        while (reader.nextLine()) {
+            if (equals(reader.buffer, reader.lineStart, reader.lineEnd, BEGIN_IONS)) {
+                return reader.getLineStartPosition();
+            }
+        }
+
+        return fileLength;
+    }
+
+    /**
+     * Parses the charges of the current line of the given reader. Single
+     * charges like 2+ are parsed from the bytes, the other values are passed
+     * to MgfReader.parseCharges.
+     *
+     * @param reader the reader
+     *
+     * @return the possible charges found
+     *
+     * @throws IllegalArgumentException exception thrown if the charges cannot
+     * be parsed
+     */
+    static ArrayList<Charge> parseCharges(LineReader reader) throws IllegalArgumentException {
+
+        byte[] bytes = reader.buffer;
+        int i = getValueStart(bytes, reader.lineStart, reader.lineEnd);
+        int end = reader.lineEnd;
+        int value = 0;
+        int nDigits = 0;
+
+        for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && nDigits < 9; i++, nDigits++) {
+            value = 10 * value + (bytes[i] - '0');
+        }
+
+        if (nDigits > 0 && (i == end || i == end - 1 && (bytes[i] == '+' || bytes[i] == '-'))) {
+            ArrayList<Charge> result = new ArrayList<Charge>(1);
+            result.add(new Charge(i < end && bytes[i] == '-' ? Charge.MINUS : Charge.PLUS, value));
+            return result;
+        }
+
+        return MgfReader.parseCharges(reader.getLine());
+    }
+
+    /**
+     * Returns the index of the value of a tag line, i.e. after the first '=',
+     * start if the line contains no '='.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
+     *
+     * @return the index of the value
+     */
+    static int getValueStart(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '=') {
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Indicates whether the bytes between start and end are a decimal number
+     * made only of digits and at most one dot.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     *
+     * @return a boolean indicating whether the bytes are a decimal number
+     */
+    static boolean isDecimal(byte[] bytes, int start, int end) {
+        boolean digitFound = false, dotFound = false;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                digitFound = true;
+            } else if (b == '.' && !dotFound) {
+                dotFound = true;
+            } else {
+                return false;
+            }
+        }
+        return digitFound;
+    }
+
+    /**
+     * Decodes a spectrum title. The decoding is skipped when the title
+     * contains no character escaped by the URL encoding.
+     *
+     * @param title the title as found in the file
+     *
+     * @return the decoded title
+     */
+    private static String decodeTitle(String title) {
+        if (title.indexOf('%') >= 0 || title.indexOf('+') >= 0) {
+            try {
+                return URLDecoder.decode(title, "utf-8");
+            } catch (UnsupportedEncodingException e) {
+                System.out.println("An exception was thrown when trying to decode an mgf title: " + title);
+                e.printStackTrace();
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Parses a decimal number written in ASCII between the given indexes. The
+     * numbers with a mantissa of at most 2^53 and a decimal exponent between
+     * -22 and 22 are computed directly with a single rounding, which gives
+     * the same result as Double.parseDouble, the other numbers are passed to
+     * Double.parseDouble.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first character of the number
+     * @param end the index after the last character of the number
+     *
+     * @return the number
+     *
+     * @throws NumberFormatException exception thrown if the bytes cannot be
+     * parsed as a number
+     */
+    public static double parseDouble(byte[] bytes, int start, int end) throws NumberFormatException {
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digitsStart = i;
+
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            mantissa = 10 * mantissa + digit;
+        }
+
+        int nDigits = i - digitsStart;
+
+        if (i < end && bytes[i] == '.') {
+            i++;
+            int decimalsStart = i;
+            for (; i < end; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                mantissa = 10 * mantissa + digit;
+            }
+            exponent = decimalsStart - i;
+            nDigits -= exponent;
+        }
+
+        if (nDigits == 0 || nDigits > MAX_DIGITS || mantissa > MAX_EXACT_MANTISSA) {
+            return parseDoubleString(bytes, start, end);
+        }
+
+        if (i < end) {
+            if (bytes[i] != 'e' && bytes[i] != 'E' || end - i > 5) {
+                return parseDoubleString(bytes, start, end);
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return parseDoubleString(bytes, start, end);
+            }
+            int exponentValue = 0;
+            for (; i < end; i++) {
+                byte b = bytes[i];
+                if (b < '0' || b > '9') {
+                    return parseDoubleString(bytes, start, end);
+                }
+                exponentValue = 10 * exponentValue + (b - '0');
+            }
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseDoubleString(bytes, start, end);
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Indicates whether the number between the given indexes is zero.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first character of the number
+     * @param end the index after the last character of the number
+     *
+     * @return a boolean indicating whether the number is zero
+     *
+     * @throws NumberFormatException exception thrown if the bytes cannot be
+     * parsed as a number
+     */
+    static boolean isZero(byte[] bytes, int start, int end) throws NumberFormatException {
+        if (!isDecimal(bytes, start, end)) {
+            return parseDouble(bytes, start, end) == 0;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b != '0' && b != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the given bytes as double using Double.parseDouble.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first character of the number
+     * @param end the index after the last character of the number
+     *
+     * @return the number
+     *
+     * @throws NumberFormatException exception thrown if the bytes cannot be
+     * parsed as a number
+     */
+    private static double parseDoubleString(byte[] bytes, int start, int end) throws NumberFormatException {
+        return Double.parseDouble(new String(bytes, start, end - start, LINE_ENCODING));
+    }
+
+    /**
+     * Indicates whether the given byte can start a number.
+     *
+     * @param b the byte
+     *
+     * @return a boolean indicating whether the given byte can start a number
+     */
+    static boolean isNumberStart(byte b) {
+        return b >= '0' && b <= '9' || b == '.' || b == '-' || b == '+';
+    }
+
+    /**
+     * Indicates whether the given byte is a white space as matched by \s in
+     * regular expressions.
+     *
+     * @param b the byte
+     *
+     * @return a boolean indicating whether the given byte is a white space
+     */
+    static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Returns the index of the next white space, end if none.
+     *
+     * @param bytes the bytes
+     * @param start the index where to start looking
+     * @param end the index where to stop looking
+     *
+     * @return the index of the next white space
+     */
+    static int nextWhiteSpace(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end && !isWhiteSpace(bytes[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the next character which is not a white space, end
+     * if none.
+     *
+     * @param bytes the bytes
+     * @param start the index where to start looking
+     * @param end the index where to stop looking
+     *
+     * @return the index of the next character which is not a white space
+     */
+    static int skipWhiteSpace(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end && isWhiteSpace(bytes[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Indicates whether the bytes between start and end start with the given
+     * prefix.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @param prefix the prefix
+     *
+     * @return a boolean indicating whether the bytes start with the prefix
+     */
+    static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether the bytes between start and end are the given value.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @param value the value
+     *
+     * @return a boolean indicating whether the bytes are the given value
+     */
+    static boolean equals(byte[] bytes, int start, int end, byte[] value) {
+        return end - start == value.length && startsWith(bytes, start, end, value);
+    }
+
+    /**
+     * Returns the given ASCII text as bytes.
+     *
+     * @param text the text
+     *
+     * @return the text as bytes
+     */
+    private static byte[] getBytes(String text) {
+        return text.getBytes(LINE_ENCODING);
+    }
+
+    /**
+     * Reader returning the lines of a file as ranges of a byte buffer. The
+     * file is read by blocks using positional reads, so that different
+     * readers can share the channel.
+     */
+    static class LineReader {
+
+        /**
+         * The channel of the file.
+         */
+        private final FileChannel channel;
+        /**
+         * The position in the file where to stop reading, exclusive.
+         */
+        private final long limit;
+        /**
+         * The buffer containing the bytes read.
+         */
+        byte[] buffer;
+        /**
+         * The position in the file of the first byte of the buffer.
+         */
+        private long bufferPosition;
+        /**
+         * The number of bytes read in the buffer.
+         */
+        private int bufferEnd = 0;
+        /**
+         * The index in the buffer of the beginning of the next line.
+         */
+        private int next = 0;
+        /**
+         * The index in the buffer of the first byte of the current line.
+         */
+        int lineStart = 0;
+        /**
+         * The index in the buffer after the last byte of the current line,
+         * line breaks excluded.
+         */
+        int lineEnd = 0;
+        /**
+         * Boolean indicating whether the end of the file was reached.
+         */
+        private boolean endOfFile = false;
+        /**
+         * The number of bytes to read at the next read, doubled after every
+         * read until reaching the size of the buffer.
+         */
+        private int readSize;
+
+        /**
+         * Constructor.
+         *
+         * @param channel the channel of the file
+         * @param position the position where to start reading
+         * @param limit the position where to stop reading, exclusive
+         * @param buffer the buffer to use
+         * @param readSize the number of bytes to read at the first read
+         */
+        LineReader(FileChannel channel, long position, long limit, byte[] buffer, int readSize) {
+            this.channel = channel;
+            this.bufferPosition = position;
+            this.limit = limit;
+            this.buffer = buffer;
+            this.readSize = readSize;
+        }
+
+        /**
+         * Moves to the next line.
+         *
+         * @return a boolean indicating whether a line was found
+         *
+         * @throws IOException exception thrown if an error occurred while
+         * reading the file
+         */
+        boolean nextLine() throws IOException {
+
+            int searchStart = next;
+
+            while (true) {
+
+                for (int i = searchStart; i < bufferEnd; i++) {
+                    if (buffer[i] == '\n') {
+                        setLine(next, i);
+                        next = i + 1;
+                        return true;
+                    }
+                }
+
+                if (endOfFile) {
+                    if (next < bufferEnd) {
+                        setLine(next, bufferEnd);
+                        next = bufferEnd;
+                        return true;
+                    }
+                    return false;
+                }
+
+                searchStart = bufferEnd - next;
+                fill();
+            }
+        }
+
+        /**
+         * Sets the current line, removing the trailing carriage returns.
+         *
+         * @param start the index of the first byte of the line
+         * @param end the index of the line break
+         */
+        private void setLine(int start, int end) {
+            while (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            lineStart = start;
+            lineEnd = end;
+        }
+
+        /**
+         * Moves the beginning of the next line to the beginning of the
+         * buffer, enlarging it if needed, and reads the following bytes.
+         *
+         * @throws IOException exception thrown if an error occurred while
+         * reading the file
+         */
+        private void fill() throws IOException {
+
+            if (next > 0) {
+                System.arraycopy(buffer, next, buffer, 0, bufferEnd - next);
+                bufferPosition += next;
+                bufferEnd -= next;
+                next = 0;
+            }
+            if (bufferEnd == buffer.length) {
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            }
+
+            int length = (int) Math.min(Math.min(readSize, buffer.length - bufferEnd), limit - bufferPosition - bufferEnd);
+            if (length <= 0) {
+                endOfFile = true;
+                return;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, bufferEnd, length), bufferPosition + bufferEnd);
+            if (readSize < buffer.length) {
+                readSize = 2 * readSize;
+            }
+
+            if (read < 0) {
+                endOfFile = true;
+            } else {
+                bufferEnd += read;
+            }
+        }
+
+        /**
+         * Returns the value of the current line, i.e. the text after the
+         * first '=', as string.
+         *
+         * @return the value of the current line
+         */
+        String getValue() {
+            int valueStart = getValueStart(buffer, lineStart, lineEnd);
+            return new String(buffer, valueStart, lineEnd - valueStart, LINE_ENCODING);
+        }
+
+        /**
+         * Returns the current line as string.
+         *
+         * @return the current line
+         */
+        String getLine() {
+            return new String(buffer, lineStart, lineEnd - lineStart, LINE_ENCODING);
+        }
+
+        /**
+         * Returns the position in the file of the beginning of the next line.
+         *
+         * @return the position in the file of the beginning of the next line
+         */
+        long getPosition() {
+            return bufferPosition + next;
+        }
+
+        /**
+         * Returns the position in the file of the beginning of the current
+         * line.
+         *
+         * @return the position in the file of the beginning of the current
+         * line
+         */
+        long getLineStartPosition() {
+            return bufferPosition + lineStart;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.compomics.util.experiment.io.massspectrometry;
+
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes the spectra of a range of an mgf file. The spectra are numbered
+ * from zero within the range and the titles are stored as found in the file,
+ * the numbering and the renaming of duplicate titles are done when merging
+ * the ranges in order.
+ *
+ * @author agent
+ */
+class MgfChunkIndexer implements Callable<MgfChunkIndexer> {
+
+    /**
+     * The channel of the mgf file.
+     */
+    private final FileChannel channel;
+    /**
+     * The start of the range, the position of a BEGIN IONS line or of the
+     * start of the file.
+     */
+    private final long start;
+    /**
+     * The end of the range, exclusive.
+     */
+    private final long end;
+    /**
+     * The waiting handler, can be null.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The number of bytes processed by all indexers.
+     */
+    private final AtomicLong progress;
+    /**
+     * The number of bytes per percent of progress.
+     */
+    private final long progressUnit;
+    /**
+     * The titles found in the range, decoded but not made unique.
+     */
+    private final ArrayList<String> titles = new ArrayList<String>();
+    /**
+     * The position in the file of the spectrum of every title.
+     */
+    private long[] titleIndexes = new long[1024];
+    /**
+     * The number in the range of the spectrum of every title.
+     */
+    private int[] titleSpectra = new int[1024];
+    /**
+     * The number in the range of the spectra having a precursor.
+     */
+    private int[] precursorSpectra = new int[1024];
+    /**
+     * The precursor m/z of these spectra.
+     */
+    private double[] precursorMzs = new double[1024];
+    /**
+     * The number of precursors found.
+     */
+    private int nPrecursors = 0;
+    /**
+     * The number of spectra started in the range.
+     */
+    private int nSpectra = 0;
+    /**
+     * The retention time range and the maximal precursor m/z and intensity.
+     */
+    private double maxRT = -1, minRT = Double.MAX_VALUE, maxMz = -1, maxIntensity = 0;
+    /**
+     * The maximal charge and peak count.
+     */
+    private int maxCharge = 0, maxPeakCount = 0;
+    /**
+     * Indicates whether the spectra are peak picked.
+     */
+    private boolean peakPicked = true;
+    /**
+     * Indicates whether a spectrum without charge was found.
+     */
+    private boolean precursorChargesMissing = false;
+    /**
+     * The peak count at the first END IONS line reached before any title
+     * line, -1 if none. It is counted only if a title was set before the
+     * range.
+     */
+    private int firstUntitledPeakCount = -1;
+    /**
+     * Indicates whether a TITLE or END IONS line was found, i.e. whether the
+     * title set before the range was replaced.
+     */
+    private boolean titleChanged = false;
+    /**
+     * Indicates whether a title is set at the end of the range.
+     */
+    private boolean titleAtEnd = false;
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel of the mgf file
+     * @param start the start of the range, the position of a BEGIN IONS line
+     * or of the start of the file
+     * @param end the end of the range, exclusive
+     * @param waitingHandler the waiting handler, can be null
+     * @param progress the number of bytes processed by all indexers
+     * @param progressUnit the number of bytes per percent of progress
+     */
+    public MgfChunkIndexer(FileChannel channel, long start, long end, WaitingHandler waitingHandler, AtomicLong progress, long progressUnit) {
+        this.channel = channel;
+        this.start = start;
+        this.end = end;
+        this.waitingHandler = waitingHandler;
+        this.progress = progress;
+        this.progressUnit = progressUnit;
+    }
+
+    @Override
+    public MgfChunkIndexer call() throws IOException {
+
+        MgfByteParser.LineReader reader = new MgfByteParser.LineReader(channel, start, end,
+                new byte[MgfByteParser.INDEX_BLOCK_SIZE], MgfByteParser.INDEX_BLOCK_SIZE);
+        long lastProgress = start;
+        long currentIndex = start;
+        String title = null;
+        int peakCount = 0;
+        boolean insideSpectrum = false;
+        boolean chargeTagFound = false;
+
+        while (reader.nextLine()) {
+
+            byte[] bytes = reader.buffer;
+            int lineStart = reader.lineStart;
+            int lineEnd = reader.lineEnd;
+
+            if (insideSpectrum && lineStart < lineEnd && MgfByteParser.isNumberStart(bytes[lineStart])) {
+                int intensityStart = MgfByteParser.skipWhiteSpace(bytes, MgfByteParser.nextWhiteSpace(bytes, lineStart, lineEnd), lineEnd);
+                if (intensityStart < lineEnd) {
+                    try {
+                        if (MgfByteParser.isZero(bytes, intensityStart, MgfByteParser.nextWhiteSpace(bytes, intensityStart, lineEnd)) && peakPicked) {
+                            peakPicked = false;
+                        }
+                        peakCount++;
+                    } catch (NumberFormatException e) {
+                        // ignore comments and all other lines
+                    }
+                }
+            } else if (MgfByteParser.equals(bytes, lineStart, lineEnd, MgfByteParser.BEGIN_IONS)) {
+                insideSpectrum = true;
+                chargeTagFound = false;
+                currentIndex = reader.getPosition();
+                nSpectra++;
+                peakCount = 0;
+                if (waitingHandler != null) {
+                    if (progressUnit != 0 && currentIndex - lastProgress >= progressUnit) {
+                        long done = progress.addAndGet(currentIndex - lastProgress);
+                        lastProgress = currentIndex;
+                        waitingHandler.setSecondaryProgressCounter((int) (done / progressUnit));
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return this;
+                    }
+                }
+            } else if (MgfByteParser.startsWith(bytes, lineStart, lineEnd, MgfByteParser.TITLE)) {
+
+                title = reader.getValue();
+
+                try {
+                    if (title.indexOf('%') >= 0 || title.indexOf('+') >= 0) {
+                        title = URLDecoder.decode(title, "utf-8");
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    if (waitingHandler != null) {
+                        waitingHandler.appendReport("An exception was thrown when trying to decode an mgf title: " + title, true, true);
+                    }
+                    System.out.println("An exception was thrown when trying to decode an mgf title: " + title);
+                    e.printStackTrace();
+                }
+                int rank = titles.size();
+                if (rank == titleIndexes.length) {
+                    titleIndexes = Arrays.copyOf(titleIndexes, 2 * rank);
+                    titleSpectra = Arrays.copyOf(titleSpectra, 2 * rank);
+                }
+                titles.add(title);
+                titleIndexes[rank] = currentIndex;
+                titleSpectra[rank] = nSpectra - 1;
+                titleChanged = true;
+            } else if (MgfByteParser.startsWith(bytes, lineStart, lineEnd, MgfByteParser.CHARGE)) {
+                ArrayList<Charge> precursorCharges = MgfByteParser.parseCharges(reader);
+                for (Charge charge : precursorCharges) {
+                    if (charge.value > maxCharge) {
+                        maxCharge = charge.value;
+                    }
+                }
+                chargeTagFound = true;
+            } else if (MgfByteParser.startsWith(bytes, lineStart, lineEnd, MgfByteParser.PEPMASS)) {
+                int mzStart = MgfByteParser.getValueStart(bytes, lineStart, lineEnd);
+                int mzEnd = MgfByteParser.nextWhiteSpace(bytes, mzStart, lineEnd);
+                double precursorMz = MgfByteParser.parseDouble(bytes, mzStart, mzEnd);
+
+                if (precursorMz > maxMz) {
+                    maxMz = precursorMz;
+                }
+
+                if (MgfByteParser.skipWhiteSpace(bytes, mzEnd, lineEnd) < lineEnd) {
+                    double precursorIntensity = MgfByteParser.parseDouble(bytes, mzEnd + 1, MgfByteParser.nextWhiteSpace(bytes, mzEnd + 1, lineEnd));
+
+                    if (precursorIntensity > maxIntensity) {
+                        maxIntensity = precursorIntensity;
+                    }
+                }
+
+                if (nPrecursors == precursorSpectra.length) {
+                    precursorSpectra = Arrays.copyOf(precursorSpectra, 2 * nPrecursors);
+                    precursorMzs = Arrays.copyOf(precursorMzs, 2 * nPrecursors);
+                }
+                precursorSpectra[nPrecursors] = nSpectra - 1;
+                precursorMzs[nPrecursors] = precursorMz;
+                nPrecursors++;
+
+            } else if (MgfByteParser.startsWith(bytes, lineStart, lineEnd, MgfByteParser.RTINSECONDS)) {
+
+                int rtStart = MgfByteParser.getValueStart(bytes, lineStart, lineEnd);
+
+                if (MgfByteParser.isDecimal(bytes, rtStart, lineEnd)) {
+                    addRT(MgfByteParser.parseDouble(bytes, rtStart, lineEnd));
+                    continue;
+                }
+
+                String rtInput = reader.getValue();
+
+                try {
+                    String[] rtWindow = rtInput.split("-");
+
+                    if (rtWindow.length == 1) {
+                        String tempRt = rtWindow[0];
+                        // possible fix for values like RTINSECONDS=PT121.250000S
+                        if (tempRt.startsWith("PT") && tempRt.endsWith("S")) {
+                            tempRt = tempRt.substring(2, tempRt.length() - 1);
+                        }
+                        addRT(new Double(tempRt));
+                    } else if (rtWindow.length == 2 && !rtWindow[0].equals("")) {
+                        addRT(new Double(rtWindow[0]));
+                        addRT(new Double(rtWindow[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Cannot parse retention time: " + rtInput);
+                }
+            } else if (MgfByteParser.startsWith(bytes, lineStart, lineEnd, MgfByteParser.END_IONS)) {
+                insideSpectrum = false;
+                if (title != null) {
+                    if (peakCount > maxPeakCount) {
+                        maxPeakCount = peakCount;
+                    }
+                } else if (!titleChanged && firstUntitledPeakCount == -1) {
+                    // the title might have been set before the range
+                    firstUntitledPeakCount = peakCount;
+                }
+                title = null;
+                titleChanged = true;
+                if (!chargeTagFound) {
+                    precursorChargesMissing = true;
+                }
+            } else if (insideSpectrum && lineStart < lineEnd) {
+                try {
+                    String values[] = reader.getLine().split("\\s+");
+                    Double intensity = new Double(values[1]);
+                    if (peakPicked && intensity == 0) {
+                        peakPicked = false;
+                    }
+                    peakCount++;
+                } catch (Exception e1) {
+                    // ignore comments and all other lines
+                }
+            }
+        }
+
+        titleAtEnd = title != null;
+        progress.addAndGet(end - lastProgress);
+
+        return this;
+    }
+
+    /**
+     * Updates the retention time range with the given retention time.
+     *
+     * @param rt the retention time
+     */
+    private void addRT(double rt) {
+        if (rt > maxRT) {
+            maxRT = rt;
+        }
+        if (rt < minRT) {
+            minRT = rt;
+        }
+    }
+
+    /**
+     * Returns the titles found in the range, decoded but not made unique.
+     *
+     * @return the titles found in the range
+     */
+    public ArrayList<String> getTitles() {
+        return titles;
+    }
+
+    /**
+     * Returns the position in the file of the spectrum of the title of the
+     * given rank.
+     *
+     * @param rank the rank of the title in the range
+     *
+     * @return the position in the file of the spectrum
+     */
+    public long getTitleIndex(int rank) {
+        return titleIndexes[rank];
+    }
+
+    /**
+     * Returns the number in the range of the spectrum of the title of the
+     * given rank, -1 for a title found before the first spectrum of the file.
+     *
+     * @param rank the rank of the title in the range
+     *
+     * @return the number in the range of the spectrum
+     */
+    public int getTitleSpectrum(int rank) {
+        return titleSpectra[rank];
+    }
+
+    /**
+     * Returns the number of precursors found.
+     *
+     * @return the number of precursors found
+     */
+    public int getnPrecursors() {
+        return nPrecursors;
+    }
+
+    /**
+     * Returns the number in the range of the spectrum of the precursor of the
+     * given rank.
+     *
+     * @param rank the rank of the precursor in the range
+     *
+     * @return the number in the range of the spectrum
+     */
+    public int getPrecursorSpectrum(int rank) {
+        return precursorSpectra[rank];
+    }
+
+    /**
+     * Returns the m/z of the precursor of the given rank.
+     *
+     * @param rank the rank of the precursor in the range
+     *
+     * @return the m/z of the precursor
+     */
+    public double getPrecursorMz(int rank) {
+        return precursorMzs[rank];
+    }
+
+    /**
+     * Returns the number of spectra started in the range.
+     *
+     * @return the number of spectra started in the range
+     */
+    public int getnSpectra() {
+        return nSpectra;
+    }
+
+    /**
+     * Returns the minimal retention time, Double.MAX_VALUE if none.
+     *
+     * @return the minimal retention time
+     */
+    public double getMinRT() {
+        return minRT;
+    }
+
+    /**
+     * Returns the maximal retention time, -1 if none.
+     *
+     * @return the maximal retention time
+     */
+    public double getMaxRT() {
+        return maxRT;
+    }
+
+    /**
+     * Returns the maximal precursor m/z, -1 if none.
+     *
+     * @return the maximal precursor m/z
+     */
+    public double getMaxMz() {
+        return maxMz;
+    }
+
+    /**
+     * Returns the maximal precursor intensity.
+     *
+     * @return the maximal precursor intensity
+     */
+    public double getMaxIntensity() {
+        return maxIntensity;
+    }
+
+    /**
+     * Returns the maximal precursor charge.
+     *
+     * @return the maximal precursor charge
+     */
+    public int getMaxCharge() {
+        return maxCharge;
+    }
+
+    /**
+     * Returns the maximal peak count of the titled spectra.
+     *
+     * @return the maximal peak count
+     */
+    public int getMaxPeakCount() {
+        return maxPeakCount;
+    }
+
+    /**
+     * Indicates whether the spectra are peak picked.
+     *
+     * @return a boolean indicating whether the spectra are peak picked
+     */
+    public boolean isPeakPicked() {
+        return peakPicked;
+    }
+
+    /**
+     * Indicates whether a spectrum without charge was found.
+     *
+     * @return a boolean indicating whether a spectrum without charge was
+     * found
+     */
+    public boolean isPrecursorChargesMissing() {
+        return precursorChargesMissing;
+    }
+
+    /**
+     * Returns the peak count at the first END IONS line reached before any
+     * title line, -1 if none.
+     *
+     * @return the peak count at the first END IONS line without title
+     */
+    public int getFirstUntitledPeakCount() {
+        return firstUntitledPeakCount;
+    }
+
+    /**
+     * Indicates whether the title set before the range was replaced by a
+     * TITLE or END IONS line.
+     *
+     * @return a boolean indicating whether the title set before the range
+     * was replaced
+     */
+    public boolean isTitleChanged() {
+        return titleChanged;
+    }
+
+    /**
+     * Indicates whether a title is set at the end of the range.
+     *
+     * @return a boolean indicating whether a title is set at the end of the
+     * range
+     */
+    public boolean isTitleAtEnd() {
+        return titleAtEnd;
+    }
+}
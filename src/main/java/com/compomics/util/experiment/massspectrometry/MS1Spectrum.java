@@ -30,14 +30,9 @@ public class MS1Spectrum extends Spectrum {
      */
     public MS1Spectrum(String fileName, String spectrumTitle, double scanStartTime, HashMap<Double, Peak> spectrum) {
         this.spectrumTitle = spectrumTitle;
-        this.peakList = spectrum;
+        setPeakList(spectrum);
         this.fileName = fileName;
         this.scanStartTime = scanStartTime;
         this.level = 1;
     }
-
-    @Override
-    public void removePeakList() {
-        this.peakList.clear();
-    }
 }
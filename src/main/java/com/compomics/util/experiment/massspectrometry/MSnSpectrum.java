@@ -55,7 +55,7 @@ public class MSnSpectrum extends Spectrum {
         this.level = level;
         this.precursor = precursor;
         this.spectrumTitle = spectrumTitle;
-        this.peakList = peakMap;
+        setPeakList(peakMap);
         this.fileName = fileName;
     }
 
@@ -73,11 +73,31 @@ public class MSnSpectrum extends Spectrum {
         this.level = level;
         this.precursor = precursor;
         this.spectrumTitle = spectrumTitle;
-        this.peakList = peakMap;
+        setPeakList(peakMap);
         this.fileName = fileName;
         this.scanStartTime = scanStartTime;
     }
 
+    /**
+     * Constructor for the spectrum using the peaks as arrays. The arrays are
+     * kept by the spectrum when the m/z are sorted in ascending order without
+     * duplicates, see setPeaks.
+     *
+     * @param level MS level
+     * @param precursor precursor
+     * @param spectrumTitle spectrum title
+     * @param mz the m/z of the peaks
+     * @param intensity the intensities of the peaks
+     * @param fileName file name
+     */
+    public MSnSpectrum(int level, Precursor precursor, String spectrumTitle, double[] mz, double[] intensity, String fileName) {
+        this.level = level;
+        this.precursor = precursor;
+        this.spectrumTitle = spectrumTitle;
+        setPeaks(mz, intensity);
+        this.fileName = fileName;
+    }
+
     /**
      * Returns the precursor.
      *
@@ -157,15 +177,11 @@ public class MSnSpectrum extends Spectrum {
             results.append("SCANS=").append(scanNumber).append(lineBreak);
         }
 
-        // add the values to a tree map to get them sorted in mz    
-        TreeMap<Double, Double> sortedPeakList = new TreeMap<Double, Double>();
-
-        for (Peak peak : peakList.values()) {
-            sortedPeakList.put(peak.mz, peak.intensity);
-        }
+        // the peaks are sorted by m/z
+        loadPeakArrays();
 
-        for (Map.Entry<Double, Double> entry : sortedPeakList.entrySet()) {
-            results.append(entry.getKey()).append(" ").append(entry.getValue()).append(lineBreak);
+        for (int i = 0; mzArray != null && i < mzArray.length; i++) {
+            results.append(mzArray[i]).append(" ").append(intensityArray[i]).append(lineBreak);
         }
 
         results.append("END IONS").append(lineBreak).append(lineBreak);
@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 import org.apache.commons.math.MathException;
@@ -37,9 +38,27 @@ public abstract class Spectrum extends ExperimentObject {
      */
     protected int level;
     /**
-     * mz indexed Peak list.
+     * The m/z of the peaks sorted in ascending order. Null if not set. The
+     * peak arrays are read without lock, the m/z array is therefore assigned
+     * after the other arrays.
      */
-    protected HashMap<Double, Peak> peakList;
+    protected volatile double[] mzArray = null;
+    /**
+     * The intensities of the peaks in the order of the m/z.
+     */
+    protected volatile double[] intensityArray = null;
+    /**
+     * The retention times of the peaks in the order of the m/z, null if no
+     * retention time was recorded.
+     */
+    protected volatile double[] rtArray = null;
+    /**
+     * mz indexed Peak list. The peaks are stored in the arrays above, the map
+     * returned by getPeakMap is not stored here. A map set here directly by a
+     * subclass or a former version of the class is moved to the arrays when
+     * the peaks are first accessed and then released.
+     */
+    protected volatile HashMap<Double, Peak> peakList;
     /**
      * Intensity indexed Peak map.
      */
@@ -61,24 +80,11 @@ public abstract class Spectrum extends ExperimentObject {
      * The peak list as an array directly plottable by JFreeChart.
      */
     private double[][] jFreePeakList = null;
-    /**
-     * The mz values as array. Null until set by the getter.
-     */
-    private double[] mzValuesAsArray = null;
-    /**
-     * The mz values sorted in acceding order as array. Null until set by the
-     * getter.
-     */
-    private double[] mzValuesOrderedAsArray = null;
     /**
      * The peak list as an array list formatted as text, e.g. [[303.17334
      * 3181.14],[318.14542 37971.93], ... ].
      */
     private String peakListAsString = null;
-    /**
-     * The intensity values as array. Null until set by the getter.
-     */
-    private double[] intensityValuesAsArray = null;
     /**
      * The intensity values as array normalized against the most intense peak.
      * Null until set by the getter.
@@ -191,7 +197,8 @@ public abstract class Spectrum extends ExperimentObject {
     }
 
     /**
-     * Format the peaks so that they can be plotted in JFreeChart.
+     * Format the peaks so that they can be plotted in JFreeChart. The rows
+     * are the arrays of the spectrum and should not be modified.
      *
      * @return a table containing the peaks
      *
@@ -200,16 +207,11 @@ public abstract class Spectrum extends ExperimentObject {
      */
     public double[][] getJFreePeakList() throws InterruptedException {
         if (jFreePeakList == null) {
+            loadPeakArrays();
             mutex.acquire();
             if (jFreePeakList == null) {
-                double[] mz = new double[peakList.size()];
-                double[] intensity = new double[peakList.size()];
-                int cpt = 0;
-                for (Peak currentPeak : peakList.values()) {
-                    mz[cpt] = currentPeak.mz;
-                    intensity[cpt] = currentPeak.intensity;
-                    cpt++;
-                }
+                double[] mz = mzArray;
+                double[] intensity = intensityArray;
 
                 jFreePeakList = new double[6][mz.length];
                 jFreePeakList[0] = mz;
@@ -225,48 +227,226 @@ public abstract class Spectrum extends ExperimentObject {
     }
 
     /**
-     * Returns a peak map where peaks are indexed by their m/z.
+     * Returns a peak map where peaks are indexed by their m/z. The map is
+     * built from the peak arrays at every call and is not retained by the
+     * spectrum, changes to the map are not reflected in the spectrum.
+     * Performance critical code should use getOrderedMzValues and
+     * getIntensityValuesAsArray instead.
      *
-     * @return a peak map
+     * @return a peak map, null if the peaks were not set
      */
     public HashMap<Double, Peak> getPeakMap() {
-        return peakList;
+        loadPeakArrays();
+        double[] mz = mzArray;
+        double[] intensity = intensityArray;
+        double[] rt = rtArray;
+        if (mz == null) {
+            return null;
+        }
+        if (intensity.length != mz.length || rt != null && rt.length != mz.length) {
+            // the peaks are being changed, take consistent arrays
+            synchronized (this) {
+                mz = mzArray;
+                intensity = intensityArray;
+                rt = rtArray;
+            }
+            if (mz == null) {
+                return null;
+            }
+        }
+        HashMap<Double, Peak> peakMap = new HashMap<Double, Peak>(mz.length);
+        for (int i = 0; i < mz.length; i++) {
+            peakMap.put(mz[i], new Peak(mz[i], intensity[i], rt == null ? 0.0 : rt[i]));
+        }
+        return peakMap;
     }
 
     /**
-     * Adds a peak to the spectrum peak list.
+     * Moves the peaks of a map set directly in the peakList attribute to the
+     * arrays. The map is released afterwards.
+     */
+    protected void loadPeakArrays() {
+        if (mzArray == null && peakList != null) {
+            synchronized (this) {
+                if (mzArray == null && peakList != null) {
+                    setPeakArrays(peakList.values());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the peak arrays from the given peaks. If different peaks have the
+     * same m/z, the last one is retained.
      *
-     * @param aPeak the peak to add
+     * @param peaks the peaks
+     */
+    private void setPeakArrays(Collection<Peak> peaks) {
+        int nPeaks = peaks.size();
+        double[] mz = new double[nPeaks];
+        double[] intensity = new double[nPeaks];
+        double[] rt = null;
+        int i = 0;
+        for (Peak peak : peaks) {
+            mz[i] = peak.mz;
+            intensity[i] = peak.intensity;
+            if (peak.rt != 0.0) {
+                if (rt == null) {
+                    rt = new double[nPeaks];
+                }
+                rt[i] = peak.rt;
+            }
+            i++;
+        }
+        setPeakArrays(mz, intensity, rt);
+    }
+
+    /**
+     * Sets the peak arrays from the given values, sorting them by m/z if
+     * needed. If different peaks have the same m/z, the last one is retained.
+     * The arrays are used as is when sorted without duplicates.
+     *
+     * @param mz the m/z of the peaks
+     * @param intensity the intensities of the peaks
+     * @param rt the retention times of the peaks, can be null
      */
-    public synchronized void addPeak(Peak aPeak) {
-        if (peakList == null) {
-            peakList = new HashMap<Double, Peak>();
+    private void setPeakArrays(double[] mz, double[] intensity, double[] rt) {
+
+        if (mz.length != intensity.length || rt != null && rt.length != mz.length) {
+            throw new IllegalArgumentException("The m/z, intensity and retention time arrays must have the same length.");
+        }
+
+        boolean sorted = true;
+        for (int i = 1; i < mz.length && sorted; i++) {
+            sorted = Double.compare(mz[i - 1], mz[i]) < 0;
         }
-        this.peakList.put(aPeak.mz, aPeak);
+
+        if (!sorted) {
+
+            // stable sort of the indexes so that the last duplicate can be retained
+            Integer[] order = new Integer[mz.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            final double[] mzValues = mz;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Double.compare(mzValues[o1], mzValues[o2]);
+                }
+            });
+
+            int nPeaks = 0;
+            for (int i = 0; i < order.length; i++) {
+                if (i == order.length - 1 || Double.compare(mz[order[i]], mz[order[i + 1]]) != 0) {
+                    nPeaks++;
+                }
+            }
+            double[] sortedMz = new double[nPeaks];
+            double[] sortedIntensity = new double[nPeaks];
+            double[] sortedRt = rt == null ? null : new double[nPeaks];
+            int j = 0;
+            for (int i = 0; i < order.length; i++) {
+                if (i == order.length - 1 || Double.compare(mz[order[i]], mz[order[i + 1]]) != 0) {
+                    int index = order[i];
+                    sortedMz[j] = mz[index];
+                    sortedIntensity[j] = intensity[index];
+                    if (rt != null) {
+                        sortedRt[j] = rt[index];
+                    }
+                    j++;
+                }
+            }
+            mz = sortedMz;
+            intensity = sortedIntensity;
+            rt = sortedRt;
+        }
+
+        intensityArray = intensity;
+        rtArray = rt;
+        mzArray = mz;
+        peakList = null;
         resetSavedData();
     }
 
     /**
-     * Set the peaks.
+     * Sets the peaks from the given arrays. The arrays are kept by the
+     * spectrum when the m/z are sorted in ascending order without duplicates
+     * and should not be modified afterwards. Otherwise the peaks are sorted
+     * and the last peak is retained for every m/z.
      *
-     * @param peaks the peaks to set
+     * @param mz the m/z of the peaks
+     * @param intensity the intensities of the peaks
      */
-    public synchronized void setPeaks(ArrayList<Peak> peaks) {
+    public synchronized void setPeaks(double[] mz, double[] intensity) {
+        setPeakArrays(mz, intensity, null);
+    }
 
-        if (peakList != null) {
-            this.peakList.clear();
-        } else {
-            peakList = new HashMap<Double, Peak>();
+    /**
+     * Adds a peak to the spectrum peak list.
+     *
+     * @param aPeak the peak to add
+     */
+    public synchronized void addPeak(Peak aPeak) {
+
+        loadPeakArrays();
+
+        if (mzArray == null) {
+            intensityArray = new double[0];
+            mzArray = new double[0];
         }
 
-        for (Peak p : peaks) {
-            double mz = p.mz;
-            peakList.put(mz, p);
+        int index = Arrays.binarySearch(mzArray, aPeak.mz);
+
+        if (index >= 0) {
+            double[] intensity = intensityArray.clone();
+            intensity[index] = aPeak.intensity;
+            intensityArray = intensity;
+            if (rtArray != null || aPeak.rt != 0.0) {
+                double[] rt = rtArray == null ? new double[mzArray.length] : rtArray.clone();
+                rt[index] = aPeak.rt;
+                rtArray = rt;
+            }
+        } else {
+            index = -index - 1;
+            intensityArray = insert(intensityArray, index, aPeak.intensity);
+            if (rtArray != null || aPeak.rt != 0.0) {
+                rtArray = insert(rtArray == null ? new double[mzArray.length] : rtArray, index, aPeak.rt);
+            }
+            mzArray = insert(mzArray, index, aPeak.mz);
         }
 
+        peakList = null;
         resetSavedData();
     }
 
+    /**
+     * Returns a copy of the given array with a value inserted at the given
+     * index.
+     *
+     * @param array the array
+     * @param index the index of the value in the new array
+     * @param value the value to insert
+     *
+     * @return a copy of the array with the value inserted
+     */
+    private static double[] insert(double[] array, int index, double value) {
+        double[] result = new double[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    /**
+     * Set the peaks.
+     *
+     * @param peaks the peaks to set
+     */
+    public synchronized void setPeaks(ArrayList<Peak> peaks) {
+        setPeakArrays(peaks);
+    }
+
     /**
      * Getter for the scan number.
      *
@@ -313,22 +493,30 @@ public abstract class Spectrum extends ExperimentObject {
     }
 
     /**
-     * Returns the peak list.
+     * Returns the peak list. The peaks are created from the peak arrays at
+     * every call, see getPeakMap.
      *
      * @return the peak list
      */
     public Collection<Peak> getPeakList() {
-        return peakList.values();
+        return getPeakMap().values();
     }
 
     /**
-     * Sets the peak list.
+     * Sets the peak list. The peaks are copied to the arrays of the spectrum.
      *
      * @param peakList HashSet of peaks containing the peaks of the spectrum
      */
     public synchronized void setPeakList(HashMap<Double, Peak> peakList) {
-        this.peakList = peakList;
-        resetSavedData();
+        if (peakList == null) {
+            mzArray = null;
+            intensityArray = null;
+            rtArray = null;
+            this.peakList = null;
+            resetSavedData();
+        } else {
+            setPeakArrays(peakList.values());
+        }
     }
 
     /**
@@ -344,24 +532,22 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (peakListAsString == null) {
 
-            double[] mzValues = getOrderedMzValues();
+            loadPeakArrays();
             mutex.acquire();
 
             StringBuilder sb = new StringBuilder();
             sb.append("[");
 
-            for (double mzValue : mzValues) {
+            for (int i = 0; i < mzArray.length; i++) {
 
                 if (sb.length() > 1) {
                     sb.append(",");
                 }
 
-                Peak currentPeak = peakList.get(mzValue);
-
                 sb.append("[");
-                sb.append(currentPeak.mz);
+                sb.append(mzArray[i]);
                 sb.append(",");
-                sb.append(currentPeak.intensity);
+                sb.append(intensityArray[i]);
                 sb.append("]");
             }
 
@@ -397,14 +583,18 @@ public abstract class Spectrum extends ExperimentObject {
      * consumption of the model.
      */
     public synchronized void removePeakList() {
-        if (peakList != null) {
-            peakList.clear();
+        if (mzArray != null || peakList != null) {
+            intensityArray = new double[0];
+            rtArray = null;
+            mzArray = new double[0];
+            peakList = null;
+            resetSavedData();
         }
     }
 
     /**
-     * Returns the mz values as an array. Note: the array is not necessarily
-     * ordered.
+     * Returns the mz values as an array. The values are sorted in ascending
+     * order, the array is the one of the spectrum and should not be modified.
      *
      * @return the mz values as an array
      *
@@ -412,24 +602,13 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getMzValuesAsArray() throws InterruptedException {
-
-        if (mzValuesAsArray == null) {
-            mutex.acquire();
-            if (mzValuesAsArray == null) {
-                mzValuesAsArray = new double[peakList.size()];
-                int counter = 0;
-                for (double currentMz : peakList.keySet()) {
-                    mzValuesAsArray[counter++] = currentMz;
-                }
-            }
-            mutex.release();
-        }
-
-        return mzValuesAsArray;
+        loadPeakArrays();
+        return mzArray;
     }
 
     /**
-     * Returns a list of the m/z values sorted in ascending order.
+     * Returns a list of the m/z values sorted in ascending order. The array is
+     * the one of the spectrum and should not be modified.
      *
      * @return a list of the m/z values sorted in ascending order
      *
@@ -437,30 +616,31 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getOrderedMzValues() throws InterruptedException {
-        if (mzValuesOrderedAsArray == null) {
-            getMzValuesAsArray();
-            if (mzValuesOrderedAsArray == null) {
-                mutex.acquire();
-                mzValuesOrderedAsArray = mzValuesAsArray.clone();
-                Arrays.sort(mzValuesOrderedAsArray);
-                mutex.release();
-            }
-        }
-        return mzValuesOrderedAsArray;
+        loadPeakArrays();
+        return mzArray;
     }
 
     /**
-     * Setter for the intensityValuesAsArray.
+     * Sets the intensities of the peaks in the order of the m/z. As in former
+     * versions, the peaks are removed if the number of intensities does not
+     * match the number of peaks.
      *
      * @param intensityValuesAsArray the intensity values array
      */
     public synchronized void setIntensityValuesAsArray(double[] intensityValuesAsArray) {
-        this.intensityValuesAsArray = intensityValuesAsArray;
-        removePeakList();
+        loadPeakArrays();
+        if (mzArray == null || intensityValuesAsArray.length != mzArray.length) {
+            removePeakList();
+            return;
+        }
+        intensityArray = intensityValuesAsArray;
+        peakList = null;
+        resetSavedData();
     }
 
     /**
-     * Returns the intensity values as an array.
+     * Returns the intensity values as an array in the order of the m/z. The
+     * array is the one of the spectrum and should not be modified.
      *
      * @return the intensity values as an array
      *
@@ -468,20 +648,8 @@ public abstract class Spectrum extends ExperimentObject {
      * interrupted
      */
     public double[] getIntensityValuesAsArray() throws InterruptedException {
-
-        if (intensityValuesAsArray == null || (intensityValuesAsArray.length != peakList.size())) {
-            mutex.acquire();
-            if (intensityValuesAsArray == null || (intensityValuesAsArray.length != peakList.size())) {
-                intensityValuesAsArray = new double[peakList.size()];
-                int counter = 0;
-                for (Peak currentPeak : peakList.values()) {
-                    intensityValuesAsArray[counter++] = currentPeak.intensity;
-                }
-            }
-            mutex.release();
-        }
-
-        return intensityValuesAsArray;
+        loadPeakArrays();
+        return intensityArray;
     }
 
     /**
@@ -497,19 +665,18 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (intensityValuesNormaizedAsArray == null) {
 
+            loadPeakArrays();
             mutex.acquire();
 
             if (intensityValuesNormaizedAsArray == null) {
 
-                intensityValuesNormaizedAsArray = new double[peakList.size()];
+                intensityValuesNormaizedAsArray = intensityArray.clone();
 
                 double highestIntensity = 0.0;
-                int counter = 0;
 
-                for (Peak currentPeak : peakList.values()) {
-                    intensityValuesNormaizedAsArray[counter++] = currentPeak.intensity;
-                    if (currentPeak.intensity > highestIntensity) {
-                        highestIntensity = currentPeak.intensity;
+                for (double intensity : intensityArray) {
+                    if (intensity > highestIntensity) {
+                        highestIntensity = intensity;
                     }
                 }
 
@@ -528,7 +695,8 @@ public abstract class Spectrum extends ExperimentObject {
 
     /**
      * Returns the m/z and intensity values as an array in increasing order
-     * sorted on m/z value.
+     * sorted on m/z value. The rows are the arrays of the spectrum and should
+     * not be modified.
      *
      * @return the m/z and intensity values as an array
      *
@@ -539,20 +707,11 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (mzAndIntensityAsArray == null) {
 
-            double[] orderedMzValues = getOrderedMzValues();
+            loadPeakArrays();
             mutex.acquire();
 
             if (mzAndIntensityAsArray == null) {
-
-                mzAndIntensityAsArray = new double[2][peakList.size()];
-                int counter = 0;
-
-                for (double mz : orderedMzValues) {
-                    Peak currentPeak = peakList.get(mz);
-                    mzAndIntensityAsArray[0][counter] = currentPeak.mz;
-                    mzAndIntensityAsArray[1][counter] = currentPeak.intensity;
-                    counter++;
-                }
+                mzAndIntensityAsArray = new double[][]{mzArray, intensityArray};
             }
 
             mutex.release();
@@ -573,15 +732,18 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (totalIntensity == null) {
 
+            loadPeakArrays();
             mutex.acquire();
 
             if (totalIntensity == null) {
 
-                totalIntensity = 0.0;
+                double sum = 0.0;
 
-                for (Peak currentPeak : peakList.values()) {
-                    totalIntensity += currentPeak.intensity;
+                for (double intensity : intensityArray) {
+                    sum += intensity;
                 }
+
+                totalIntensity = sum;
             }
 
             mutex.release();
@@ -602,17 +764,20 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (maxIntensity == null) {
 
+            loadPeakArrays();
             mutex.acquire();
 
             if (maxIntensity == null) {
 
-                maxIntensity = 0.0;
+                double max = 0.0;
 
-                for (Peak currentPeak : peakList.values()) {
-                    if (currentPeak.intensity > maxIntensity) {
-                        maxIntensity = currentPeak.intensity;
+                for (double intensity : intensityArray) {
+                    if (intensity > max) {
+                        max = intensity;
                     }
                 }
+
+                maxIntensity = max;
             }
 
             mutex.release();
@@ -633,13 +798,14 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (maxMz == null) {
 
+            loadPeakArrays();
             mutex.acquire();
             if (maxMz == null) {
 
-                if (peakList.keySet().isEmpty()) {
+                if (mzArray.length == 0) {
                     maxMz = 0.0;
                 } else {
-                    maxMz = Collections.max(peakList.keySet());
+                    maxMz = mzArray[mzArray.length - 1];
                 }
             }
 
@@ -661,13 +827,14 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (minMz == null) {
 
+            loadPeakArrays();
             mutex.acquire();
 
             if (minMz == null) {
-                if (peakList.keySet().isEmpty()) {
+                if (mzArray.length == 0) {
                     minMz = 0.0;
                 } else {
-                    minMz = Collections.min(peakList.keySet());
+                    minMz = mzArray[0];
                 }
             }
 
@@ -690,9 +857,10 @@ public abstract class Spectrum extends ExperimentObject {
 
         ArrayList<Double> peakIntensities = new ArrayList<Double>();
 
-        for (Peak currentPeak : peakList.values()) {
-            if (currentPeak.intensity > threshold) {
-                peakIntensities.add(currentPeak.intensity);
+        loadPeakArrays();
+        for (double intensity : intensityArray) {
+            if (intensity > threshold) {
+                peakIntensities.add(intensity);
             }
         }
 
@@ -751,13 +919,14 @@ public abstract class Spectrum extends ExperimentObject {
 
             case percentile:
 
-                ArrayList<Double> intensities = new ArrayList<Double>(peakList.size());
+                loadPeakArrays();
+                ArrayList<Double> intensities = new ArrayList<Double>(mzArray.length);
 
-                for (Peak peak : peakList.values()) {
-                    double mz = peak.mz;
+                for (int i = 0; i < mzArray.length; i++) {
+                    double mz = mzArray[i];
                     // Skip the low mass region of the spectrum @TODO: skip precursor as well
                     if (mz > 200) {
-                        intensities.add(peak.intensity);
+                        intensities.add(intensityArray[i]);
                     }
                 }
 
@@ -781,13 +950,14 @@ public abstract class Spectrum extends ExperimentObject {
      */
     public HashMap<Double, Peak> getRecalibratedPeakList(HashMap<Double, Double> mzCorrections) {
 
-        HashMap<Double, Peak> result = new HashMap<Double, Peak>(peakList.size());
+        loadPeakArrays();
+        HashMap<Double, Peak> result = new HashMap<Double, Peak>(mzArray.length);
         ArrayList<Double> keys = new ArrayList<Double>(mzCorrections.keySet());
         Collections.sort(keys);
 
-        for (Peak peak : peakList.values()) {
+        for (int j = 0; j < mzArray.length; j++) {
 
-            double fragmentMz = peak.mz;
+            double fragmentMz = mzArray[j];
             double key1 = keys.get(0);
             double correction = 0.0;
 
@@ -822,7 +992,7 @@ public abstract class Spectrum extends ExperimentObject {
                 }
             }
 
-            result.put(peak.mz - correction, new Peak(peak.mz - correction, peak.intensity));
+            result.put(fragmentMz - correction, new Peak(fragmentMz - correction, intensityArray[j]));
         }
 
         return result;
@@ -836,7 +1006,7 @@ public abstract class Spectrum extends ExperimentObject {
      * @return a peak list which does not contain the peak matched
      */
     public HashMap<Double, Peak> getDesignaledPeakList(ArrayList<IonMatch> matches) {
-        HashMap<Double, Peak> result = new HashMap<Double, Peak>(peakList);
+        HashMap<Double, Peak> result = getPeakMap();
         for (IonMatch ionMatch : matches) {
             result.remove(ionMatch.peak.mz);
         }
@@ -858,12 +1028,16 @@ public abstract class Spectrum extends ExperimentObject {
      */
     public HashMap<Double, Peak> getSubSpectrum(double mzMin, double mzMax) throws InterruptedException {
         HashMap<Double, Peak> result = new HashMap<Double, Peak>();
-        for (double mz : getOrderedMzValues()) {
-            if (mz >= mzMin && mz < mzMax) {
-                result.put(mz, peakList.get(mz));
-            } else if (mz >= mzMax) {
-                break;
-            }
+        double[] mzValues = getOrderedMzValues();
+        double[] intensityValues = getIntensityValuesAsArray();
+        double[] rtValues = rtArray;
+        int index = Arrays.binarySearch(mzValues, mzMin);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = index; i < mzValues.length && mzValues[i] < mzMax; i++) {
+            double rt = rtValues == null || rtValues.length != mzValues.length ? 0.0 : rtValues[i];
+            result.put(mzValues[i], new Peak(mzValues[i], intensityValues[i], rt));
         }
         return result;
     }
@@ -881,13 +1055,14 @@ public abstract class Spectrum extends ExperimentObject {
 
         if (intensityPeakMap == null) {
 
+            HashMap<Double, Peak> peakMap = getPeakMap();
             mutex.acquire();
 
             if (intensityPeakMap == null) {
 
-                intensityPeakMap = new HashMap<Double, ArrayList<Peak>>(peakList.size());
+                intensityPeakMap = new HashMap<Double, ArrayList<Peak>>(peakMap.size());
 
-                for (Peak peak : peakList.values()) {
+                for (Peak peak : peakMap.values()) {
 
                     double intensity = peak.intensity;
                     ArrayList<Peak> peaksAtIntensity = intensityPeakMap.get(intensity);
@@ -913,10 +1088,11 @@ public abstract class Spectrum extends ExperimentObject {
      * @return the number of peaks in the spectrum
      */
     public int getNPeaks() {
-        if (peakList == null) {
+        loadPeakArrays();
+        if (mzArray == null) {
             return 0;
         }
-        return peakList.size();
+        return mzArray.length;
     }
 
     /**
@@ -928,15 +1104,44 @@ public abstract class Spectrum extends ExperimentObject {
         return getNPeaks() == 0;
     }
 
+    /**
+     * Returns the estimated size in bytes of the data derived from the peaks
+     * and kept by the spectrum for later calls: the retention times, the
+     * normalized intensities, the intensity map and the peak list as text.
+     * The m/z and intensity arrays are not included.
+     *
+     * @return the estimated size in bytes of the data derived from the peaks
+     */
+    public long getDerivedBytes() {
+        long derivedBytes = 0;
+        double[] currentRtArray = rtArray;
+        if (currentRtArray != null) {
+            derivedBytes += 8L * currentRtArray.length;
+        }
+        double[] normalizedIntensities = intensityValuesNormaizedAsArray;
+        if (normalizedIntensities != null) {
+            derivedBytes += 8L * normalizedIntensities.length;
+        }
+        String currentPeakListAsString = peakListAsString;
+        if (currentPeakListAsString != null) {
+            derivedBytes += 2L * currentPeakListAsString.length();
+        }
+        if (intensityPeakMap != null) {
+            // map entry, boxed intensity, list and peak for every peak
+            double[] currentMzArray = mzArray;
+            if (currentMzArray != null) {
+                derivedBytes += 160L * currentMzArray.length;
+            }
+        }
+        return derivedBytes;
+    }
+
     /**
      * Resets all the saved values to null. Used after altering the peak data.
      */
     private void resetSavedData() {
         jFreePeakList = null;
         peakListAsString = null;
-        mzValuesAsArray = null;
-        mzValuesOrderedAsArray = null;
-        intensityValuesAsArray = null;
         intensityValuesNormaizedAsArray = null;
         binnedCumulativeFunction = null;
         mzAndIntensityAsArray = null;
@@ -961,9 +1166,10 @@ public abstract class Spectrum extends ExperimentObject {
      */
     public SimpleNoiseDistribution getIntensityLogDistribution() throws InterruptedException, MathException {
         if (binnedCumulativeFunction == null) {
+            loadPeakArrays();
             mutex.acquire();
             if (binnedCumulativeFunction == null) {
-                binnedCumulativeFunction = new SimpleNoiseDistribution(peakList);
+                binnedCumulativeFunction = new SimpleNoiseDistribution(intensityArray);
             }
             mutex.release();
         }
@@ -0,0 +1,775 @@
+package com.compomics.util.experiment.massspectrometry;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache for the spectra of the spectrum factory, bounded
+ * in estimated bytes and in number of spectra. The spectra are stored in one
+ * partition per file, keyed by title. A partition spreads its spectra over
+ * segments, each holding its spectra in access order under its own lock, so
+ * that threads only contend when they hit the same segment. Every access is
+ * stamped with a global clock, the least recently used spectrum of the cache
+ * is the eldest spectrum of the segment with the oldest stamp. The size of a
+ * spectrum is estimated again at every access, so that the data derived from
+ * the peaks after the spectrum was cached is accounted for. Optionally,
+ * evicted spectra are kept in a second tier of soft references which the
+ * garbage collector clears when memory is needed.
+ *
+ * @author agent
+ */
+public class SpectrumCache {
+
+    /**
+     * The estimated size in bytes of a peak, an m/z and an intensity stored
+     * as double.
+     */
+    public static final int BYTES_PER_PEAK = 16;
+    /**
+     * The estimated size in bytes of a spectrum without peaks and title: the
+     * spectrum, its precursor, the arrays and the cache entry.
+     */
+    public static final int SPECTRUM_OVERHEAD = 400;
+    /**
+     * The number of segments of a partition, must be a power of two.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * The partitions of the cache (file name &gt; segments of the partition).
+     */
+    private final ConcurrentHashMap<String, Segment[]> partitions = new ConcurrentHashMap<String, Segment[]>();
+    /**
+     * The clock used to stamp the accesses.
+     */
+    private final AtomicLong clock = new AtomicLong();
+    /**
+     * The maximal number of spectra.
+     */
+    private volatile int capacity;
+    /**
+     * The maximal number of bytes, no limit if zero or negative.
+     */
+    private volatile long maxBytes;
+    /**
+     * Indicates whether evicted spectra are kept as soft references.
+     */
+    private volatile boolean softTier;
+    /**
+     * The number of spectra in the cache, without the soft tier.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * The estimated number of bytes of the spectra in the cache, without the
+     * soft tier.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    /**
+     * The number of lookups finding a spectrum in the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of lookups finding a spectrum in the soft tier.
+     */
+    private final AtomicLong softHits = new AtomicLong();
+    /**
+     * The number of lookups finding no spectrum.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of spectra evicted to respect the bounds.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * The lock taken while evicting spectra.
+     */
+    private final Object evictionLock = new Object();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximal number of spectra
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     * @param softTier if true evicted spectra are kept as soft references
+     */
+    public SpectrumCache(int capacity, long maxBytes, boolean softTier) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.softTier = softTier;
+    }
+
+    /**
+     * Returns the estimated size in bytes of the given spectrum, including the
+     * data derived from the peaks kept by the spectrum.
+     *
+     * @param spectrum the spectrum
+     *
+     * @return the estimated size in bytes of the spectrum
+     */
+    public static long estimateBytes(Spectrum spectrum) {
+        String title = spectrum.getSpectrumTitle();
+        int titleLength = title == null ? 0 : title.length();
+        return SPECTRUM_OVERHEAD + 2L * titleLength + ((long) BYTES_PER_PEAK) * spectrum.getNPeaks() + spectrum.getDerivedBytes();
+    }
+
+    /**
+     * Returns the cached spectrum, null if not cached. A spectrum found in
+     * the soft tier is moved back to the cache.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the cached spectrum, null if not cached
+     */
+    public Spectrum get(String fileName, String spectrumTitle) {
+        Segment[] partition = partitions.get(fileName);
+        if (partition != null) {
+            Segment segment = getSegment(partition, spectrumTitle);
+            Spectrum spectrum = null;
+            long addedBytes = 0;
+            synchronized (segment) {
+                Entry entry = segment.access(spectrumTitle, clock.incrementAndGet());
+                if (entry != null) {
+                    spectrum = entry.spectrum;
+                    addedBytes = segment.reestimate(entry, estimateBytes(spectrum));
+                    bytes.addAndGet(addedBytes);
+                }
+            }
+            if (spectrum != null) {
+                hits.incrementAndGet();
+                if (addedBytes > 0) {
+                    evict(segment, spectrumTitle);
+                }
+                return spectrum;
+            }
+            if (softTier) {
+                synchronized (segment) {
+                    spectrum = segment.getSoft(spectrumTitle);
+                }
+                if (spectrum != null) {
+                    softHits.incrementAndGet();
+                    put(fileName, spectrumTitle, spectrum);
+                    return spectrum;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the cached spectrum, null if not cached, without counting the
+     * lookup or changing the order of the spectra.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the cached spectrum, null if not cached
+     */
+    public Spectrum peek(String fileName, String spectrumTitle) {
+        Segment[] partition = partitions.get(fileName);
+        if (partition == null) {
+            return null;
+        }
+        Segment segment = getSegment(partition, spectrumTitle);
+        synchronized (segment) {
+            Entry entry = segment.get(spectrumTitle);
+            return entry == null ? null : entry.spectrum;
+        }
+    }
+
+    /**
+     * Adds a spectrum to the cache, evicting the least recently used spectra
+     * if the bounds are exceeded. The spectrum added is not evicted. If the
+     * partition of the file is cleared concurrently, the spectrum is added to
+     * the new partition of the file.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     * @param spectrum the spectrum
+     */
+    public void put(String fileName, String spectrumTitle, Spectrum spectrum) {
+
+        long spectrumBytes = estimateBytes(spectrum);
+        Segment segment;
+        boolean added = false;
+        do {
+            segment = getSegment(getPartition(fileName), spectrumTitle);
+            synchronized (segment) {
+                if (!segment.removed) {
+                    long previousBytes = segment.add(spectrumTitle, new Entry(spectrum, spectrumBytes, clock.incrementAndGet()));
+                    if (previousBytes < 0) {
+                        size.incrementAndGet();
+                        bytes.addAndGet(spectrumBytes);
+                    } else {
+                        bytes.addAndGet(spectrumBytes - previousBytes);
+                    }
+                    added = true;
+                }
+            }
+        } while (!added);
+
+        evict(segment, spectrumTitle);
+    }
+
+    /**
+     * Removes a spectrum from the cache and from the soft tier.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumTitle the title of the spectrum
+     */
+    public void remove(String fileName, String spectrumTitle) {
+        Segment[] partition = partitions.get(fileName);
+        if (partition != null) {
+            Segment segment = getSegment(partition, spectrumTitle);
+            synchronized (segment) {
+                Entry entry = segment.delete(spectrumTitle);
+                if (entry != null) {
+                    size.decrementAndGet();
+                    bytes.addAndGet(-entry.bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all spectra of the given file. The counters are kept. The
+     * segments of the partition are marked as removed so that spectra
+     * concurrently added are added to a new partition.
+     *
+     * @param fileName the name of the spectrum file
+     */
+    public void clear(String fileName) {
+        Segment[] partition = partitions.remove(fileName);
+        if (partition != null) {
+            for (Segment segment : partition) {
+                synchronized (segment) {
+                    segment.removed = true;
+                    size.addAndGet(-segment.size());
+                    bytes.addAndGet(-segment.bytes);
+                    segment.clear();
+                    segment.softEntries.clear();
+                    segment.bytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the cache and the soft tier. The counters are kept.
+     */
+    public void clear() {
+        for (String fileName : partitions.keySet()) {
+            clear(fileName);
+        }
+    }
+
+    /**
+     * Evicts the least recently used spectra when the cache exceeds its
+     * bounds, down to 99% of the bounds so that the segments are not scanned
+     * at every insertion. The oldest stamp of every segment is read once and
+     * updated only for the segments where spectra are evicted.
+     *
+     * @param protectedSegment the segment of a spectrum which should not be
+     * evicted, ignored if null
+     * @param protectedTitle the title of a spectrum which should not be
+     * evicted, ignored if null
+     */
+    private void evict(Segment protectedSegment, String protectedTitle) {
+
+        if (size.get() <= capacity && (maxBytes <= 0 || bytes.get() <= maxBytes)) {
+            return;
+        }
+
+        synchronized (evictionLock) {
+
+            int targetSize = capacity - capacity / 100;
+            long targetBytes = maxBytes - maxBytes / 100;
+
+            ArrayList<Segment> segments = new ArrayList<Segment>();
+            for (Segment[] partition : partitions.values()) {
+                segments.addAll(Arrays.asList(partition));
+            }
+            long[] stamps = new long[segments.size()];
+            for (int i = 0; i < stamps.length; i++) {
+                Segment segment = segments.get(i);
+                synchronized (segment) {
+                    stamps[i] = segment.getEldestStamp(segment == protectedSegment ? protectedTitle : null);
+                }
+            }
+
+            while (size.get() > targetSize || maxBytes > 0 && bytes.get() > targetBytes) {
+
+                // the least recently used spectrum is the eldest of the segment with the oldest stamp
+                int eldestIndex = -1;
+                long eldestStamp = Long.MAX_VALUE;
+                for (int i = 0; i < stamps.length; i++) {
+                    if (stamps[i] < eldestStamp) {
+                        eldestStamp = stamps[i];
+                        eldestIndex = i;
+                    }
+                }
+
+                if (eldestIndex == -1) {
+                    return;
+                }
+
+                Segment segment = segments.get(eldestIndex);
+                String segmentProtectedTitle = segment == protectedSegment ? protectedTitle : null;
+                synchronized (segment) {
+                    Entry entry = segment.evictEldest(segmentProtectedTitle, softTier);
+                    stamps[eldestIndex] = segment.getEldestStamp(segmentProtectedTitle);
+                    if (entry != null) {
+                        size.decrementAndGet();
+                        bytes.addAndGet(-entry.bytes);
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the bounds of the cache, evicting the least recently used
+     * spectra if needed.
+     *
+     * @param capacity the maximal number of spectra
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     */
+    public void setBounds(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        evict(null, null);
+    }
+
+    /**
+     * Sets whether evicted spectra should be kept as soft references. When
+     * disabled, the soft tier is emptied.
+     *
+     * @param softTier if true evicted spectra are kept as soft references
+     */
+    public void setSoftTier(boolean softTier) {
+        this.softTier = softTier;
+        if (!softTier) {
+            for (Segment[] partition : partitions.values()) {
+                for (Segment segment : partition) {
+                    synchronized (segment) {
+                        segment.softEntries.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates whether evicted spectra are kept as soft references.
+     *
+     * @return a boolean indicating whether evicted spectra are kept as soft
+     * references
+     */
+    public boolean isSoftTier() {
+        return softTier;
+    }
+
+    /**
+     * Returns the maximal number of spectra.
+     *
+     * @return the maximal number of spectra
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the maximal number of bytes, no limit if zero or negative.
+     *
+     * @return the maximal number of bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of spectra in the cache, without the soft tier.
+     *
+     * @return the number of spectra in the cache
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of spectra of the given file in the cache, without
+     * the soft tier.
+     *
+     * @param fileName the name of the spectrum file
+     *
+     * @return the number of spectra of the file in the cache
+     */
+    public int size(String fileName) {
+        int fileSize = 0;
+        Segment[] partition = partitions.get(fileName);
+        if (partition != null) {
+            for (Segment segment : partition) {
+                synchronized (segment) {
+                    fileSize += segment.size();
+                }
+            }
+        }
+        return fileSize;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the spectra in the cache,
+     * without the soft tier.
+     *
+     * @return the estimated number of bytes of the spectra in the cache
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the estimated number of bytes of the spectra of the given file
+     * in the cache, without the soft tier.
+     *
+     * @param fileName the name of the spectrum file
+     *
+     * @return the estimated number of bytes of the spectra of the file
+     */
+    public long getBytes(String fileName) {
+        long fileBytes = 0;
+        Segment[] partition = partitions.get(fileName);
+        if (partition != null) {
+            for (Segment segment : partition) {
+                synchronized (segment) {
+                    fileBytes += segment.bytes;
+                }
+            }
+        }
+        return fileBytes;
+    }
+
+    /**
+     * Returns the number of lookups finding a spectrum in the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups finding a spectrum in the soft tier.
+     *
+     * @return the number of soft tier hits
+     */
+    public long getSoftHits() {
+        return softHits.get();
+    }
+
+    /**
+     * Returns the number of lookups finding no spectrum.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of lookups finding a spectrum in the cache or in the
+     * soft tier, zero if no lookup was made.
+     *
+     * @return the hit rate
+     */
+    public double getHitRate() {
+        long nHits = hits.get() + softHits.get();
+        long nLookups = nHits + misses.get();
+        return nLookups == 0 ? 0 : ((double) nHits) / nLookups;
+    }
+
+    /**
+     * Returns the number of spectra evicted to respect the bounds.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the segments of the partition of the given file, creating them
+     * if needed.
+     *
+     * @param fileName the name of the spectrum file
+     *
+     * @return the segments of the partition of the file
+     */
+    private Segment[] getPartition(String fileName) {
+        Segment[] partition = partitions.get(fileName);
+        if (partition == null) {
+            partition = new Segment[N_SEGMENTS];
+            for (int i = 0; i < N_SEGMENTS; ++i) {
+                partition[i] = new Segment();
+            }
+            Segment[] previousPartition = partitions.putIfAbsent(fileName, partition);
+            if (previousPartition != null) {
+                partition = previousPartition;
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Returns the segment of the given title in the given partition.
+     *
+     * @param partition the segments of the partition
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the segment of the title
+     */
+    private static Segment getSegment(Segment[] partition, String spectrumTitle) {
+        int hash = spectrumTitle.hashCode();
+        hash ^= (hash >>> 16);
+        return partition[hash & (partition.length - 1)];
+    }
+
+    /**
+     * A cached spectrum, its estimated size and the stamp of its last access.
+     */
+    private static class Entry {
+
+        /**
+         * The spectrum.
+         */
+        private final Spectrum spectrum;
+        /**
+         * The estimated size in bytes.
+         */
+        private long bytes;
+        /**
+         * The stamp of the last access.
+         */
+        private long stamp;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrum the spectrum
+         * @param bytes the estimated size in bytes
+         * @param stamp the stamp of the last access
+         */
+        public Entry(Spectrum spectrum, long bytes, long stamp) {
+            this.spectrum = spectrum;
+            this.bytes = bytes;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * A soft reference to an evicted spectrum, remembering its title to be
+     * removed from the soft tier once cleared.
+     */
+    private static class SoftEntry extends SoftReference<Spectrum> {
+
+        /**
+         * The title of the spectrum.
+         */
+        private final String spectrumTitle;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumTitle the title of the spectrum
+         * @param spectrum the spectrum
+         * @param queue the queue where the cleared references are enqueued
+         */
+        public SoftEntry(String spectrumTitle, Spectrum spectrum, ReferenceQueue<Spectrum> queue) {
+            super(spectrum, queue);
+            this.spectrumTitle = spectrumTitle;
+        }
+    }
+
+    /**
+     * Segment of a partition, the spectra in the order of their last access
+     * and the soft references to the evicted spectra. The map is kept in
+     * insertion order and accessed spectra are moved to its end, so that
+     * peeking does not change the order. All methods must be called while
+     * holding the lock of the segment, and the counters of the cache are
+     * updated under the same lock.
+     */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+
+        /**
+         * The estimated number of bytes of the segment.
+         */
+        private long bytes = 0;
+        /**
+         * Indicates whether the partition of the segment was removed from the
+         * cache, no spectrum should be added to the segment anymore.
+         */
+        private boolean removed = false;
+        /**
+         * The soft references to the evicted spectra.
+         */
+        private final HashMap<String, SoftEntry> softEntries = new HashMap<String, SoftEntry>();
+        /**
+         * The queue of the soft references cleared by the garbage collector.
+         */
+        private final ReferenceQueue<Spectrum> softQueue = new ReferenceQueue<Spectrum>();
+
+        /**
+         * Returns the entry of the given title and marks it as most recently
+         * used, null if not cached.
+         *
+         * @param spectrumTitle the title of the spectrum
+         * @param stamp the stamp of the access
+         *
+         * @return the entry, null if not cached
+         */
+        public Entry access(String spectrumTitle, long stamp) {
+            Entry entry = remove(spectrumTitle);
+            if (entry == null) {
+                return null;
+            }
+            entry.stamp = stamp;
+            put(spectrumTitle, entry);
+            return entry;
+        }
+
+        /**
+         * Sets a new estimated size to an entry of the segment.
+         *
+         * @param entry the entry
+         * @param entryBytes the new estimated size in bytes of the entry
+         *
+         * @return the difference between the new and the former size
+         */
+        public long reestimate(Entry entry, long entryBytes) {
+            long addedBytes = entryBytes - entry.bytes;
+            entry.bytes = entryBytes;
+            bytes += addedBytes;
+            return addedBytes;
+        }
+
+        /**
+         * Returns the spectrum of the given title from the soft tier and
+         * removes it from the soft tier, null if not found.
+         *
+         * @param spectrumTitle the title of the spectrum
+         *
+         * @return the spectrum, null if not found
+         */
+        public Spectrum getSoft(String spectrumTitle) {
+            pollSoftQueue();
+            SoftEntry softEntry = softEntries.remove(spectrumTitle);
+            return softEntry == null ? null : softEntry.get();
+        }
+
+        /**
+         * Adds an entry as most recently used.
+         *
+         * @param spectrumTitle the title of the spectrum
+         * @param entry the entry
+         *
+         * @return the size of the entry replaced, -1 if none
+         */
+        public long add(String spectrumTitle, Entry entry) {
+            softEntries.remove(spectrumTitle);
+            Entry previous = remove(spectrumTitle);
+            put(spectrumTitle, entry);
+            bytes += entry.bytes;
+            if (previous != null) {
+                bytes -= previous.bytes;
+                return previous.bytes;
+            }
+            return -1;
+        }
+
+        /**
+         * Removes the entry of the given title from the segment and from the
+         * soft tier.
+         *
+         * @param spectrumTitle the title of the spectrum
+         *
+         * @return the entry removed, null if none
+         */
+        public Entry delete(String spectrumTitle) {
+            softEntries.remove(spectrumTitle);
+            Entry entry = remove(spectrumTitle);
+            if (entry != null) {
+                bytes -= entry.bytes;
+            }
+            return entry;
+        }
+
+        /**
+         * Returns the stamp of the least recently used entry, Long.MAX_VALUE
+         * if none can be evicted.
+         *
+         * @param protectedTitle the title of a spectrum which should not be
+         * evicted, ignored if null
+         *
+         * @return the stamp of the least recently used entry
+         */
+        public long getEldestStamp(String protectedTitle) {
+            for (Map.Entry<String, Entry> mapEntry : entrySet()) {
+                if (protectedTitle == null || !mapEntry.getKey().equals(protectedTitle)) {
+                    return mapEntry.getValue().stamp;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Removes the least recently used entry.
+         *
+         * @param protectedTitle the title of a spectrum which should not be
+         * evicted, ignored if null
+         * @param softTier if true the spectrum is kept as soft reference
+         *
+         * @return the entry removed, null if none
+         */
+        public Entry evictEldest(String protectedTitle, boolean softTier) {
+            Iterator<Map.Entry<String, Entry>> iterator = entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> mapEntry = iterator.next();
+                String spectrumTitle = mapEntry.getKey();
+                if (protectedTitle == null || !spectrumTitle.equals(protectedTitle)) {
+                    Entry entry = mapEntry.getValue();
+                    iterator.remove();
+                    bytes -= entry.bytes;
+                    if (softTier) {
+                        pollSoftQueue();
+                        softEntries.put(spectrumTitle, new SoftEntry(spectrumTitle, entry.spectrum, softQueue));
+                    }
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Removes the soft references cleared by the garbage collector.
+         */
+        private void pollSoftQueue() {
+            SoftEntry softEntry;
+            while ((softEntry = (SoftEntry) softQueue.poll()) != null) {
+                if (softEntries.get(softEntry.spectrumTitle) == softEntry) {
+                    softEntries.remove(softEntry.spectrumTitle);
+                }
+            }
+        }
+    }
+}
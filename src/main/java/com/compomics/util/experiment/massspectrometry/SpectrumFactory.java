@@ -1,5 +1,6 @@
 package com.compomics.util.experiment.massspectrometry;
 
+import com.compomics.util.experiment.io.massspectrometry.MgfByteParser;
 import com.compomics.util.experiment.io.massspectrometry.MgfIndex;
 import com.compomics.util.experiment.io.massspectrometry.MgfReader;
 import com.compomics.util.experiment.io.massspectrometry.MspReader;
@@ -7,10 +8,11 @@ import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.SerializationUtils;
 import java.io.*;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
 import uk.ac.ebi.jmzml.model.mzml.CVParam;
 import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
@@ -21,7 +23,10 @@ import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import uk.ac.ebi.pride.tools.braf.BufferedRandomAccessFile;
 
 /**
- * This factory will provide the spectra when needed.
+ * This factory will provide the spectra when needed. The spectra of mgf files
+ * are read using positional reads on the file channels and the caches are
+ * concurrent, so that the spectra and precursors can be retrieved by several
+ * threads in parallel.
  *
  * @author Marc Vaudel
  * @author Harald Barsnes
@@ -32,39 +37,51 @@ public class SpectrumFactory {
      * The instance of the factory.
      */
     private static SpectrumFactory instance = null;
-    /**
-     * Map of already loaded spectra.
-     */
-    private HashMap<String, HashMap<String, Spectrum>> currentSpectrumMap = new HashMap<String, HashMap<String, Spectrum>>();
     /**
      * Map of already loaded precursors.
      */
-    private HashMap<String, HashMap<String, Precursor>> loadedPrecursorsMap = new HashMap<String, HashMap<String, Precursor>>();
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Precursor>> loadedPrecursorsMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, Precursor>>();
     /**
-     * Maximal number of spectra in cache. By default 1000000, which corresponds to approx. 110MB.
+     * Maximal number of spectra in cache. By default 1000000.
      */
     private static int nSpectraCache = 1000000;
     /**
-     * List of the loaded spectra.
+     * Maximal estimated number of bytes of the spectra in cache. By default a
+     * quarter of the maximal heap size.
      */
-    private LinkedBlockingDeque<String> loadedSpectra = new LinkedBlockingDeque<String>();
+    private static long spectraCacheMaxBytes = Runtime.getRuntime().maxMemory() / 4;
+    /**
+     * The cache of the loaded spectra, partitioned by file and bounded in
+     * number of spectra and in estimated bytes.
+     */
+    private final SpectrumCache spectrumCache = new SpectrumCache(nSpectraCache, spectraCacheMaxBytes, false);
     /**
      * Map to the different files.
      */
-    private HashMap<String, File> filesMap = new HashMap<String, File>();
+    private ConcurrentHashMap<String, File> filesMap = new ConcurrentHashMap<String, File>();
+    /**
+     * Map of the channels of the loaded mgf files (filename &gt; channel).
+     * The spectra are read using positional reads, the channels can be shared
+     * between threads. A channel is closed for all threads when a thread is
+     * interrupted while reading, it is then replaced by a new channel, see
+     * getMgfFileChannel.
+     */
+    private ConcurrentHashMap<String, FileChannel> mgfFileChannelsMap = new ConcurrentHashMap<String, FileChannel>();
     /**
-     * Map of the random access files of the loaded mgf files (filename &gt;
-     * random access file).
+     * Map of the random access files of the loaded msp files (filename &gt;
+     * random access file). The reads are synchronized on the random access
+     * file.
      */
-    private HashMap<String, BufferedRandomAccessFile> mgfRandomAccessFilesMap = new HashMap<String, BufferedRandomAccessFile>();
+    private ConcurrentHashMap<String, BufferedRandomAccessFile> mspRandomAccessFilesMap = new ConcurrentHashMap<String, BufferedRandomAccessFile>();
     /**
      * Map of the mgf indexes (fileName &gt; mgf index).
      */
-    private HashMap<String, MgfIndex> mgfIndexesMap = new HashMap<String, MgfIndex>();
+    private ConcurrentHashMap<String, MgfIndex> mgfIndexesMap = new ConcurrentHashMap<String, MgfIndex>();
     /**
-     * Map of the mzML unmarshallers (fileName &gt; unmarshaller).
+     * Map of the mzML unmarshallers (fileName &gt; unmarshaller). The reads
+     * are synchronized on the unmarshaller.
      */
-    private HashMap<String, MzMLUnmarshaller> mzMLUnmarshallers = new HashMap<String, MzMLUnmarshaller>();
+    private ConcurrentHashMap<String, MzMLUnmarshaller> mzMLUnmarshallers = new ConcurrentHashMap<String, MzMLUnmarshaller>();
     /**
      * Map of the spectrum file mapped according to the name used by the search
      * engine.
@@ -112,11 +129,11 @@ public class SpectrumFactory {
      * Clears the factory getInstance() needs to be called afterwards.
      */
     public void clearFactory() {
-        currentSpectrumMap.clear();
+        spectrumCache.clear();
         loadedPrecursorsMap.clear();
-        loadedSpectra.clear();
         filesMap.clear();
-        mgfRandomAccessFilesMap.clear();
+        mgfFileChannelsMap.clear();
+        mspRandomAccessFilesMap.clear();
         mgfIndexesMap.clear();
         mzMLUnmarshallers.clear();
         idToSpectrumName.clear();
@@ -126,9 +143,8 @@ public class SpectrumFactory {
      * Empties the cache.
      */
     public void emptyCache() {
-        currentSpectrumMap.clear();
+        spectrumCache.clear();
         loadedPrecursorsMap.clear();
-        loadedSpectra.clear();
     }
 
     /**
@@ -138,6 +154,7 @@ public class SpectrumFactory {
      */
     public void setCacheSize(int nCache) {
         SpectrumFactory.nSpectraCache = nCache;
+        spectrumCache.setBounds(nSpectraCache, spectraCacheMaxBytes);
     }
 
     /**
@@ -149,6 +166,47 @@ public class SpectrumFactory {
         return nSpectraCache;
     }
 
+    /**
+     * Sets the maximal estimated number of bytes of the spectra in cache. The
+     * size of a spectrum is estimated from its number of peaks and from the
+     * data derived from the peaks, see SpectrumCache.estimateBytes.
+     *
+     * @param maxBytes the maximal number of bytes, no limit if zero or
+     * negative
+     */
+    public void setCacheMaxBytes(long maxBytes) {
+        SpectrumFactory.spectraCacheMaxBytes = maxBytes;
+        spectrumCache.setBounds(nSpectraCache, spectraCacheMaxBytes);
+    }
+
+    /**
+     * Returns the maximal estimated number of bytes of the spectra in cache.
+     *
+     * @return the maximal number of bytes, no limit if zero or negative
+     */
+    public long getCacheMaxBytes() {
+        return spectraCacheMaxBytes;
+    }
+
+    /**
+     * Sets whether the spectra evicted from the cache should be kept as soft
+     * references, which the garbage collector clears when memory is needed.
+     *
+     * @param softCache if true evicted spectra are kept as soft references
+     */
+    public void setSoftCache(boolean softCache) {
+        spectrumCache.setSoftTier(softCache);
+    }
+
+    /**
+     * Returns the spectrum cache, giving access to its statistics.
+     *
+     * @return the spectrum cache
+     */
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
     /**
      * Add spectra to the factory.
      *
@@ -226,7 +284,11 @@ public class SpectrumFactory {
                 throw new IllegalArgumentException("An error occurred while indexing " + spectrumFile.getAbsolutePath());
             }
 
-            mgfRandomAccessFilesMap.put(fileName, new BufferedRandomAccessFile(spectrumFile, "r", 1024 * 100));
+            if (fileName.toLowerCase().endsWith(".mgf")) {
+                mgfFileChannelsMap.put(fileName, new RandomAccessFile(spectrumFile, "r").getChannel());
+            } else {
+                mspRandomAccessFilesMap.put(fileName, new BufferedRandomAccessFile(spectrumFile, "r", 1024 * 100));
+            }
             mgfIndexesMap.put(fileName, mgfIndex);
 
         } else if (fileName.toLowerCase().endsWith(".mzml")) {
@@ -281,14 +343,11 @@ public class SpectrumFactory {
      * not parsed correctly
      */
     public Precursor getPrecursor(String fileName, String spectrumTitle, boolean save) throws IOException, MzMLUnmarshallerException {
-        HashMap<String, Spectrum> fileSpectrumMap = currentSpectrumMap.get(fileName);
-        if (fileSpectrumMap != null) {
-            Spectrum spectrum = fileSpectrumMap.get(spectrumTitle);
-            if (spectrum != null) {
-                return ((MSnSpectrum) spectrum).getPrecursor();
-            }
+        Spectrum spectrum = spectrumCache.peek(fileName, spectrumTitle);
+        if (spectrum != null) {
+            return ((MSnSpectrum) spectrum).getPrecursor();
         }
-        HashMap<String, Precursor> filePrecursorMap = loadedPrecursorsMap.get(fileName);
+        ConcurrentHashMap<String, Precursor> filePrecursorMap = loadedPrecursorsMap.get(fileName);
         if (filePrecursorMap != null) {
             Precursor currentPrecursor = filePrecursorMap.get(spectrumTitle);
             if (currentPrecursor != null) {
@@ -618,7 +677,7 @@ public class SpectrumFactory {
      * @throws IllegalArgumentException exception thrown whenever the file was
      * not parsed correctly
      */
-    private synchronized Precursor getPrecursor(String fileName, String spectrumTitle, boolean save, long waitingTime) throws IOException, MzMLUnmarshallerException, IllegalArgumentException {
+    private Precursor getPrecursor(String fileName, String spectrumTitle, boolean save, long waitingTime) throws IOException, MzMLUnmarshallerException, IllegalArgumentException {
 
         if (waitingTime <= 0) {
             throw new IllegalArgumentException("Waiting time should be a positive number.");
@@ -638,13 +697,11 @@ public class SpectrumFactory {
                 throw new IOException("Spectrum \'" + spectrumTitle + "\' in mgf file \'" + fileName + "\' not found.");
             }
             try {
-                currentPrecursor = MgfReader.getPrecursor(mgfRandomAccessFilesMap.get(fileName), mgfIndexesMap.get(fileName).getIndex(spectrumTitle), fileName);
+                currentPrecursor = MgfByteParser.getPrecursor(getMgfFileChannel(fileName), mgfIndexesMap.get(fileName).getIndex(spectrumTitle), fileName);
             } catch (Exception e) {
+                checkInterrupted(e);
                 if (waitingTime < timeOut) {
-                    try {
-                        wait(waitingTime);
-                    } catch (InterruptedException ie) {
-                    }
+                    waitBeforeRetry(waitingTime);
                     return getPrecursor(fileName, spectrumTitle, save, 2 * waitingTime);
                 } else {
                     e.printStackTrace();
@@ -663,12 +720,14 @@ public class SpectrumFactory {
                 throw new IOException("Spectrum \'" + spectrumTitle + "\' in msp file \'" + fileName + "\' not found.");
             }
             try {
-                
-                currentPrecursor = MspReader.getPrecursor(mgfRandomAccessFilesMap.get(fileName), mgfIndexesMap.get(fileName).getIndex(spectrumTitle), fileName);
+                BufferedRandomAccessFile randomAccessFile = mspRandomAccessFilesMap.get(fileName);
+                synchronized (randomAccessFile) {
+                    currentPrecursor = MspReader.getPrecursor(randomAccessFile, mgfIndexesMap.get(fileName).getIndex(spectrumTitle), fileName);
+                }
             } catch (Exception e) {
                 if (waitingTime < timeOut) {
                     try {
-                        wait(waitingTime);
+                        Thread.sleep(waitingTime);
                     } catch (InterruptedException ie) {
                     }
                     return getPrecursor(fileName, spectrumTitle, save, 2 * waitingTime);
@@ -678,7 +737,11 @@ public class SpectrumFactory {
                 }
             }
         }else if (fileName.toLowerCase().endsWith(".mzml")) {
-            uk.ac.ebi.jmzml.model.mzml.Spectrum mzMLSpectrum = mzMLUnmarshallers.get(fileName).getSpectrumById(spectrumTitle);
+            MzMLUnmarshaller mzMLUnmarshaller = mzMLUnmarshallers.get(fileName);
+            uk.ac.ebi.jmzml.model.mzml.Spectrum mzMLSpectrum;
+            synchronized (mzMLUnmarshaller) {
+                mzMLSpectrum = mzMLUnmarshaller.getSpectrumById(spectrumTitle);
+            }
             int level = 2;
             double mzPrec = 0.0;
             double scanTime = -1.0;
@@ -726,12 +789,7 @@ public class SpectrumFactory {
             throw new IllegalArgumentException("Spectrum file format not supported.");
         }
         if (save) {
-            HashMap<String, Precursor> fileMap = loadedPrecursorsMap.get(fileName);
-            if (fileMap == null) {
-                fileMap = new HashMap<String, Precursor>();
-                loadedPrecursorsMap.put(fileName, fileMap);
-            }
-            fileMap.put(spectrumTitle, currentPrecursor);
+            getFileMap(loadedPrecursorsMap, fileName).put(spectrumTitle, currentPrecursor);
         }
 
         return currentPrecursor;
@@ -769,12 +827,9 @@ public class SpectrumFactory {
      * occurred while parsing the mzML file
      */
     public Spectrum getSpectrum(String spectrumFile, String spectrumTitle, boolean toCacheSpectrum) throws IOException, MzMLUnmarshallerException {
-        HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
-        if (fileMap != null) {
-            Spectrum currentSpectrum = fileMap.get(spectrumTitle);
-            if (currentSpectrum != null) {
-                return currentSpectrum;
-            }
+        Spectrum currentSpectrum = spectrumCache.get(spectrumFile, spectrumTitle);
+        if (currentSpectrum != null) {
+            return currentSpectrum;
         }
         return getSpectrum(spectrumFile, spectrumTitle, toCacheSpectrum, 1);
     }
@@ -835,7 +890,7 @@ public class SpectrumFactory {
      * @throws MzMLUnmarshallerException exception thrown whenever an error
      * occurred while parsing the file
      */
-    private synchronized Spectrum getSpectrum(String spectrumFile, String spectrumTitle, long waitingTime) throws IOException, MzMLUnmarshallerException {
+    private Spectrum getSpectrum(String spectrumFile, String spectrumTitle, long waitingTime) throws IOException, MzMLUnmarshallerException {
         return getSpectrum(spectrumFile, spectrumTitle, true, waitingTime);
     }
     
@@ -860,7 +915,7 @@ public class SpectrumFactory {
      * @throws MzMLUnmarshallerException exception thrown whenever an error
      * occurred while parsing the file
      */
-    private synchronized Spectrum getSpectrum(String spectrumFile, String spectrumTitle, boolean toCacheSpectrum, long waitingTime) throws IOException, MzMLUnmarshallerException {
+    private Spectrum getSpectrum(String spectrumFile, String spectrumTitle, boolean toCacheSpectrum, long waitingTime) throws IOException, MzMLUnmarshallerException {
 
         if (waitingTime <= 0) {
             throw new IllegalArgumentException("Waiting time should be a positive number.");
@@ -880,13 +935,11 @@ public class SpectrumFactory {
                 throw new IOException("Spectrum \'" + spectrumTitle + "\' in mgf file \'" + spectrumFile + "\' not found!");
             }
             try {
-                currentSpectrum = MgfReader.getSpectrum(mgfRandomAccessFilesMap.get(spectrumFile), mgfIndexesMap.get(spectrumFile).getIndex(spectrumTitle), spectrumFile);
+                currentSpectrum = MgfByteParser.getSpectrum(getMgfFileChannel(spectrumFile), mgfIndexesMap.get(spectrumFile).getIndex(spectrumTitle), spectrumFile);
             } catch (Exception e) {
+                checkInterrupted(e);
                 if (waitingTime < timeOut) {
-                    try {
-                        wait(waitingTime);
-                    } catch (InterruptedException ie) {
-                    }
+                    waitBeforeRetry(waitingTime);
                     return getSpectrum(spectrumFile, spectrumTitle, toCacheSpectrum, 2 * waitingTime);
                 } else {
                     e.printStackTrace();
@@ -905,11 +958,14 @@ public class SpectrumFactory {
                 throw new IOException("Spectrum \'" + spectrumTitle + "\' in msp file \'" + spectrumFile + "\' not found!");
             }
             try {
-                currentSpectrum = MspReader.getSpectrum(mgfRandomAccessFilesMap.get(spectrumFile), mgfIndexesMap.get(spectrumFile).getIndex(spectrumTitle), spectrumFile);
+                BufferedRandomAccessFile randomAccessFile = mspRandomAccessFilesMap.get(spectrumFile);
+                synchronized (randomAccessFile) {
+                    currentSpectrum = MspReader.getSpectrum(randomAccessFile, mgfIndexesMap.get(spectrumFile).getIndex(spectrumTitle), spectrumFile);
+                }
             } catch (Exception e) {
                 if (waitingTime < timeOut) {
                     try {
-                        wait(waitingTime);
+                        Thread.sleep(waitingTime);
                     } catch (InterruptedException ie) {
                     }
                     return getSpectrum(spectrumFile, spectrumTitle, toCacheSpectrum, 2 * waitingTime);
@@ -920,14 +976,18 @@ public class SpectrumFactory {
             }
         } else if (spectrumFile.toLowerCase().endsWith(".mzml")) {
 
-            if (mzMLUnmarshallers.get(spectrumFile) == null) {
+            MzMLUnmarshaller mzMLUnmarshaller = mzMLUnmarshallers.get(spectrumFile);
+            if (mzMLUnmarshaller == null) {
                 throw new IOException("mzML file not found: \'" + spectrumFile + "\'!");
             }
-            if (mzMLUnmarshallers.get(spectrumFile).getSpectrumById(spectrumTitle) == null) {
+            uk.ac.ebi.jmzml.model.mzml.Spectrum mzMLSpectrum;
+            synchronized (mzMLUnmarshaller) {
+                mzMLSpectrum = mzMLUnmarshaller.getSpectrumById(spectrumTitle);
+            }
+            if (mzMLSpectrum == null) {
                 throw new IOException("Spectrum \'" + spectrumTitle + "\' in mzML file \'" + spectrumFile + "\' not found!");
             }
 
-            uk.ac.ebi.jmzml.model.mzml.Spectrum mzMLSpectrum = mzMLUnmarshallers.get(spectrumFile).getSpectrumById(spectrumTitle);
             int level = 2;
             double mzPrec = 0.0;
             double scanTime = -1.0;
@@ -984,29 +1044,34 @@ public class SpectrumFactory {
         } else {
             throw new IllegalArgumentException("Spectrum file format not supported.");
         }
-        if (loadedSpectra.size() == nSpectraCache) {
-            String tempKey = loadedSpectra.pollFirst();
-            String tempFile = Spectrum.getSpectrumFile(tempKey);
-            HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(tempFile);
-            if (fileMap != null) {
-                String tempTitle = Spectrum.getSpectrumTitle(tempKey);
-                fileMap.remove(tempTitle);
-            }
-        }
-        // @TODO: currentSpectrumMap is currently growing forever. Its growth should be limited in some way.
         if (toCacheSpectrum){
-            HashMap<String, Spectrum> fileMap = currentSpectrumMap.get(spectrumFile);
-            if (fileMap == null) {
-                fileMap = new HashMap<String, Spectrum>();
-                currentSpectrumMap.put(spectrumFile, fileMap);
-            }
-            fileMap.put(spectrumTitle, currentSpectrum);
+            spectrumCache.put(spectrumFile, spectrumTitle, currentSpectrum);
         }
-        String spectrumKey = Spectrum.getSpectrumKey(spectrumFile, spectrumTitle);
-        loadedSpectra.add(spectrumKey);
         return currentSpectrum;
     }
 
+    /**
+     * Returns the map of the given file in the given cache, creating it if
+     * needed.
+     *
+     * @param <T> the type of the cached objects
+     * @param cache the cache
+     * @param fileName the name of the file
+     *
+     * @return the map of the given file in the cache
+     */
+    private static <T> ConcurrentHashMap<String, T> getFileMap(ConcurrentHashMap<String, ConcurrentHashMap<String, T>> cache, String fileName) {
+        ConcurrentHashMap<String, T> fileMap = cache.get(fileName);
+        if (fileMap == null) {
+            fileMap = new ConcurrentHashMap<String, T>();
+            ConcurrentHashMap<String, T> previousMap = cache.putIfAbsent(fileName, fileMap);
+            if (previousMap != null) {
+                fileMap = previousMap;
+            }
+        }
+        return fileMap;
+    }
+
     /**
      * Writes the given mgf file index in the given directory.
      *
@@ -1036,6 +1101,71 @@ public class SpectrumFactory {
         return (MgfIndex) SerializationUtils.readObject(mgfIndex);
     }
 
+    /**
+     * Returns the channel of an mgf file. If the channel was closed, typically
+     * because a thread was interrupted while reading it, it is replaced by a
+     * new channel on the same file.
+     *
+     * @param fileName the name of the mgf file
+     *
+     * @return an open channel on the mgf file, null if the file is not loaded
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    private FileChannel getMgfFileChannel(String fileName) throws IOException {
+        FileChannel channel = mgfFileChannelsMap.get(fileName);
+        if (channel != null && !channel.isOpen()) {
+            FileChannel newChannel = new RandomAccessFile(filesMap.get(fileName), "r").getChannel();
+            if (mgfFileChannelsMap.replace(fileName, channel, newChannel)) {
+                channel = newChannel;
+            } else {
+                // another thread replaced the channel already
+                newChannel.close();
+                channel = mgfFileChannelsMap.get(fileName);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Throws an InterruptedIOException if the current thread was interrupted.
+     * The interrupt flag is kept, and the read is not retried as it would
+     * close the channel again.
+     *
+     * @param e the exception thrown while reading
+     *
+     * @throws InterruptedIOException if the current thread was interrupted
+     */
+    private static void checkInterrupted(Exception e) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while reading a spectrum file.");
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        }
+    }
+
+    /**
+     * Waits before retrying to read a spectrum file. If the thread is
+     * interrupted while waiting, the interrupt flag is restored and an
+     * InterruptedIOException is thrown.
+     *
+     * @param waitingTime the time to wait in milliseconds
+     *
+     * @throws InterruptedIOException if the thread is interrupted while
+     * waiting
+     */
+    private static void waitBeforeRetry(long waitingTime) throws InterruptedIOException {
+        try {
+            Thread.sleep(waitingTime);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while waiting to read a spectrum file.");
+            interruptedIOException.initCause(ie);
+            throw interruptedIOException;
+        }
+    }
+
     /**
      * Closes all opened files.
      *
@@ -1043,7 +1173,10 @@ public class SpectrumFactory {
      * closing the files
      */
     public void closeFiles() throws IOException {
-        for (BufferedRandomAccessFile randomAccessFile : mgfRandomAccessFilesMap.values()) {
+        for (FileChannel fileChannel : mgfFileChannelsMap.values()) {
+            fileChannel.close();
+        }
+        for (BufferedRandomAccessFile randomAccessFile : mspRandomAccessFilesMap.values()) {
             randomAccessFile.close();
         }
     }
@@ -1054,7 +1187,9 @@ public class SpectrumFactory {
      * @return a list of loaded mgf files
      */
     public ArrayList<String> getMgfFileNames() {
-        return new ArrayList<String>(mgfRandomAccessFilesMap.keySet());
+        ArrayList<String> fileNames = new ArrayList<String>(mgfFileChannelsMap.keySet());
+        fileNames.addAll(mspRandomAccessFilesMap.keySet());
+        return fileNames;
     }
 
     /**
@@ -72,6 +72,45 @@ public class SpectrumIndex implements UrParameter {
      * @param ppm boolean indicating whether the tolerance is in ppm
      */
     public SpectrumIndex(HashMap<Double, Peak> peaks, double intenstiyLimit, double tolerance, boolean ppm) {
+        this(intenstiyLimit, tolerance, ppm);
+        for (Peak peak : peaks.values()) {
+            if (peak.intensity >= intenstiyLimit) {
+                addPeak(peak);
+            }
+        }
+    }
+
+    /**
+     * Builds a new index from the peak arrays of a spectrum. Only the peaks
+     * above the intensity limit are instantiated.
+     *
+     * @param mz the m/z of the peaks, null if no peaks
+     * @param intensity the intensities of the peaks in the order of the m/z
+     * @param intenstiyLimit a lower limit for the intensity of the peaks to
+     * index
+     * @param tolerance the tolerance to use
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     */
+    public SpectrumIndex(double[] mz, double[] intensity, double intenstiyLimit, double tolerance, boolean ppm) {
+        this(intenstiyLimit, tolerance, ppm);
+        if (mz != null) {
+            for (int i = 0; i < mz.length; i++) {
+                if (intensity[i] >= intenstiyLimit) {
+                    addPeak(new Peak(mz[i], intensity[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor for an index without peaks.
+     *
+     * @param intenstiyLimit a lower limit for the intensity of the peaks to
+     * index
+     * @param tolerance the tolerance to use
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     */
+    private SpectrumIndex(double intenstiyLimit, double tolerance, boolean ppm) {
         this.intensityLimit = intenstiyLimit;
         this.peaksMap = new HashMap<Integer, HashMap<Double, Peak>>();
         this.precursorTolerance = tolerance;
@@ -80,24 +119,28 @@ public class SpectrumIndex implements UrParameter {
             scalingFactor = FastMath.log((1000000 - tolerance) / (1000000 + tolerance));
         }
         totalIntensity = 0.0;
-        for (Peak peak : peaks.values()) {
-            if (peak.intensity >= intenstiyLimit) {
-                totalIntensity += peak.intensity;
-                Integer bin = getBin(peak.mz);
-                if (binMax == null || bin > binMax) {
-                    binMax = bin;
-                }
-                if (binMin == null || bin < binMin) {
-                    binMin = bin;
-                }
-                HashMap<Double, Peak> peaksInBin = peaksMap.get(bin);
-                if (peaksInBin == null) {
-                    peaksInBin = new HashMap<Double, Peak>(4);
-                    peaksMap.put(bin, peaksInBin);
-                }
-                peaksInBin.put(peak.mz, peak);
-            }
+    }
+
+    /**
+     * Adds a peak to the index.
+     *
+     * @param peak the peak to add
+     */
+    private void addPeak(Peak peak) {
+        totalIntensity += peak.intensity;
+        Integer bin = getBin(peak.mz);
+        if (binMax == null || bin > binMax) {
+            binMax = bin;
+        }
+        if (binMin == null || bin < binMin) {
+            binMin = bin;
+        }
+        HashMap<Double, Peak> peaksInBin = peaksMap.get(bin);
+        if (peaksInBin == null) {
+            peaksInBin = new HashMap<Double, Peak>(4);
+            peaksMap.put(bin, peaksInBin);
         }
+        peaksInBin.put(peak.mz, peak);
     }
 
     /**
@@ -109,7 +109,8 @@ public class ProteinSequencesManager {
                                     if (correctedName.equals(name)) {
                                         File fastaFile = new File(versionFolder, tempIndex.getFileName());
                                         if (fastaFile.exists()) {
-                                            fastaIndex = tempIndex;
+                                            // the accession table is not serialized with the index, the factory loads it or reindexes the file
+                                            fastaIndex = SequenceFactory.getFastaIndex(fastaFile, false, null);
                                         }
                                     }
                                 } catch (Exception e) {
@@ -205,6 +206,7 @@ public class ProteinSequencesManager {
             newIndex.setMainDatabaseType(tempIndex.getMainDatabaseType());
             newIndex.setVersion(tempIndex.getVersion());
             SequenceFactory.writeIndex(newIndex, folder);
+            SequenceFactory.writeAccessionTable(newIndex, folder);
             
             // add fasta file to the mapping
             if (!databaseNames.contains(fastaName)) {
@@ -1,13 +1,27 @@
 package com.compomics.util.test.experiment.io.spectrum;
 
+import com.compomics.util.experiment.io.massspectrometry.MgfByteParser;
+import com.compomics.util.experiment.io.massspectrometry.MgfIndex;
+import com.compomics.util.experiment.io.massspectrometry.MgfReader;
 import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.experiment.massspectrometry.Spectrum;
+import com.compomics.util.experiment.massspectrometry.SpectrumCache;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This test case will test the mgf import and spectrum annotation
@@ -42,4 +56,275 @@ public class SpectrumImportTest extends TestCase {
         Assert.assertTrue(rtMax == 219.71);
         Assert.assertTrue(Math.abs(precursor.getRt() - 218.855) < 0.0001);
     }
+
+    /**
+     * Tests the parsing of numbers from the bytes of an mgf file.
+     */
+    public void testParseDouble() {
+
+        String[] numbers = {"0", "-0.0", "1060.86962890625", "218.6808", ".5", "5.", "+12.5", "1e22", "1.5e-320", "4.9E-324",
+            "9007199254740993", "0.1000000000000000055511151231257827", "-2.5E+3", "1.5f", "NaN", "-Infinity"};
+
+        for (String number : numbers) {
+            byte[] bytes = (" " + number + " ").getBytes();
+            double value = MgfByteParser.parseDouble(bytes, 1, bytes.length - 1);
+            Assert.assertTrue(number, Double.doubleToLongBits(value) == Double.doubleToLongBits(Double.parseDouble(number)));
+        }
+
+        String[] notNumbers = {"", "-", ".", "1e", "1.2.3", "abc"};
+
+        for (String notNumber : notNumbers) {
+            byte[] bytes = notNumber.getBytes();
+            try {
+                MgfByteParser.parseDouble(bytes, 0, bytes.length);
+                fail(notNumber);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Tests the indexing of an mgf file large enough to be split in several
+     * ranges indexed in parallel.
+     */
+    public void testParallelIndexing() throws Exception {
+
+        File mgfFile = File.createTempFile("parallelIndexing", ".mgf");
+        mgfFile.deleteOnExit();
+
+        int nSpectra = 40000;
+        ArrayList<Long> positions = new ArrayList<Long>(nSpectra);
+        long position = 0;
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(mgfFile));
+        try {
+            for (int i = 0; i < nSpectra; i++) {
+                StringBuilder spectrum = new StringBuilder();
+                spectrum.append("BEGIN IONS\n");
+                positions.add(position + spectrum.length());
+                // every thousandth spectrum repeats the first title
+                spectrum.append("TITLE=spectrum ").append(i % 1000 == 999 ? 0 : i).append("\n");
+                spectrum.append("PEPMASS=").append(400 + i / 100.0).append("\n");
+                spectrum.append("CHARGE=2+\n");
+                spectrum.append("RTINSECONDS=").append(i).append("\n");
+                int nPeaks = i == 12345 ? 150 : 100;
+                for (int j = 0; j < nPeaks; j++) {
+                    spectrum.append(100 + j).append(".12345 ").append(j + 1).append(".5\n");
+                }
+                spectrum.append("END IONS\n\n");
+                byte[] bytes = spectrum.toString().getBytes("US-ASCII");
+                outputStream.write(bytes);
+                position += bytes.length;
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        MgfIndex mgfIndex = MgfReader.getIndexMap(mgfFile, 4, null);
+
+        Assert.assertTrue(mgfIndex.getNSpectra() == nSpectra);
+        Assert.assertTrue(mgfIndex.getSpectrumTitles().size() == nSpectra);
+        Assert.assertTrue(mgfIndex.getMaxPeakCount() == 150);
+        Assert.assertTrue(mgfIndex.getMaxRT() == nSpectra - 1);
+        Assert.assertTrue(mgfIndex.getMinRT() == 0);
+        Assert.assertTrue(mgfIndex.getMaxCharge() == 2);
+        Assert.assertTrue(mgfIndex.getDuplicatedSpectrumTitles().get("spectrum 0") == nSpectra / 1000);
+
+        int nDuplicates = 0;
+        for (int i = 0; i < nSpectra; i++) {
+            String title = "spectrum " + i;
+            if (i % 1000 == 999) {
+                title = "spectrum 0_" + ++nDuplicates;
+            }
+            Assert.assertEquals(title, mgfIndex.getSpectrumTitle(i));
+            Assert.assertEquals(positions.get(i), mgfIndex.getIndex(title));
+            Assert.assertTrue(mgfIndex.getSpectrumIndex(title) == i);
+            Assert.assertTrue(mgfIndex.getPrecursorMz(i) == 400 + i / 100.0);
+        }
+    }
+
+    /**
+     * Tests the retrieval of spectra and precursors from several threads.
+     */
+    public void testConcurrentRetrieval() throws Exception {
+
+        File mgfFile = File.createTempFile("concurrentRetrieval", ".mgf");
+        mgfFile.deleteOnExit();
+        new File(mgfFile.getParent(), SpectrumFactory.getIndexName(mgfFile.getName())).deleteOnExit();
+
+        final int nSpectra = 2000;
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(mgfFile));
+        try {
+            for (int i = 0; i < nSpectra; i++) {
+                StringBuilder spectrum = new StringBuilder();
+                spectrum.append("BEGIN IONS\n");
+                spectrum.append("TITLE=spectrum ").append(i).append("\n");
+                spectrum.append("PEPMASS=").append(400 + i / 100.0).append("\n");
+                spectrum.append("CHARGE=2+\n");
+                for (int j = 0; j < 10 + i % 50; j++) {
+                    spectrum.append(100 + j).append(".5 ").append(j + 1).append("\n");
+                }
+                spectrum.append("END IONS\n\n");
+                outputStream.write(spectrum.toString().getBytes("US-ASCII"));
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        final SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+        spectrumFactory.addSpectra(mgfFile, null);
+        final String fileName = mgfFile.getName();
+
+        int nThreads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(nThreads);
+        for (int thread = 0; thread < nThreads; thread++) {
+            final int offset = thread * nSpectra / nThreads;
+            futures.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int k = 0; k < nSpectra; k++) {
+                        int i = (offset + k) % nSpectra;
+                        String title = "spectrum " + i;
+                        Precursor precursor = spectrumFactory.getPrecursor(fileName, title, false);
+                        Spectrum spectrum = spectrumFactory.getSpectrum(fileName, title, false);
+                        if (precursor.getMz() != 400 + i / 100.0
+                                || spectrum.getMzValuesAsArray().length != 10 + i % 50
+                                || !spectrum.getSpectrumTitle().equals(title)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get());
+        }
+    }
+
+    /**
+     * Tests the eviction and statistics of the spectrum cache.
+     *
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while deriving data from the peaks
+     */
+    public void testSpectrumCache() throws InterruptedException {
+
+        SpectrumCache spectrumCache = new SpectrumCache(3, 0, false);
+        spectrumCache.put("file1", "a", getSpectrum("file1", "a", 10));
+        spectrumCache.put("file2", "b", getSpectrum("file2", "b", 10));
+        spectrumCache.put("file1", "c", getSpectrum("file1", "c", 10));
+
+        // the least recently used spectrum is evicted across files
+        Assert.assertNotNull(spectrumCache.get("file1", "a"));
+        spectrumCache.put("file2", "d", getSpectrum("file2", "d", 10));
+        Assert.assertNull(spectrumCache.peek("file2", "b"));
+        Assert.assertNotNull(spectrumCache.peek("file1", "a"));
+        Assert.assertTrue(spectrumCache.size() == 3);
+        Assert.assertTrue(spectrumCache.size("file1") == 2);
+        Assert.assertTrue(spectrumCache.getEvictions() == 1);
+        Assert.assertNull(spectrumCache.get("file2", "b"));
+        Assert.assertTrue(spectrumCache.getHits() == 1);
+        Assert.assertTrue(spectrumCache.getMisses() == 1);
+
+        // the cache is bounded by the estimated size of the spectra
+        MSnSpectrum largeSpectrum = getSpectrum("file3", "e", 1000);
+        long largeSpectrumBytes = SpectrumCache.estimateBytes(largeSpectrum);
+        spectrumCache.setBounds(1000, largeSpectrumBytes);
+        spectrumCache.put("file3", "e", largeSpectrum);
+        Assert.assertTrue(spectrumCache.size() == 1);
+        Assert.assertTrue(spectrumCache.getBytes() == largeSpectrumBytes);
+        Assert.assertTrue(spectrumCache.getBytes("file3") == largeSpectrumBytes);
+
+        // evicted spectra are found in the soft tier
+        spectrumCache.setSoftTier(true);
+        spectrumCache.put("file3", "f", getSpectrum("file3", "f", 1000));
+        Assert.assertNull(spectrumCache.peek("file3", "e"));
+        Assert.assertTrue(spectrumCache.get("file3", "e") == largeSpectrum);
+        Assert.assertTrue(spectrumCache.getSoftHits() == 1);
+
+        spectrumCache.clear();
+        Assert.assertTrue(spectrumCache.size() == 0);
+        Assert.assertTrue(spectrumCache.getBytes() == 0);
+
+        // the data derived from the peaks after caching is accounted at the next access
+        spectrumCache.setBounds(1000, 0);
+        MSnSpectrum spectrum = getSpectrum("file1", "g", 100);
+        spectrumCache.put("file1", "g", spectrum);
+        long spectrumBytes = spectrumCache.getBytes();
+        spectrum.getIntensityMap();
+        Assert.assertTrue(spectrumCache.get("file1", "g") == spectrum);
+        Assert.assertTrue(spectrumCache.getBytes() > spectrumBytes);
+        Assert.assertTrue(spectrumCache.getBytes() == SpectrumCache.estimateBytes(spectrum));
+        Assert.assertTrue(spectrumCache.getBytes("file1") == spectrumCache.getBytes());
+    }
+
+    /**
+     * Tests that the counters of the spectrum cache match its content when
+     * spectra are added while the partitions are cleared.
+     *
+     * @throws Exception thrown whenever an error occurred while adding or
+     * clearing spectra
+     */
+    public void testSpectrumCacheConcurrentClear() throws Exception {
+
+        final SpectrumCache spectrumCache = new SpectrumCache(100000, 0, false);
+        final int nSpectra = 5000;
+        final MSnSpectrum[] spectra = new MSnSpectrum[nSpectra];
+        for (int i = 0; i < nSpectra; i++) {
+            spectra[i] = getSpectrum("file" + i % 2, "spectrum " + i, 10);
+        }
+
+        int nThreads = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(nThreads);
+        for (int thread = 0; thread < nThreads; thread++) {
+            final int offset = thread;
+            futures.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int i = offset; i < nSpectra; i += 4) {
+                        if (offset == 0 && i % 100 == 0) {
+                            spectrumCache.clear("file" + (i / 100) % 2);
+                        }
+                        spectrumCache.put("file" + i % 2, "spectrum " + i, spectra[i]);
+                    }
+                    return true;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get());
+        }
+
+        Assert.assertTrue(spectrumCache.size() == spectrumCache.size("file0") + spectrumCache.size("file1"));
+        Assert.assertTrue(spectrumCache.getBytes() == spectrumCache.getBytes("file0") + spectrumCache.getBytes("file1"));
+        spectrumCache.clear();
+        Assert.assertTrue(spectrumCache.size() == 0);
+        Assert.assertTrue(spectrumCache.getBytes() == 0);
+    }
+
+    /**
+     * Returns a spectrum with the given number of peaks.
+     *
+     * @param fileName the name of the file
+     * @param spectrumTitle the title of the spectrum
+     * @param nPeaks the number of peaks
+     *
+     * @return a spectrum with the given number of peaks
+     */
+    private MSnSpectrum getSpectrum(String fileName, String spectrumTitle, int nPeaks) {
+        double[] mz = new double[nPeaks];
+        double[] intensity = new double[nPeaks];
+        for (int i = 0; i < nPeaks; i++) {
+            mz[i] = 100 + i;
+            intensity[i] = 1;
+        }
+        return new MSnSpectrum(2, null, spectrumTitle, mz, intensity, fileName);
+    }
 }
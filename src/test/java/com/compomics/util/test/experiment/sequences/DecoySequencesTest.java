@@ -0,0 +1,189 @@
+package com.compomics.util.test.experiment.sequences;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.experiment.identification.protein_sequences.DecoyType;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.protein.Header;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the generation of decoy sequences.
+ *
+ * @author agent
+ */
+public class DecoySequencesTest extends TestCase {
+
+    /**
+     * Tests the reversed, shuffled and pseudo-reversed sequences.
+     */
+    public void testDecoySequences() {
+
+        String sequence = "ACDKEFGRPHIKLMN";
+        Enzyme trypsin = DigestionPreferences.getDefaultPreferences().getEnzymes().get(0);
+
+        // Reversed
+        Assert.assertEquals("NMLKIHPRGFEKDCA", SequenceFactory.reverseSequence(sequence));
+
+        // Shuffled, reproducible for a given seed
+        String shuffled = SequenceFactory.shuffleSequence(sequence, 42);
+        Assert.assertEquals(shuffled, SequenceFactory.shuffleSequence(sequence, 42));
+        char[] aas = sequence.toCharArray();
+        char[] shuffledAas = shuffled.toCharArray();
+        Arrays.sort(aas);
+        Arrays.sort(shuffledAas);
+        Assert.assertTrue(Arrays.equals(aas, shuffledAas));
+        String longSequence = sequence + sequence + sequence + sequence;
+        Assert.assertFalse(SequenceFactory.shuffleSequence(longSequence, 1).equals(SequenceFactory.shuffleSequence(longSequence, 2)));
+
+        // Pseudo-reversed, the residues before the cleavage sites and the C-terminal residue stay in place
+        String pseudoReversed = SequenceFactory.pseudoReverseSequence(sequence, trypsin);
+        Assert.assertEquals("DCAKIHPRGFEKMLN", pseudoReversed);
+        for (int i = 0; i < sequence.length(); i++) {
+            if (i == sequence.length() - 1 || trypsin.isCleavageSite(sequence.charAt(i), sequence.charAt(i + 1))) {
+                Assert.assertEquals(sequence.charAt(i), pseudoReversed.charAt(i));
+            }
+        }
+        Assert.assertEquals("", SequenceFactory.pseudoReverseSequence("", trypsin));
+        Assert.assertEquals("K", SequenceFactory.pseudoReverseSequence("K", trypsin));
+    }
+
+    /**
+     * Tests that every target protein is written followed by its decoy, for
+     * every decoy type, with and without decoys in the original file.
+     *
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while writing the decoys
+     */
+    public void testAppendDecoySequences() throws IOException, ClassNotFoundException, InterruptedException {
+
+        File tempFolder = File.createTempFile("decoySequencesTest", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+
+        try {
+            SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+            Enzyme trypsin = DigestionPreferences.getDefaultPreferences().getEnzymes().get(0);
+
+            for (String fileName : new String[]{"proteinTreeTestSequences_1", "proteinTreeTestSequences"}) {
+
+                File fastaFile = new File(tempFolder, fileName);
+                Util.copyFile(new File("src/test/resources/experiment", fileName), fastaFile);
+
+                for (DecoyType decoyType : DecoyType.values()) {
+
+                    sequenceFactory.loadFastaFile(fastaFile, null);
+
+                    // the target proteins in the order of the file
+                    ArrayList<String> targetAccessions = new ArrayList<String>();
+                    ArrayList<String> targetSequences = new ArrayList<String>();
+                    for (String[] entry : readEntries(fastaFile)) {
+                        if (!sequenceFactory.isDecoyAccession(entry[0])) {
+                            targetAccessions.add(entry[0]);
+                            targetSequences.add(sequenceFactory.getProtein(entry[0]).getSequence());
+                        }
+                    }
+                    Assert.assertFalse(targetAccessions.isEmpty());
+
+                    File decoyFile = new File(tempFolder, fileName + "_" + decoyType.flag + ".fasta");
+                    sequenceFactory.appendDecoySequences(decoyFile, decoyType, trypsin, null);
+                    Assert.assertEquals(decoyFile, sequenceFactory.getCurrentFastaFile());
+
+                    ArrayList<String[]> entries = readEntries(decoyFile);
+                    Assert.assertEquals(2 * targetAccessions.size(), entries.size());
+                    Assert.assertEquals(entries.size(), sequenceFactory.getNSequences());
+
+                    for (int i = 0; i < targetAccessions.size(); i++) {
+                        String targetAccession = targetAccessions.get(i);
+                        String targetSequence = targetSequences.get(i);
+                        String[] target = entries.get(2 * i);
+                        String[] decoy = entries.get(2 * i + 1);
+                        Assert.assertEquals(targetAccession, target[0]);
+                        Assert.assertEquals(targetSequence, target[1]);
+                        Assert.assertEquals(targetAccession + "_" + decoyType.flag, decoy[0]);
+                        Assert.assertTrue(sequenceFactory.isDecoyAccession(decoy[0]));
+                        Assert.assertFalse(sequenceFactory.isDecoyAccession(target[0]));
+
+                        String expectedDecoy;
+                        switch (decoyType) {
+                            case reversed:
+                                expectedDecoy = SequenceFactory.reverseSequence(targetSequence);
+                                break;
+                            case shuffled:
+                                expectedDecoy = SequenceFactory.shuffleSequence(targetSequence, targetAccession.hashCode());
+                                break;
+                            case pseudo_reversed:
+                                expectedDecoy = SequenceFactory.pseudoReverseSequence(targetSequence, trypsin);
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Decoy type " + decoyType + " not implemented.");
+                        }
+                        Assert.assertEquals(expectedDecoy, decoy[1]);
+                        Assert.assertEquals(expectedDecoy, sequenceFactory.getProtein(decoy[0]).getSequence());
+                    }
+                }
+            }
+
+            // an enzyme is needed to pseudo-reverse
+            try {
+                sequenceFactory.appendDecoySequences(new File(tempFolder, "noEnzyme.fasta"), DecoyType.pseudo_reversed, null, null);
+                Assert.fail("Pseudo-reversing without enzyme should fail.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Reads the accession and sequence of every entry of a FASTA file.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the accession and sequence of every entry in the order of the
+     * file
+     *
+     * @throws IOException thrown whenever an error occurs while reading the
+     * file
+     */
+    private static ArrayList<String[]> readEntries(File fastaFile) throws IOException {
+        ArrayList<String[]> entries = new ArrayList<String[]>();
+        BufferedReader br = new BufferedReader(new FileReader(fastaFile));
+        try {
+            String accession = null;
+            StringBuilder sequence = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    if (accession != null) {
+                        entries.add(new String[]{accession, sequence.toString()});
+                    }
+                    accession = Header.parseFromFASTA(line).getAccessionOrRest();
+                    sequence = new StringBuilder();
+                } else {
+                    sequence.append(line.trim());
+                }
+            }
+            if (accession != null) {
+                entries.add(new String[]{accession, sequence.toString()});
+            }
+        } finally {
+            br.close();
+        }
+        return entries;
+    }
+}
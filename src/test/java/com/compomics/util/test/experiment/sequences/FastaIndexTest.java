@@ -0,0 +1,120 @@
+package com.compomics.util.test.experiment.sequences;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.identification.protein_sequences.AccessionTable;
+import com.compomics.util.experiment.identification.protein_sequences.FastaIndex;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.io.SerializationUtils;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the writing and loading of FASTA indexes.
+ *
+ * @author agent
+ */
+public class FastaIndexTest extends TestCase {
+
+    /**
+     * Tests that an index written to disk is loaded with its accession table,
+     * that an index deserialized without its table fails with a clear
+     * exception, and that the file is reindexed when the table is missing.
+     *
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     */
+    public void testReloadIndex() throws IOException, ClassNotFoundException {
+
+        File tempFolder = File.createTempFile("fastaIndexTest", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+
+        try {
+            String fileName = "proteinTreeTestSequences_1";
+            File fastaFile = new File(tempFolder, fileName);
+            Util.copyFile(new File("src/test/resources/experiment", fileName), fastaFile);
+            File indexFile = new File(tempFolder, SequenceFactory.getIndexName(fileName));
+            File accessionTableFile = new File(tempFolder, SequenceFactory.getAccessionTableName(fileName));
+
+            FastaIndex fastaIndex = SequenceFactory.getFastaIndex(fastaFile, false, null);
+            Assert.assertTrue(indexFile.exists());
+            Assert.assertTrue(accessionTableFile.exists());
+            Assert.assertTrue(fastaIndex.getNSequences() > 0);
+            AccessionTable accessionTable = fastaIndex.getAccessionTable();
+            Assert.assertEquals(fastaIndex.getNSequences(), accessionTable.size());
+
+            // the accession table is not part of the serialized index
+            FastaIndex deserializedIndex = (FastaIndex) SerializationUtils.readObject(indexFile);
+            Assert.assertNull(deserializedIndex.getAccessionTable());
+            Assert.assertEquals(fastaIndex.getNSequences(), deserializedIndex.getNSequences());
+            try {
+                deserializedIndex.getAccessions();
+                Assert.fail("Accessing the accessions of an index without accession table should fail.");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // the index is loaded from the disk with its accession table
+            Assert.assertTrue(indexFile.setLastModified(0));
+            FastaIndex reloadedIndex = SequenceFactory.getFastaIndex(fastaFile, false, null);
+            Assert.assertEquals(0, indexFile.lastModified());
+            assertSameAccessions(fastaIndex, reloadedIndex);
+
+            // the file is reindexed when the accession table is missing
+            Assert.assertTrue(accessionTableFile.delete());
+            FastaIndex reindexedIndex = SequenceFactory.getFastaIndex(fastaFile, false, null);
+            Assert.assertTrue(accessionTableFile.exists());
+            assertSameAccessions(fastaIndex, reindexedIndex);
+
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Tests that accessions which cannot be stored on one byte per character
+     * are rejected by the accession table.
+     */
+    public void testAccessionEncoding() {
+        AccessionTable.Builder builder = new AccessionTable.Builder();
+        builder.add("P12345", 0, false);
+        builder.add("\u00C5P12345", 1, false);
+        try {
+            builder.add("P1234\u0394", 2, false);
+            Assert.fail("Adding an accession with characters above 0xFF should fail.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        AccessionTable accessionTable = builder.build();
+        Assert.assertEquals(2, accessionTable.size());
+    }
+
+    /**
+     * Asserts that two indexes have the same accessions, with the same
+     * indexes and decoy flags.
+     *
+     * @param expected the expected index
+     * @param actual the index to check
+     */
+    private static void assertSameAccessions(FastaIndex expected, FastaIndex actual) {
+        AccessionTable expectedTable = expected.getAccessionTable();
+        AccessionTable actualTable = actual.getAccessionTable();
+        Assert.assertNotNull(actualTable);
+        Assert.assertEquals(expected.getNSequences(), actual.getNSequences());
+        Assert.assertEquals(expected.getNTarget(), actual.getNTarget());
+        Assert.assertEquals(expectedTable.size(), actualTable.size());
+        for (int i = 0; i < expectedTable.size(); i++) {
+            String accession = expectedTable.getAccession(i);
+            Assert.assertEquals(accession, actualTable.getAccession(i));
+            Assert.assertEquals(expectedTable.getIndex(i), actualTable.getIndex(i));
+            Assert.assertEquals(expectedTable.isDecoy(i), actualTable.isDecoy(i));
+            Assert.assertEquals(expected.getIndex(accession), actual.getIndex(accession));
+            Assert.assertEquals(expected.isDecoy(accession), actual.isDecoy(accession));
+        }
+        Assert.assertEquals(expected.getAccessions(), actual.getAccessions());
+    }
+}
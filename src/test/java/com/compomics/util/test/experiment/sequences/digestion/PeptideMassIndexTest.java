@@ -0,0 +1,175 @@
+package com.compomics.util.test.experiment.sequences.digestion;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestedPeptide;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionListener;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideMassIndex;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.ProteomeDigestion;
+import com.compomics.util.preferences.DigestionPreferences;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the peptide mass index.
+ *
+ * @author agent
+ */
+public class PeptideMassIndexTest extends TestCase {
+
+    /**
+     * Tests that the peptides written to the index are mapped back with their
+     * masses, sequences, modifications and proteins, that the mass range
+     * queries return the peptides of the range, and that the index is built
+     * again when the database changes.
+     *
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while digesting
+     */
+    public void testRoundTrip() throws IOException, ClassNotFoundException, InterruptedException {
+
+        File tempFolder = File.createTempFile("peptideMassIndexTest", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+
+        try {
+            File fastaFile = new File(tempFolder, "proteinTreeTestSequences");
+            Util.copyFile(new File("src/test/resources/experiment/proteinTreeTestSequences"), fastaFile);
+            SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+            sequenceFactory.loadFastaFile(fastaFile, null);
+
+            PtmSettings ptmSettings = new PtmSettings();
+            ptmSettings.addFixedModification(PTMFactory.getInstance().getPTM("Carbamidomethylation of C"));
+            DigestionPreferences digestionPreferences = DigestionPreferences.getDefaultPreferences();
+            double massMin = 500.0;
+            double massMax = 3000.0;
+
+            // the peptides of the digestion
+            final HashMap<String, DigestedPeptide> expected = new HashMap<String, DigestedPeptide>();
+            ProteomeDigestion proteomeDigestion = new ProteomeDigestion(new IteratorFactory(ptmSettings.getFixedModifications()), digestionPreferences, massMin, massMax);
+            proteomeDigestion.digest(false, new DigestionListener() {
+                @Override
+                public void bucketDigested(double bucketMassMin, double bucketMassMax, ArrayList<DigestedPeptide> peptides) {
+                    for (DigestedPeptide digestedPeptide : peptides) {
+                        expected.put(digestedPeptide.getPeptide().getSequence(), digestedPeptide);
+                    }
+                }
+            }, 1, null);
+            Assert.assertFalse(expected.isEmpty());
+
+            File indexFile = new File(tempFolder, "peptides.pmi");
+            PeptideMassIndex builtIndex = PeptideMassIndex.build(indexFile, digestionPreferences, ptmSettings, massMin, massMax, 2, 2, null);
+            PeptideMassIndex mappedIndex = PeptideMassIndex.map(indexFile);
+
+            for (PeptideMassIndex peptideMassIndex : new PeptideMassIndex[]{builtIndex, mappedIndex}) {
+
+                Assert.assertEquals(expected.size(), peptideMassIndex.size());
+                Assert.assertEquals(sequenceFactory.getNSequences(), peptideMassIndex.getNProteins());
+                Assert.assertEquals(fastaFile.lastModified(), peptideMassIndex.getFastaLastModified());
+                Assert.assertEquals(PeptideMassIndex.getIndexKey(fastaFile, digestionPreferences, massMin, massMax), peptideMassIndex.getIndexKey());
+                Assert.assertEquals(ptmSettings.getFixedModifications(), peptideMassIndex.getFixedModifications());
+
+                for (int i = 0; i < peptideMassIndex.size(); i++) {
+                    if (i > 0) {
+                        Assert.assertTrue(peptideMassIndex.getMass(i - 1) <= peptideMassIndex.getMass(i));
+                    }
+                    String sequence = peptideMassIndex.getSequence(i);
+                    DigestedPeptide digestedPeptide = expected.get(sequence);
+                    Assert.assertNotNull(digestedPeptide);
+                    Assert.assertEquals(digestedPeptide.getMass(), peptideMassIndex.getMass(i), 1e-9);
+                    Peptide peptide = peptideMassIndex.getPeptide(i);
+                    Assert.assertEquals(sequence, peptide.getSequence());
+                    Assert.assertEquals(getModifications(digestedPeptide.getPeptide()), getModifications(peptide));
+                    int[] proteinIndexes = peptideMassIndex.getProteinIndexes(i);
+                    Assert.assertTrue(Arrays.equals(digestedPeptide.getProteinIndexes(), proteinIndexes));
+                    for (int proteinIndex : proteinIndexes) {
+                        String accession = peptideMassIndex.getAccession(proteinIndex);
+                        Assert.assertTrue(sequenceFactory.getProtein(accession).getSequence().contains(sequence));
+                    }
+                }
+
+                // mass range queries
+                for (double[] range : new double[][]{{0.0, massMin}, {1000.0, 1500.0}, {peptideMassIndex.getMass(0), peptideMassIndex.getMass(0)}, {massMax, Double.MAX_VALUE}}) {
+                    ArrayList<String> expectedSequences = new ArrayList<String>();
+                    for (int i = 0; i < peptideMassIndex.size(); i++) {
+                        double mass = peptideMassIndex.getMass(i);
+                        if (mass >= range[0] && mass <= range[1]) {
+                            expectedSequences.add(peptideMassIndex.getSequence(i));
+                        }
+                    }
+                    ArrayList<String> sequences = new ArrayList<String>();
+                    for (DigestedPeptide digestedPeptide : peptideMassIndex.getPeptides(range[0], range[1])) {
+                        Assert.assertTrue(digestedPeptide.getMass() >= range[0] && digestedPeptide.getMass() <= range[1]);
+                        sequences.add(digestedPeptide.getPeptide().getSequence());
+                    }
+                    Assert.assertEquals(expectedSequences, sequences);
+                }
+            }
+
+            // the index is reused as long as the database does not change
+            Assert.assertTrue(indexFile.setLastModified(0));
+            PeptideMassIndex.getIndex(indexFile, digestionPreferences, ptmSettings, massMin, massMax, 1, 2, null);
+            Assert.assertEquals(0, indexFile.lastModified());
+            Assert.assertTrue(fastaFile.setLastModified(fastaFile.lastModified() + 10000));
+            PeptideMassIndex rebuiltIndex = PeptideMassIndex.getIndex(indexFile, digestionPreferences, ptmSettings, massMin, massMax, 1, 2, null);
+            Assert.assertEquals(fastaFile.lastModified(), rebuiltIndex.getFastaLastModified());
+            Assert.assertEquals(expected.size(), rebuiltIndex.size());
+
+            // the index is built again when the mass range or the digestion changes
+            Assert.assertTrue(indexFile.setLastModified(0));
+            PeptideMassIndex narrowIndex = PeptideMassIndex.getIndex(indexFile, digestionPreferences, ptmSettings, massMin, 2000.0, 1, 2, null);
+            Assert.assertTrue(indexFile.lastModified() != 0);
+            Assert.assertTrue(narrowIndex.size() < expected.size());
+            Assert.assertTrue(narrowIndex.getMass(narrowIndex.size() - 1) <= 2000.0);
+            Assert.assertTrue(indexFile.setLastModified(0));
+            DigestionPreferences otherDigestionPreferences = DigestionPreferences.clone(digestionPreferences);
+            String enzymeName = otherDigestionPreferences.getEnzymes().get(0).getName();
+            otherDigestionPreferences.setnMissedCleavages(enzymeName, otherDigestionPreferences.getnMissedCleavages(enzymeName) + 1);
+            PeptideMassIndex otherIndex = PeptideMassIndex.getIndex(indexFile, otherDigestionPreferences, ptmSettings, massMin, massMax, 1, 2, null);
+            Assert.assertTrue(indexFile.lastModified() != 0);
+            Assert.assertTrue(otherIndex.size() > expected.size());
+
+            File[] files = tempFolder.listFiles();
+            for (File file : files) {
+                Assert.assertFalse(file.getName().endsWith(".tmp"));
+            }
+
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Returns the modifications of a peptide as a sorted list of name and
+     * site.
+     *
+     * @param peptide the peptide
+     *
+     * @return the modifications of the peptide
+     */
+    private static ArrayList<String> getModifications(Peptide peptide) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (peptide.getModificationMatches() != null) {
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                result.add(modificationMatch.getTheoreticPtm() + "_" + modificationMatch.getModificationSite());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
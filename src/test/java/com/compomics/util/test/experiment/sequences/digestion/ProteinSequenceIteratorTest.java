@@ -1,12 +1,15 @@
 package com.compomics.util.test.experiment.sequences.digestion;
 
 import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionBuffer;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PrimitiveDigester;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
 import com.compomics.util.preferences.DigestionPreferences;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import org.xmlpull.v1.XmlPullParserException;
@@ -271,4 +274,86 @@ public class ProteinSequenceIteratorTest extends TestCase {
 //        
 //        
     }
+
+    public void testPrimitiveDigestion() throws XmlPullParserException, IOException, InterruptedException {
+
+        ArrayList<String> fixedModifications = new ArrayList<String>();
+        fixedModifications.add("Carbamidomethylation of C");
+        fixedModifications.add("Acetylation of protein N-term");
+        fixedModifications.add("Pyrolidone from carbamidomethylated C");
+
+        IteratorFactory iteratorFactoryNoModifications = new IteratorFactory(new ArrayList<String>());
+        IteratorFactory iteratorFactoryModifications = new IteratorFactory(fixedModifications);
+
+        String testSequence = "TESTKCTESCTKTEST";
+
+        DigestionPreferences wholeProtein = new DigestionPreferences();
+        wholeProtein.setCleavagePreference(DigestionPreferences.CleavagePreference.wholeProtein);
+        DigestionPreferences unSpecific = new DigestionPreferences();
+        unSpecific.setCleavagePreference(DigestionPreferences.CleavagePreference.unSpecific);
+        DigestionPreferences trypsin = DigestionPreferences.getDefaultPreferences();
+
+        // The primitive digester should return the same peptides as the sequence iterators
+        for (IteratorFactory iteratorFactory : new IteratorFactory[]{iteratorFactoryNoModifications, iteratorFactoryModifications}) {
+            for (DigestionPreferences digestionPreferences : new DigestionPreferences[]{wholeProtein, unSpecific, trypsin}) {
+                for (double[] massLimits : new double[][]{{0.0, Double.MAX_VALUE}, {667.0, Double.MAX_VALUE}, {0.0, 668.0}, {667.0, 668.0}}) {
+
+                    SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(testSequence, digestionPreferences, massLimits[0], massLimits[1]);
+                    HashMap<String, Peptide> expected = new HashMap<String, Peptide>();
+                    PeptideWithPosition peptideWithPosition;
+                    while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                        Peptide peptide = peptideWithPosition.getPeptide();
+                        expected.put(peptideWithPosition.getPosition() + "_" + peptide.getSequence().length(), peptide);
+                    }
+
+                    PrimitiveDigester primitiveDigester = iteratorFactory.getPrimitiveDigester(digestionPreferences, massLimits[0], massLimits[1]);
+                    DigestionBuffer buffer = new DigestionBuffer(1);
+                    Assert.assertTrue(primitiveDigester.digest(3, testSequence, buffer));
+                    Assert.assertEquals(expected.size(), buffer.size());
+
+                    for (int i = 0; i < buffer.size(); i++) {
+                        Assert.assertEquals(3, buffer.getProteinIndex(i));
+                        int start = buffer.getStart(i);
+                        int end = buffer.getEnd(i);
+                        Peptide peptide = expected.get(start + "_" + (end - start));
+                        Assert.assertNotNull(peptide);
+                        Assert.assertEquals(peptide.getMass(), buffer.getMass(i), 1e-6);
+                        Peptide digested = primitiveDigester.getPeptide(buffer, i, testSequence);
+                        Assert.assertEquals(peptide.getSequence(), digested.getSequence());
+                        int nModifications = peptide.getModificationMatches() == null ? 0 : peptide.getModificationMatches().size();
+                        int nDigestedModifications = digested.getModificationMatches() == null ? 0 : digested.getModificationMatches().size();
+                        Assert.assertEquals(nModifications, nDigestedModifications);
+                        Assert.assertEquals(nModifications == 0, buffer.getFixedModifications(i) == 0L);
+                    }
+                }
+            }
+        }
+
+        // Missed cleavages
+        PrimitiveDigester primitiveDigester = iteratorFactoryNoModifications.getPrimitiveDigester(trypsin, 0.0, Double.MAX_VALUE);
+        DigestionBuffer buffer = new DigestionBuffer();
+        primitiveDigester.digest(0, testSequence, buffer);
+        for (int i = 0; i < buffer.size(); i++) {
+            String sequence = testSequence.substring(buffer.getStart(i), buffer.getEnd(i));
+            Assert.assertEquals(trypsin.getEnzymes().get(0).getNmissedCleavages(sequence), buffer.getMissedCleavages(i));
+        }
+
+        // Semi-specific digestion, the buffer is reused
+        trypsin.setnMissedCleavages("Trypsin", 0);
+        trypsin.setSpecificity("Trypsin", DigestionPreferences.Specificity.specificNTermOnly);
+        buffer.clear();
+        iteratorFactoryNoModifications.getPrimitiveDigester(trypsin, 0.0, Double.MAX_VALUE).digest(0, testSequence, buffer);
+        Assert.assertEquals(16, buffer.size());
+        trypsin.setSpecificity("Trypsin", DigestionPreferences.Specificity.specificCTermOnly);
+        buffer.clear();
+        iteratorFactoryNoModifications.getPrimitiveDigester(trypsin, 0.0, Double.MAX_VALUE).digest(0, testSequence, buffer);
+        Assert.assertEquals(16, buffer.size());
+        trypsin.setSpecificity("Trypsin", DigestionPreferences.Specificity.semiSpecific);
+        buffer.clear();
+        iteratorFactoryNoModifications.getPrimitiveDigester(trypsin, 0.0, Double.MAX_VALUE).digest(0, testSequence, buffer);
+        Assert.assertEquals(29, buffer.size());
+
+        // Combinations are left to the sequence iterators
+        Assert.assertFalse(primitiveDigester.digest(0, "TESTKCTJSCTKTEST", buffer));
+    }
 }
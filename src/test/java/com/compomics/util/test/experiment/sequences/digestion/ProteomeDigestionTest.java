@@ -0,0 +1,256 @@
+package com.compomics.util.test.experiment.sequences.digestion;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory.ProteinIterator;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestedPeptide;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionBuffer;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.DigestionListener;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PrimitiveDigester;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.ProteomeDigestion;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
+import com.compomics.util.preferences.DigestionPreferences;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test for the parallel digestion of a proteome.
+ *
+ * @author agent
+ */
+public class ProteomeDigestionTest extends TestCase {
+
+    /**
+     * The number of proteins in the test database, spanning several shards.
+     */
+    private static final int N_PROTEINS = 2 * ProteomeDigestion.SHARD_SIZE + 300;
+
+    /**
+     * Tests that the parallel digestion returns every peptide of a single
+     * threaded digestion exactly once, with the same mass, modifications and
+     * proteins, and in the same order for every number of threads and passes.
+     *
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while digesting
+     */
+    public void testParallelDigestion() throws IOException, ClassNotFoundException, InterruptedException {
+
+        File tempFolder = File.createTempFile("proteomeDigestionTest", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+
+        try {
+            File fastaFile = new File(tempFolder, "proteomeDigestionTest.fasta");
+            writeTestFasta(fastaFile);
+            SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+            sequenceFactory.loadFastaFile(fastaFile, null);
+
+            PtmSettings ptmSettings = new PtmSettings();
+            ptmSettings.addFixedModification(PTMFactory.getInstance().getPTM("Carbamidomethylation of C"));
+            DigestionPreferences digestionPreferences = DigestionPreferences.getDefaultPreferences();
+            double massMin = 500.0;
+            double massMax = 3000.0;
+
+            // single threaded digestion of every protein
+            IteratorFactory iteratorFactory = new IteratorFactory(ptmSettings.getFixedModifications());
+            PrimitiveDigester primitiveDigester = iteratorFactory.getPrimitiveDigester(digestionPreferences, massMin, massMax);
+            DigestionBuffer buffer = new DigestionBuffer();
+            HashMap<String, TreeSet<Integer>> expectedProteins = new HashMap<String, TreeSet<Integer>>();
+            HashMap<String, Double> expectedMasses = new HashMap<String, Double>();
+            ArrayList<String> accessions = new ArrayList<String>();
+            int nCombinations = 0;
+            ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+            while (proteinIterator.hasNext()) {
+                Protein protein = proteinIterator.getNextProtein();
+                int proteinIndex = accessions.size();
+                accessions.add(protein.getAccession());
+                String sequence = protein.getSequence();
+                ArrayList<Peptide> peptides = new ArrayList<Peptide>();
+                buffer.clear();
+                if (primitiveDigester.digest(proteinIndex, sequence, buffer)) {
+                    for (int i = 0; i < buffer.size(); i++) {
+                        peptides.add(primitiveDigester.getPeptide(sequence, buffer.getStart(i), buffer.getEnd(i)));
+                    }
+                } else {
+                    nCombinations++;
+                    SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
+                    PeptideWithPosition peptideWithPosition;
+                    while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                        peptides.add(peptideWithPosition.getPeptide());
+                    }
+                }
+                for (Peptide peptide : peptides) {
+                    String key = getKey(peptide);
+                    TreeSet<Integer> proteins = expectedProteins.get(key);
+                    if (proteins == null) {
+                        proteins = new TreeSet<Integer>();
+                        expectedProteins.put(key, proteins);
+                        expectedMasses.put(key, peptide.getMass());
+                    }
+                    proteins.add(proteinIndex);
+                }
+            }
+            Assert.assertEquals(N_PROTEINS, accessions.size());
+            Assert.assertTrue(nCombinations > 0);
+
+            // the test database should contain peptides shared between proteins
+            int nShared = 0;
+            for (TreeSet<Integer> proteins : expectedProteins.values()) {
+                if (proteins.size() > 1) {
+                    nShared++;
+                }
+            }
+            Assert.assertTrue(nShared > 0);
+
+            ArrayList<String> referenceOrder = null;
+
+            for (int nPasses : new int[]{1, 3}) {
+                for (int nThreads : new int[]{1, 2, 4, 8}) {
+
+                    ProteomeDigestion proteomeDigestion = new ProteomeDigestion(iteratorFactory, digestionPreferences, massMin, massMax);
+                    proteomeDigestion.setnPasses(nPasses);
+                    final ArrayList<DigestedPeptide> digestedPeptides = new ArrayList<DigestedPeptide>();
+                    proteomeDigestion.digest(false, new DigestionListener() {
+                        @Override
+                        public void bucketDigested(double bucketMassMin, double bucketMassMax, ArrayList<DigestedPeptide> peptides) {
+                            digestedPeptides.addAll(peptides);
+                        }
+                    }, nThreads, null);
+
+                    Assert.assertEquals(accessions, proteomeDigestion.getAccessions());
+
+                    // every peptide is found once
+                    ArrayList<String> order = new ArrayList<String>(digestedPeptides.size());
+                    HashMap<String, DigestedPeptide> found = new HashMap<String, DigestedPeptide>(digestedPeptides.size());
+                    for (DigestedPeptide digestedPeptide : digestedPeptides) {
+                        String key = getKey(digestedPeptide.getPeptide());
+                        Assert.assertNull("Peptide " + key + " found twice.", found.put(key, digestedPeptide));
+                        order.add(key);
+                    }
+                    Assert.assertEquals(expectedProteins.keySet(), found.keySet());
+
+                    for (int i = 0; i < digestedPeptides.size(); i++) {
+                        DigestedPeptide digestedPeptide = digestedPeptides.get(i);
+                        if (i > 0) {
+                            Assert.assertTrue(digestedPeptides.get(i - 1).getMass() <= digestedPeptide.getMass());
+                        }
+                        String key = order.get(i);
+                        Assert.assertEquals(expectedMasses.get(key), digestedPeptide.getMass(), 1e-9);
+                        int[] proteinIndexes = digestedPeptide.getProteinIndexes();
+                        int[] expectedIndexes = new int[expectedProteins.get(key).size()];
+                        int j = 0;
+                        for (Integer proteinIndex : expectedProteins.get(key)) {
+                            expectedIndexes[j++] = proteinIndex;
+                        }
+                        Assert.assertTrue(key, Arrays.equals(expectedIndexes, proteinIndexes));
+                        ArrayList<String> expectedAccessions = new ArrayList<String>(proteinIndexes.length);
+                        for (int proteinIndex : proteinIndexes) {
+                            expectedAccessions.add(accessions.get(proteinIndex));
+                        }
+                        Assert.assertEquals(expectedAccessions, digestedPeptide.getAccessions());
+                    }
+
+                    // the order does not depend on the number of threads or passes
+                    if (referenceOrder == null) {
+                        referenceOrder = order;
+                    } else {
+                        Assert.assertEquals(referenceOrder, order);
+                    }
+                }
+            }
+
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Returns a key for a peptide made of its sequence and modifications.
+     *
+     * @param peptide the peptide
+     *
+     * @return the key of the peptide
+     */
+    private static String getKey(Peptide peptide) {
+        ArrayList<String> modifications = new ArrayList<String>();
+        if (peptide.getModificationMatches() != null) {
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                modifications.add(modificationMatch.getTheoreticPtm() + "_" + modificationMatch.getModificationSite());
+            }
+        }
+        Collections.sort(modifications);
+        StringBuilder key = new StringBuilder(peptide.getSequence());
+        for (String modification : modifications) {
+            key.append('|').append(modification);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Writes a test database where the proteins are made of tryptic peptides
+     * drawn from a small pool, so that many peptides are shared between
+     * proteins, and where some proteins contain amino acid combinations.
+     *
+     * @param fastaFile the file to write
+     *
+     * @throws IOException thrown whenever an error occurs while writing the
+     * file
+     */
+    private static void writeTestFasta(File fastaFile) throws IOException {
+
+        Random random = new Random(42);
+        String residues = "ACDEFGHILMNPQSTVWY";
+        String[] pool = new String[200];
+        for (int i = 0; i < pool.length; i++) {
+            int length = 5 + random.nextInt(15);
+            StringBuilder peptide = new StringBuilder(length + 1);
+            for (int j = 0; j < length; j++) {
+                peptide.append(residues.charAt(random.nextInt(residues.length())));
+            }
+            peptide.append(random.nextBoolean() ? 'K' : 'R');
+            pool[i] = peptide.toString();
+        }
+
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                StringBuilder sequence = new StringBuilder();
+                int nPeptides = 3 + random.nextInt(6);
+                for (int j = 0; j < nPeptides; j++) {
+                    sequence.append(pool[random.nextInt(pool.length)]);
+                }
+                if (i % 97 == 0) {
+                    sequence.setCharAt(random.nextInt(sequence.length() - 1), 'J');
+                }
+                String accession = String.format("P%05d", i + 1);
+                bw.write(">sp|" + accession + "|TEST" + (i + 1) + "_HUMAN Test protein " + (i + 1) + " OS=Homo sapiens GN=TEST" + (i + 1));
+                bw.newLine();
+                bw.write(sequence.toString());
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.compomics.util.test.experiment.sequences.indexing;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.AminoAcidSequence;
+import com.compomics.util.experiment.identification.amino_acid_tags.Tag;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndex;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndexSettings;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.preferences.PeptideVariantsPreferences;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Performance check of the mapping of tags with mass gaps on the FM index. The
+ * mass gaps are resolved by the mass interval lookup, the mapping is timed
+ * with an empty tag cache and with the tags in cache, and the lookup of the
+ * mass gaps is timed alone. Not part of the unit tests, run the main method
+ * manually.
+ *
+ * @author agent
+ */
+public class FMIndexTagBenchmark {
+
+    /**
+     * The number of proteins in the database.
+     */
+    private static final int N_PROTEINS = 5000;
+
+    /**
+     * The number of tags to map.
+     */
+    private static final int N_TAGS = 2000;
+
+    /**
+     * The number of times every mapping is repeated, the first repetitions are
+     * used to warm up the virtual machine.
+     */
+    private static final int N_REPETITIONS = 5;
+
+    /**
+     * The residues used for the random sequences.
+     */
+    private static final String ALPHABET = "ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+     * Runs the benchmark and prints the time spent by every mapping.
+     *
+     * @param args not used
+     *
+     * @throws Exception thrown whenever an error occurred while writing the
+     * database, building the index or mapping the tags
+     */
+    public static void main(String[] args) throws Exception {
+
+        File tempFolder = File.createTempFile("fmIndexTagBenchmark", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+
+        try {
+            Random random = new Random(42);
+            File fastaFile = new File(tempFolder, "fmIndexTagBenchmark.fasta");
+            ArrayList<String> proteins = writeFasta(fastaFile, random);
+            SequenceFactory.getInstance().loadFastaFile(fastaFile, null);
+
+            SearchParameters searchParameters = new SearchParameters();
+            searchParameters.setPtmSettings(new PtmSettings());
+            searchParameters.setFragmentIonAccuracy(0.02);
+            searchParameters.setFragmentAccuracyType(SearchParameters.MassAccuracyType.DA);
+            FMIndexSettings fmIndexSettings = new FMIndexSettings();
+            fmIndexSettings.setUseIndexFile(false);
+            PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+
+            // the second index reuses the mass interval lookup of the first one
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                new FMIndex(null, false, peptideVariantsPreferences, searchParameters, 1, fmIndexSettings);
+                System.out.println("index " + (i + 1) + " built in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+            FMIndex fmIndex = new FMIndex(null, false, peptideVariantsPreferences, searchParameters, 1, fmIndexSettings);
+
+            // tags of four residues taken from the proteins with the mass of the flanking residues as gaps
+            ArrayList<Tag> tags = new ArrayList<Tag>(N_TAGS);
+            ArrayList<Double> gaps = new ArrayList<Double>(2 * N_TAGS);
+            while (tags.size() < N_TAGS) {
+                String protein = proteins.get(random.nextInt(proteins.size()));
+                int peptideLength = 8 + random.nextInt(9);
+                int start = random.nextInt(protein.length() - peptideLength);
+                int tagStart = start + 1 + random.nextInt(peptideLength - 5);
+                double nTermGap = getMass(protein, start, tagStart);
+                double cTermGap = getMass(protein, tagStart + 4, start + peptideLength);
+                tags.add(new Tag(nTermGap, new AminoAcidSequence(protein.substring(tagStart, tagStart + 4)), cTermGap));
+                gaps.add(nTermGap);
+                gaps.add(cTermGap);
+            }
+
+            SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+            sequenceMatchingPreferences.setSequenceMatchingType(SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids);
+            sequenceMatchingPreferences.setLimitX(0.25);
+
+            for (int repetition = 0; repetition < N_REPETITIONS; repetition++) {
+
+                fmIndex.getTagCache().clear();
+                long start = System.nanoTime();
+                long coldCount = 0;
+                for (Tag tag : tags) {
+                    coldCount += fmIndex.getProteinMapping(tag, null, sequenceMatchingPreferences).size();
+                }
+                long coldTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long warmCount = 0;
+                for (Tag tag : tags) {
+                    warmCount += fmIndex.getProteinMapping(tag, null, sequenceMatchingPreferences).size();
+                }
+                long warmTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long nCombinations = 0;
+                for (double gap : gaps) {
+                    int[] range = fmIndex.computeMappingRanges(gap);
+                    nCombinations += Math.max(0, range[1] - range[0] + 1);
+                }
+                long lookupTime = System.nanoTime() - start;
+
+                System.out.println("run " + (repetition + 1) + ": empty tag cache " + coldTime / 1000000 + " ms (" + coldCount + " mappings), tags in cache "
+                        + warmTime / 1000000 + " ms (" + warmCount + " mappings), mass gap lookup " + lookupTime / 1000 + " us (" + nCombinations + " combinations)");
+            }
+
+        } finally {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Returns the sum of the monoisotopic masses of the residues of a
+     * sequence between the given indexes.
+     *
+     * @param sequence the sequence
+     * @param start the index of the first residue, inclusive
+     * @param end the index of the last residue, exclusive
+     *
+     * @return the mass of the residues
+     */
+    private static double getMass(String sequence, int start, int end) {
+        double mass = 0;
+        for (int i = start; i < end; i++) {
+            mass += AminoAcid.getAminoAcid(sequence.charAt(i)).getMonoisotopicMass();
+        }
+        return mass;
+    }
+
+    /**
+     * Writes a database of random proteins.
+     *
+     * @param fastaFile the file to write
+     * @param random the random generator
+     *
+     * @return the sequences of the proteins
+     *
+     * @throws IOException thrown whenever an error occurs while writing the
+     * file
+     */
+    private static ArrayList<String> writeFasta(File fastaFile, Random random) throws IOException {
+        ArrayList<String> proteins = new ArrayList<String>(N_PROTEINS);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                int length = 100 + random.nextInt(800);
+                StringBuilder sequence = new StringBuilder(length);
+                for (int j = 0; j < length; j++) {
+                    sequence.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                }
+                proteins.add(sequence.toString());
+                String accession = String.format("P%05d", i + 1);
+                bw.write(">sp|" + accession + "|BENCH" + (i + 1) + "_HUMAN Benchmark protein " + (i + 1) + " OS=Homo sapiens GN=BENCH" + (i + 1));
+                bw.newLine();
+                bw.write(sequence.toString());
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        return proteins;
+    }
+}
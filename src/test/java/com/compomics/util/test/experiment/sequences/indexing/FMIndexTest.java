@@ -1,5 +1,6 @@
 package com.compomics.util.test.experiment.sequences.indexing;
 
+import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
 import com.compomics.util.experiment.biology.AminoAcid;
@@ -18,8 +19,16 @@ import com.compomics.util.experiment.identification.identification_parameters.Pt
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.VariantMatch;
+import com.compomics.util.experiment.identification.protein_inference.BatchPeptideMapping;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMappingListener;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
 import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndex;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndexFile;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.FMIndexSettings;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.MassIntervalLookup;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.OccurrenceTable;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.Rank;
+import com.compomics.util.experiment.identification.protein_inference.fm_index.WaveletMatrix;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PeptideVariantsPreferences;
@@ -29,8 +38,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import junit.framework.Assert;
@@ -53,6 +64,39 @@ public class FMIndexTest extends TestCase {
     boolean testVariantMatchingGeneric = true;
     boolean testVariantPTMMatching = true;
     boolean testVariantMatchingSpecific = true;
+    /**
+     * Temporary folder where the test FASTA files are copied, so that the
+     * index files are not written to the test resources.
+     */
+    private File tempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        tempFolder = File.createTempFile("fmIndexTest", "");
+        tempFolder.delete();
+        tempFolder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Returns a copy of the given test FASTA file in the temporary folder.
+     *
+     * @param name the name of the FASTA file in the test resources
+     *
+     * @return the copy of the FASTA file
+     *
+     * @throws IOException thrown whenever an error occurs while copying the
+     * file
+     */
+    private File getTestFastaFile(String name) throws IOException {
+        File fastaFile = new File(tempFolder, name);
+        Util.copyFile(new File("src/test/resources/experiment", name), fastaFile);
+        return fastaFile;
+    }
 
     /**
      * Tests the import and the mapping of a few peptide sequences.
@@ -74,7 +118,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
         PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
@@ -119,6 +163,335 @@ public class FMIndexTest extends TestCase {
 
     }
 
+    /**
+     * Tests that an index loaded from the index file maps like the index it
+     * was written from.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testIndexFile() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        File indexFile = new File(sequences.getParent(), FMIndexFile.getIndexName(sequences.getName()));
+        indexFile.delete();
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+
+        FMIndex builtIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        Assert.assertTrue(indexFile.exists());
+        FMIndex loadedIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        Assert.assertEquals(builtIndex.getAllocatedBytes(), loadedIndex.getAllocatedBytes());
+
+        for (String peptide : new String[]{"SSS", "KR", "ECTQDRGKTAFTEAVLLP"}) {
+            ArrayList<PeptideProteinMapping> builtMappings = builtIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching);
+            ArrayList<PeptideProteinMapping> loadedMappings = loadedIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching);
+            Assert.assertEquals(builtMappings.size(), loadedMappings.size());
+            for (int i = 0; i < builtMappings.size(); ++i) {
+                Assert.assertEquals(builtMappings.get(i).getProteinAccession(), loadedMappings.get(i).getProteinAccession());
+                Assert.assertEquals(builtMappings.get(i).getIndex(), loadedMappings.get(i).getIndex());
+            }
+        }
+    }
+
+    /**
+     * Tests that the index file is written to the index folder of the
+     * settings, and not written when no index file is used.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     */
+    public void testIndexFolder() throws FileNotFoundException, IOException, ClassNotFoundException {
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        File defaultIndexFile = new File(sequences.getParent(), FMIndexFile.getIndexName(sequences.getName()));
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+
+        FMIndexSettings fmIndexSettings = new FMIndexSettings();
+        fmIndexSettings.setUseIndexFile(false);
+        FMIndex inMemoryIndex = new FMIndex(null, false, null, peptideVariantsPreferences, 1, fmIndexSettings);
+        Assert.assertFalse(defaultIndexFile.exists());
+
+        File indexFolder = new File(tempFolder, "index");
+        fmIndexSettings = new FMIndexSettings();
+        fmIndexSettings.setIndexFolder(indexFolder.getAbsolutePath());
+        FMIndex folderIndex = new FMIndex(null, false, null, peptideVariantsPreferences, 1, fmIndexSettings);
+        Assert.assertFalse(defaultIndexFile.exists());
+        Assert.assertTrue(new File(indexFolder, FMIndexFile.getIndexName(sequences.getName())).exists());
+        Assert.assertEquals(inMemoryIndex.getAllocatedBytes(), folderIndex.getAllocatedBytes());
+    }
+
+    /**
+     * Tests that the batch mapping on several threads returns the mappings of
+     * the single peptide mapping in the order of the peptides.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testBatchMapping() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        FMIndex fmIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+
+        ArrayList<String> peptides = new ArrayList<String>();
+        for (int i = 0; i < 2500; ++i) {
+            peptides.add(new String[]{"SSS", "KR", "ECTQDRGKTAFTEAVLLP", "WWWWW"}[i % 4]);
+        }
+        final HashMap<String, Integer> mappingCounts = new HashMap<String, Integer>();
+        final ArrayList<String> mappedPeptides = new ArrayList<String>();
+        BatchPeptideMapping.mapPeptides(fmIndex, peptides.iterator(), SequenceMatchingPreferences.defaultStringMatching, new PeptideMappingListener<String>() {
+            @Override
+            public void mapped(String peptide, ArrayList<PeptideProteinMapping> peptideProteinMappings) {
+                mappedPeptides.add(peptide);
+                mappingCounts.put(peptide, peptideProteinMappings.size());
+            }
+        }, 4, null);
+
+        Assert.assertEquals(peptides, mappedPeptides);
+        for (String peptide : mappingCounts.keySet()) {
+            int expected = fmIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching).size();
+            Assert.assertEquals(expected, mappingCounts.get(peptide).intValue());
+        }
+    }
+
+    /**
+     * Tests that the wavelet matrix answers the occurrence table queries like
+     * the wavelet tree and that the rank select queries are consistent.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testWaveletMatrix() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        Random random = new Random(42);
+        long[] bitfield = new long[100];
+        for (int i = 0; i < bitfield.length; ++i) {
+            bitfield[i] = random.nextLong();
+        }
+        int length = 100 * 64 - 13;
+        Rank rank = new Rank(bitfield, length);
+        int ones = 0;
+        for (int i = 0; i < length; ++i) {
+            if (rank.isOne(i)) {
+                ++ones;
+                Assert.assertEquals(i, rank.select(ones, false));
+            } else {
+                Assert.assertEquals(i, rank.select(i + 1 - ones, true));
+            }
+            Assert.assertEquals(ones, rank.getRankOne(i));
+        }
+        Assert.assertEquals(ones, rank.getNumberOfOnes());
+        Assert.assertEquals(-1, rank.select(ones + 1, false));
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        FMIndex fmIndexTree = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndexSettings fmIndexSettings = new FMIndexSettings();
+        fmIndexSettings.setUseWaveletMatrix(true);
+        FMIndex fmIndexMatrix = new FMIndex(null, false, null, peptideVariantsPreferences, 1, fmIndexSettings);
+
+        OccurrenceTable waveletTree = fmIndexTree.occurrenceTablesReversed.get(0);
+        OccurrenceTable waveletMatrix = fmIndexMatrix.occurrenceTablesReversed.get(0);
+        Assert.assertTrue(waveletMatrix instanceof WaveletMatrix);
+        Assert.assertTrue(Arrays.equals(waveletTree.createLessTable(), waveletMatrix.createLessTable()));
+        int textLength = fmIndexTree.indexStringLengths.get(0);
+        String aminoAcids = "ACDEFGHIKLMNPQRSTVWY";
+        for (int i = 0; i < textLength; i += 7) {
+            Assert.assertTrue(Arrays.equals(waveletTree.getCharacterInfo(i), waveletMatrix.getCharacterInfo(i)));
+            int aminoAcid = aminoAcids.charAt(i % aminoAcids.length());
+            Assert.assertEquals(waveletTree.getRank(i, aminoAcid), waveletMatrix.getRank(i, aminoAcid));
+            int rightIndex = Math.min(i + 1 + random.nextInt(200), textLength - 1);
+            Assert.assertTrue(Arrays.equals(waveletTree.singleRangeQuery(i - 1, rightIndex, aminoAcid), waveletMatrix.singleRangeQuery(i - 1, rightIndex, aminoAcid)));
+            Assert.assertEquals(getRanges(waveletTree.rangeQuery(i - 1, rightIndex)), getRanges(waveletMatrix.rangeQuery(i - 1, rightIndex)));
+            Assert.assertEquals(getRanges(waveletTree.rangeQuery(i - 1, i)), getRanges(waveletMatrix.rangeQuery(i - 1, i)));
+        }
+
+        for (String peptide : new String[]{"SSS", "KR", "ECTQDRGKTAFTEAVLLP", "WWWWW"}) {
+            Assert.assertEquals(fmIndexTree.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching).size(),
+                    fmIndexMatrix.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching).size());
+        }
+    }
+
+    /**
+     * Tests that a sparser suffix array sampling with an inverse suffix array
+     * maps like the default index and allows extracting protein sequences.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testSuffixArraySampling() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        FMIndex defaultIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndexSettings fmIndexSettings = new FMIndexSettings();
+        fmIndexSettings.setSamplingShift(5);
+        fmIndexSettings.setSampleInverseSuffixArray(true);
+        FMIndex sparseIndex = new FMIndex(null, false, null, peptideVariantsPreferences, 1, fmIndexSettings);
+        FMIndex loadedIndex = new FMIndex(null, false, null, peptideVariantsPreferences, 1, fmIndexSettings);
+
+        for (String peptide : new String[]{"SSS", "KR", "LL", "ECTQDRGKTAFTEAVLLP"}) {
+            HashMap<String, HashMap<String, ArrayList<Integer>>> expected = PeptideProteinMapping.getPeptideProteinIndexesMap(defaultIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching));
+            Assert.assertEquals(expected, PeptideProteinMapping.getPeptideProteinIndexesMap(sparseIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching)));
+            Assert.assertEquals(expected, PeptideProteinMapping.getPeptideProteinIndexesMap(loadedIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching)));
+        }
+
+        for (String accession : new String[]{"Q9FHX5", "Q9FHX5_REVERSED", "TEST_ACCESSION"}) {
+            String sequence = sequenceFactory.getProtein(accession).getSequence().toUpperCase();
+            Assert.assertEquals(sequence, sparseIndex.getProteinSequence(accession));
+            Assert.assertEquals(sequence, loadedIndex.getProteinSequence(accession));
+            Assert.assertEquals(sequence, defaultIndex.getProteinSequence(accession));
+        }
+        Assert.assertNull(sparseIndex.getProteinSequence("NOT_AN_ACCESSION"));
+        Assert.assertNull(defaultIndex.getProteinSequence("NOT_AN_ACCESSION"));
+
+        Assert.assertEquals(0, defaultIndex.getAllocatedBytesPerComponent().get("sampled inverse suffix arrays").longValue());
+        Assert.assertTrue(sparseIndex.getAllocatedBytesPerComponent().get("sampled inverse suffix arrays") > 0);
+        Assert.assertTrue(sparseIndex.getAllocatedBytesPerComponent().get("sampled suffix arrays") < defaultIndex.getAllocatedBytesPerComponent().get("sampled suffix arrays"));
+        Assert.assertEquals(sparseIndex.getAllocatedBytes(), loadedIndex.getAllocatedBytes());
+    }
+
+    /**
+     * Tests that a disk backed index built in small parts gives the same
+     * mappings as an index built in memory.
+     *
+     * @throws FileNotFoundException thrown whenever a file is not found
+     * @throws IOException thrown whenever an error occurs while reading or
+     * writing a file
+     * @throws ClassNotFoundException thrown whenever an error occurs while
+     * deserializing an object
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the tree
+     * @throws SQLException if an SQLException thrown whenever a problem
+     * occurred while interacting with the tree database
+     */
+    public void testDiskBackedIndex() throws FileNotFoundException, IOException, ClassNotFoundException, SQLException, InterruptedException {
+
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(sequences, null);
+        PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
+        FMIndex defaultIndex = new FMIndex(null, false, null, peptideVariantsPreferences);
+        FMIndexSettings fmIndexSettings = new FMIndexSettings();
+        fmIndexSettings.setIndexPartLength(300);
+        fmIndexSettings.setDiskBacked(true);
+        FMIndex diskBackedIndex = new FMIndex(null, false, null, peptideVariantsPreferences, 2, fmIndexSettings);
+
+        for (String peptide : new String[]{"SSS", "KR", "LL", "ECTQDRGKTAFTEAVLLP"}) {
+            HashMap<String, HashMap<String, ArrayList<Integer>>> expected = PeptideProteinMapping.getPeptideProteinIndexesMap(defaultIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching));
+            Assert.assertEquals(expected, PeptideProteinMapping.getPeptideProteinIndexesMap(diskBackedIndex.getProteinMapping(peptide, SequenceMatchingPreferences.defaultStringMatching)));
+        }
+    }
+
+    /**
+     * Tests that the mass interval lookup returns the amino acid combinations
+     * matching a mass gap and is shared between identical settings.
+     */
+    public void testMassIntervalLookup() {
+
+        char[] aminoAcids = "ACDEFGHIKLMNPQRSTVWY".toCharArray();
+        double[] aaMasses = new double[128];
+        int[] aaMassIndexes = new int[aminoAcids.length];
+        for (int i = 0; i < aminoAcids.length; ++i) {
+            aaMasses[aminoAcids[i]] = AminoAcid.getAminoAcid(aminoAcids[i]).getMonoisotopicMass();
+            aaMassIndexes[i] = aminoAcids[i];
+        }
+
+        for (SearchParameters.MassAccuracyType massAccuracyType : SearchParameters.MassAccuracyType.values()) {
+            double massTolerance = massAccuracyType == SearchParameters.MassAccuracyType.DA ? 0.02 : 10.;
+            MassIntervalLookup lookup = MassIntervalLookup.getMassIntervalLookup(aaMasses, aaMassIndexes, massTolerance, massAccuracyType, 800, 10000, 4);
+            Assert.assertSame(lookup, MassIntervalLookup.getMassIntervalLookup(aaMasses.clone(), aaMassIndexes.clone(), massTolerance, massAccuracyType, 800, 10000, 4));
+
+            for (int i = 1; i < lookup.size(); ++i) {
+                Assert.assertTrue(lookup.getMass(i - 1) <= lookup.getMass(i));
+            }
+
+            // GG, N and the combinations within the tolerance
+            double mass = 2 * AminoAcid.G.getMonoisotopicMass();
+            int[] range = lookup.getRange(mass);
+            int expectedFirst = -1, expectedLast = -2;
+            for (int i = 0; i < lookup.size(); ++i) {
+                double tolerance = massAccuracyType == SearchParameters.MassAccuracyType.DA ? massTolerance : massTolerance / 1e6 * lookup.getMass(i);
+                if (Math.abs(lookup.getMass(i) - mass) <= tolerance) {
+                    expectedFirst = expectedFirst == -1 ? i : expectedFirst;
+                    expectedLast = i;
+                }
+            }
+            Assert.assertEquals(expectedFirst, range[0]);
+            Assert.assertEquals(expectedLast, range[1]);
+            ArrayList<String> combinations = new ArrayList<String>();
+            for (int i = range[0]; i <= range[1]; ++i) {
+                String combination = "";
+                for (int aminoAcid : lookup.getAminoAcids(i)) {
+                    combination += (char) aminoAcid;
+                }
+                combinations.add(combination);
+            }
+            Assert.assertTrue(combinations.contains("GG"));
+            Assert.assertTrue(combinations.contains("N"));
+
+            // a mass no combination explains
+            range = lookup.getRange(1.5);
+            Assert.assertTrue(range[1] < range[0]);
+        }
+    }
+
+    /**
+     * Returns the character ranges of a range query as sorted strings.
+     *
+     * @param setCharacter the result of the range query
+     * @return the character ranges
+     */
+    private ArrayList<String> getRanges(int[][] setCharacter) {
+        ArrayList<String> ranges = new ArrayList<String>();
+        for (int i = 0; i < setCharacter[setCharacter.length - 1][0]; ++i) {
+            ranges.add(setCharacter[i][0] + " " + setCharacter[i][1] + " " + setCharacter[i][2]);
+        }
+        Collections.sort(ranges);
+        return ranges;
+    }
+
     /**
      * Tests the import and the mapping of a few peptide sequences.
      *
@@ -139,7 +512,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
         PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
@@ -308,7 +681,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences");
+        File sequences = getTestFastaFile("proteinTreeTestSequences");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
         PeptideVariantsPreferences peptideVariantsPreferences = PeptideVariantsPreferences.getNoVariantPreferences();
@@ -499,7 +872,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences_1");
+        File sequences = getTestFastaFile("proteinTreeTestSequences_1");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
         
@@ -548,6 +921,13 @@ public class FMIndexTest extends TestCase {
         Assert.assertTrue(peptideProteinMapping.getPeptideSequence().compareTo("TMRITESTCK") == 0);
         Assert.assertTrue(peptideProteinMapping.getIndex() == 4);
         
+        // the same tag again is mapped from the cache
+        long cacheHits = fmIndex.getTagCache().getHits();
+        peptideProteinMappings = fmIndex.getProteinMapping(tag, null, sequenceMatchingPreferences);
+        Assert.assertTrue(fmIndex.getTagCache().getHits() > cacheHits);
+        Assert.assertTrue(peptideProteinMappings.size() == 1);
+        Assert.assertTrue(peptideProteinMappings.get(0).getPeptideSequence().compareTo("TMRITESTCK") == 0);
+        
         
         
         
@@ -1836,7 +2216,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences_1");
+        File sequences = getTestFastaFile("proteinTreeTestSequences_1");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
 
@@ -2314,7 +2694,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences_1");
+        File sequences = getTestFastaFile("proteinTreeTestSequences_1");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
 
@@ -2552,7 +2932,7 @@ public class FMIndexTest extends TestCase {
 
         WaitingHandlerCLIImpl waitingHandlerCLIImpl = new WaitingHandlerCLIImpl();
         ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
-        File sequences = new File("src/test/resources/experiment/proteinTreeTestSequences_1");
+        File sequences = getTestFastaFile("proteinTreeTestSequences_1");
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         sequenceFactory.loadFastaFile(sequences, waitingHandlerCLIImpl);
 
@@ -0,0 +1,120 @@
+package com.compomics.util.test.experiment.sequences.matching;
+
+import com.compomics.util.experiment.biology.AminoAcidPattern;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Performance check of the amino acid pattern matching. The compiled matching
+ * of getIndexes and matchesAt is timed against a naive scan evaluating
+ * isTargeted at every position. Not part of the unit tests, run the main
+ * method manually.
+ *
+ * @author agent
+ */
+public class AminoAcidPatternBenchmark {
+
+    /**
+     * The number of proteins to scan.
+     */
+    private static final int N_PROTEINS = 3000;
+
+    /**
+     * The number of times every scan is repeated, the first repetitions are
+     * used to warm up the virtual machine.
+     */
+    private static final int N_REPETITIONS = 5;
+
+    /**
+     * Runs the benchmark and prints the time spent by every scan.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+
+        ArrayList<AminoAcidPattern> patterns = new ArrayList<AminoAcidPattern>();
+        patterns.add(AminoAcidPattern.getTrypsinExample());
+        patterns.add(AminoAcidPattern.getAminoAcidPatternFromString("N[ST]"));
+        AminoAcidPattern glycosylation = AminoAcidPattern.getAminoAcidPatternFromString("NXS");
+        glycosylation.setTargeted(1, new ArrayList<Character>());
+        ArrayList<Character> excluded = new ArrayList<Character>();
+        excluded.add('P');
+        glycosylation.setExcluded(1, excluded);
+        patterns.add(glycosylation);
+        patterns.add(AminoAcidPattern.getAminoAcidPatternFromString("IJX"));
+
+        Random random = new Random(42);
+        String alphabet = "ACDEFGHIKLMNPQRSTVWY";
+        ArrayList<String> proteins = new ArrayList<String>(N_PROTEINS);
+        for (int i = 0; i < N_PROTEINS; i++) {
+            int length = 100 + random.nextInt(800);
+            StringBuilder sequence = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            proteins.add(sequence.toString());
+        }
+
+        for (SequenceMatchingPreferences.MatchingType matchingType : new SequenceMatchingPreferences.MatchingType[]{
+            SequenceMatchingPreferences.MatchingType.string, SequenceMatchingPreferences.MatchingType.indistiguishableAminoAcids}) {
+
+            SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+            sequenceMatchingPreferences.setSequenceMatchingType(matchingType);
+
+            for (int repetition = 0; repetition < N_REPETITIONS; repetition++) {
+
+                long start = System.nanoTime();
+                long naiveCount = 0;
+                for (AminoAcidPattern pattern : patterns) {
+                    for (String protein : proteins) {
+                        naiveCount += naiveScan(pattern, protein, sequenceMatchingPreferences);
+                    }
+                }
+                long naiveTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long compiledCount = 0;
+                long matchesAtCount = 0;
+                for (AminoAcidPattern pattern : patterns) {
+                    for (String protein : proteins) {
+                        compiledCount += pattern.getIndexes(protein, sequenceMatchingPreferences).size();
+                        for (int i = 0; i + pattern.length() < protein.length(); i++) {
+                            if (pattern.matchesAt(protein, sequenceMatchingPreferences, i)) {
+                                matchesAtCount++;
+                            }
+                        }
+                    }
+                }
+                long compiledTime = System.nanoTime() - start;
+
+                System.out.println(matchingType + " run " + (repetition + 1) + ": naive scan " + naiveTime / 1000000 + " ms (" + naiveCount
+                        + " hits), getIndexes and matchesAt " + compiledTime / 1000000 + " ms (" + compiledCount + " and " + matchesAtCount + " hits)");
+            }
+        }
+    }
+
+    /**
+     * Counts the occurrences of a pattern in a sequence by evaluating
+     * isTargeted at every position.
+     *
+     * @param pattern the pattern
+     * @param sequence the sequence
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the number of occurrences
+     */
+    private static int naiveScan(AminoAcidPattern pattern, String sequence, SequenceMatchingPreferences sequenceMatchingPreferences) {
+        int count = 0;
+        for (int i = 0; i + pattern.length() <= sequence.length(); i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length() && match; j++) {
+                match = pattern.isTargeted(sequence.charAt(i + j), j, sequenceMatchingPreferences);
+            }
+            if (match) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -3,6 +3,7 @@ package com.compomics.util.test.experiment.sequences.matching;
 import com.compomics.util.experiment.biology.AminoAcidPattern;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import java.util.ArrayList;
+import java.util.Random;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -48,4 +49,67 @@ public class AminoAcidPatternTest extends TestCase {
         pattern = AminoAcidPattern.getAminoAcidPatternFromString("XXX");
         Assert.assertTrue(pattern.matches(input, sequenceMatchingPreferences));
     }
+
+    public void testCompiledMatching() {
+
+        ArrayList<AminoAcidPattern> patterns = new ArrayList<AminoAcidPattern>();
+        patterns.add(AminoAcidPattern.getTrypsinExample());
+        patterns.add(AminoAcidPattern.getAminoAcidPatternFromString("IJX"));
+        patterns.add(AminoAcidPattern.getAminoAcidPatternFromString("N[ST]"));
+        AminoAcidPattern wildcard = AminoAcidPattern.getAminoAcidPatternFromString("KAR");
+        wildcard.setTargeted(1, new ArrayList<Character>());
+        patterns.add(wildcard);
+        AminoAcidPattern glycosylation = AminoAcidPattern.getAminoAcidPatternFromString("NXS");
+        glycosylation.setTargeted(1, new ArrayList<Character>());
+        ArrayList<Character> excluded = new ArrayList<Character>();
+        excluded.add('P');
+        glycosylation.setExcluded(1, excluded);
+        patterns.add(glycosylation);
+        StringBuilder longPattern = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            longPattern.append('A');
+        }
+        patterns.add(AminoAcidPattern.getAminoAcidPatternFromString(longPattern.toString()));
+
+        Random random = new Random(42);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        ArrayList<String> sequences = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = random.nextInt(100);
+            for (int j = 0; j < length; j++) {
+                sequence.append(alphabet.charAt(random.nextInt(i % 2 == 0 ? alphabet.length() : 5)));
+            }
+            sequences.add(sequence.toString());
+        }
+        sequences.add(longPattern.toString() + "AK");
+
+        for (SequenceMatchingPreferences.MatchingType matchingType : SequenceMatchingPreferences.MatchingType.values()) {
+            SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+            sequenceMatchingPreferences.setSequenceMatchingType(matchingType);
+            for (AminoAcidPattern pattern : patterns) {
+                for (String sequence : sequences) {
+
+                    // naive scan of the pattern
+                    ArrayList<Integer> expected = new ArrayList<Integer>();
+                    for (int i = 0; i + pattern.length() <= sequence.length(); i++) {
+                        boolean match = true;
+                        for (int j = 0; j < pattern.length() && match; j++) {
+                            match = pattern.isTargeted(sequence.charAt(i + j), j, sequenceMatchingPreferences);
+                        }
+                        if (match) {
+                            expected.add(i + 1);
+                        }
+                    }
+
+                    Assert.assertEquals(expected, pattern.getIndexes(sequence, sequenceMatchingPreferences));
+                    Assert.assertEquals(expected.isEmpty() ? -1 : expected.get(0) - 1, pattern.firstIndex(sequence, sequenceMatchingPreferences));
+                    // matchesAt returns false for sequences which are not longer than the pattern
+                    for (int i = 0; i + pattern.length() <= sequence.length(); i++) {
+                        Assert.assertEquals(expected.contains(i + 1) && pattern.length() < sequence.length(), pattern.matchesAt(sequence, sequenceMatchingPreferences, i));
+                    }
+                }
+            }
+        }
+    }
 }
@@ -1,6 +1,9 @@
 package com.compomics.util.test.experiment.spectrum.indexing;
 
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.experiment.massspectrometry.indexes.SpectrumIndex;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -60,6 +63,61 @@ public class SpectrumAnnotationTest extends TestCase {
         
     } 
 
-    
-    
+    /**
+     * This test evaluates the storage of the peaks in the spectrum.
+     *
+     * @throws Exception if an exception occurs
+     */
+    public void testPeakStorage() throws Exception {
+
+        HashMap<Double, Peak> peakList = new HashMap<Double, Peak>();
+        peakList.put(1012.8, new Peak(1012.8, 54321));
+        peakList.put(300.1, new Peak(300.1, 100));
+        peakList.put(1012.5, new Peak(1012.5, 12345));
+
+        MSnSpectrum spectrum = new MSnSpectrum(2, new Precursor(0.0, 500.0, new ArrayList<Charge>()), "test", peakList, "test.mgf");
+        double[] mz = spectrum.getOrderedMzValues();
+        double[] intensity = spectrum.getIntensityValuesAsArray();
+        Assert.assertTrue(mz.length == 3);
+        Assert.assertTrue(mz[0] == 300.1 && mz[1] == 1012.5 && mz[2] == 1012.8);
+        Assert.assertTrue(intensity[0] == 100 && intensity[1] == 12345 && intensity[2] == 54321);
+        Assert.assertTrue(spectrum.getMinMz() == 300.1);
+        Assert.assertTrue(spectrum.getMaxMz() == 1012.8);
+
+        spectrum.addPeak(new Peak(500.5, 10));
+        spectrum.addPeak(new Peak(1012.5, 20));
+        Assert.assertTrue(spectrum.getNPeaks() == 4);
+        Assert.assertTrue(spectrum.getOrderedMzValues()[1] == 500.5);
+        Assert.assertTrue(spectrum.getPeakMap().get(1012.5).intensity == 20);
+        Assert.assertTrue(spectrum.getTotalIntensity() == 54451);
+        Assert.assertTrue(spectrum.getSubSpectrum(500.5, 1012.8).size() == 2);
+
+        // the peak map is built at every call and not retained by the spectrum
+        HashMap<Double, Peak> peakMap = spectrum.getPeakMap();
+        Assert.assertTrue(peakMap != spectrum.getPeakMap());
+        peakMap.clear();
+        Assert.assertTrue(spectrum.getNPeaks() == 4);
+        Assert.assertTrue(spectrum.getPeakMap().size() == 4);
+
+        // the index built on the arrays is the same as the one built on the map
+        SpectrumIndex arrayIndex = new SpectrumIndex(spectrum.getOrderedMzValues(), spectrum.getIntensityValuesAsArray(), 15.0, 0.5, false);
+        SpectrumIndex mapIndex = new SpectrumIndex(spectrum.getPeakMap(), 15.0, 0.5, false);
+        Assert.assertTrue(arrayIndex.getTotalIntensity() == mapIndex.getTotalIntensity());
+        Assert.assertTrue(arrayIndex.getRawBins().equals(mapIndex.getRawBins()));
+        for (double queryMz : new double[]{300.0, 500.5, 1012.6}) {
+            Assert.assertTrue(arrayIndex.getMatchingPeaks(queryMz).size() == mapIndex.getMatchingPeaks(queryMz).size());
+        }
+        Assert.assertTrue(arrayIndex.getMatchingPeaks(500.5).isEmpty());
+
+        spectrum.setPeaks(new double[]{200.0, 100.0, 200.0}, new double[]{1.0, 2.0, 3.0});
+        mz = spectrum.getOrderedMzValues();
+        intensity = spectrum.getIntensityValuesAsArray();
+        Assert.assertTrue(mz.length == 2);
+        Assert.assertTrue(mz[0] == 100.0 && mz[1] == 200.0);
+        Assert.assertTrue(intensity[0] == 2.0 && intensity[1] == 3.0);
+        Assert.assertTrue(spectrum.getPeakMap().size() == 2);
+
+        spectrum.removePeakList();
+        Assert.assertTrue(spectrum.isEmpty());
+    }
 }